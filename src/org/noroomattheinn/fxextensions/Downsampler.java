@@ -0,0 +1,231 @@
+/*
+ * Downsampler.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 30, 2015
+ */
+
+package org.noroomattheinn.fxextensions;
+
+import java.util.Arrays;
+
+/**
+ * Downsampler: Reduce a series to the points worth drawing at a given zoom
+ * level using the Largest-Triangle-Three-Buckets algorithm. The x axis is
+ * cut into buckets of equal width and one point is kept from each bucket
+ * that has any: the one forming the largest triangle with the point kept
+ * from the previous bucket and the average of the next bucket. That keeps
+ * the peaks and valleys that give a line its shape, which averaging or
+ * taking every nth point would lose.
+ *
+ * The buckets are fixed in x rather than fitted to a viewport, so one Level
+ * serves every scroll position at that zoom and only needs to be computed
+ * once.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class Downsampler {
+
+    /**
+     * The points kept for one bucket width. Each point also records the
+     * largest step in x between consecutive source points since the
+     * previous kept point, so a gap in the source data is still a gap when
+     * drawn at this level.
+     */
+    public static final class Level {
+        public final int      level;        // Buckets are 2^level wide
+        public final long[]   x;
+        public final double[] y;
+        public final long[]   step;         // Largest source step before each point
+        public final int      size;         // Number of points kept
+        public final int      sourceSize;   // Number of source points used
+
+        Level(int level, long[] x, double[] y, long[] step, int size, int sourceSize) {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.step = step;
+            this.size = size;
+            this.sourceSize = sourceSize;
+        }
+    }
+
+    /**
+     * The level whose buckets are no wider than a pixel for a given scale
+     * @param unitsPerPixel The span of x covered by one pixel
+     * @return  The largest level whose bucket width, 2^level, is no more
+     *          than unitsPerPixel. Never less than 0.
+     */
+    public static int levelFor(double unitsPerPixel) {
+        if (!(unitsPerPixel >= 2)) return 0;
+        return Math.getExponent(unitsPerPixel);
+    }
+
+    /**
+     * Downsample a series
+     * @param level The level to compute. Buckets are 2^level units of x wide.
+     * @param x     The x values, in non-decreasing order
+     * @param y     The y values
+     * @param n     The number of points in x and y to use
+     * @return      The points to draw at this level. The first and last
+     *              source points are always kept.
+     */
+    public static Level downsample(int level, long[] x, double[] y, int n) {
+        int capacity = (n < 3) ? n : (int)Math.min(n, ((x[n-1] - x[0]) >> level) + 3);
+        long[]   ox = new long[capacity];
+        double[] oy = new double[capacity];
+        long[]   os = new long[capacity];
+        if (n == 0) return new Level(level, ox, oy, os, 0, 0);
+
+        ox[0] = x[0]; oy[0] = y[0]; os[0] = 0;
+        int kept = 1;
+        int a = 0;                              // The last point kept
+        int start = 0;                          // The current bucket
+        int end = bucketEnd(x, n, 0, level);
+        while (start < n - 1) {
+            int nextEnd = (end < n) ? bucketEnd(x, n, end, level) : n;
+
+            // The third vertex: the average of the next bucket, or the last
+            // point when this is the final bucket
+            double cx, cy;
+            if (end < n - 1) {
+                cx = 0; cy = 0;
+                int last = Math.min(nextEnd, n - 1);
+                for (int i = end; i < last; i++) { cx += x[i]; cy += y[i]; }
+                int count = last - end;
+                cx /= count; cy /= count;
+            } else {
+                cx = x[n-1]; cy = y[n-1];
+            }
+
+            // Choose the point in this bucket making the largest triangle,
+            // never the first or last source point since they're kept anyway
+            int s = Math.max(start, a + 1);
+            int e = Math.min(end, n - 1);
+            if (s < e) {
+                int best = s;
+                double bestArea = -1;
+                for (int i = s; i < e; i++) {
+                    double area = Math.abs(
+                            (x[a] - cx) * (y[i] - y[a]) - (double)(x[a] - x[i]) * (cy - y[a]));
+                    if (area > bestArea) { bestArea = area; best = i; }
+                }
+                if (kept == ox.length) {
+                    ox = grow(ox); oy = grow(oy); os = grow(os);
+                }
+                ox[kept] = x[best]; oy[kept] = y[best]; os[kept] = largestStep(x, a, best);
+                kept++;
+                a = best;
+            }
+            start = end;
+            end = nextEnd;
+        }
+        if (n > 1) {
+            if (kept == ox.length) {
+                ox = grow(ox); oy = grow(oy); os = grow(os);
+            }
+            ox[kept] = x[n-1]; oy[kept] = y[n-1]; os[kept] = largestStep(x, a, n - 1);
+            kept++;
+        }
+        return new Level(level, ox, oy, os, kept, n);
+    }
+
+    /**
+     * Bring a level up to date after the source points in a range of x were
+     * replaced. Only the buckets that overlap the range are downsampled
+     * again; the rest of the level is kept as it was. The points chosen at
+     * the edges of the range may differ a little from those a full
+     * downsample would choose, but no bucket is left without a point.
+     * @param l          The level computed before the points were replaced
+     * @param from       The lowest x replaced
+     * @param to         The x at which the replacement stopped (exclusive)
+     * @param x          The new x values, in non-decreasing order
+     * @param y          The new y values
+     * @param n          The number of points in x and y
+     * @param sourceSize The number of new points that stand in for the
+     *                   points l was computed from
+     * @return           The updated level, or null if the range reaches
+     *                   past the points l was computed from
+     */
+    public static Level splice(
+            Level l, long from, long to, long[] x, double[] y, int n, int sourceSize) {
+        int level = l.level;
+        long lo = (from >> level) << level;
+        long hi = (((to - 1) >> level) + 1) << level;
+        int e = firstAtOrAbove(x, n, hi);
+        if (sourceSize < 0 || e > sourceSize) return null;
+        int s = firstAtOrAbove(x, n, lo);
+        Level mid = downsample(
+                level, Arrays.copyOfRange(x, s, e), Arrays.copyOfRange(y, s, e), e - s);
+
+        int a = firstAtOrAbove(l.x, l.size, lo);
+        int b = firstAtOrAbove(l.x, l.size, hi);
+        int size = a + mid.size + (l.size - b);
+        long[]   ox = new long[size];
+        double[] oy = new double[size];
+        long[]   os = new long[size];
+        System.arraycopy(l.x, 0, ox, 0, a);
+        System.arraycopy(l.y, 0, oy, 0, a);
+        System.arraycopy(l.step, 0, os, 0, a);
+        System.arraycopy(mid.x, 0, ox, a, mid.size);
+        System.arraycopy(mid.y, 0, oy, a, mid.size);
+        System.arraycopy(mid.step, 0, os, a, mid.size);
+        System.arraycopy(l.x, b, ox, a + mid.size, l.size - b);
+        System.arraycopy(l.y, b, oy, a + mid.size, l.size - b);
+        System.arraycopy(l.step, b, os, a + mid.size, l.size - b);
+
+        // The point after each seam follows a different point than before
+        int seam = a + mid.size;
+        if (a < size) os[a] = stepBefore(ox, a, x, sourceSize);
+        if (seam < size) os[seam] = stepBefore(ox, seam, x, sourceSize);
+        return new Level(level, ox, oy, os, size, sourceSize);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * @return  The index just past the bucket that starts at index start
+     */
+    private static int bucketEnd(long[] x, int n, int start, int level) {
+        long bucket = x[start] >> level;
+        int i = start + 1;
+        while (i < n && (x[i] >> level) == bucket) { i++; }
+        return i;
+    }
+
+    /**
+     * @return  The largest step between the source points from the kept
+     *          point before index k to the kept point at k, 0 for the first
+     */
+    private static long stepBefore(long[] kept, int k, long[] x, int n) {
+        if (k == 0) return 0;
+        return largestStep(x, firstAtOrAbove(x, n, kept[k-1]), firstAtOrAbove(x, n, kept[k] + 1) - 1);
+    }
+
+    /** @return The index of the first of the n values that is >= v */
+    private static int firstAtOrAbove(long[] a, int n, long v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < v) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static long largestStep(long[] x, int from, int to) {
+        long largest = 0;
+        for (int i = from + 1; i <= to; i++) { largest = Math.max(largest, x[i] - x[i-1]); }
+        return largest;
+    }
+
+    private static long[] grow(long[] a) {
+        return Arrays.copyOf(a, Math.max(16, a.length * 2));
+    }
+
+    private static double[] grow(double[] a) {
+        return Arrays.copyOf(a, Math.max(16, a.length * 2));
+    }
+}
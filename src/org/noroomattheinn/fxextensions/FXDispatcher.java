@@ -0,0 +1,145 @@
+/*
+ * FXDispatcher.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 12, 2015
+ */
+
+package org.noroomattheinn.fxextensions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * FXDispatcher: Run work on the FX Application Thread, coalescing updates.
+ * Each piece of work is submitted with a key. Only the most recent pending
+ * Runnable for a given key is kept, so a burst of updates to the same object
+ * (for example a stream of StreamStates) results in a single update. Pending
+ * work is applied at most once per pulse, and no more often than the
+ * configured maximum rate.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class FXDispatcher {
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static FXDispatcher instance = null;
+
+    private final Map<Object,Runnable> pending;
+    private final AtomicLong nSubmitted, nDropped, nCoalesced, nApplied;
+    private final AnimationTimer pulse;
+    private boolean scheduled;
+    private long minInterval;           // In nanoseconds
+    private long lastFlush;             // In nanoseconds
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Return the shared FXDispatcher, creating it if necessary.
+     * @return  The FXDispatcher singleton
+     */
+    public static synchronized FXDispatcher get() {
+        if (instance == null) { instance = new FXDispatcher(); }
+        return instance;
+    }
+
+    /**
+     * Run r on the FX Application Thread. If work for the same key is already
+     * pending, it is replaced (dropped) in favor of r.
+     * @param key   Identifies the object being updated
+     * @param r     The work to perform on the FX Application Thread
+     */
+    public void dispatch(Object key, Runnable r) {
+        nSubmitted.incrementAndGet();
+        synchronized (pending) {
+            if (pending.put(key, r) != null) { nDropped.incrementAndGet(); }
+            if (scheduled) { nCoalesced.incrementAndGet(); return; }
+            scheduled = true;
+        }
+        Platform.runLater(new Runnable() {
+            @Override public void run() { pulse.start(); }
+        });
+    }
+
+    /**
+     * Limit the rate at which pending work is applied. By default work is
+     * applied once per pulse.
+     * @param maxPerSecond  The maximum number of times per second to apply
+     *                      pending work. A value <= 0 means once per pulse.
+     */
+    public void setMaxRate(int maxPerSecond) {
+        minInterval = (maxPerSecond <= 0) ? 0 : 1000000000L / maxPerSecond;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Metrics
+ *
+ *----------------------------------------------------------------------------*/
+
+    /** @return The total number of pieces of work submitted */
+    public long submitted() { return nSubmitted.get(); }
+
+    /** @return The number of pieces of work superseded before they were run */
+    public long dropped() { return nDropped.get(); }
+
+    /** @return The number of submissions that joined an already scheduled pulse */
+    public long coalesced() { return nCoalesced.get(); }
+
+    /** @return The number of pieces of work actually run */
+    public long applied() { return nApplied.get(); }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private FXDispatcher() {
+        this.pending = new LinkedHashMap<>();
+        this.nSubmitted = new AtomicLong();
+        this.nDropped = new AtomicLong();
+        this.nCoalesced = new AtomicLong();
+        this.nApplied = new AtomicLong();
+        this.scheduled = false;
+        this.minInterval = 0;
+        this.lastFlush = 0;
+        this.pulse = new AnimationTimer() {
+            @Override public void handle(long now) {
+                if (now - lastFlush < minInterval) return;
+                lastFlush = now;
+                flush();
+            }
+        };
+    }
+
+    private void flush() {
+        List<Runnable> work;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                // Nothing arrived since the last pulse, stop asking for pulses
+                pulse.stop();
+                scheduled = false;
+                return;
+            }
+            work = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Runnable r : work) { r.run(); }
+        nApplied.addAndGet(work.size());
+    }
+
+}
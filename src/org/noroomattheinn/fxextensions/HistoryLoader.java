@@ -0,0 +1,224 @@
+/*
+ * HistoryLoader.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 31, 2015
+ */
+
+package org.noroomattheinn.fxextensions;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.scene.chart.NumberAxis;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * HistoryLoader: Fills in the series of a chart as it is scrolled or zoomed
+ * to times that were not loaded up front. Only a recent period needs to be
+ * read when the chart is created; older data is read in the background when
+ * the view gets near it, and dropped again once the view has moved far away.
+ *
+ * The view is watched through the bounds of the x axis. Whenever they change,
+ * the range around the view is compared with what has been loaded. More is
+ * loaded ahead of the view, in the direction it is moving, than behind it.
+ * Missing ranges are read one at a time on a single background thread, so a
+ * burst of scrolling doesn't start a burst of reads, and are merged into the
+ * series on that thread too. The chart redraws when the series tell it they
+ * have changed.
+ *
+ * Everything but the reading and merging happens on the FX Application
+ * Thread, so the bookkeeping needs no locks.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class HistoryLoader {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final double Ahead = 2.0;    // Spans loaded in the direction of motion
+    private static final double Behind = 0.5;   // Spans loaded in the other direction
+    private static final double Keep = 10.0;    // Spans beyond which history is dropped
+    private static final long   MinKeep = 7 * 24 * 60 * 60; // ...but never closer than this
+    private static final long   Chunk = 24 * 60 * 60;   // Loads are whole days (seconds)
+
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "HistoryLoader");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+
+    /**
+     * Where the history comes from
+     */
+    public interface Source {
+        /**
+         * Read the points of each series for a period. It is called on a
+         * background thread.
+         * @param period    The period, in the units of the chart's x axis
+         * @return          Untransformed points for each series that has any
+         *                  in the period, in order of increasing time
+         */
+        Map<VTSeries,VTSeries.Points> load(Range<Long> period);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final NumberAxis xAxis;
+    private final List<VTSeries> series;
+    private final Source source;
+    private final long keepFrom;            // Loaded up front, never dropped
+    private final RangeSet<Long> loaded;    // Loaded or being loaded
+    private double lastLower;
+    private boolean forward;                // Was the view last moving later?
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Start loading history for a chart as it's needed. It must be created
+     * on the FX Application Thread, after the series have been given the
+     * data that was loaded up front.
+     * @param xAxis     The chart's x axis
+     * @param series    The series to fill in
+     * @param initial   The range of x that the series already hold. If it
+     *                  has no lower bound, everything has been loaded and
+     *                  there is nothing to do.
+     * @param source    Where to read the rest from
+     */
+    public HistoryLoader(
+            NumberAxis xAxis, Collection<VTSeries> series,
+            Range<Long> initial, Source source) {
+        this.xAxis = xAxis;
+        this.series = new ArrayList<>(series);
+        this.source = source;
+        this.loaded = TreeRangeSet.create();
+        this.lastLower = xAxis.getLowerBound();
+        this.forward = false;
+
+        if (!initial.hasLowerBound()) {
+            this.keepFrom = Long.MIN_VALUE;
+            return;
+        }
+        this.keepFrom = initial.lowerEndpoint();
+        loaded.add(Range.atLeast(keepFrom));
+
+        InvalidationListener boundsChanged = new InvalidationListener() {
+            @Override public void invalidated(Observable o) { update(); }
+        };
+        xAxis.lowerBoundProperty().addListener(boundsChanged);
+        xAxis.upperBoundProperty().addListener(boundsChanged);
+        update();
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Deciding what to load and drop
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void update() {
+        double lower = xAxis.getLowerBound();
+        double upper = xAxis.getUpperBound();
+        double span = upper - lower;
+        if (!(span > 0)) return;
+        if (lower != lastLower) forward = lower > lastLower;
+        lastLower = lower;
+
+        Range<Long> wanted = Range.closedOpen(
+                chunkBelow(lower - span * (forward ? Behind : Ahead)),
+                chunkAbove(upper + span * (forward ? Ahead : Behind)));
+        RangeSet<Long> missing = TreeRangeSet.create();
+        missing.add(wanted);
+        missing.removeAll(loaded);
+        for (Range<Long> r : missing.asRanges()) { load(r); }
+
+        // Only history loaded on demand is dropped. What was loaded up front
+        // is where new readings are added.
+        double keep = Math.max(span * Keep, MinKeep);
+        long dropBelow = Math.min(chunkBelow(lower - keep), keepFrom);
+        long dropAbove = Math.min(chunkAbove(upper + keep), keepFrom);
+        drop(Range.lessThan(dropBelow));
+        if (dropAbove < keepFrom) drop(Range.closedOpen(dropAbove, keepFrom));
+    }
+
+    private void load(final Range<Long> period) {
+        loaded.add(period);
+        worker.submit(new Runnable() {
+            @Override public void run() {
+                long began = System.nanoTime();
+                Map<VTSeries,VTSeries.Points> points;
+                try {
+                    points = source.load(period);
+                } catch (Exception e) {
+                    logger.warning("Unable to load graph history: " + e);
+                    forget(period);
+                    return;
+                }
+                int n = 0;
+                for (Map.Entry<VTSeries,VTSeries.Points> entry : points.entrySet()) {
+                    n += entry.getValue().size();
+                    entry.getKey().replaceRange(
+                            period.lowerEndpoint(), period.upperEndpoint(),
+                            entry.getValue());
+                }
+                logger.finest(String.format("Loaded %d points of history for %s in %.1fms",
+                        n, period, (System.nanoTime() - began) / 1e6));
+            }
+        });
+    }
+
+    private void drop(final Range<Long> period) {
+        RangeSet<Long> present = loaded.subRangeSet(period);
+        if (present.isEmpty()) return;
+        final List<Range<Long>> ranges = new ArrayList<>(present.asRanges());
+        loaded.remove(period);
+        // Dropped on the worker so it's ordered with any loads still pending
+        worker.submit(new Runnable() {
+            @Override public void run() {
+                for (Range<Long> r : ranges) {
+                    for (VTSeries s : series) {
+                        s.removeRange(r.lowerEndpoint(), r.upperEndpoint());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A load failed, so let it be tried again the next time it's wanted
+     */
+    private void forget(final Range<Long> period) {
+        Platform.runLater(new Runnable() {
+            @Override public void run() { loaded.remove(period); }
+        });
+    }
+
+    private static long chunkBelow(double x) { return (long)Math.floor(x / Chunk) * Chunk; }
+    private static long chunkAbove(double x) { return (long)Math.ceil(x / Chunk) * Chunk; }
+}
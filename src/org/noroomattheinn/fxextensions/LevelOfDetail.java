@@ -0,0 +1,170 @@
+/*
+ * LevelOfDetail.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 30, 2015
+ */
+
+package org.noroomattheinn.fxextensions;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * LevelOfDetail: A cache of the downsampled forms of one series, one per
+ * zoom level. A level that isn't cached is computed on a background thread
+ * and in the meantime the nearest level that is cached stands in for it.
+ * Points appended to the series after a level was computed are drawn from
+ * the series itself until there are enough of them to be worth computing
+ * the level again.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+class LevelOfDetail {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final int MaxLevels = 8;     // Levels cached per series
+    private static final int MaxTail = 512;     // Appended points before recomputing
+
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "LevelOfDetail");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final Map<Integer,Downsampler.Level> levels =
+            new LinkedHashMap<Integer,Downsampler.Level>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(
+                        Map.Entry<Integer,Downsampler.Level> eldest) {
+                    return size() > MaxLevels;
+                }
+            };
+    private final Set<Integer> pending = new HashSet<>();
+    private int generation = 0;         // Changes when the data is replaced
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Forget every level. Call this when the series' data is replaced.
+     */
+    synchronized void clear() {
+        levels.clear();
+        pending.clear();
+        generation++;
+    }
+
+    /**
+     * Update every level after the series' points in a range of x were
+     * replaced. Only the part of each level around the range is computed
+     * again. A level that doesn't cover the whole range is dropped, to be
+     * computed again when it's next wanted, as are any being computed from
+     * the old points.
+     * @param from  The lowest x replaced
+     * @param to    The x at which the replacement stopped (exclusive)
+     * @param x     The series' new x values
+     * @param y     The series' new y values
+     * @param n     The number of points in the series
+     * @param added The number of points the replacement added, less the
+     *              number it removed
+     */
+    synchronized void replaced(
+            long from, long to, long[] x, double[] y, int n, int added) {
+        pending.clear();
+        generation++;
+        Iterator<Map.Entry<Integer,Downsampler.Level>> it = levels.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer,Downsampler.Level> e = it.next();
+            Downsampler.Level l = e.getValue();
+            l = Downsampler.splice(l, from, to, x, y, n, l.sourceSize + added);
+            if (l == null) it.remove();
+            else e.setValue(l);
+        }
+    }
+
+    /**
+     * Get a level of the series, starting its computation if it isn't
+     * cached or has fallen too far behind the series. The series must only
+     * be appended to while the computation runs: it reads the first n points
+     * of x and y on another thread.
+     * @param level     The level wanted
+     * @param x         The series' x values
+     * @param y         The series' y values
+     * @param n         The number of points in the series
+     * @param whenReady Run on the background thread when the level has
+     *                  been computed
+     * @return          The level, the nearest cached level while it is being
+     *                  computed, or null if no level is cached
+     */
+    synchronized Downsampler.Level get(
+            final int level, final long[] x, final double[] y, final int n,
+            final Runnable whenReady) {
+        Downsampler.Level l = levels.get(level);
+        if ((l == null || n - l.sourceSize > MaxTail) && pending.add(level)) {
+            final int gen = generation;
+            worker.execute(new Runnable() {
+                @Override public void run() {
+                    Downsampler.Level computed = null;
+                    try {
+                        computed = Downsampler.downsample(level, x, y, n);
+                    } catch (RuntimeException e) {
+                        logger.warning("Unable to downsample series: " + e);
+                    }
+                    synchronized (LevelOfDetail.this) {
+                        if (gen != generation) return;      // The data was replaced
+                        pending.remove(level);
+                        if (computed == null) return;
+                        levels.put(level, computed);
+                    }
+                    whenReady.run();
+                }
+            });
+        }
+        return (l != null) ? l : nearest(level);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * The cached level closest to the one wanted, preferring a coarser one
+     * since it has fewer points to draw
+     */
+    private Downsampler.Level nearest(int level) {
+        Downsampler.Level best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (Downsampler.Level l : levels.values()) {
+            int distance = (l.level >= level) ? 2 * (l.level - level) : 2 * (level - l.level) + 1;
+            if (distance < bestDistance) { best = l; bestDistance = distance; }
+        }
+        return best;
+    }
+}
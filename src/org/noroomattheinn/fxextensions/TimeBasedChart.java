@@ -68,6 +68,8 @@ public class TimeBasedChart {
     
     public VTLineChart getChart() { return lineChart; }
     
+    public NumberAxis getXAxis() { return xAxis; }
+    
     public void addContextMenu(ContextMenu cm) {
         utils.enableContextMenu(cm);
     }
@@ -8,8 +8,14 @@ package org.noroomattheinn.fxextensions;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import javafx.application.Platform;
 import javafx.collections.ObservableList;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.chart.LineChart;
 import javafx.scene.chart.NumberAxis;
 import javafx.scene.chart.XYChart;
@@ -20,7 +26,11 @@ import javafx.scene.shape.PathElement;
 
 /**
  * A custom subclass of LineChart that knows how to display lines,
- * markers, or both
+ * markers, or both. Only the points within the x axis are drawn and when
+ * there are more of them than pixels, a downsampled form of the series is
+ * drawn instead (see VTSeries.view). The path for each series is kept
+ * between layouts and is only added to when points are appended. Instead of
+ * paths, the series may be drawn onto a Canvas (see setRenderer).
  * 
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
@@ -34,6 +44,14 @@ public class VTLineChart extends LineChart<Number,Number> {
     
     public enum DisplayMode {LinesOnly, MarkersOnly, Both};
     
+    /**
+     * How the series are drawn. Path makes each series a Path node with an
+     * element per point and marker. Canvas draws every series onto a single
+     * Canvas over the plot area, which keeps the scene graph small no matter
+     * how many points are in view.
+     */
+    public enum Renderer {Path, Canvas};
+    
 /*------------------------------------------------------------------------------
  *
  * Internal State
@@ -41,13 +59,24 @@ public class VTLineChart extends LineChart<Number,Number> {
  *----------------------------------------------------------------------------*/
     
     private final List<VTSeries> theSeries;
+    private final Map<VTSeries,SeriesPath> paths;   // What was drawn for each
+    private final Map<VTSeries,SeriesStrokes> strokes;  // ...when on a Canvas
+    private final Runnable refreshWhenReady;    // When better detail is ready
+    private final Runnable requestLayout;       // When a series changes
+    private final double[] bounds = new double[4];
     
     private DisplayMode displayMode;
+    private Canvas      canvas;     // Non-null when the Canvas renderer is used
     private double      minX, minY, maxX, maxY;
     private boolean     ignoreGaps; // Should we ignore gaps
     private long        gapTime;    // Time in seconds that constitutes a gap
                                     // Only relevant if ignoreGaps is true
     
+    // The axes as of the current layout
+    private double      xAxisMin, xAxisMax, xOrigin, xScale;
+    private double      yAxisMin, yOrigin, yScale;
+    private double      pixels;
+    
 /*==============================================================================
  * -------                                                               -------
  * -------              Public Interface To This Class                   ------- 
@@ -57,11 +86,29 @@ public class VTLineChart extends LineChart<Number,Number> {
     public VTLineChart(NumberAxis x, NumberAxis y) {
         super(x, y);
         theSeries = new ArrayList<>();
+        paths = new HashMap<>();
+        strokes = new HashMap<>();
+        canvas = null;
         ignoreGaps = false;
         gapTime = 0;
         minX = minY = Double.POSITIVE_INFINITY;
         maxX = maxY = Double.NEGATIVE_INFINITY;
         displayMode = DisplayMode.LinesOnly;
+        requestLayout = new Runnable() {
+            @Override public void run() {
+                // Series may be changed by the HistoryLoader's thread. A
+                // load changes every series at once, so coalesce them.
+                if (Platform.isFxApplicationThread()) { requestChartLayout(); }
+                else { FXDispatcher.get().dispatch(VTLineChart.this, this); }
+            }
+        };
+        refreshWhenReady = new Runnable() {
+            @Override public void run() {
+                Platform.runLater(new Runnable() {
+                    @Override public void run() { refreshChart(); }
+                });
+            }
+        };
     }
 
     
@@ -77,6 +124,7 @@ public class VTLineChart extends LineChart<Number,Number> {
 
     public VTSeries register(VTSeries s) {
         theSeries.add(s);
+        s.setWhenChanged(requestLayout);
         return s;
     }
     
@@ -96,6 +144,27 @@ public class VTLineChart extends LineChart<Number,Number> {
     
     public void refreshChart() { layoutPlotChildren(); }
 
+    /**
+     * Choose how the series are drawn. This may be changed at any time.
+     * @param renderer  The renderer to use from now on
+     */
+    public void setRenderer(Renderer renderer) {
+        if (renderer == getRenderer()) return;
+        if (renderer == Renderer.Canvas) {
+            canvas = new Canvas();
+            canvas.setMouseTransparent(true);
+            getPlotChildren().add(canvas);
+        } else {
+            getPlotChildren().remove(canvas);
+            canvas = null;
+        }
+        refreshChart();
+    }
+    
+    public Renderer getRenderer() {
+        return (canvas == null) ? Renderer.Path : Renderer.Canvas;
+    }
+
     public void setDisplayMode(DisplayMode mode) {
         this.displayMode = mode;
         for (XYChart.Series<Number,Number> s : getData()) { applyLineStyleToSeries(s);}
@@ -132,28 +201,9 @@ public class VTLineChart extends LineChart<Number,Number> {
         }
     }
     
-    private void addLineSegment(
-            ObservableList<PathElement> path, MutablePoint2D point, boolean gap) {
-        if (displayMode != DisplayMode.MarkersOnly) {
-            if (gap) path.add(new MoveTo(point.x, point.y));
-            else path.add(new LineTo(point.x, point.y));
-        }
-    }
-    
-    private void addMarker(ObservableList<PathElement> path, MutablePoint2D point) {
-        if (displayMode != DisplayMode.LinesOnly) {
-            path.add(new MoveTo(point.x - 1, point.y - 1));
-            path.add(new LineTo(point.x + 1, point.y - 1));
-            path.add(new MoveTo(point.x - 1, point.y));
-            path.add(new LineTo(point.x + 1, point.y));
-            path.add(new MoveTo(point.x - 1, point.y + 1));
-            path.add(new LineTo(point.x + 1, point.y + 1));
-        }
-    }
-    
-    private void trackMinMax(MutablePoint2D point) {
-        if (point.y < minY) minY = point.y; if (point.y > maxY) maxY = point.y;
-        if (point.x < minX) minX = point.x; if (point.x > maxX) maxX = point.x;
+    private void trackMinMax(double[] bounds) {
+        minX = Math.min(minX, bounds[0]); maxX = Math.max(maxX, bounds[1]);
+        minY = Math.min(minY, bounds[2]); maxY = Math.max(maxY, bounds[3]);
     }
     
 /*------------------------------------------------------------------------------
@@ -167,73 +217,348 @@ public class VTLineChart extends LineChart<Number,Number> {
         
         NumberAxis xAxis = (NumberAxis)getXAxis();
         NumberAxis yAxis = (NumberAxis)getYAxis();
-        double xAxisMin = xAxis.getLowerBound();
-        double xAxisMax = xAxis.getUpperBound();
-        
+        xAxisMin = xAxis.getLowerBound();
+        xAxisMax = xAxis.getUpperBound();
+        xOrigin = xAxis.getDisplayPosition(xAxisMin);
+        xScale = scale(xAxis, xOrigin);
+        yAxisMin = yAxis.getLowerBound();
+        yOrigin = yAxis.getDisplayPosition(yAxisMin);
+        yScale = scale(yAxis, yOrigin);
+        pixels = xAxis.getWidth();
 
         minX = minY = Double.POSITIVE_INFINITY;
         maxX = maxY = Double.NEGATIVE_INFINITY;
         
+        GraphicsContext gc = null;
+        if (canvas != null) {
+            canvas.setWidth(xAxis.getWidth());
+            canvas.setHeight(yAxis.getHeight());
+            gc = canvas.getGraphicsContext2D();
+            gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        }
+        
         for (int seriesIndex = 0; seriesIndex < getData().size(); seriesIndex++) {
             XYChart.Series<Number,Number> series = getData().get(seriesIndex);
-            ObservableList<PathElement> markerPath = (new Path()).getElements();
             if (series.getNode() instanceof  Path) {
-                ObservableList<PathElement> line = ((Path)series.getNode()).getElements();
-                line.clear();
-                if (!theSeries.get(seriesIndex).isVisible()) continue;
-
-                line.add(new MoveTo(0,0));  // We need an initial MoveTo...
-                                            // Set the actual values at the end
+                Path path = (Path)series.getNode();
+                VTSeries vts = theSeries.get(seriesIndex);
+                SeriesPath sp = paths.get(vts);
+                if (sp == null) { sp = new SeriesPath(); paths.put(vts, sp); }
+                if (!vts.isVisible() || gc != null) {
+                    if (!path.getElements().isEmpty()) path.getElements().clear();
+                    sp.forget();
+                    if (!vts.isVisible()) continue;
+                }
+                vts.bounds(bounds);
+                trackMinMax(bounds);
+                if (gc == null) {
+                    sp.layout(vts, path);
+                } else {
+                    SeriesStrokes ss = strokes.get(vts);
+                    if (ss == null) { ss = new SeriesStrokes(); strokes.put(vts, ss); }
+                    ss.draw(vts, path, gc);
+                }
+            }
+        }
+        updateAxisRange();
+    }
+    
+    /**
+     * Walks the points of one series in view, deciding which of them to draw
+     * and whether each is joined to the last. Subclasses turn the result
+     * into something on the screen. The points may come in more than one
+     * range, which are walked in order.
+     */
+    private abstract class SeriesPlot {
+        protected final VTSeries.View view = new VTSeries.View();
+        protected final MutablePoint2D display = new MutablePoint2D(0, 0);
+        protected final MutablePoint2D previous = MutablePoint2D.negativeInfinity();
+        protected final MutablePoint2D start = new MutablePoint2D(0, 0);
+        protected final MutablePoint2D end = new MutablePoint2D(0, 0);
+        protected boolean hasStart, hasEnd;
+        private double lastX;
+        
+        /** Draw the point in display as the next point on the line */
+        protected abstract void addLineSegment(boolean gap);
+        
+        /** Draw a marker at the point in display */
+        protected abstract void addMarker();
+        
+        protected void reset() {
+            hasStart = hasEnd = false;
+            previous.x = previous.y = Double.NEGATIVE_INFINITY;
+            lastX = Double.NaN;
+        }
+        
+        /**
+         * Draw a range of points
+         * @param step  If not null, the largest step in x in the original
+         *              data leading up to each point. Used to find gaps
+         *              since the points themselves may be far apart.
+         */
+        protected void plot(long[] xs, double[] ys, long[] step, int from, int to) {
+            if (from < to && Double.isNaN(lastX) && from > 0 && step == null) {
+                lastX = xs[from - 1];
+            }
+            for (int i = from; i < to; i++) {
+                long curX = xs[i];
+                boolean gap = false;
+                if (ignoreGaps) {
+                    if (step != null) gap = step[i] > gapTime;
+                    else gap = Double.isNaN(lastX) || Math.abs(lastX - curX) > gapTime;
+                }
+                lastX = curX;
                 
-                MutablePoint2D start = null, end = null;
-                MutablePoint2D previous = MutablePoint2D.negativeInfinity();
-                long lastX = Long.MAX_VALUE;
+                display.x = xOrigin + (curX - xAxisMin) * xScale;
+                display.y = yOrigin + (ys[i] - yAxisMin) * yScale;
                 
-                for (XYChart.Data<Number,Number> item : series.getData()) {
-                    MutablePoint2D cur = new MutablePoint2D(
-                        xAxis.toNumericValue(item.getXValue()),
-                        yAxis.toNumericValue(item.getYValue()));
-                    
-                    long curX = item.getXValue().longValue();
-                    boolean gap = false;
-                    if (ignoreGaps) gap = Math.abs(lastX - curX) > gapTime;
-                    lastX = curX;
-                    
-                    trackMinMax(cur);
-                    
-                    MutablePoint2D display = new MutablePoint2D(
-                        xAxis.getDisplayPosition(cur.x),
-                        yAxis.getDisplayPosition(yAxis.toRealValue(cur.y)));
-                    
-                    if (cur.x < xAxisMin) {
-                        if (start == null) start = new MutablePoint2D(display);
-                        else start.copy(display);
-                        continue;
-                    }
-                        
-                    if (cur.x > xAxisMax)  {
-                        if (end == null) end = new MutablePoint2D(display.x, display.y);
-                        continue;
-                    }
-                    
-                    if (Math.abs(display.x - previous.x) + Math.abs(display.y - previous.y) > 2) {
-                        if (start == null) start = new MutablePoint2D(display);
-                        addLineSegment(line, display, gap);
-                        addMarker(markerPath, display);
-                        previous.copy(display);
-                    }
+                if (curX < xAxisMin) {
+                    start.copy(display);
+                    hasStart = true;
+                    continue;
                 }
-                
-                if (displayMode != DisplayMode.MarkersOnly) {
-                    // Fix the coords of the initial MoveTo...
-                    if (start != null)  line.set(0, new MoveTo(start.x, start.y));
-                    // Add a final line segment if necessary
-                    if (end != null) line.add(new LineTo(end.x, end.y));
+
+                if (curX > xAxisMax)  {
+                    if (!hasEnd) { end.copy(display); hasEnd = true; }
+                    continue;
+                }
+
+                if (Math.abs(display.x - previous.x) + Math.abs(display.y - previous.y) > 2) {
+                    if (!hasStart) { start.copy(display); hasStart = true; }
+                    if (displayMode != DisplayMode.MarkersOnly) addLineSegment(gap);
+                    if (displayMode != DisplayMode.LinesOnly) addMarker();
+                    previous.copy(display);
                 }
-                line.addAll(markerPath);
             }
         }
-        updateAxisRange();
+    }
+    
+    /**
+     * The path drawn for one series and what it was drawn from. Path elements
+     * and points are reused from one layout to the next rather than allocated
+     * for every point. When nothing has changed but that points were appended
+     * to the series, only those points are added to the path.
+     */
+    private class SeriesPath extends SeriesPlot {
+        private final List<PathElement> lineElements = new ArrayList<>();
+        private final List<PathElement> markerElements = new ArrayList<>();
+        private final List<PathElement> all = new ArrayList<>();
+        private final List<MoveTo> moves = new ArrayList<>();   // Pool of MoveTo
+        private final List<LineTo> lines = new ArrayList<>();   // Pool of LineTo
+        private int movesUsed, linesUsed;
+        private final MoveTo first = new MoveTo(0, 0);
+        private final LineTo last = new LineTo(0, 0);
+        
+        // What the path was drawn from
+        private Path drawnOn = null;
+        private Downsampler.Level drawnLevel;
+        private int drawnGeneration, drawnFrom, drawnTo, drawnTailFrom, drawnTailTo;
+        private double drawnXMin, drawnXMax, drawnXOrigin, drawnXScale;
+        private double drawnYMin, drawnYOrigin, drawnYScale;
+        private DisplayMode drawnMode;
+        private boolean drawnIgnoreGaps;
+        private long drawnGapTime;
+        
+        void forget() { drawnOn = null; }
+        
+        void layout(VTSeries vts, Path path) {
+            // Only the points in view are drawn, downsampled when there
+            // are more of them than pixels to draw them in
+            vts.view(view, xAxisMin, xAxisMax, pixels, refreshWhenReady);
+            int tailTo = Math.max(view.tailFrom, view.tailTo);
+            ObservableList<PathElement> elements = path.getElements();
+            
+            if (!onlyAppended(path, tailTo)) {
+                reset();
+                plot(view.x, view.y, view.step, view.from, view.to);
+                if (view.tailX != null) {
+                    plot(view.tailX, view.tailY, null, view.tailFrom, tailTo);
+                }
+                all.clear();
+                all.add(first);     // We need an initial MoveTo...
+                all.addAll(lineElements);
+                if (hasEnd && displayMode != DisplayMode.MarkersOnly) all.add(last);
+                all.addAll(markerElements);
+                fixEnds();
+                elements.setAll(all);
+            } else {
+                int nLines = lineElements.size(), nMarkers = markerElements.size();
+                boolean hadEnd = hasEnd;
+                plot(view.x, view.y, view.step, drawnTo, view.to);
+                if (view.tailX != null) {
+                    plot(view.tailX, view.tailY, null, drawnTailTo, tailTo);
+                }
+                if (!hadEnd) {      // Otherwise every new point is past the axis
+                    all.clear();
+                    all.addAll(lineElements.subList(nLines, lineElements.size()));
+                    if (hasEnd && displayMode != DisplayMode.MarkersOnly) all.add(last);
+                    if (!all.isEmpty()) elements.addAll(1 + nLines, all);
+                    elements.addAll(markerElements.subList(nMarkers, markerElements.size()));
+                    fixEnds();
+                }
+            }
+            remember(path, tailTo);
+        }
+        
+        /**
+         * Is the path up to date but for points appended since it was drawn?
+         */
+        private boolean onlyAppended(Path path, int tailTo) {
+            return path == drawnOn && path.getElements().size() > 0 &&
+                   path.getElements().get(0) == first &&
+                   view.generation == drawnGeneration && view.level == drawnLevel &&
+                   view.from == drawnFrom && view.to >= drawnTo &&
+                   view.tailFrom == drawnTailFrom && tailTo >= drawnTailTo &&
+                   xAxisMin == drawnXMin && xAxisMax == drawnXMax &&
+                   xOrigin == drawnXOrigin && xScale == drawnXScale &&
+                   yAxisMin == drawnYMin && yOrigin == drawnYOrigin && yScale == drawnYScale &&
+                   displayMode == drawnMode && ignoreGaps == drawnIgnoreGaps &&
+                   gapTime == drawnGapTime;
+        }
+        
+        private void remember(Path path, int tailTo) {
+            drawnOn = path;
+            drawnGeneration = view.generation; drawnLevel = view.level;
+            drawnFrom = view.from; drawnTo = view.to;
+            drawnTailFrom = view.tailFrom; drawnTailTo = tailTo;
+            drawnXMin = xAxisMin; drawnXMax = xAxisMax;
+            drawnXOrigin = xOrigin; drawnXScale = xScale;
+            drawnYMin = yAxisMin; drawnYOrigin = yOrigin; drawnYScale = yScale;
+            drawnMode = displayMode; drawnIgnoreGaps = ignoreGaps; drawnGapTime = gapTime;
+        }
+        
+        @Override protected void reset() {
+            super.reset();
+            lineElements.clear();
+            markerElements.clear();
+            movesUsed = linesUsed = 0;
+        }
+        
+        /**
+         * Set the coords of the initial MoveTo and the final line segment
+         */
+        private void fixEnds() {
+            if (displayMode != DisplayMode.MarkersOnly && hasStart) {
+                first.setX(start.x); first.setY(start.y);
+            } else {
+                first.setX(0); first.setY(0);
+            }
+            last.setX(end.x); last.setY(end.y);
+        }
+        
+        @Override protected void addLineSegment(boolean gap) {
+            if (gap) lineElements.add(moveTo(display.x, display.y));
+            else lineElements.add(lineTo(display.x, display.y));
+        }
+
+        @Override protected void addMarker() {
+            double x = display.x, y = display.y;
+            markerElements.add(moveTo(x - 1, y - 1));
+            markerElements.add(lineTo(x + 1, y - 1));
+            markerElements.add(moveTo(x - 1, y));
+            markerElements.add(lineTo(x + 1, y));
+            markerElements.add(moveTo(x - 1, y + 1));
+            markerElements.add(lineTo(x + 1, y + 1));
+        }
+        
+        private MoveTo moveTo(double x, double y) {
+            if (movesUsed == moves.size()) moves.add(new MoveTo());
+            MoveTo m = moves.get(movesUsed++);
+            m.setX(x); m.setY(y);
+            return m;
+        }
+        
+        private LineTo lineTo(double x, double y) {
+            if (linesUsed == lines.size()) lines.add(new LineTo());
+            LineTo l = lines.get(linesUsed++);
+            l.setX(x); l.setY(y);
+            return l;
+        }
+    }
+    
+    /**
+     * Draws one series straight onto the chart's Canvas. The lines and
+     * markers are the same as those SeriesPath would build, but they are
+     * collected into reused arrays and stroked without becoming nodes. The
+     * series' Path is left empty, but it still carries the series' style, so
+     * the colors and widths come from it.
+     */
+    private class SeriesStrokes extends SeriesPlot {
+        private double[]  lineX = new double[256], lineY = new double[256];
+        private boolean[] lineGap = new boolean[256];
+        private double[]  markerX = new double[256], markerY = new double[256];
+        private int       nLines, nMarkers;
+        
+        void draw(VTSeries vts, Path path, GraphicsContext gc) {
+            vts.view(view, xAxisMin, xAxisMax, pixels, refreshWhenReady);
+            reset();
+            plot(view.x, view.y, view.step, view.from, view.to);
+            if (view.tailX != null) {
+                plot(view.tailX, view.tailY, null, view.tailFrom, view.tailTo);
+            }
+            
+            gc.setGlobalAlpha(path.getOpacity());
+            gc.setStroke(path.getStroke());
+            gc.setLineWidth(path.getStrokeWidth());
+            gc.setLineCap(path.getStrokeLineCap());
+            gc.setLineJoin(path.getStrokeLineJoin());
+            if (displayMode != DisplayMode.MarkersOnly && hasStart) {
+                gc.beginPath();
+                gc.moveTo(start.x, start.y);
+                for (int i = 0; i < nLines; i++) {
+                    if (lineGap[i]) gc.moveTo(lineX[i], lineY[i]);
+                    else gc.lineTo(lineX[i], lineY[i]);
+                }
+                if (hasEnd) gc.lineTo(end.x, end.y);
+                gc.stroke();
+            }
+            if (nMarkers > 0) {
+                gc.beginPath();
+                for (int i = 0; i < nMarkers; i++) {
+                    double x = markerX[i], y = markerY[i];
+                    gc.moveTo(x - 1, y - 1); gc.lineTo(x + 1, y - 1);
+                    gc.moveTo(x - 1, y);     gc.lineTo(x + 1, y);
+                    gc.moveTo(x - 1, y + 1); gc.lineTo(x + 1, y + 1);
+                }
+                gc.stroke();
+            }
+            gc.setGlobalAlpha(1.0);
+        }
+        
+        @Override protected void reset() {
+            super.reset();
+            nLines = nMarkers = 0;
+        }
+        
+        @Override protected void addLineSegment(boolean gap) {
+            if (nLines == lineX.length) {
+                lineX = Arrays.copyOf(lineX, nLines * 2);
+                lineY = Arrays.copyOf(lineY, nLines * 2);
+                lineGap = Arrays.copyOf(lineGap, nLines * 2);
+            }
+            lineX[nLines] = display.x; lineY[nLines] = display.y; lineGap[nLines] = gap;
+            nLines++;
+        }
+        
+        @Override protected void addMarker() {
+            if (nMarkers == markerX.length) {
+                markerX = Arrays.copyOf(markerX, nMarkers * 2);
+                markerY = Arrays.copyOf(markerY, nMarkers * 2);
+            }
+            markerX[nMarkers] = display.x; markerY[nMarkers] = display.y;
+            nMarkers++;
+        }
+    }
+    
+    /**
+     * The change in display position for a unit change in value. Axes are
+     * linear, so this and the position of the lower bound are enough to
+     * place every point without boxing each value to ask the axis.
+     */
+    private static double scale(NumberAxis axis, double origin) {
+        double lower = axis.getLowerBound(), upper = axis.getUpperBound();
+        if (upper == lower) return 0;
+        return (axis.getDisplayPosition(upper) - origin) / (upper - lower);
     }
     
     /**
@@ -241,7 +566,7 @@ public class VTLineChart extends LineChart<Number,Number> {
      * The axes would scale to the maximum value even if those values are hidden.
      * That can be confusing. We keep tack of the min/max values on each axis,
      * but we only track the visible elements. This is done in layoutPlotChildren
-     * since it has to enumerate all of the points anyway.
+     * from the bounds each series keeps as points are added.
      */
     @Override protected void updateAxisRange() {
         final NumberAxis xa = (NumberAxis)getXAxis();
@@ -6,7 +6,7 @@
 
 package org.noroomattheinn.fxextensions;
 
-import javafx.collections.ObservableList;
+import java.util.Arrays;
 import javafx.scene.chart.XYChart;
 import org.noroomattheinn.utils.Utils;
 
@@ -14,22 +14,49 @@ import org.noroomattheinn.utils.Utils;
  * VTSeries: Adds some small additional functionality to an XYChart.Series. It
  * should be a subclass, but unfortunately it's declared final
  * 
+ * The points themselves are not kept in the XYChart.Series. They are kept in
+ * growable arrays of primitives from which the chart takes only what it needs
+ * for the current view: the points in the visible range, reduced by a
+ * LevelOfDetail to about one per pixel when there are more than that. The
+ * XYChart.Series is only there to give JavaFX what it needs to style the
+ * series and show it in a legend; its list of data is always empty.
+ * 
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
 
 public class VTSeries {
 
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ * 
+ *----------------------------------------------------------------------------*/
+    
+    // Draw every point in view unless there are more than this many per pixel
+    private static final int RawPointsPerPixel = 2;
+    
 /*------------------------------------------------------------------------------
  *
  * Internal State
  * 
  *----------------------------------------------------------------------------*/
     
-    private final XYChart.Series<Number,Number> series; // The real underlying series
-    private final Transform<Number> xXform;             // Transform for X values
-    private final Transform<Number> yXform;             // Transform for Y Values
+    private final XYChart.Series<Number,Number> series; // For styles and legends
+    private final Transform xXform;                     // Transform for X values
+    private final Transform yXform;                     // Transform for Y Values
     private final Object seriesLock;                    // Concurrency control
+    private final LevelOfDetail detail;                 // Downsampled forms
     private boolean visibile;
+    private Runnable whenChanged;                       // Tells the chart
+    
+    // The points. Within a generation they are only appended to; the arrays
+    // are replaced when they grow or a range is replaced so a background
+    // computation can keep reading the ones it was given.
+    private long[]   xs;
+    private double[] ys;
+    private int      nPoints;
+    private int      generation;    // Changes whenever the points are replaced
+    private double   minX, maxX, minY, maxY;
     
 /*==============================================================================
  * -------                                                               -------
@@ -38,20 +65,82 @@ public class VTSeries {
  *============================================================================*/
     
     
-    public VTSeries(String name, Transform<Number> xXform, Transform<Number> yXform) {
+    public VTSeries(String name, Transform xXform, Transform yXform) {
         this.xXform = xXform;
         this.yXform = yXform;
         series = new XYChart.Series<>();
-        series.setAppendOnly(true);
         series.setName(name);
         seriesLock = new Object();
+        detail = new LevelOfDetail();
         visibile = true;
+        whenChanged = null;
+        adopt(new long[16], new double[16], 0);
     }
 
-    public void setData(ObservableList<XYChart.Data<Number,Number>> data) {
-        series.setData(data);
+    /**
+     * Replace the points of this series. The points are transformed in place
+     * and the series takes over their arrays rather than copying them, so
+     * the Points must not be used again.
+     * @param points    Untransformed points in order of increasing time
+     */
+    public void setData(Points points) {
+        xXform.transform(points.x, points.size);
+        yXform.transform(points.y, points.size);
+        synchronized (seriesLock) {
+            adopt(points.x, points.y, points.size);
+            points.x = null; points.y = null; points.size = 0;
+            detail.clear();
+            generation++;
+        }
+        changed();
     }
-    
+
+    /**
+     * Replace the points in a range of x with new ones, leaving the rest of
+     * the series alone. This is how older data is brought in as the chart
+     * is scrolled to it, and dropped again when it's far out of view. As
+     * with setData, the Points are transformed in place and must not be
+     * used again.
+     * @param from      The lowest x to replace, in transformed units
+     * @param to        The x at which to stop replacing (exclusive)
+     * @param points    Untransformed points in order of increasing time.
+     *                  Any that fall outside of [from, to) are ignored.
+     */
+    public void replaceRange(long from, long to, Points points) {
+        xXform.transform(points.x, points.size);
+        yXform.transform(points.y, points.size);
+        synchronized (seriesLock) {
+            int i = firstAtOrAbove(xs, nPoints, from);
+            int j = firstAtOrAbove(xs, nPoints, to);
+            int n = i + points.size + (nPoints - j);
+            long[] x = new long[Math.max(16, n + n/8)];
+            double[] y = new double[x.length];
+            System.arraycopy(xs, 0, x, 0, i);
+            System.arraycopy(ys, 0, y, 0, i);
+            int k = i;
+            for (int p = 0; p < points.size; p++) {
+                if (points.x[p] < from || points.x[p] >= to) continue;
+                x[k] = points.x[p]; y[k] = points.y[p]; k++;
+            }
+            System.arraycopy(xs, j, x, k, nPoints - j);
+            System.arraycopy(ys, j, y, k, nPoints - j);
+            adopt(x, y, k + nPoints - j);
+            points.x = null; points.y = null; points.size = 0;
+            detail.replaced(from, to, x, y, nPoints, k - j);
+            generation++;
+        }
+        changed();
+    }
+
+    /**
+     * Drop the points in a range of x
+     * @param from      The lowest x to drop, in transformed units
+     * @param to        The x at which to stop dropping (exclusive)
+     */
+    public void removeRange(long from, long to) {
+        replaceRange(from, to, new Points(0));
+    }
+
 /*------------------------------------------------------------------------------
  *
  * "Getters" for various fields
@@ -62,43 +151,154 @@ public class VTSeries {
     
     public String getName() { return series.getName(); }
     
+    public int size() { synchronized (seriesLock) { return nPoints; } }
+    
     public void setVisible(boolean visible) { this.visibile = visible; }
     public boolean isVisible() { return this.visibile; }
     
+    /**
+     * Set what to run when points are added or replaced. The XYChart.Series
+     * never changes, so the chart has no other way to know it must be
+     * redrawn. It is run on the thread that changed the series.
+     */
+    void setWhenChanged(Runnable r) { whenChanged = r; }
+    
 /*------------------------------------------------------------------------------
  *
- * Adding data to the underlying series
+ * Adding data to the series
  * 
  *----------------------------------------------------------------------------*/
     
     /**
-     * Append a new XYChart.Data element to the series with the supplied values.
-     * Add an appropriate marker to the newly added XYChart.Data
+     * Append a point to the series. It is transformed before it's stored.
      * 
      * @param time  The time value (X Axis)
      * @param value The value for that time (Y Axis)
      */
-    public void addToSeries(Number time, Number value) {
+    public void addToSeries(long time, double value) {
+        long x = (long)xXform.transform(time);
+        double y = yXform.transform(value);
         synchronized (seriesLock) {
-            XYChart.Data<Number,Number> data = addToData(series.getData(), time, value);
+            if (nPoints == xs.length) {
+                xs = Arrays.copyOf(xs, xs.length * 2);
+                ys = Arrays.copyOf(ys, ys.length * 2);
+            }
+            xs[nPoints] = x;
+            ys[nPoints] = y;
+            nPoints++;
+            if (x < minX) minX = x; if (x > maxX) maxX = x;
+            if (y < minY) minY = y; if (y > maxY) maxY = y;
         }
+        changed();
     }
     
     /**
-     * Append a new XYChart.Data element to the supplied list.
-     * This list may be the list associated with this series, or it may be a
-     * list that will later be added to this series.
-     * 
-     * @param time  The time value (X Axis)
-     * @param value The value for that time (Y Axis)
+     * Points gathered before being handed to a series with setData. They are
+     * kept untransformed in growable arrays.
+     */
+    public static final class Points {
+        private long[]   x;
+        private double[] y;
+        private int      size;
+        
+        public Points() { this(1024); }
+        
+        public Points(int capacity) {
+            x = new long[Math.max(16, capacity)];
+            y = new double[x.length];
+            size = 0;
+        }
+        
+        public void add(long time, double value) {
+            if (size == x.length) {
+                x = Arrays.copyOf(x, x.length * 2);
+                y = Arrays.copyOf(y, y.length * 2);
+            }
+            x[size] = time;
+            y[size] = value;
+            size++;
+        }
+        
+        public int size() { return size; }
+    }
+    
+/*------------------------------------------------------------------------------
+ *
+ * The points to draw for a view of the chart
+ * 
+ *----------------------------------------------------------------------------*/
+    
+    /**
+     * The points to draw for a range of x, as index ranges into arrays of x
+     * and y values. Downsampled points come first, followed by any points
+     * added since the level they came from was computed. Each range
+     * includes the point just outside the view at either end, if there is
+     * one, so lines can be drawn to the edges.
      */
-    public XYChart.Data<Number,Number> addToData(
-            ObservableList<XYChart.Data<Number,Number>> list,
-            Number time, Number value)
-    {
-        XYChart.Data<Number,Number> data = xform(time, value);
-        list.add(data);
-        return data;
+    static final class View {
+        long[]   x;             // Downsampled or raw points
+        double[] y;
+        long[]   step;          // For downsampled points, the largest gap
+                                // in the data before each one. Null if raw.
+        int      from, to;
+        long[]   tailX;         // Raw points newer than the downsampled ones
+        double[] tailY;
+        int      tailFrom, tailTo;
+        Downsampler.Level level;// Where the downsampled points came from
+        int      generation;    // Changes when the series' points are replaced
+    }
+    
+    /**
+     * Get the points to draw for a view. Within one generation the points
+     * are only appended to, so if the level and the start of each range are
+     * unchanged since the last call, only the points past the old end of
+     * each range are new.
+     * @param v         The View to fill in. It is reused to avoid allocating
+     *                  one on every layout.
+     * @param xMin      The lowest visible x
+     * @param xMax      The highest visible x
+     * @param pixels    The width of the view in pixels
+     * @param whenReady Run, on a background thread, if a better set of
+     *                  points for this view becomes available later
+     * @return          v, filled in
+     */
+    View view(View v, double xMin, double xMax, double pixels, Runnable whenReady) {
+        synchronized (seriesLock) {
+            int lo = firstAtOrAbove(xs, nPoints, xMin);
+            int hi = firstAbove(xs, nPoints, xMax);
+            Downsampler.Level level = null;
+            if (pixels > 0 && hi - lo > pixels * RawPointsPerPixel) {
+                level = detail.get(Downsampler.levelFor((xMax - xMin) / pixels),
+                                   xs, ys, nPoints, whenReady);
+            }
+            v.level = level;
+            v.generation = generation;
+            if (level == null) {
+                v.x = xs; v.y = ys; v.step = null;
+                v.from = Math.max(0, lo - 1);
+                v.to = Math.min(nPoints, hi + 1);
+                v.tailX = null; v.tailY = null;
+                v.tailFrom = v.tailTo = 0;
+                return v;
+            }
+            v.x = level.x; v.y = level.y; v.step = level.step;
+            v.from = Math.max(0, firstAtOrAbove(level.x, level.size, xMin) - 1);
+            v.to = Math.min(level.size, firstAbove(level.x, level.size, xMax) + 1);
+            v.tailX = xs; v.tailY = ys;
+            v.tailFrom = Math.max(level.sourceSize, lo - 1);
+            v.tailTo = Math.min(nPoints, hi + 1);
+            return v;
+        }
+    }
+    
+    /**
+     * The extent of all of the points, whether or not they are in view. It
+     * is kept up to date as points are added rather than computed on demand.
+     * @param b Filled in with {minX, maxX, minY, maxY}, infinite if there are
+     *          no points
+     */
+    void bounds(double[] b) {
+        synchronized (seriesLock) { b[0] = minX; b[1] = maxX; b[2] = minY; b[3] = maxY; }
     }
     
 /*------------------------------------------------------------------------------
@@ -107,8 +307,40 @@ public class VTSeries {
  * 
  *----------------------------------------------------------------------------*/
     
-    private XYChart.Data<Number,Number> xform(Number time, Number value) {
-        return new XYChart.Data<>(xXform.transform(time), yXform.transform(value));
+    private void changed() {
+        if (whenChanged != null) whenChanged.run();
+    }
+    
+    private void adopt(long[] x, double[] y, int n) {
+        xs = x;
+        ys = y;
+        nPoints = n;
+        minX = minY = Double.POSITIVE_INFINITY;
+        maxX = maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            if (x[i] < minX) minX = x[i]; if (x[i] > maxX) maxX = x[i];
+            if (y[i] < minY) minY = y[i]; if (y[i] > maxY) maxY = y[i];
+        }
+    }
+    
+    /** @return The index of the first of the n values that is >= v */
+    private static int firstAtOrAbove(long[] a, int n, double v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < v) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+    
+    /** @return The index of the first of the n values that is > v */
+    private static int firstAbove(long[] a, int n, double v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] <= v) lo = mid + 1; else hi = mid;
+        }
+        return lo;
     }
     
 /*------------------------------------------------------------------------------
@@ -117,32 +349,52 @@ public class VTSeries {
  * 
  *----------------------------------------------------------------------------*/
 
-    public interface Transform<T> {
-        T transform(T value);
+    /**
+     * A change of units applied to each value as it is stored. Transforms
+     * work on primitives so a series never boxes its values.
+     */
+    public static abstract class Transform {
+        public abstract double transform(double value);
+        
+        /**
+         * Transform the first n values of an array in place
+         */
+        public void transform(double[] values, int n) {
+            for (int i = 0; i < n; i++) { values[i] = transform(values[i]); }
+        }
+        
+        public void transform(long[] values, int n) {
+            for (int i = 0; i < n; i++) { values[i] = (long)transform(values[i]); }
+        }
     }
     
-    public static final Transform<Number> idTransform = new Transform<Number>() {
-        @Override public Number transform(Number value) { return value; }
+    public static final Transform idTransform = new Transform() {
+        @Override public double transform(double value) { return value; }
+        @Override public void transform(double[] values, int n) { }
+        @Override public void transform(long[] values, int n) { }
     };
             
-    public static final Transform<Number> cToFTransform = new Transform<Number>() {
-        @Override public Number transform(Number value) { return Utils.cToF(value.doubleValue()); }
+    public static final Transform cToFTransform = new Transform() {
+        @Override public double transform(double value) { return Utils.cToF(value); }
     };
     
-    public static final Transform<Number> fToCTransform = new Transform<Number>() {
-        @Override public Number transform(Number value) { return Utils.fToC(value.doubleValue()); }
+    public static final Transform fToCTransform = new Transform() {
+        @Override public double transform(double value) { return Utils.fToC(value); }
     };
     
-    public static final Transform<Number> mToKTransform = new Transform<Number>() {
-        @Override public Double transform(Number value) { return Utils.milesToKm(value.doubleValue()); }
+    public static final Transform mToKTransform = new Transform() {
+        @Override public double transform(double value) { return Utils.milesToKm(value); }
     };
     
-    public static final Transform<Number> kToMTransform = new Transform<Number>() {
-        @Override public Double transform(Number value) { return Utils.kmToMiles(value.doubleValue()); }
+    public static final Transform kToMTransform = new Transform() {
+        @Override public double transform(double value) { return Utils.kmToMiles(value); }
     };
 
-    public static final Transform<Number> millisToSeconds = new Transform<Number>() {
-        @Override public Long transform(Number value) { return value.longValue()/1000; }
+    public static final Transform millisToSeconds = new Transform() {
+        @Override public double transform(double value) { return (long)value/1000; }
+        @Override public void transform(long[] values, int n) {
+            for (int i = 0; i < n; i++) { values[i] = values[i]/1000; }
+        }
     };
 
 }
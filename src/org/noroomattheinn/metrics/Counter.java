@@ -0,0 +1,36 @@
+/*
+ * Counter.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 29, 2015
+ */
+package org.noroomattheinn.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter: A count that only goes up, such as the number of rows written.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public final class Counter extends Metric {
+    private final AtomicLong count = new AtomicLong();
+
+    Counter(String[] labels) {
+        super(labels);
+    }
+
+    public void inc() { count.incrementAndGet(); }
+
+    public void inc(long n) { count.addAndGet(n); }
+
+    public long get() { return count.get(); }
+
+    @Override void writePrometheus(String name, Appendable out) throws IOException {
+        sample(out, name, null, count.get());
+    }
+
+    @Override void writeJSON(Appendable out) throws IOException {
+        out.append(Long.toString(count.get()));
+    }
+}
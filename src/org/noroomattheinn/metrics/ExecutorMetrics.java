@@ -0,0 +1,101 @@
+/*
+ * ExecutorMetrics.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 29, 2015
+ */
+package org.noroomattheinn.metrics;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * ExecutorMetrics: The metrics kept for a queue of requests that are executed
+ * in the background and retried when they fail. All of them are labelled
+ * with the name of the executor.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class ExecutorMetrics {
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final Counter   submitted;
+    private final Counter   filtered;
+    private final Counter   attempts;
+    private final Counter   failures;
+    private final Histogram latency;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create the metrics for an executor
+     * @param name  The name of the executor
+     * @param queue The executor's queue of waiting requests. Its size is
+     *              reported as the queue depth.
+     */
+    public ExecutorMetrics(String name, final Collection<?> queue) {
+        Metrics m = Metrics.get();
+        submitted = m.counter("executor_submitted_total",
+                "Requests submitted to the executor", "executor", name);
+        filtered = m.counter("executor_filtered_total",
+                "Requests dropped as redundant before being queued", "executor", name);
+        attempts = m.counter("executor_attempts_total",
+                "Attempts to execute a request, including retries", "executor", name);
+        failures = m.counter("executor_failures_total",
+                "Attempts that failed or threw an exception", "executor", name);
+        latency = m.histogram("executor_attempt_seconds",
+                "Time taken by each attempt to execute a request", "executor", name);
+        m.gauge("executor_queue_depth", "Requests waiting to be executed",
+                new Gauge.Source() {
+                    @Override public double value() { return queue.size(); }
+                }, "executor", name);
+    }
+
+    /**
+     * Note that a request was submitted
+     * @param accepted  false if the request was filtered out
+     */
+    public void submitted(boolean accepted) {
+        submitted.inc();
+        if (!accepted) filtered.inc();
+    }
+
+    /**
+     * Note the start of an attempt
+     * @return  The time the attempt began, to be passed to attemptEnded
+     */
+    public long attemptStarted() {
+        attempts.inc();
+        return System.nanoTime();
+    }
+
+    public void attemptEnded(long began, boolean succeeded) {
+        latency.time(began);
+        if (!succeeded) failures.inc();
+    }
+
+    /**
+     * Record an executor's histogram of the number of tries requests of one
+     * type needed. A negative number of tries counts requests that gave up
+     * after that many.
+     * @param type      The type of request, as named by the request
+     * @param histogram The number of requests for each number of tries
+     */
+    public static void tries(String type, Map<Integer,Integer> histogram) {
+        Metrics m = Metrics.get();
+        for (Map.Entry<Integer,Integer> entry : histogram.entrySet()) {
+            m.gauge("executor_requests_by_tries",
+                    "Completed requests by the number of tries they took",
+                    "request", type, "tries", entry.getKey().toString())
+                    .set(entry.getValue());
+        }
+    }
+}
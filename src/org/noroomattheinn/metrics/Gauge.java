@@ -0,0 +1,59 @@
+/*
+ * Gauge.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 29, 2015
+ */
+package org.noroomattheinn.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gauge: A value that goes up and down, such as the depth of a queue. A gauge
+ * either holds the last value it was given or asks a Source for the current
+ * value each time the metrics are read.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public final class Gauge extends Metric {
+
+    /**
+     * Supplies the value of a gauge when it is read. Called on the thread
+     * reading the metrics so it must be cheap and thread safe.
+     */
+    public interface Source {
+        public double value();
+    }
+
+    private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(0));
+    private volatile Source source;
+
+    Gauge(String[] labels, Source source) {
+        super(labels);
+        this.source = source;
+    }
+
+    public void set(double value) { bits.set(Double.doubleToLongBits(value)); }
+
+    public double get() {
+        Source s = source;
+        if (s != null) {
+            try {
+                return s.value();
+            } catch (RuntimeException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.longBitsToDouble(bits.get());
+    }
+
+    void setSource(Source source) { this.source = source; }
+
+    @Override void writePrometheus(String name, Appendable out) throws IOException {
+        sample(out, name, null, get());
+    }
+
+    @Override void writeJSON(Appendable out) throws IOException {
+        out.append(jsonNumber(get()));
+    }
+}
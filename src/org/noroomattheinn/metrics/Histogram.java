@@ -0,0 +1,177 @@
+/*
+ * Histogram.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 29, 2015
+ */
+package org.noroomattheinn.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram: The distribution of a duration, such as the latency of a
+ * request. Durations are recorded in nanoseconds and reported in seconds.
+ *
+ * The buckets are laid out the way an HDR histogram's are: each power of two
+ * is split into SubBuckets equal parts, so any value is placed in a bucket
+ * whose width is within 1/SubBuckets of the value itself. That covers
+ * everything from a nanosecond to centuries in under a thousand buckets, and
+ * recording a value is a few shifts and an atomic increment with no locks
+ * and no allocation.
+ *
+ * Quantiles are estimated from the buckets over the life of the histogram.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public final class Histogram extends Metric {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final int      SubBucketBits = 4;
+    private static final int      SubBuckets = 1 << SubBucketBits;
+    private static final int      NBuckets = SubBuckets + (63 - SubBucketBits) * SubBuckets;
+    private static final double   Scale = 1e-9;     // Nanoseconds to seconds
+    private static final double[] Quantiles = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QuantileNames = {"p50", "p90", "p99", "p999"};
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final AtomicLongArray counts = new AtomicLongArray(NBuckets);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    Histogram(String[] labels) {
+        super(labels);
+    }
+
+    /**
+     * Record a duration
+     * @param nanos The duration in nanoseconds. Negative values are ignored.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) return;
+        counts.incrementAndGet(bucketFor(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) { }
+    }
+
+    /**
+     * Record the time since a call to System.nanoTime()
+     * @param startNanos    The value System.nanoTime() returned at the start
+     * @return              The duration recorded, in nanoseconds
+     */
+    public long time(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        record(elapsed);
+        return elapsed;
+    }
+
+    public long count() { return count.get(); }
+
+    /**
+     * Estimate a quantile
+     * @param q The quantile, from 0 to 1
+     * @return  The estimate, in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long quantile(double q) {
+        return quantiles(new double[] {q})[0];
+    }
+
+    @Override void writePrometheus(String name, Appendable out) throws IOException {
+        long[] values = quantiles(Quantiles);
+        for (int i = 0; i < Quantiles.length; i++) {
+            sample(out, name, new String[] {"quantile", Metric.number(Quantiles[i])},
+                   values[i] * Scale);
+        }
+        sample(out, name + "_sum", null, sum.get() * Scale);
+        sample(out, name + "_count", null, count.get());
+    }
+
+    @Override void writeJSON(Appendable out) throws IOException {
+        long[] values = quantiles(Quantiles);
+        out.append("{\"count\":").append(Long.toString(count.get()));
+        out.append(",\"sum\":").append(jsonNumber(sum.get() * Scale));
+        out.append(",\"max\":").append(jsonNumber(max.get() * Scale));
+        for (int i = 0; i < Quantiles.length; i++) {
+            out.append(",\"").append(QuantileNames[i]).append("\":")
+               .append(jsonNumber(values[i] * Scale));
+        }
+        out.append('}');
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Bucket arithmetic
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * Values below SubBuckets have a bucket each. Above that, a value whose
+     * highest bit is 2^e falls in group e - SubBucketBits and the next
+     * SubBucketBits bits choose the bucket within the group.
+     */
+    private static int bucketFor(long value) {
+        if (value < SubBuckets) return (int)value;
+        int e = 63 - Long.numberOfLeadingZeros(value);
+        int shift = e - SubBucketBits;
+        int sub = (int)(value >>> shift) - SubBuckets;
+        return SubBuckets + shift * SubBuckets + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SubBuckets) return bucket;
+        int shift = (bucket - SubBuckets) / SubBuckets;
+        int sub = (bucket - SubBuckets) % SubBuckets;
+        return (long)(SubBuckets + sub) << shift;
+    }
+
+    private static long width(int bucket) {
+        if (bucket < SubBuckets) return 1;
+        return 1L << ((bucket - SubBuckets) / SubBuckets);
+    }
+
+    /**
+     * Estimate quantiles from one pass over the buckets. An estimate is the
+     * middle of the bucket it falls in, never more than the largest value
+     * recorded.
+     * @param qs    The quantiles in increasing order
+     */
+    private long[] quantiles(double[] qs) {
+        long[] snapshot = new long[NBuckets];
+        long total = 0;
+        for (int i = 0; i < NBuckets; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] results = new long[qs.length];
+        if (total == 0) return results;
+        long most = max.get();
+        long seen = 0;
+        int q = 0;
+        for (int i = 0; i < NBuckets && q < qs.length; i++) {
+            seen += snapshot[i];
+            while (q < qs.length && seen >= Math.max(1, (long)Math.ceil(qs[q] * total))) {
+                results[q++] = Math.min(most, lowerBound(i) + width(i) / 2);
+            }
+        }
+        return results;
+    }
+}
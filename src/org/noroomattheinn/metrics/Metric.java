@@ -0,0 +1,104 @@
+/*
+ * Metric.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 29, 2015
+ */
+package org.noroomattheinn.metrics;
+
+import java.io.IOException;
+
+/**
+ * Metric: The base of every kind of metric held by the registry. A metric is
+ * one member of a family that shares a name; the members are distinguished
+ * by their labels.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+abstract class Metric {
+    final String[] labels;      // Alternating names and values
+
+    Metric(String[] labels) {
+        this.labels = labels;
+    }
+
+    /**
+     * Write the sample lines for this metric in the Prometheus text format
+     * @param name  The name of the family this metric belongs to
+     */
+    abstract void writePrometheus(String name, Appendable out) throws IOException;
+
+    /**
+     * Write the value of this metric as a JSON value
+     */
+    abstract void writeJSON(Appendable out) throws IOException;
+
+/*------------------------------------------------------------------------------
+ *
+ * Methods for use by the subclasses
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * Write a single sample line
+     * @param name  The name of the sample
+     * @param extra An additional label name and value, or null
+     */
+    void sample(Appendable out, String name, String[] extra, double value)
+            throws IOException {
+        out.append(name);
+        if (labels.length > 0 || extra != null) {
+            out.append('{');
+            boolean first = true;
+            for (int i = 0; i < labels.length; i += 2) {
+                if (!first) out.append(',');
+                label(out, labels[i], labels[i + 1]);
+                first = false;
+            }
+            if (extra != null) {
+                if (!first) out.append(',');
+                label(out, extra[0], extra[1]);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(number(value)).append('\n');
+    }
+
+    static String number(double value) {
+        if (Double.isNaN(value)) return "NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long)value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * A number for a JSON document, which has no representation for NaN or
+     * infinities
+     */
+    static String jsonNumber(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return "null";
+        return number(value);
+    }
+
+    static void quoted(Appendable out, String s) throws IOException {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                default:
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int)c));
+                    else out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static void label(Appendable out, String name, String value) throws IOException {
+        out.append(name).append('=');
+        quoted(out, value);
+    }
+}
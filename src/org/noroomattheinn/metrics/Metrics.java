@@ -0,0 +1,221 @@
+/*
+ * Metrics.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 29, 2015
+ */
+package org.noroomattheinn.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Metrics: A registry of counters, gauges, and histograms that describe what
+ * the application is doing, such as the depth of its queues and the latency
+ * of its stores. Nothing is sent anywhere; the current values are written on
+ * request in the Prometheus text format or as JSON.
+ *
+ * Metrics are created on first use and the same object is returned for the
+ * same name and labels every time after that, so a caller may simply ask for
+ * its metric where it needs it. Labels are given as alternating names and
+ * values. Keep the set of label values small: each distinct set of values is
+ * a separate metric that lives as long as the registry.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class Metrics {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    public static final String PrometheusType = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String JSONType = "application/json";
+
+    private enum Kind {
+        Counter("counter"), Gauge("gauge"), Histogram("summary");
+        final String prometheusType;
+        Kind(String prometheusType) { this.prometheusType = prometheusType; }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final Metrics instance = new Metrics();
+
+    private final Map<String,Family> families = new TreeMap<>();
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    public static Metrics get() { return instance; }
+
+    /**
+     * Get or create a Counter
+     * @param name      The name of the metric. By convention it ends in _total
+     * @param help      A description of the metric
+     * @param labels    Alternating label names and values
+     */
+    public Counter counter(String name, String help, String... labels) {
+        synchronized (this) {
+            Metric m = family(name, help, Kind.Counter).members.get(key(labels));
+            if (m != null) return (Counter)m;
+            return (Counter)add(name, new Counter(labels.clone()));
+        }
+    }
+
+    /**
+     * Get or create a Gauge that holds the last value it was given
+     * @param name      The name of the metric
+     * @param help      A description of the metric
+     * @param labels    Alternating label names and values
+     */
+    public Gauge gauge(String name, String help, String... labels) {
+        return gauge(name, help, null, labels);
+    }
+
+    /**
+     * Get or create a Gauge whose value comes from a Source. If the gauge
+     * already exists, the new Source replaces the old one.
+     * @param name      The name of the metric
+     * @param help      A description of the metric
+     * @param source    Supplies the value when the metrics are read
+     * @param labels    Alternating label names and values
+     */
+    public Gauge gauge(String name, String help, Gauge.Source source, String... labels) {
+        synchronized (this) {
+            Metric m = family(name, help, Kind.Gauge).members.get(key(labels));
+            if (m != null) {
+                if (source != null) ((Gauge)m).setSource(source);
+                return (Gauge)m;
+            }
+            return (Gauge)add(name, new Gauge(labels.clone(), source));
+        }
+    }
+
+    /**
+     * Get or create a Histogram of durations
+     * @param name      The name of the metric. By convention it ends in _seconds
+     * @param help      A description of the metric
+     * @param labels    Alternating label names and values
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        synchronized (this) {
+            Metric m = family(name, help, Kind.Histogram).members.get(key(labels));
+            if (m != null) return (Histogram)m;
+            return (Histogram)add(name, new Histogram(labels.clone()));
+        }
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format. Histograms
+     * are written as summaries with quantiles, a sum, and a count.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        for (Family f : snapshot()) {
+            out.append("# HELP ").append(f.name).append(' ')
+               .append(f.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(f.name).append(' ')
+               .append(f.kind.prometheusType).append('\n');
+            for (Metric m : f.metrics()) { m.writePrometheus(f.name, out); }
+        }
+    }
+
+    /**
+     * Write every metric as a JSON object keyed by name. Each entry gives
+     * the type, the help text, and a list of the labelled values.
+     */
+    public void writeJSON(Appendable out) throws IOException {
+        out.append('{');
+        boolean firstFamily = true;
+        for (Family f : snapshot()) {
+            if (!firstFamily) out.append(',');
+            firstFamily = false;
+            Metric.quoted(out, f.name);
+            out.append(":{\"type\":");
+            Metric.quoted(out, f.kind.prometheusType);
+            out.append(",\"help\":");
+            Metric.quoted(out, f.help);
+            out.append(",\"values\":[");
+            boolean first = true;
+            for (Metric m : f.metrics()) {
+                if (!first) out.append(',');
+                first = false;
+                out.append("{\"labels\":{");
+                for (int i = 0; i < m.labels.length; i += 2) {
+                    if (i > 0) out.append(',');
+                    Metric.quoted(out, m.labels[i]);
+                    out.append(':');
+                    Metric.quoted(out, m.labels[i + 1]);
+                }
+                out.append("},\"value\":");
+                m.writeJSON(out);
+                out.append('}');
+            }
+            out.append("]}");
+        }
+        out.append("}\n");
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - The families of metrics
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static class Family {
+        final String name;
+        final String help;
+        final Kind kind;
+        final Map<String,Metric> members = new LinkedHashMap<>();
+
+        Family(String name, String help, Kind kind) {
+            this.name = name;
+            this.help = help;
+            this.kind = kind;
+        }
+
+        synchronized List<Metric> metrics() { return new ArrayList<>(members.values()); }
+    }
+
+    private Family family(String name, String help, Kind kind) {
+        Family f = families.get(name);
+        if (f == null) {
+            f = new Family(name, help, kind);
+            families.put(name, f);
+        } else if (f.kind != kind) {
+            throw new IllegalArgumentException(
+                    "Metric " + name + " is a " + f.kind + ", not a " + kind);
+        }
+        return f;
+    }
+
+    private Metric add(String name, Metric m) {
+        if (m.labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels for " + name + " must be name/value pairs");
+        }
+        Family f = families.get(name);
+        synchronized (f) { f.members.put(key(m.labels), m); }
+        return m;
+    }
+
+    private synchronized List<Family> snapshot() {
+        return new ArrayList<>(families.values());
+    }
+
+    private static String key(String[] labels) {
+        return Arrays.toString(labels);
+    }
+}
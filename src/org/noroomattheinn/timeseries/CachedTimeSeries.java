@@ -12,6 +12,8 @@ import java.io.IOException;
 import java.util.List;
 import java.util.NavigableMap;
 import java.util.logging.Logger;
+import org.noroomattheinn.metrics.Counter;
+import org.noroomattheinn.metrics.Metrics;
 
 /**
  * CachedTimeSeries: A TimeSeries that is persistent but also has an in-memory cache.
@@ -35,6 +37,7 @@ public class CachedTimeSeries implements TimeSeries, IndexedTimeSeries {
     private final RowDescriptor schema;
     private final PersistentTS persistent;
     private final InMemoryTS inMemory;
+    private final Counter hits, misses;     // Reads served by the cache or not
     
     
 /*==============================================================================
@@ -86,6 +89,12 @@ public class CachedTimeSeries implements TimeSeries, IndexedTimeSeries {
             File container, String baseName, RowDescriptor descriptor, Range<Long> cacheRange)
             throws IOException {
         this.schema = descriptor;
+        this.hits = Metrics.get().counter("timeseries_cache_reads_total",
+                "Reads of a cached series by whether the cache could serve them",
+                "series", baseName, "result", "hit");
+        this.misses = Metrics.get().counter("timeseries_cache_reads_total",
+                "Reads of a cached series by whether the cache could serve them",
+                "series", baseName, "result", "miss");
         this.inMemory = new InMemoryTS(descriptor, true);
         this.persistent = new PersistentTS(container, baseName, descriptor, true);
         persistent.loadInto(inMemory, cacheRange);
@@ -176,6 +185,7 @@ public class CachedTimeSeries implements TimeSeries, IndexedTimeSeries {
     
     private boolean useInMemory(Range<Long> period) {
         boolean im = useInMemoryInternal(period);
+        (im ? hits : misses).inc();
         logger.finest("Use InMemory: " + im);
         return im;
     }
@@ -9,10 +9,12 @@ import com.google.common.collect.Range;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
- * InMemoryTS: In-Memory Time Series
+ * InMemoryTS: In-Memory Time Series. The index may be read while rows are
+ * being added. Readers see the rows that were present when they started and
+ * may or may not see rows added since.
  * 
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
@@ -47,7 +49,7 @@ public class InMemoryTS extends TSBase implements IndexedTimeSeries {
      */
     public InMemoryTS(RowDescriptor descriptor, boolean forceOrdering) {
         super(descriptor);
-        this.index = new TreeMap<>();
+        this.index = new ConcurrentSkipListMap<>();
         this.rows = new ArrayList<>();
         this.forceOrdering = forceOrdering;
 
@@ -6,16 +6,26 @@
 package org.noroomattheinn.timeseries;
 
 import com.google.common.collect.Range;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.Date;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import org.noroomattheinn.metrics.Counter;
+import org.noroomattheinn.metrics.Gauge;
+import org.noroomattheinn.metrics.Histogram;
+import org.noroomattheinn.metrics.Metrics;
 import static org.noroomattheinn.timeseries.TSBase.logger;
 
 /**
@@ -54,6 +64,13 @@ import static org.noroomattheinn.timeseries.TSBase.logger;
  *      can be used to take the place of NaN or INF values.</li>
  *      </ul>
  * 
+ * Because of the delta encoding, a row can only be decoded by reading every
+ * row before it. To avoid that, scans record checkpoints as they go: the
+ * offset of a row along with the state needed to decode from there. A later
+ * scan starts at the last checkpoint before the period it wants. Scans read
+ * the file without holding the lock used by writers, so a long scan doesn't
+ * hold up storeRow. A scan sees the rows that were written when it began.
+ * 
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
 public class PersistentTS extends TSBase {
@@ -64,6 +81,7 @@ public class PersistentTS extends TSBase {
  *----------------------------------------------------------------------------*/
     private static final int RepoVersion = 1;
     private static final long FlushInterval = 20 * 1000L;
+    private static final long CheckpointBytes = 256 * 1024;
     
 /*------------------------------------------------------------------------------
  *
@@ -76,6 +94,14 @@ public class PersistentTS extends TSBase {
     private final Timer timer;              // To manage flushing
     private Row pendingRow;                 // Used to merge rows if needed
     private long timeOfFirstRow;            // The oldest data in the series
+    private final NavigableMap<Long,Checkpoint> checkpoints = new TreeMap<>();
+    private long lastCheckpoint = 0;        // Offset of the furthest checkpoint
+    
+    private final Counter   rowsWritten;
+    private final Counter   rowsScanned;
+    private final Histogram flushTime;
+    private final Histogram scanTime;
+    private final Gauge     scanRate;       // Rows per second in the last scan
     
 /*==============================================================================
  * -------                                                               -------
@@ -101,6 +127,18 @@ public class PersistentTS extends TSBase {
             throws IOException {
         super(schema);
         
+        Metrics m = Metrics.get();
+        this.rowsWritten = m.counter("timeseries_rows_written_total",
+                "Rows written to the persistent store", "series", baseName);
+        this.rowsScanned = m.counter("timeseries_rows_scanned_total",
+                "Rows read from the persistent store by scans", "series", baseName);
+        this.flushTime = m.histogram("timeseries_flush_seconds",
+                "Time taken to flush the persistent store", "series", baseName);
+        this.scanTime = m.histogram("timeseries_scan_seconds",
+                "Time taken by each scan of the persistent store", "series", baseName);
+        this.scanRate = m.gauge("timeseries_scan_rows_per_second",
+                "Rows read per second by the most recent scan", "series", baseName);
+        
         this.repo = Repo.getRepo(container, baseName, schema);
         this.emitter = new Emitter(forceOrdering);
         this.pendingRow = null;
@@ -147,19 +185,35 @@ public class PersistentTS extends TSBase {
         return r;
     }
     
-    @Override public final synchronized void streamRows(
+    @Override public final void streamRows(
             Range<Long> period, RowCollector collector) {
-        double accumulator[] = new double[schema.nColumns];
         if (period == null) period = Range.all();
         long fromTime = period.hasLowerBound() ? period.lowerEndpoint() : 0L;
         long toTime = period.hasUpperBound() ? period.upperEndpoint() : Long.MAX_VALUE;
-        long prevTime = 0;
-        BufferedReader rdr = null;
+        long began = System.nanoTime();
+        long nScanned = 0;
+        
+        // Only read what has been written so far. Writers hold the lock while
+        // they emit a row, so the file never ends in a partial row here.
+        long limit;
+        synchronized (this) { limit = repo.length(); }
+        
+        Checkpoint start;
+        synchronized (checkpoints) {
+            Map.Entry<Long,Checkpoint> e = checkpoints.lowerEntry(fromTime);
+            start = (e == null) ? Checkpoint.Beginning : e.getValue();
+        }
+        double accumulator[] = (start.accumulator == null) ?
+                new double[schema.nColumns] : start.accumulator.clone();
+        long prevTime = start.prevTime;
+        
+        LineReader rdr = null;
         try {
-            rdr = repo.getReader();
+            rdr = repo.getReader(start.offset, limit);
             String line;
             while ((line = rdr.readLine()) != null) {
                 if (line.startsWith("#")) { continue; }
+                nScanned++;
                 String[] tokens = line.split("\t");
                 
                 // The first entry on the line is the time in delta format
@@ -169,7 +223,6 @@ public class PersistentTS extends TSBase {
                 prevTime = time;    // Keep a running tally of the current time
                 
                 time = inflate(time);
-                if (time < fromTime) continue;  // Out of range, ignore & move on
                 if (time > toTime) break;       // Out of range, ignore & stop
                 
                 Row row = new Row(time, 0L, schema.nColumns);
@@ -182,7 +235,9 @@ public class PersistentTS extends TSBase {
                 
                 // The remaining entries are readings. There is one reading for
                 // each 1 bit in the bitvector. The positions in the bitvector
-                // correspond to the columns in the order initially specified
+                // correspond to the columns in the order initially specified.
+                // Rows before the period are decoded too since later rows may
+                // refer to their values.
                 long bit = 1;
                 int tokenIndex = 2;
                 for (int i = 0; i < schema.nColumns; i++) {
@@ -203,6 +258,8 @@ public class PersistentTS extends TSBase {
                     }
                     bit = bit << 1;
                 }
+                noteCheckpoint(rdr.offset(), time, prevTime, accumulator);
+                if (time < fromTime) continue;  // Out of range, move on
                 if (!collector.collect(row)) break;
             }
         } catch (IOException ex) {
@@ -213,14 +270,19 @@ public class PersistentTS extends TSBase {
         } catch (IOException e) {
             logger.warning("Failure closing reader: " + e);
         }
+        long elapsed = scanTime.time(began);
+        rowsScanned.inc(nScanned);
+        if (elapsed > 0) scanRate.set(nScanned * 1e9 / elapsed);
     }
 
     @Override public synchronized void flush() {
+        long began = System.nanoTime();
         if (pendingRow != null) {
             emitter.emit(pendingRow);
             pendingRow = null;
         }
         repo.flush();
+        flushTime.time(began);
     }
     
     @Override public synchronized void close() {
@@ -253,6 +315,20 @@ public class PersistentTS extends TSBase {
         }
     }
     
+    /**
+     * Remember how to resume decoding at the given offset if it is far enough
+     * beyond the last checkpoint.
+     * @param offset    The offset of the row following the one just decoded
+     * @param time      The time of the row just decoded
+     */
+    private void noteCheckpoint(long offset, long time, long prevTime, double[] accumulator) {
+        synchronized (checkpoints) {
+            if (offset < lastCheckpoint + CheckpointBytes) return;
+            checkpoints.put(time, new Checkpoint(offset, prevTime, accumulator.clone()));
+            lastCheckpoint = offset;
+        }
+    }
+    
     private static long deflate(long timestamp) { return timestamp/100; }
     private static long inflate(long timestamp) { return timestamp*100; }
     
@@ -292,6 +368,7 @@ public class PersistentTS extends TSBase {
                 bitForColumn = bitForColumn << 1;
             }
             ps.println();
+            rowsWritten.inc();
 
             lastRowEmitted = r;
             return r;
@@ -316,6 +393,58 @@ public class PersistentTS extends TSBase {
         }
     }
     
+    /**
+     * The state needed to decode the data file starting at an offset
+     */
+    private static class Checkpoint {
+        static final Checkpoint Beginning = new Checkpoint(0, 0, null);
+        
+        final long offset;
+        final long prevTime;            // The deflated time of the prior row
+        final double[] accumulator;     // The last value of each column
+        
+        Checkpoint(long offset, long prevTime, double[] accumulator) {
+            this.offset = offset;
+            this.prevTime = prevTime;
+            this.accumulator = accumulator;
+        }
+    }
+    
+    /**
+     * Reads the lines of the data file between two offsets, keeping track of
+     * the offset of the next line. The data is ASCII so bytes map to chars.
+     */
+    private static class LineReader {
+        private final InputStream in;
+        private final long limit;
+        private long offset;
+        private final StringBuilder sb = new StringBuilder(256);
+        
+        LineReader(File f, long offset, long limit) throws IOException {
+            FileInputStream fis = new FileInputStream(f);
+            fis.getChannel().position(offset);
+            this.in = new BufferedInputStream(fis, 64 * 1024);
+            this.offset = offset;
+            this.limit = limit;
+        }
+        
+        String readLine() throws IOException {
+            if (offset >= limit) return null;
+            sb.setLength(0);
+            int c = 0;
+            while (offset < limit && (c = in.read()) != -1) {
+                offset++;
+                if (c == '\n') break;
+                if (c != '\r') sb.append((char)c);
+            }
+            return (c == -1 && sb.length() == 0) ? null : sb.toString();
+        }
+        
+        long offset() { return offset; }
+        
+        void close() throws IOException { in.close(); }
+    }
+    
 /*------------------------------------------------------------------------------
  *
  * PRIVATE - The class implementing the filed-based repository
@@ -366,9 +495,11 @@ public class PersistentTS extends TSBase {
         }
         
         public PrintStream getPrintStream() { return ps; }
-        public BufferedReader getReader() throws FileNotFoundException {
-            return new BufferedReader(new FileReader(dataFile));
-        };
+        public LineReader getReader(long offset, long limit) throws IOException {
+            return new LineReader(dataFile, offset, limit);
+        }
+        
+        public long length() { return dataFile.length(); }
 
         private void ensureValidHeader() throws IOException {
             if (!hdrFile.exists()) {
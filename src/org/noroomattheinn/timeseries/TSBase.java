@@ -61,7 +61,7 @@ public abstract class TSBase implements TimeSeries {
  * 
  *----------------------------------------------------------------------------*/
     
-    @Override public synchronized void loadInto(final TimeSeries ts, Range<Long> period) {
+    @Override public void loadInto(final TimeSeries ts, Range<Long> period) {
         streamRows(period, new RowCollector() {
             @Override public boolean collect(Row r) {
                 ts.storeRow(r);
@@ -70,7 +70,7 @@ public abstract class TSBase implements TimeSeries {
         });
     }
     
-    @Override public synchronized void streamValues(
+    @Override public void streamValues(
             Range<Long> period, final ValueCollector collector) {
         streamRows(period, new RowCollector() {
             @Override public boolean collect(Row r) {
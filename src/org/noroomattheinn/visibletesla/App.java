@@ -5,7 +5,6 @@
  */
 package org.noroomattheinn.visibletesla;
 
-import com.sun.net.httpserver.BasicAuthenticator;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,7 +16,6 @@ import java.util.List;
 import java.util.Properties;
 import javafx.application.Application;
 import javafx.application.HostServices;
-import javafx.application.Platform;
 import javafx.event.EventHandler;
 import javafx.scene.Node;
 import javafx.scene.control.Tab;
@@ -26,12 +24,14 @@ import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.noroomattheinn.fxextensions.FXDispatcher;
 import org.noroomattheinn.tesla.Tesla;
 import org.noroomattheinn.utils.PWUtils;
 import org.noroomattheinn.utils.RestHelper;
 import org.noroomattheinn.utils.ThreadManager;
 import org.noroomattheinn.utils.TrackedObject;
 import org.noroomattheinn.utils.Utils;
+import org.noroomattheinn.visibletesla.rest.SessionAuthenticator;
 
 import static org.noroomattheinn.tesla.Tesla.logger;
 import static org.noroomattheinn.utils.Utils.timeSince;
@@ -81,6 +81,7 @@ class App {
     final Stage             stage;
     final ProgressListener  progressListener;
     final TrackedObject<String>  schedulerActivity;
+    final NotificationService    notifications;
     
     
 /*==============================================================================
@@ -124,6 +125,7 @@ class App {
 
         appFilesFolder = Utils.ensureAppFilesFolder(productName());
         Utils.setupLogger(appFilesFolder, "visibletesla", logger, prefs.getLogLevel());
+        notifications = new NotificationService(appFilesFolder);
 
         if (prefs.enableProxy.get()) {
             // Enable the proxy at the lowest level so all services use it
@@ -176,14 +178,17 @@ class App {
 
     /**
      * Add a tracker to a TrackedObject, but ensure it will run on the
-     * FX Application Thread.
+     * FX Application Thread. Multiple changes that occur before the tracker
+     * gets a chance to run are coalesced into a single invocation, so this
+     * is only for trackers that reflect the current value. Trackers that
+     * must see every value must not use it.
      * @param t The tracked object
      * @param r The Runnable to execute on the FXApplicationThread
      */
     static void addTracker(TrackedObject t, final Runnable r) {
         t.addTracker(new Runnable() {
             @Override public void run() {
-                Platform.runLater(r);
+                FXDispatcher.get().dispatch(r, r);
             }
         });
     }
@@ -224,11 +229,17 @@ class App {
         }
         salt = pwUtils.generateSalt();
         encPW = pwUtils.getEncryptedPassword(pw, salt);
+        authenticator.invalidate();
         return pwUtils.externalRep(salt, encPW);
     }
 
-    BasicAuthenticator authenticator = new BasicAuthenticator("VisibleTesla") {
-        @Override public boolean checkCredentials(String user, String pwd) {
+    /**
+     * Checks credentials for the RESTServer. Verifying a password is slow by
+     * design, so recently verified credentials and session cookies are
+     * accepted without doing it again.
+     */
+    final SessionAuthenticator authenticator = new SessionAuthenticator("VisibleTesla") {
+        @Override protected boolean verify(String user, String pwd) {
             if (!user.equals("VT")) return false;
             if (encPW == null || salt == null) return false;
             return pwUtils.authenticate(pwd, encPW, salt);
@@ -246,6 +257,7 @@ class App {
         List<byte[]> internalForm = (new PWUtils()).internalRep(externalForm);
         salt = internalForm.get(0);
         encPW = internalForm.get(1);
+        authenticator.invalidate();
     }
 
 /*------------------------------------------------------------------------------
@@ -9,6 +9,7 @@ package org.noroomattheinn.visibletesla;
 import java.net.URL;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
@@ -183,6 +184,10 @@ abstract class BaseController {
         vtData.produceState(whichState, progressIndicator);
     }
 
+    protected final void updateStates(Set<Vehicle.StateType> whichStates) {
+        vtData.produceStates(whichStates, progressIndicator);
+    }
+
     protected final void updateStateLater(final Vehicle.StateType whichState, long delay) {
         ThreadManager.get().addTimedTask(new TimerTask() {
             @Override public void run() { updateState(whichState);  } }, delay);
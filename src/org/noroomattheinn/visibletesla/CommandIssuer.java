@@ -7,6 +7,7 @@ package org.noroomattheinn.visibletesla;
 
 import java.util.concurrent.Callable;
 import javafx.scene.control.ProgressIndicator;
+import org.noroomattheinn.metrics.ExecutorMetrics;
 import org.noroomattheinn.tesla.Result;
 import org.noroomattheinn.utils.Executor;
 
@@ -19,6 +20,14 @@ import static org.noroomattheinn.tesla.Tesla.logger;
  */
 class CommandIssuer extends Executor<CommandIssuer.Request> {
     
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ * 
+ *----------------------------------------------------------------------------*/
+    
+    private final ExecutorMetrics metrics;
+    
 /*==============================================================================
  * -------                                                               -------
  * -------              Public Interface To This Class                   ------- 
@@ -27,6 +36,7 @@ class CommandIssuer extends Executor<CommandIssuer.Request> {
     
     CommandIssuer(ProgressListener progressListener) {
         super("CommandIssuer", progressListener);
+        this.metrics = new ExecutorMetrics("CommandIssuer", queue);
     }
     
     void issueCommand(Callable<Result> command, boolean retry,
@@ -40,7 +50,23 @@ class CommandIssuer extends Executor<CommandIssuer.Request> {
  * 
  *----------------------------------------------------------------------------*/
 
+    @Override protected Request filter(Request r) {
+        Request filtered = super.filter(r);
+        metrics.submitted(filtered != null);
+        return filtered;
+    }
+    
     @Override protected boolean execRequest(Request r) throws Exception {
+        long began = metrics.attemptStarted();
+        boolean succeeded = false;
+        try {
+            return (succeeded = attempt(r));
+        } finally {
+            metrics.attemptEnded(began, succeeded);
+        }
+    }
+    
+    private boolean attempt(Request r) throws Exception {
         Result result = r.command.call();
         if (result.success) { return true; }
         logger.warning("Failed command (" + r.command + "): " + result.explanation);
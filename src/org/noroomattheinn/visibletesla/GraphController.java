@@ -5,31 +5,34 @@
  */
 package org.noroomattheinn.visibletesla;
 
+import com.google.common.collect.Range;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
-import javafx.scene.chart.XYChart;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
 import javafx.scene.control.RadioMenuItem;
+import javafx.scene.control.SeparatorMenuItem;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.layout.AnchorPane;
+import org.noroomattheinn.fxextensions.HistoryLoader;
 import org.noroomattheinn.fxextensions.TimeBasedChart;
 import org.noroomattheinn.fxextensions.VTLineChart;
 import org.noroomattheinn.fxextensions.VTSeries;
 import org.noroomattheinn.tesla.ChargeState;
 import org.noroomattheinn.tesla.StreamState;
 import org.noroomattheinn.timeseries.Row;
+import org.noroomattheinn.timeseries.TimeSeries;
 import org.noroomattheinn.utils.DefaultedHashMap;
 import org.noroomattheinn.utils.Utils;
 import org.noroomattheinn.visibletesla.data.VTData;
@@ -60,6 +63,7 @@ public class GraphController extends BaseController {
     
     private boolean displayLines = true;
     private boolean displayMarkers = true;
+    private boolean fastDrawing = false;
     
 /*------------------------------------------------------------------------------
  *
@@ -83,8 +87,10 @@ public class GraphController extends BaseController {
     private RadioMenuItem displayLinesMI;
     private RadioMenuItem displayMarkersMI;
     private RadioMenuItem displayBothMI;
+    private CheckMenuItem fastDrawingMI;
     private TimeBasedChart chart;
     private VTLineChart lineChart = null;
+    private HistoryLoader historyLoader = null;
     
 /*------------------------------------------------------------------------------
  *
@@ -129,7 +135,7 @@ public class GraphController extends BaseController {
     private Map<String,VTSeries> typeToSeries = new HashMap<>();
     
     private void prepSeries() {
-        VTSeries.Transform<Number> distTransform = 
+        VTSeries.Transform distTransform = 
                 vtVehicle.unitType() == Utils.UnitType.Imperial 
                 ? VTSeries.idTransform : VTSeries.mToKTransform;
         lineChart.clearSeries();
@@ -173,6 +179,7 @@ public class GraphController extends BaseController {
         // Restore the last display settings (display lines, markers, or both)
         displayLines = prefs.storage().getBoolean(vinKey("DISPLAY_LINES"), true);
         displayMarkers = prefs.storage().getBoolean(vinKey("DISPLAY_MARKERS"), true);
+        fastDrawing = prefs.storage().getBoolean(vinKey("FAST_DRAWING"), false);
 
         reflectDisplayOptions();
     }
@@ -194,9 +201,26 @@ public class GraphController extends BaseController {
         prepSeries();
         loadExistingData();
         // Register for additions to the list - Handle the new list on the JFX
-        // thread to avoid ConcurrentModificationExceptions in the series list
-        App.addTracker(vtData.lastStoredChargeState, chargeHandler);
-        App.addTracker(vtData.lastStoredStreamState, streamHandler);
+        // thread to avoid ConcurrentModificationExceptions in the series list.
+        // Every stored state is a point on the graph, so these must not be
+        // coalesced the way App.addTracker does. Each state is captured when
+        // it's stored and handed over on its own.
+        vtData.lastStoredChargeState.addTracker(new Runnable() {
+            @Override public void run() {
+                final ChargeState cs = vtData.lastStoredChargeState.get();
+                Platform.runLater(new Runnable() {
+                    @Override public void run() { addChargeState(cs); }
+                });
+            }
+        });
+        vtData.lastStoredStreamState.addTracker(new Runnable() {
+            @Override public void run() {
+                final StreamState ss = vtData.lastStoredStreamState.get();
+                Platform.runLater(new Runnable() {
+                    @Override public void run() { addStreamState(ss); }
+                });
+            }
+        });
 
         
         setGap();
@@ -257,7 +281,21 @@ public class GraphController extends BaseController {
         } else if (displayMarkers) {            displayMarkersMI.setSelected(true);
         }
 
-        contextMenu.getItems().addAll(displayLinesMI, displayMarkersMI, displayBothMI);
+        // Drawing onto a Canvas is much faster when there are many points
+        // in view, but the lines aren't part of the scene graph
+        fastDrawingMI = new CheckMenuItem("Fast Drawing");
+        fastDrawingMI.setSelected(fastDrawing);
+        fastDrawingMI.setOnAction(new EventHandler<ActionEvent>() {
+            @Override public void handle(ActionEvent event) {
+                fastDrawing = fastDrawingMI.isSelected();
+                reflectDisplayOptions();
+                prefs.storage().putBoolean(vinKey("FAST_DRAWING"), fastDrawing);
+            }
+        });
+
+        contextMenu.getItems().addAll(
+                displayLinesMI, displayMarkersMI, displayBothMI,
+                new SeparatorMenuItem(), fastDrawingMI);
         chart.addContextMenu(contextMenu);
     }
     
@@ -284,6 +322,9 @@ public class GraphController extends BaseController {
     };
 
     private void reflectDisplayOptions() {        
+        fastDrawingMI.setSelected(fastDrawing);
+        lineChart.setRenderer(
+                fastDrawing ? VTLineChart.Renderer.Canvas : VTLineChart.Renderer.Path);
         if (displayMarkers && displayLines) {
             displayBothMI.setSelected(true);
             lineChart.setDisplayMode(VTLineChart.DisplayMode.Both);
@@ -310,19 +351,54 @@ public class GraphController extends BaseController {
  *----------------------------------------------------------------------------*/
         
     private void loadExistingData() {
-        Map<Long,Row> rows = vtData.getAllLoadedRows();
-        Map<String,ObservableList<XYChart.Data<Number,Number>>> typeToList = new HashMap<>();
+        // Carry the state of the speed series on into the live readings
+        PointCollector collector = new PointCollector(liveSpeed);
+        for (Row row : vtData.getAllLoadedRows().values()) {
+            collector.collect(row);
+        }
         
-        for (String type : typeToSeries.keySet()) {
-            ObservableList<XYChart.Data<Number,Number>> data =
-                    FXCollections.<XYChart.Data<Number,Number>>observableArrayList();
-            typeToList.put(type, data);
+        for (VTSeries vts : typeToSeries.values()) {
+            VTSeries.Points points = collector.points.get(vts);
+            vts.setData(points != null ? points : new VTSeries.Points());
         }
         
+        lineChart.applySeriesToChart();
+        restoreLastSettings();
+        
+        // Anything older than what was loaded is read as it's scrolled to
+        Range<Long> loaded = vtData.getLoadedPeriod();
+        if (loaded.hasLowerBound()) {
+            loaded = Range.atLeast(secondsFromMillis(loaded.lowerEndpoint()));
+        }
+        historyLoader = new HistoryLoader(
+                chart.getXAxis(), typeToSeries.values(), loaded, historySource);
+    }
+    
+    private final HistoryLoader.Source historySource = new HistoryLoader.Source() {
+        @Override public Map<VTSeries,VTSeries.Points> load(Range<Long> period) {
+            PointCollector collector = new PointCollector(new ZeroSpeed());
+            // The store isn't locked while it's read, so this never holds
+            // up readings being stored on the FX thread
+            vtData.streamRows(Range.closedOpen(
+                    period.lowerEndpoint() * 1000, period.upperEndpoint() * 1000),
+                    collector);
+            return collector.points;
+        }
+    };
+    
+    /**
+     * Turns rows into points for each of the series, whether they were loaded
+     * at startup or read later as history
+     */
+    private class PointCollector implements TimeSeries.RowCollector {
+        final Map<VTSeries,VTSeries.Points> points = new HashMap<>();
+        private final DefaultedHashMap<String,Long> lastTimeForType = new DefaultedHashMap<>(0L);
+        private final DefaultedHashMap<String,Double> lastValForType = new DefaultedHashMap<>(0.0);
+        private final ZeroSpeed zeroSpeed;
+        
+        PointCollector(ZeroSpeed zeroSpeed) { this.zeroSpeed = zeroSpeed; }
         
-        DefaultedHashMap<String,Long> lastTimeForType = new DefaultedHashMap<>(0L);
-        DefaultedHashMap<String,Double> lastValForType = new DefaultedHashMap<>(0.0);
-        for (Row row : rows.values()) {
+        @Override public boolean collect(Row row) {
             long time = row.timestamp;
             long bit = 1;
             for (int i = 0; i < row.values.length; i++) {
@@ -331,16 +407,17 @@ public class GraphController extends BaseController {
                     VTSeries vts = typeToSeries.get(type);
                     if (vts != null) {  // It's a column that we're graphing
                         double value = row.values[i];
-                        ObservableList<XYChart.Data<Number,Number>> list = typeToList.get(type);
                         // Don't overload the graph. Make sure that samples are
                         // At least 5 seconds apart unless they represent a huge 
                         // swing in values: greater than 50%
                         if (time - lastTimeForType.get(type) >= 5 * 1000 ||
                             Utils.percentChange(value, lastValForType.get(type)) > 0.5) {
-                            if (type.equals(VTData.SpeedKey) && add0Speed(time, value)) {
-                                vts.addToData(list, time - (5 * 1000), 0);
+                            VTSeries.Points p = points.get(vts);
+                            if (p == null) { p = new VTSeries.Points(); points.put(vts, p); }
+                            if (type.equals(VTData.SpeedKey) && zeroSpeed.add0Speed(time, value)) {
+                                p.add(time - (5 * 1000), 0);
                             }
-                            vts.addToData(list, time, value);
+                            p.add(time, value);
                             lastTimeForType.put(type, time);
                             lastValForType.put(type, value);
                         }
@@ -348,16 +425,8 @@ public class GraphController extends BaseController {
                 }
                 bit = bit << 1;
             }
+            return true;
         }
-        
-        for (Map.Entry<String,VTSeries> entry : typeToSeries.entrySet()) {
-            VTSeries vts = entry.getValue();
-            String type = entry.getKey();
-            vts.setData(typeToList.get(type));
-        }
-        
-        lineChart.applySeriesToChart();
-        restoreLastSettings();
     }
         
 /*------------------------------------------------------------------------------
@@ -371,42 +440,48 @@ public class GraphController extends BaseController {
         series.addToSeries(time, value);
     }
     
-    private final Runnable chargeHandler = new Runnable() {
-        @Override public void run() {
-            ChargeState cs = vtData.lastStoredChargeState.get();
-            addElement(typeToSeries.get(VTData.VoltageKey), cs.timestamp, cs.chargerVoltage);
-            addElement(typeToSeries.get(VTData.CurrentKey), cs.timestamp, cs.chargerActualCurrent);
-            addElement(typeToSeries.get(VTData.EstRangeKey), cs.timestamp, cs.range);
-            addElement(typeToSeries.get(VTData.SOCKey), cs.timestamp, cs.batteryPercent);
-            addElement(typeToSeries.get(VTData.ROCKey), cs.timestamp, cs.chargeRate);
-            addElement(typeToSeries.get(VTData.BatteryAmpsKey), cs.timestamp, cs.batteryCurrent);
-        }
-    };
+    private void addChargeState(ChargeState cs) {
+        addElement(typeToSeries.get(VTData.VoltageKey), cs.timestamp, cs.chargerVoltage);
+        addElement(typeToSeries.get(VTData.CurrentKey), cs.timestamp, cs.chargerActualCurrent);
+        addElement(typeToSeries.get(VTData.EstRangeKey), cs.timestamp, cs.range);
+        addElement(typeToSeries.get(VTData.SOCKey), cs.timestamp, cs.batteryPercent);
+        addElement(typeToSeries.get(VTData.ROCKey), cs.timestamp, cs.chargeRate);
+        addElement(typeToSeries.get(VTData.BatteryAmpsKey), cs.timestamp, cs.batteryCurrent);
+    }
     
-    private final Runnable streamHandler = new Runnable() {
-        @Override public void run() {
-            StreamState ss = vtData.lastStoredStreamState.get();
-            addElement(typeToSeries.get(VTData.PowerKey), ss.timestamp, ss.power);
-            
-            if (add0Speed(ss.timestamp, ss.speed)) {
-                addElement(typeToSeries.get(VTData.SpeedKey), ss.timestamp  - (5 * 1000), 0);                
-            }
-            addElement(typeToSeries.get(VTData.SpeedKey), ss.timestamp, ss.speed);
+    private void addStreamState(StreamState ss) {
+        addElement(typeToSeries.get(VTData.PowerKey), ss.timestamp, ss.power);
+        
+        if (liveSpeed.add0Speed(ss.timestamp, ss.speed)) {
+            addElement(typeToSeries.get(VTData.SpeedKey), ss.timestamp  - (5 * 1000), 0);                
         }
-    };
+        addElement(typeToSeries.get(VTData.SpeedKey), ss.timestamp, ss.speed);
+    }
     
-    private long lastTime = 0;
-    private double lastSpeed = -1.0;
-    private boolean add0Speed(long curTime, double curSpeed) {
-        boolean add0 = false;
-        if (lastSpeed == 0.0 && curSpeed != 0.0) {
-            if (curTime - lastTime > 60 * 1000L) {
-                add0 = true;
+    private final ZeroSpeed liveSpeed = new ZeroSpeed();
+    
+    /**
+     * Decides when a zero should be added before a speed reading so that a
+     * drive that starts after the car has been parked a while doesn't look
+     * like it ramped up from the last drive.
+     */
+    private static class ZeroSpeed {
+        private long lastTime = 0;
+        private double lastSpeed = -1.0;
+        
+        boolean add0Speed(long curTime, double curSpeed) {
+            boolean add0 = false;
+            if (lastSpeed == 0.0 && curSpeed != 0.0) {
+                if (curTime - lastTime > 60 * 1000L) {
+                    add0 = true;
+                }
             }
+            lastTime = curTime;
+            lastSpeed = curSpeed;
+            return add0;
         }
-        lastTime = curTime;
-        lastSpeed = curSpeed;
-        return add0;
     }
     
+    private static long secondsFromMillis(long timeInMillis) { return timeInMillis/1000; }
+    
 }
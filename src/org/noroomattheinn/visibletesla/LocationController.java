@@ -116,9 +116,9 @@ public class LocationController extends BaseController {
         useMiles = vtVehicle.unitType() == Utils.UnitType.Imperial;
         blipAnimation = animateBlip();
         vtData.produceStream(false);
-        vtVehicle.streamState.addTracker(new Runnable() {
+        App.addTracker(vtVehicle.streamState, new Runnable() {
             @Override public void run() {
-                doUpdateLater(vtVehicle.streamState.get());
+                reflectInternal(vtVehicle.streamState.get());
             }
         });
 
@@ -12,8 +12,12 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import javafx.application.Platform;
@@ -33,6 +37,7 @@ import javafx.scene.layout.Pane;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import org.apache.commons.lang3.SystemUtils;
+import org.noroomattheinn.tesla.BaseState;
 import org.noroomattheinn.tesla.ChargeState;
 import org.noroomattheinn.tesla.GUIState;
 import org.noroomattheinn.tesla.Result;
@@ -376,22 +381,26 @@ public class MainController extends BaseController {
             }
         }
         
-        // As part of establishing contact with the car we cached the GUIState
-        Vehicle         v = vtVehicle.getVehicle();
-        VehicleState    vs = v.queryVehicle();
-        ChargeState     cs = v.queryCharge();
+        // As part of establishing contact with the car we cached the GUIState.
+        // Fetch the rest in parallel, retrying only the ones that fail.
+        Set<Vehicle.StateType> needed =
+                EnumSet.of(Vehicle.StateType.Vehicle, Vehicle.StateType.Charge);
+        Map<Vehicle.StateType,BaseState> states = new EnumMap<>(Vehicle.StateType.class);
         
         int tries = 0;
-        while (!(vs.valid && cs.valid)) {
+        while (true) {
+            for (Map.Entry<Vehicle.StateType,BaseState> e : vtData.queryStates(needed).entrySet()) {
+                if (e.getValue().valid) { states.put(e.getKey(), e.getValue()); }
+            }
+            needed.removeAll(states.keySet());
+            if (needed.isEmpty()) break;
             if (tries++ > MaxTriesToStart) { return Result.Failed; }
             ThreadManager.get().sleep(5 * 1000);
             if (ThreadManager.get().shuttingDown()) return Result.Failed;
-            if (!vs.valid) vs = v.queryVehicle();
-            if (!cs.valid) cs = v.queryCharge();
         }
         
-        vtVehicle.noteUpdatedState(vs);
-        vtVehicle.noteUpdatedState(cs);
+        vtVehicle.noteUpdatedState(states.get(Vehicle.StateType.Vehicle));
+        vtVehicle.noteUpdatedState(states.get(Vehicle.StateType.Charge));
         return Result.Succeeded;
     }
     
@@ -799,14 +808,18 @@ public class MainController extends BaseController {
     }
     
     private Range<Long> getExportPeriod() {
-        NavigableMap<Long,Row> rows = vtData.getAllLoadedRows();
-        long timestamp = rows.firstKey(); 
+        // Only part of the history may be loaded, so the suggested period
+        // starts with the first stored row rather than the first loaded one
+        long timestamp = vtData.getFirstStoredTime();
+        if (timestamp == Long.MAX_VALUE) {  // Nothing stored, no dates to suggest
+            return DateRangeDialog.getExportPeriod(app.stage);
+        }
         Calendar start = Calendar.getInstance();
         start.setTimeInMillis(timestamp);
         
-        timestamp = rows.lastKey(); 
+        NavigableMap<Long,Row> rows = vtData.getAllLoadedRows();
         Calendar end = Calendar.getInstance();
-        end.setTimeInMillis(timestamp);
+        if (!rows.isEmpty()) end.setTimeInMillis(rows.lastKey());
         
         Range<Long> exportPeriod = DateRangeDialog.getExportPeriod(app.stage, start, end);
         return exportPeriod;
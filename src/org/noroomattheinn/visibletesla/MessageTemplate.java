@@ -8,29 +8,54 @@ package org.noroomattheinn.visibletesla;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import org.noroomattheinn.utils.GeoUtils;
+import org.noroomattheinn.utils.LRUMap;
 import org.noroomattheinn.utils.Utils;
+import org.noroomattheinn.visibletesla.data.GeocodeCache;
 import org.noroomattheinn.visibletesla.vehicle.VTVehicle;
 
 import static org.noroomattheinn.tesla.Tesla.logger;
 
 /**
- * MessageTemplate
+ * MessageTemplate: A message with embedded variables of the form {{NAME}}.
+ * A template is parsed once into an immutable array of components. Use
+ * get() to obtain a shared, compiled template for a given source string.
+ * Templates are immutable and may be used from any thread.
  *
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
 public class MessageTemplate {
     
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ * 
+ *----------------------------------------------------------------------------*/
+    
+    private static final int CacheSize = 64;
+    private static final int MaxRetainedBuilder = 64 * 1024;
+    
+    // What the value of a variable depends on, beyond the units in use.
+    // Other means something, like the time, that makes the message unique.
+    private enum Source { Stream, Charge, Car, App, Other };
+    
 /*------------------------------------------------------------------------------
  *
  * Internal State
  * 
  *----------------------------------------------------------------------------*/
     
-    // The overall message template is represented by a list of MsgComponents
-    private List<MsgComponent> components;
+    private static final LRUMap<String,MessageTemplate> cache = new LRUMap<>(CacheSize);
+    private static final ThreadLocal<StringBuilder> builder = new ThreadLocal<StringBuilder>() {
+        @Override protected StringBuilder initialValue() { return new StringBuilder(256); }
+    };
+    
+    // The overall message template is represented by an array of MsgComponents
+    private final MsgComponent[] components;
+    private final EnumSet<Source> sources = EnumSet.noneOf(Source.class);
     
 /*==============================================================================
  * -------                                                               -------
@@ -38,20 +63,79 @@ public class MessageTemplate {
  * -------                                                               -------
  *============================================================================*/
 
+    /**
+     * Return the compiled template for the given source string. Templates
+     * are cached so repeated use of the same source is not parsed again.
+     * @param format    The source of the template
+     * @return          The compiled template
+     */
+    public static MessageTemplate get(String format) {
+        if (format == null) return new MessageTemplate(null);
+        synchronized (cache) {
+            MessageTemplate mt = cache.get(format);
+            if (mt == null) {
+                mt = new MessageTemplate(format);
+                cache.put(format, mt);
+            }
+            return mt;
+        }
+    }
+    
     public MessageTemplate(String format) {
-        components = new ArrayList<>();
-        if (format == null) {
-            return;
+        components = (format == null) ? new MsgComponent[0] : parse(format);
+        for (MsgComponent mc : components) {
+            if (mc instanceof MsgComponent.VarComponent) {
+                sources.addAll(sourcesOf(((MsgComponent.VarComponent)mc).varName));
+            }
         }
-        parse(format);
+    }
+
+    /**
+     * Return a snapshot of the state that this template's variables read.
+     * State objects are replaced rather than modified when new state arrives,
+     * so if every element of a later snapshot is identical (==) to the
+     * corresponding element of an earlier one, getMessage would produce the
+     * same message (given no context specific values) and a copy of the
+     * earlier message may be used instead.
+     * @return  The snapshot or null if the message depends on something
+     *          else, such as the time, and can't be reused
+     */
+    public Object[] version(AppAPI api, VTVehicle v) {
+        if (sources.contains(Source.Other)) return null;
+        List<Object> version = new ArrayList<>();
+        version.add(this);
+        version.add(v.unitType());
+        if (sources.contains(Source.Stream)) version.add(v.streamState.get());
+        if (sources.contains(Source.Charge)) version.add(v.chargeState.get());
+        if (sources.contains(Source.Car)) {
+            for (Object o : v.carStateVersion()) { version.add(o); }
+            for (Object o : v.carDetailsVersion()) { version.add(o); }
+        }
+        if (sources.contains(Source.App)) {
+            version.add(api.state.get());
+            version.add(api.mode.get());
+        }
+        return version.toArray();
     }
 
     public String getMessage(AppAPI api, VTVehicle v, Map<String,String> contextSpecific) {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = builder.get();
+        sb.setLength(0);
+        appendMessage(sb, api, v, contextSpecific);
+        String message = sb.toString();
+        if (sb.capacity() > MaxRetainedBuilder) { builder.remove(); }
+        return message;
+    }
+
+    /**
+     * Append the filled in template to a StringBuilder
+     */
+    public void appendMessage(
+            StringBuilder sb, AppAPI api, VTVehicle v, Map<String,String> contextSpecific) {
+        Context context = new Context(api, v, contextSpecific);
         for (MsgComponent mc : components) {
-            sb.append(mc.asString(api, v, contextSpecific));
+            mc.appendTo(sb, context);
         }
-        return sb.toString();
     }
 
 /*------------------------------------------------------------------------------
@@ -60,40 +144,95 @@ public class MessageTemplate {
  * 
  *----------------------------------------------------------------------------*/
     
-    private void parse(String input) {
-        while (input != null) {
-            input = next(input);
+    // Must agree with VarComponent.asString
+    private static EnumSet<Source> sourcesOf(String varName) {
+        switch (varName) {
+            case "SPEED": case "SOC": case "LOC": case "HT_LOC":
+            case "ODO": case "HT_ODO": case "HT_SPEEDO":
+                return EnumSet.of(Source.Stream);
+            case "IDEAL": case "RATED": case "ESTIMATED": case "CHARGE_STATE":
+            case "P_CURRENT": case "TIME_TO_FULL": case "C_RATE": case "C_AMP":
+            case "C_VLT": case "C_PWR": case "HT_RATED_G": case "HT_IDEAL_G":
+            case "HT_ESTIMATED_G":
+                return EnumSet.of(Source.Charge);
+            case "HT_SOC_G":
+                return EnumSet.of(Source.Stream, Source.Charge);
+            case "HT_CARVIEW":
+                return EnumSet.of(Source.Car);
+            case "I_STATE": case "I_MODE":
+                return EnumSet.of(Source.App);
+            case "D_UNITS": case "S_UNITS":
+                return EnumSet.noneOf(Source.class);
+            default:    // DATE, TIME, CHARGE_ETA, and context specific values
+                return EnumSet.of(Source.Other);
         }
     }
-    
-    private String next(String input) {
-        if (input == null) return null;
-        if (input.isEmpty()) return null;
+
+    private static MsgComponent[] parse(String input) {
+        List<MsgComponent> parsed = new ArrayList<>();
         int length = input.length();
-        for (int i = 0; i < length; i++) {
+        int start = 0;
+        while (start < length) {
+            start = next(input, start, length, parsed);
+        }
+        return parsed.toArray(new MsgComponent[parsed.size()]);
+    }
+    
+    /**
+     * Parse the next component of the input beginning at start.
+     * @return  The index at which the following component begins
+     */
+    private static int next(String input, int start, int length, List<MsgComponent> parsed) {
+        for (int i = start; i < length; i++) {
             if (input.charAt(i) == '{') {
                 if (i+1 != length && input.charAt(i+1) == '{') {
                     // Matched {{
-                    if (i != 0) {
-                        components.add(new MsgComponent.StrComponent(input.substring(0, i)));
-                        return input.substring(i);
+                    if (i != start) {
+                        parsed.add(new MsgComponent.StrComponent(input.substring(start, i)));
+                        return i;
                     } else {
                         // Search for matching }}
-                        for (int j = i+2; j < length; j++) {
-                            if (input.charAt(j) == '}') {
-                                if (j+1 != length && input.charAt(j+1) == '}') {
-                                    // Founding matching }}
-                                    components.add(new MsgComponent.VarComponent(input.substring(i+2, j)));
-                                    return input.substring(j+2);
-                                }
-                            }
+                        int j = input.indexOf("}}", i+2);
+                        if (j >= 0) {
+                            parsed.add(new MsgComponent.VarComponent(input.substring(i+2, j)));
+                            return j+2;
                         }
                     }
                 }
             }
         }
-        components.add(new MsgComponent.StrComponent(input));
-        return null;
+        parsed.add(new MsgComponent.StrComponent(input.substring(start)));
+        return length;
+    }
+    
+    /**
+     * The values needed while filling in a template. Values that are
+     * expensive to produce, like the address of the car, are computed at
+     * most once and only if the template refers to them.
+     */
+    private static class Context {
+        final AppAPI api;
+        final VTVehicle v;
+        final Map<String,String> contextSpecific;
+        private String address = null;
+        
+        Context(AppAPI api, VTVehicle v, Map<String,String> contextSpecific) {
+            this.api = api;
+            this.v = v;
+            this.contextSpecific = contextSpecific;
+        }
+        
+        String address(double lat, double lng) {
+            if (address == null) {
+                GeocodeCache gc = GeocodeCache.get();
+                address = (gc != null) ? gc.lookup(lat, lng) :
+                        GeoUtils.getAddrForLatLong(String.valueOf(lat), String.valueOf(lng));
+                if (address == null || address.isEmpty()) {
+                    address = String.format("(%s, %s)", lat, lng);
+                }
+            }
+            return address;
+        }
     }
     
 /*------------------------------------------------------------------------------
@@ -103,27 +242,33 @@ public class MessageTemplate {
  *----------------------------------------------------------------------------*/
     
     private static abstract class MsgComponent {
-        abstract String asString(AppAPI api, VTVehicle v, Map<String,String> contextSpecific);
+        abstract void appendTo(StringBuilder sb, Context context);
 
         // A String component is very simple - it's just a literal String
         static class StrComponent extends MsgComponent {
-            public String string;
+            final String string;
             
             StrComponent(String s) { this.string = s; }
             
-            @Override String asString(AppAPI api, VTVehicle v, Map<String,String> cs) {
-                return string;
+            @Override void appendTo(StringBuilder sb, Context context) {
+                sb.append(string);
             }
         }
 
         // A Variable component represents a formatted reading from the car
         static class VarComponent extends MsgComponent {
-            public String varName;
+            final String varName;
 
             VarComponent(String v) { this.varName = v; }
 
-            @Override String asString(
-                    AppAPI api, VTVehicle v, Map<String,String> contextSpecific) {
+            @Override void appendTo(StringBuilder sb, Context context) {
+                sb.append(asString(context));
+            }
+
+            private String asString(Context context) {
+                AppAPI api = context.api;
+                VTVehicle v = context.v;
+                Map<String,String> contextSpecific = context.contextSpecific;
                 String val;
                 switch (varName) {
                     case "SPEED":
@@ -162,12 +307,11 @@ public class MessageTemplate {
                         break;
                     case "LOC":
                     case "HT_LOC":
-                        String lat = String.valueOf(v.streamState.get().estLat);
-                        String lng = String.valueOf(v.streamState.get().estLng);
-                        val = GeoUtils.getAddrForLatLong(lat, lng);
-                        if (val == null || val.isEmpty()) {
-                            val = String.format("(%s, %s)", lat, lng);
-                        }
+                        double estLat = v.streamState.get().estLat;
+                        double estLng = v.streamState.get().estLng;
+                        String lat = String.valueOf(estLat);
+                        String lng = String.valueOf(estLng);
+                        val = context.address(estLat, estLng);
                         if (varName.equals("HT_LOC")) {
                             try {
                                 val = String.format(
@@ -0,0 +1,577 @@
+/*
+ * NotificationService.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 21, 2015
+ */
+package org.noroomattheinn.visibletesla;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.noroomattheinn.metrics.Counter;
+import org.noroomattheinn.metrics.Gauge;
+import org.noroomattheinn.metrics.Histogram;
+import org.noroomattheinn.metrics.Metrics;
+import org.noroomattheinn.utils.MailGun;
+import org.noroomattheinn.utils.ThreadManager;
+import org.noroomattheinn.utils.Utils;
+import org.noroomattheinn.visibletesla.vehicle.VTVehicle;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * NotificationService: Deliver notifications (email, HTTP GET, or external
+ * command) off the threads that detect the conditions being reported. Callers
+ * enqueue and return immediately. Message content is generated by a small
+ * pool of render threads. A dispatcher thread hands ready work to a separate
+ * pool of delivery threads, so slow deliveries never hold up rendering.
+ *
+ * Each destination is sent at most one message per MinSpacing. Emails that
+ * accumulate for a destination in the meantime, or that arrive together
+ * within BatchDelay, are combined into one message. Failed deliveries are
+ * retried with exponential backoff. Anything still undelivered, other than
+ * external commands, is persisted at most once per PersistInterval and picked
+ * up again the next time the app starts.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+class NotificationService implements Runnable, ThreadManager.Stoppable {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final long   BatchDelay = 2 * 1000;          // 2 Seconds
+    private static final long   MinSpacing = 60 * 1000;         // 1 Minute
+    private static final long   InitialBackoff = 30 * 1000;     // 30 Seconds
+    private static final long   MaxBackoff = 60 * 60 * 1000;    // 1 Hour
+    private static final int    MaxAttempts = 8;
+    private static final int    MaxQueued = 500;
+    private static final int    nRenderers = 2;
+    private static final int    nDeliverers = 2;
+    private static final long   PersistInterval = 10 * 1000;    // 10 Seconds
+    private static final long   StopTimeout = 5 * 1000;         // For the dispatcher
+    private static final int    HTTPTimeout = 5 * 1000;
+    private static final long   CommandTimeout = 60 * 1000;
+    private static final String StoreName = "notifications.queue";
+
+    private enum Kind {Mail, HTTP, Command}
+
+    /**
+     * The content of a notification. It is produced on a worker thread as soon
+     * as the notification is queued since it may require network access
+     * (e.g. to look up an address).
+     */
+    interface Content {
+        String subject();
+        String body();
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final Gson gson = new Gson();
+
+    private final File storeFile, tempFile;
+    private final List<Notification> pending = new ArrayList<>();
+    private final Map<String,Long> lastSent = new HashMap<>();
+    private final List<Notification> delivering = new ArrayList<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private final ExecutorService renderers, deliverers;
+    private volatile boolean dirty = false;
+    private long persistAt = 0;
+    private final Object persistLock = new Object();    // One writer of the store at a time
+    private boolean stopped = false;                    // Guarded by persistLock
+    private final CountDownLatch dispatcherDone = new CountDownLatch(1);
+
+    private final Histogram deliveryTime = Metrics.get().histogram(
+            "notification_delivery_seconds", "Time taken to deliver a notification or batch");
+    private final Counter discarded = Metrics.get().counter(
+            "notification_dropped_total", "Notifications discarded before delivery was tried");
+    private final Counter abandoned = Metrics.get().counter(
+            "notification_abandoned_total", "Notifications given up on after MaxAttempts failures");
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    NotificationService(File container) {
+        this.storeFile = new File(container, StoreName);
+        this.tempFile = new File(container, StoreName + ".tmp");
+        this.renderers = Executors.newFixedThreadPool(nRenderers, daemonThreads("NotificationRender"));
+        this.deliverers = Executors.newFixedThreadPool(nDeliverers, daemonThreads("NotificationDelivery"));
+
+        Metrics.get().gauge("notification_queue_depth", "Notifications waiting to be delivered",
+                new Gauge.Source() {
+                    @Override public double value() {
+                        synchronized (NotificationService.this) { return pending.size(); }
+                    }
+                });
+
+        load();
+        ThreadManager.get().addStoppable((ThreadManager.Stoppable)this);
+        ThreadManager.get().launch((Runnable)this, "NotificationDispatcher");
+    }
+
+    /**
+     * Send a notification to the destination described by a MessageTarget.
+     * The destination may be an email address, an http(s) URL, or an external
+     * command of the form "command:path". The templates are filled in on a
+     * render thread.
+     * @param target            Where and what to send
+     * @param api               Used to fill in the templates
+     * @param v                 Used to fill in the templates
+     * @param contextSpecific   Trigger specific values for the templates
+     * @return                  The outcome of the delivery. It is true once
+     *                          the notification has been sent and false if it
+     *                          was dropped or given up on. Most callers can
+     *                          ignore it.
+     */
+    ListenableFuture<Boolean> send(
+            final MessageTarget target, final AppAPI api, final VTVehicle v,
+            final Map<String,String> contextSpecific) {
+        String addr = target.getActiveEmail();
+        final boolean isCommand = addr != null && kindOf(addr) == Kind.Command;
+        return enqueue(addr, new Content() {
+            @Override public String subject() {
+                // A command uses the subject as its arguments. Don't supply
+                // the default subject if none was specified.
+                String s = isCommand ? target.getSubject() : target.getActiveSubj();
+                return s == null ? null :
+                        MessageTemplate.get(s).getMessage(api, v, contextSpecific);
+            }
+            @Override public String body() {
+                String s = isCommand ? target.getMessage() : target.getActiveMsg();
+                return s == null ? null :
+                        MessageTemplate.get(s).getMessage(api, v, contextSpecific);
+            }
+        });
+    }
+
+    /**
+     * Send a notification whose content is already known.
+     * @param addr      The destination. See send(MessageTarget, ...)
+     * @param subject   The subject of the message
+     * @param body      The body of the message. If null, the message consists
+     *                  of the subject only.
+     * @return          The outcome of the delivery. See send(MessageTarget, ...)
+     */
+    ListenableFuture<Boolean> send(String addr, final String subject, final String body) {
+        return enqueue(addr, new Content() {
+            @Override public String subject() { return subject; }
+            @Override public String body() { return body; }
+        });
+    }
+
+    /**
+     * Stop sending and save what hasn't been sent. The dispatcher is given a
+     * chance to finish first so that it can't write an older snapshot over
+     * this one.
+     */
+    @Override public void stop() {
+        synchronized (this) { notifyAll(); }
+        renderers.shutdown();
+        deliverers.shutdown();
+        try {
+            if (!dispatcherDone.await(StopTimeout, TimeUnit.MILLISECONDS)) {
+                logger.warning("Notification dispatcher didn't stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        persist(true);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Queue management
+ *
+ *----------------------------------------------------------------------------*/
+
+    private synchronized ListenableFuture<Boolean> enqueue(String addr, Content content) {
+        if (addr == null || addr.isEmpty()) {
+            logger.warning("Notification dropped, no destination specified");
+            discarded.inc();
+            return Futures.immediateFuture(false);
+        }
+        if (pending.size() >= MaxQueued) {
+            Notification dropped = pending.remove(0);
+            logger.warning("Notification queue full, dropping: " + dropped.subject);
+            discarded.inc();
+            dropped.finished(false);
+        }
+        Notification n = new Notification();
+        n.kind = kindOf(addr);
+        n.addr = addr;
+        n.created = n.nextAttempt = System.currentTimeMillis();
+        n.content = content;
+        n.outcome = SettableFuture.create();
+        pending.add(n);
+        dirty = true;
+        notifyAll();
+
+        // Capture the content now rather than when the message is finally
+        // sent, which may be much later if the destination is rate limited.
+        final Notification toRender = n;
+        renderers.submit(new Runnable() {
+            @Override public void run() {
+                try { toRender.render(); }
+                catch (Exception e) { logger.warning("Problem generating notification: " + e); }
+                synchronized (NotificationService.this) {
+                    dirty = true;
+                    NotificationService.this.notifyAll();
+                }
+            }
+        });
+        return n.outcome;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static Kind kindOf(String addr) {
+        // Don't muck with the original addr. URLs are case sensitive
+        String lower = addr.toLowerCase();
+        if (lower.startsWith("http://") || lower.startsWith("https://")) return Kind.HTTP;
+        if (lower.startsWith("command:")) return Kind.Command;
+        return Kind.Mail;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - The body of the dispatcher thread
+ *
+ *----------------------------------------------------------------------------*/
+
+    @Override public void run() {
+        try {
+            dispatch();
+        } finally {
+            dispatcherDone.countDown();
+        }
+    }
+
+    private void dispatch() {
+        while (!ThreadManager.get().shuttingDown()) {
+            List<List<Notification>> ready;
+            synchronized (this) {
+                long wakeAt;
+                while ((ready = takeReady(System.currentTimeMillis())).isEmpty()) {
+                    if (persistDue()) break;
+                    if (ThreadManager.get().shuttingDown()) return;
+                    wakeAt = nextWakeup();
+                    if (dirty) wakeAt = Math.min(wakeAt, persistAt);
+                    long delay = wakeAt - System.currentTimeMillis();
+                    try { wait(Math.max(delay, 1)); }
+                    catch (InterruptedException e) { return; }
+                }
+            }
+            // Changes are written in batches rather than as each one happens
+            if (persistDue()) {
+                persistAt = System.currentTimeMillis() + PersistInterval;
+                persist(false);
+            }
+            for (final List<Notification> batch : ready) {
+                deliverers.submit(new Runnable() {
+                    @Override public void run() { deliver(batch); }
+                });
+            }
+        }
+    }
+
+    private boolean persistDue() {
+        return dirty && System.currentTimeMillis() >= persistAt;
+    }
+
+    /**
+     * Remove and return the batches that may be sent now. A batch is all of
+     * the ready notifications for one destination. Only Mail is combined;
+     * other kinds are sent one at a time.
+     */
+    private List<List<Notification>> takeReady(long now) {
+        List<List<Notification>> ready = new ArrayList<>();
+        Map<String,List<Notification>> byAddr = new HashMap<>();
+        for (Iterator<Notification> it = pending.iterator(); it.hasNext(); ) {
+            Notification n = it.next();
+            if (inFlight.contains(n.addr) || !isReady(n, now)) continue;
+            List<Notification> batch = byAddr.get(n.addr);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                byAddr.put(n.addr, batch);
+                ready.add(batch);
+            } else if (n.kind != Kind.Mail) {
+                continue;
+            }
+            batch.add(n);
+            it.remove();
+            delivering.add(n);
+        }
+        inFlight.addAll(byAddr.keySet());
+        return ready;
+    }
+
+    private boolean isReady(Notification n, long now) {
+        Long last = lastSent.get(n.addr);
+        if (last != null && now - last < MinSpacing) return false;
+        if (n.kind == Kind.Mail && now - n.created < BatchDelay) return false;
+        return n.nextAttempt <= now;
+    }
+
+    private long nextWakeup() {
+        long wakeAt = Long.MAX_VALUE;
+        for (Notification n : pending) {
+            if (inFlight.contains(n.addr)) continue;
+            long at = n.nextAttempt;
+            if (n.kind == Kind.Mail) at = Math.max(at, n.created + BatchDelay);
+            Long last = lastSent.get(n.addr);
+            if (last != null) at = Math.max(at, last + MinSpacing);
+            wakeAt = Math.min(wakeAt, at);
+        }
+        return wakeAt == Long.MAX_VALUE ? System.currentTimeMillis() + MinSpacing : wakeAt;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Delivery. Runs on the delivery threads.
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void deliver(List<Notification> batch) {
+        String addr = batch.get(0).addr;
+        boolean sent = false;
+        long began = System.nanoTime();
+        try {
+            for (Notification n : batch) { n.render(); }
+            switch (batch.get(0).kind) {
+                case Mail: sent = sendMail(addr, batch); break;
+                case HTTP: sent = httpGet(addr); break;
+                case Command: sent = launchCommand(addr, batch.get(0)); break;
+            }
+        } catch (Exception e) {
+            logger.warning("Problem delivering notification to " + addr + ": " + e);
+        }
+        deliveryTime.time(began);
+        Kind kind = batch.get(0).kind;
+        if (sent) {
+            Metrics.get().counter("notification_sent_total", "Notifications delivered",
+                    "kind", kind.name()).inc(batch.size());
+        } else {
+            Metrics.get().counter("notification_failures_total", "Failed attempts to deliver a notification",
+                    "kind", kind.name()).inc(batch.size());
+        }
+
+        synchronized (this) {
+            inFlight.remove(addr);
+            delivering.removeAll(batch);
+            lastSent.put(addr, System.currentTimeMillis());
+            if (sent) {
+                for (Notification n : batch) { n.finished(true); }
+            } else {
+                scheduleRetry(batch);
+            }
+            dirty = true;
+            notifyAll();
+        }
+    }
+
+    private void scheduleRetry(List<Notification> batch) {
+        for (Notification n : batch) {
+            n.attempts++;
+            if (n.kind == Kind.Command) {
+                // Commands have side effects so they are never retried
+                n.finished(false);
+                continue;
+            }
+            if (n.attempts >= MaxAttempts) {
+                logger.warning("Giving up on notification to " + n.addr + ": " + n.subject);
+                abandoned.inc();
+                n.finished(false);
+                continue;
+            }
+            long backoff = Math.min(MaxBackoff, InitialBackoff << (n.attempts - 1));
+            n.nextAttempt = System.currentTimeMillis() + backoff;
+            pending.add(n);
+        }
+    }
+
+    private boolean sendMail(String addr, List<Notification> batch) {
+        Notification first = batch.get(0);
+        if (batch.size() == 1) {
+            return (first.body == null) ?
+                MailGun.get().send(addr, first.subject) :
+                MailGun.get().send(addr, first.subject, first.body);
+        }
+        StringBuilder body = new StringBuilder();
+        for (Notification n : batch) {
+            if (body.length() != 0) body.append("\n\n");
+            body.append(n.body == null ? n.subject : n.body);
+        }
+        String subject = String.format("%s (+%d more)", first.subject, batch.size() - 1);
+        logger.info("Combined " + batch.size() + " notifications to " + addr);
+        return MailGun.get().send(addr, subject, body.toString());
+    }
+
+    private boolean httpGet(String urlString) throws IOException {
+        logger.info("Notification HTTP GET: " + urlString);
+        URL url = new URL(urlString);
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(HTTPTimeout);
+        connection.setReadTimeout(HTTPTimeout);
+        if (url.getUserInfo() != null) {
+            String basicAuth = "Basic " + Utils.toB64(url.getUserInfo().getBytes());
+            connection.setRequestProperty("Authorization", basicAuth);
+        }
+        if (connection instanceof HttpURLConnection) {
+            // Only server errors are worth retrying
+            int code = ((HttpURLConnection)connection).getResponseCode();
+            ((HttpURLConnection)connection).disconnect();
+            if (code >= 400) logger.warning("Notification HTTP GET returned " + code);
+            return code < 500;
+        }
+        connection.getInputStream().close();
+        return true;
+    }
+
+    private boolean launchCommand(String addr, Notification n) {
+        String command = StringUtils.remove(addr, "command:");
+        ThreadManager.get().launchExternal(command, n.subject, n.body, CommandTimeout);
+        logger.info("Executing external command for notification: " + command);
+        return true;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Persistence of undelivered notifications
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * Write out everything that hasn't been delivered, including notifications
+     * that are being delivered right now. External commands are left out.
+     * They have side effects, so one that may already have run must not be
+     * run again after a restart.
+     *
+     * Writers are serialized so that they can't interleave in the temp file,
+     * and once the final snapshot has been written nothing replaces it.
+     * @param renderAll If true, generate the content of notifications that
+     *                  have not reached a worker yet so they are saved too.
+     *                  This is only done at shutdown since it may be slow.
+     *                  It is the final snapshot.
+     */
+    private void persist(boolean renderAll) {
+        synchronized (persistLock) {
+            if (stopped) return;
+            if (renderAll) stopped = true;
+            write(renderAll);
+        }
+    }
+
+    private void write(boolean renderAll) {
+        List<Notification> toStore = new ArrayList<>();
+        synchronized (this) {
+            dirty = false;
+            toStore.addAll(delivering);
+            toStore.addAll(pending);
+        }
+        for (Iterator<Notification> it = toStore.iterator(); it.hasNext(); ) {
+            Notification n = it.next();
+            if (n.kind == Kind.Command) it.remove();
+            else if (renderAll) n.render();
+            else if (!n.isRendered()) it.remove();
+        }
+        try {
+            Files.write(tempFile.toPath(), gson.toJson(toStore).getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), storeFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Unable to persist notification queue: " + e);
+        }
+    }
+
+    private void load() {
+        if (!storeFile.exists()) return;
+        try {
+            String json = new String(Files.readAllBytes(storeFile.toPath()), StandardCharsets.UTF_8);
+            Notification[] stored = gson.fromJson(json, Notification[].class);
+            if (stored == null) return;
+            for (Notification n : stored) {
+                if (n.addr == null || n.kind == null || n.kind == Kind.Command) continue;
+                n.rendered = true;
+                pending.add(n);
+            }
+            if (!pending.isEmpty()) {
+                logger.info("Restored " + pending.size() + " undelivered notifications");
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Unable to load notification queue: " + e);
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - A single queued notification
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static class Notification {
+        Kind    kind;
+        String  addr;
+        String  subject, body;
+        long    created, nextAttempt;
+        int     attempts;
+        transient Content content;
+        transient boolean rendered;
+        transient SettableFuture<Boolean> outcome;     // null once restored
+
+        void finished(boolean delivered) {
+            if (outcome != null) outcome.set(delivered);
+        }
+
+        synchronized boolean isRendered() { return rendered; }
+
+        synchronized void render() {
+            if (rendered) return;
+            subject = content.subject();
+            body = content.body();
+            content = null;
+            rendered = true;
+        }
+    }
+}
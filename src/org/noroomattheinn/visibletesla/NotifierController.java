@@ -6,13 +6,13 @@
 
 package org.noroomattheinn.visibletesla;
 
-import java.io.IOException;
+import java.io.File;
 import java.math.BigDecimal;
-import java.net.URL;
-import java.net.URLConnection;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import javafx.beans.property.ObjectProperty;
@@ -27,18 +27,16 @@ import javafx.scene.control.Label;
 import javafx.scene.control.RadioButton;
 import javafx.scene.control.Slider;
 import jfxtras.labs.scene.control.BigDecimalField;
-import org.apache.commons.lang3.StringUtils;
 import org.noroomattheinn.tesla.ChargeState;
 import org.noroomattheinn.tesla.StreamState;
 import org.noroomattheinn.tesla.Vehicle;
 import org.noroomattheinn.utils.GeoUtils;
-import org.noroomattheinn.utils.MailGun;
-import org.noroomattheinn.utils.ThreadManager;
 import org.noroomattheinn.utils.Utils;
 import org.noroomattheinn.visibletesla.dialogs.ChooseLocationDialog;
 import org.noroomattheinn.visibletesla.dialogs.NotifyOptionsDialog;
 import org.noroomattheinn.visibletesla.trigger.DeviationTrigger;
 import org.noroomattheinn.visibletesla.trigger.GenericTrigger;
+import org.noroomattheinn.visibletesla.trigger.GeofenceEngine;
 import org.noroomattheinn.visibletesla.trigger.StationaryTrigger;
 
 import static org.noroomattheinn.tesla.Tesla.logger;
@@ -92,6 +90,7 @@ public class NotifierController extends BaseController {
     private static final String NotifySOCFallsKey = "NOTIFY_SOC_FALLS";
     private static final String NotifyEnterKey = "NOTIFY_ENTER_AREA";
     private static final String NotifyLeftKey = "NOTIFY_LEFT_AREA";
+    private static final String NotifyGeofenceKey = "NOTIFY_GEOFENCE";
     private static final String NotifyOdoKey = "NOTIFY_ODO";
     private static final String OdoCheckKey = "LAST_ODO_CHECK";
     
@@ -158,6 +157,11 @@ public class NotifierController extends BaseController {
     
     private GeoTrigger[]        geoTriggers = new GeoTrigger[8];
     
+    // All areas, including those defined by geoTriggers, are evaluated by the
+    // GeofenceEngine. Areas beyond the fixed slots come from a per-vehicle file
+    private final GeofenceEngine geofences = new GeofenceEngine();
+    private final Map<String,MessageTarget> fenceTargets = new HashMap<>();
+    
     // Charge Anomoly Triggers
     private DeviationTrigger    ccTrigger;
     private DeviationTrigger    pcTrigger;
@@ -424,6 +428,10 @@ public class NotifierController extends BaseController {
                 gt.messageTarget = new MessageTarget(
                         prefs, vinKey("MT_"+NotifyLeftKey+i), LeftAreaSubj, LeftAreaMsg);
             }
+            for (int i = 0; i < geoTriggers.length; i++) {
+                trackGeoTrigger(i);
+            }
+            loadGeofences();
             for (final GeoTrigger g : geoTriggers) {
                 String name = g.prop.get().name;
                 if (name != null && !name.isEmpty()) { g.enabled.setText(name); }
@@ -602,10 +610,17 @@ public class NotifierController extends BaseController {
                 }
             }
             
-            GeoUtils.CircularArea curLoc = new GeoUtils.CircularArea(cur.estLat, cur.estLng, 0, "Current Location");
-            for (GeoTrigger g : geoTriggers) {
-                if (g.trigger.evalPredicate(curLoc)) {
-                    notifyUser(g.trigger, g.messageTarget);
+            List<GeofenceEngine.Transition> transitions =
+                    geofences.update(cur.estLat, cur.estLng, cur.timestamp);
+            if (!transitions.isEmpty()) {
+                GeoUtils.CircularArea curLoc = new GeoUtils.CircularArea(
+                        cur.estLat, cur.estLng, 0, "Current Location");
+                for (GeofenceEngine.Transition t : transitions) {
+                    Map<String,String> contextSpecific = Utils.newHashMap(
+                        "CUR", areaHelper.formatted(curLoc),
+                        "TARGET", areaHelper.formatted(t.fence.area));
+                    notifyUser(contextSpecific, fenceTargets.get(
+                            t.fence.id + (t.entered ? ":enter" : ":leave")));
                 }
             }
 
@@ -632,28 +647,8 @@ public class NotifierController extends BaseController {
     };
 
     private void notifyUser(Map<String,String> contextSpecific, MessageTarget target) {
-        String addr = target.getActiveEmail();
-        String lower = addr.toLowerCase();  // Don't muck with the original addr.
-                                            // URLs are case sensitive
-        if (lower.startsWith("http://") || lower.startsWith("https://")) {
-            (new HTTPAsyncGet(addr)).exec();
-        } if (lower.startsWith("command:")) {
-            String command = StringUtils.remove(addr, "command:");
-            String args = target.getSubject();
-            if (args != null) args = (new MessageTemplate(args)).getMessage(
-                    app.api, vtVehicle, contextSpecific);
-            String stdin = target.getMessage();
-            if (stdin != null) stdin = (new MessageTemplate(stdin)).getMessage(
-                    app.api, vtVehicle, contextSpecific);
-            ThreadManager.get().launchExternal(command, args, stdin, 60 * 1000);
-            logger.info("Executing external command for notification: " + command);
-        } else {
-            MessageTemplate mt = new MessageTemplate(target.getActiveMsg());
-            MessageTemplate st = new MessageTemplate(target.getActiveSubj());
-            MailGun.get().send(
-                addr, st.getMessage(app.api, vtVehicle, contextSpecific),
-                mt.getMessage(app.api, vtVehicle, contextSpecific));
-        }
+        // Delivery happens in the background. Never block trigger evaluation
+        app.notifications.send(target, app.api, vtVehicle, contextSpecific);
     }
     
     private void notifyUser(GenericTrigger t, MessageTarget target) {
@@ -663,6 +658,75 @@ public class NotifierController extends BaseController {
         notifyUser(contextSpecific, target);
     }
 
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Methods for managing the geofences
+ * 
+ *----------------------------------------------------------------------------*/
+    
+    /**
+     * Keep the GeofenceEngine in sync with one of the fixed slots in the UI.
+     * Slots 0-3 report entering their area, 4-7 report leaving it.
+     */
+    private void trackGeoTrigger(int slot) {
+        final GeoTrigger g = geoTriggers[slot];
+        final boolean isEnter = slot < 4;
+        final String id = "slot" + slot;
+        fenceTargets.put(id + (isEnter ? ":enter" : ":leave"), g.messageTarget);
+        
+        final Runnable sync = new Runnable() {
+            @Override public void run() {
+                if (g.enabled.isSelected()) {
+                    geofences.put(new GeofenceEngine.Geofence(
+                            id, g.prop.get(), isEnter, !isEnter, GeoDebounce));
+                } else {
+                    geofences.remove(id);
+                }
+            }
+        };
+        g.prop.addListener(new ChangeListener<GeoUtils.CircularArea>() {
+            @Override public void changed(ObservableValue<? extends GeoUtils.CircularArea> ov,
+                    GeoUtils.CircularArea t, GeoUtils.CircularArea t1) { sync.run(); }
+        });
+        g.enabled.selectedProperty().addListener(new ChangeListener<Boolean>() {
+            @Override public void changed(ObservableValue<? extends Boolean> ov,
+                    Boolean t, Boolean t1) { sync.run(); }
+        });
+        sync.run();
+    }
+    
+    /**
+     * Load any additional geofences from <VIN>.geofences.txt in the application
+     * files folder. See GeofenceEngine.load for the format. Each fence has its
+     * own MessageTargets for entering and leaving, so its notifications name
+     * the fence and can go to the address given for it in the file.
+     */
+    private void loadGeofences() {
+        File f = new File(app.appFileFolder(),
+                vtVehicle.getVehicle().getVIN() + ".geofences.txt");
+        List<GeofenceEngine.Geofence> loaded = GeofenceEngine.load(f);
+        if (loaded.isEmpty()) return;
+        
+        for (GeofenceEngine.Geofence fence : loaded) {
+            geofences.put(fence);
+            fenceTargets.put(fence.id + ":enter", fenceTarget(fence, "_ENTER", EnterAreaSubj, EnterAreaMsg));
+            fenceTargets.put(fence.id + ":leave", fenceTarget(fence, "_LEAVE", LeftAreaSubj, LeftAreaMsg));
+        }
+        logger.info("Loaded " + loaded.size() + " geofences from " + f.getName());
+    }
+    
+    private MessageTarget fenceTarget(
+            GeofenceEngine.Geofence fence, String suffix, String subj, String msg) {
+        // Preference keys are limited in length, so use a hash of the name
+        String key = vinKey(String.format("MT_%s_%08x%s",
+                NotifyGeofenceKey, fence.area.name.hashCode(), suffix));
+        MessageTarget target = new MessageTarget(prefs, key, subj, msg);
+        if (target.getEmail() == null && fence.address != null) {
+            target.setEmail(fence.address);
+        }
+        return target;
+    }
+    
     private void bindBidrectional(final BigDecimalField bdf, final Slider slider) {
         bdf.setFormat(new DecimalFormat("##0.0"));
         bdf.setStepwidth(BigDecimal.valueOf(0.5));
@@ -686,44 +750,6 @@ public class NotifierController extends BaseController {
             }
         });
     }
-
-    private static class HTTPAsyncGet implements Runnable {
-        private static final int timeout = 5 * 1000;
-        
-        private URLConnection connection;
-        
-        HTTPAsyncGet(String urlString) {
-            try {
-                logger.info("HTTPAsyncGet new with url: " + urlString);
-                URL url = new URL(urlString);
-                
-                connection = url.openConnection();
-                connection.setConnectTimeout(timeout);
-                if (url.getUserInfo() != null) {
-                    String basicAuth = "Basic " +  encode(url.getUserInfo().getBytes());
-                    connection.setRequestProperty("Authorization", basicAuth);
-                }
-            } catch (IOException ex) {
-                logger.warning("Problem with URL: " + ex);
-            }
-        }
-        
-        void exec() {
-            logger.info("HTTPAsyncGet exec with url: " + connection.getURL());
-            ThreadManager.get().launch(this, "HTTPAsyncGet");
-        }
-        
-        @Override public void run() {
-            try {
-                logger.info("HTTPAsyncGet run with url: " + connection.getURL());
-                connection.getInputStream();
-            } catch (IOException ex) {
-                logger.warning("Problem with HTTP Get: " + ex);
-            }
-        }
-        
-        private String encode(byte[] bytes) { return Utils.toB64(bytes); }
-    }
     
 /*------------------------------------------------------------------------------
  *
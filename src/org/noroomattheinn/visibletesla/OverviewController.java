@@ -6,10 +6,10 @@
 
 package org.noroomattheinn.visibletesla;
 
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.event.ActionEvent;
@@ -206,8 +206,7 @@ public class OverviewController extends BaseController {
      * 
      */
     @Override protected void refresh() {
-        updateState(Vehicle.StateType.Vehicle);
-        updateState(Vehicle.StateType.Charge);
+        updateStates(EnumSet.of(Vehicle.StateType.Vehicle, Vehicle.StateType.Charge));
     }
     
     @Override protected void initializeState() {
@@ -227,28 +226,16 @@ public class OverviewController extends BaseController {
             }
         });
 
-        vtVehicle.vehicleState.addTracker(new Runnable() {
-            @Override public void run() {
-                Platform.runLater(new Runnable() {
-                    @Override public void run() { updateVehicleState(); }
-                });
-            }
+        App.addTracker(vtVehicle.vehicleState, new Runnable() {
+            @Override public void run() { updateVehicleState(); }
         });
-        vtVehicle.chargeState.addTracker(new Runnable() {
-            @Override public void run() {
-                Platform.runLater(new Runnable() {
-                    @Override public void run() { updateChargePort(); updateRange(); }
-                });
-            }
+        App.addTracker(vtVehicle.chargeState, new Runnable() {
+            @Override public void run() { updateChargePort(); updateRange(); }
         });
-        vtVehicle.streamState.addTracker(new Runnable() {
+        App.addTracker(vtVehicle.streamState, new Runnable() {
             @Override public void run() {
-                Platform.runLater(new Runnable() {
-                    @Override public void run() {
-                        updateOdometer();
-                        updateShiftState();
-                    }
-                });
+                updateOdometer();
+                updateShiftState();
             }
         });
         
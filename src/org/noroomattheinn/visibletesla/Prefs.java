@@ -39,10 +39,11 @@ public class Prefs {
  * Constants and Enums
  * 
  *----------------------------------------------------------------------------*/
-    public enum LoadPeriod {Last7, Last14, Last30, ThisWeek, ThisMonth, All, None};
+    public enum LoadPeriod {Last1, Last7, Last14, Last30, ThisWeek, ThisMonth, All, None};
     
     public static final BiMap<String,LoadPeriod> nameToLoadPeriod = HashBiMap.create();
     static {
+        nameToLoadPeriod.put("Last day", LoadPeriod.Last1);
         nameToLoadPeriod.put("Last 7 days", LoadPeriod.Last7);
         nameToLoadPeriod.put("Last 14 days", LoadPeriod.Last14);
         nameToLoadPeriod.put("Last 30 days", LoadPeriod.Last30);
@@ -123,6 +124,8 @@ public class Prefs {
     public IntegerProperty  fontScale               = new SimpleIntegerProperty();
     public BooleanProperty  enableRest              = new SimpleBooleanProperty();
     public IntegerProperty  restPort                = new SimpleIntegerProperty();
+    public IntegerProperty  restThreads             = new SimpleIntegerProperty();
+    public BooleanProperty  restVirtualThreads      = new SimpleBooleanProperty();
     public StringProperty   authCode                = new SimpleStringProperty();
     public StringProperty   customURLSource         = new SimpleStringProperty();
     public StringProperty   logLevel                = new SimpleStringProperty();
@@ -137,6 +140,8 @@ public class Prefs {
     private static final String CustomNumerousKey   = "APP_CUSTOM_NUMKEY";
     private static final String FontScaleKey        = "APP_FONT_SCALE";
     private static final String RestPortKey         = "APP_REST_PORT";
+    private static final String RestThreadsKey      = "APP_REST_THREADS";
+    private static final String RestVirtualKey      = "APP_REST_VIRTUAL_THREADS";
     private static final String EnableRestKey       = "APP_ENABLE_REST";
     private static final String AuthCodeKey         = "APP_AUTH_CODE";
     private static final String CustomURLKey        = "APP_CUSTOM_URL";
@@ -183,7 +188,10 @@ public class Prefs {
                 dataOptions.loadPeriod.set(period);
             }
         });
-        stringPref(LoadPeriodKey, loadPeriod, LoadPeriod.All.name());
+        // The Graphs tab loads older data as it's scrolled to, and nothing
+        // else needs more than the last day in memory, so that's all that's
+        // loaded at startup
+        stringPref(LoadPeriodKey, loadPeriod, nameToLoadPeriod.inverse().get(LoadPeriod.Last1));
 
         // ----- Advanced Preferences
         booleanPref(OfferExpKey, offerExperimental, false);
@@ -198,6 +206,8 @@ public class Prefs {
         integerPref(FontScaleKey, fontScale, 100);
         booleanPref(EnableRestKey, enableRest, false);
         integerPref(RestPortKey, restPort, 9090);
+        integerPref(RestThreadsKey, restThreads, 8);
+        booleanPref(RestVirtualKey, restVirtualThreads, true);
         stringPref(CustomURLKey, customURLSource, "");
         stringPref(LogLevelKey, logLevel, "Info");
         
@@ -230,6 +240,9 @@ public class Prefs {
             case None:
                 range = Range.closed(now + 1000, now + 1000L); // Empty Range
                 break;
+            case Last1:
+                range = Range.closed(now - (24 * 60 * 60 * 1000L), now);
+                break;
             case Last7:
                 range = Range.closed(now - (7 * 24 * 60 * 60 * 1000L), now);
                 break;
@@ -310,12 +323,16 @@ public class Prefs {
     private static final String LocStreamMore = "LOC_STREAM_MORE";
     private static final String LocMinTime = "LOC_MIN_TIME";
     private static final String LocMinDist = "LOC_MIN_DIST";
+    private static final String PollMinInterval = "POLL_MIN_INTERVAL";
+    private static final String PollMaxInterval = "POLL_MAX_INTERVAL";
     
     private void loadLocationPrefs() {
         booleanPref(LocCollectData, collectLocationData, true);
         booleanPref(LocStreamMore, dataOptions.streamWhenPossible, true);
         integerPref(LocMinTime, dataOptions.locMinTime, 5); // 5 Seconds
         integerPref(LocMinDist, dataOptions.locMinDist, 5); // 5 Meters
+        integerPref(PollMinInterval, dataOptions.minPollInterval, 30);      // 30 Seconds
+        integerPref(PollMaxInterval, dataOptions.maxPollInterval, 10 * 60); // 10 Minutes
     }
     
 
@@ -57,6 +57,8 @@ public class PrefsController extends BaseController {
     @FXML private Label         fontScale;
     @FXML private CheckBox      enableRest;
     @FXML private TextField     restPort;
+    @FXML private TextField     restThreads;
+    @FXML private CheckBox      restVirtualThreads;
     @FXML private PasswordField authCode;
     @FXML private TextField     customURLSrc;
     @FXML private ComboBox<String> overviewRange;
@@ -174,6 +176,8 @@ public class PrefsController extends BaseController {
         bindToIntegerProperty(fontScaleSlider, fontScale, prefs.fontScale);
         bindToCheckBox(enableRest, prefs.enableRest);
         bindToTextField(restPort, prefs.restPort);
+        bindToTextField(restThreads, prefs.restThreads);
+        bindToCheckBox(restVirtualThreads, prefs.restVirtualThreads);
         bindToTextField(customURLSrc, prefs.customURLSource);
         bindToComboBox(logLevel, prefs.logLevel);
 
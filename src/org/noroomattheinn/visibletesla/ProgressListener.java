@@ -12,6 +12,7 @@ import java.util.prefs.Preferences;
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.scene.control.ProgressIndicator;
+import org.noroomattheinn.metrics.ExecutorMetrics;
 import org.noroomattheinn.utils.Executor;
 import org.noroomattheinn.utils.MailGun;
 
@@ -74,6 +75,8 @@ class ProgressListener implements Executor.FeedbackListener {
     }
 
     @Override public void completionHistogram(String type, Map<Integer, Integer> histogram) {
+        ExecutorMetrics.tries(type, histogram);
+        
         StringBuilder sb = new StringBuilder();
         // Format of the submission is JSON:
         // {"uuid":"XYZ123","type":"Charge","stats":[[-3,1],[0,1000],[1,4],[2,1]],
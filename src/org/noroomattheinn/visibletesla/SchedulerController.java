@@ -11,6 +11,10 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.prefs.Preferences;
 import javafx.collections.ObservableList;
@@ -22,7 +26,6 @@ import javafx.scene.layout.GridPane;
 import org.noroomattheinn.tesla.ChargeState;
 import org.noroomattheinn.tesla.Result;
 import org.noroomattheinn.tesla.Vehicle;
-import org.noroomattheinn.utils.MailGun;
 import org.noroomattheinn.utils.ThreadManager;
 import org.noroomattheinn.utils.ThreadManager.Stoppable;
 import org.noroomattheinn.visibletesla.ScheduleItem.Command;
@@ -38,6 +41,7 @@ public class SchedulerController extends BaseController
     implements ScheduleItem.ScheduleOwner, Stoppable {
 
     private static final int Safe_Threshold = 25;
+    private static final long MessageTimeout = 90 * 1000;   // Longer than the rate limit
     
 /*------------------------------------------------------------------------------
  *
@@ -137,20 +141,25 @@ public class SchedulerController extends BaseController
     }
     
     private Result sendMessage(MessageTarget messageTarget) {
+        Future<Boolean> outcome;
         if (messageTarget == null) {
-            MailGun.get().send(
+            outcome = app.notifications.send(
                 prefs.notificationAddress.get(),
                 "No subject was specified",
                 "No body was specified");
-            return Result.Succeeded;
+        } else {
+            outcome = app.notifications.send(messageTarget, app.api, vtVehicle, null);
+        }
+        // Scheduled items run on their own threads so it's fine to wait for
+        // the outcome. The wait allows for the destination's rate limit.
+        try {
+            return outcome.get(MessageTimeout, TimeUnit.MILLISECONDS) ?
+                    Result.Succeeded : new Result(false, "message could not be delivered");
+        } catch (TimeoutException e) {
+            return new Result(true, "Message queued, delivery still pending");
+        } catch (InterruptedException | ExecutionException e) {
+            return new Result(false, "message delivery interrupted");
         }
-        MessageTemplate body = new MessageTemplate(messageTarget.getActiveMsg());
-        MessageTemplate subj = new MessageTemplate(messageTarget.getActiveSubj());
-        boolean sent = MailGun.get().send(
-            messageTarget.getActiveEmail(),             // To
-            subj.getMessage(app.api, vtVehicle, null),      // Subject
-            body.getMessage(app.api, vtVehicle, null));     // Body
-        return sent ? Result.Succeeded : Result.Failed;
     } 
     
     private boolean requiresSafeMode(ScheduleItem.Command command) {
@@ -194,14 +203,14 @@ public class SchedulerController extends BaseController
         ChargeState charge = vtVehicle.chargeState.get();
         ChargeState.Status status = charge.chargingState;
         if (status == ChargeState.Status.Disconnected) {
-            MailGun.get().send(
+            app.notifications.send(
                 prefs.notificationAddress.get(),
-                "Your car is not plugged in. Range = " + (int)charge.range);
+                "Your car is not plugged in. Range = " + (int)charge.range, null);
             return new Result(true, "Vehicle is unplugged. Notification sent");
         } else if (status == ChargeState.Status.Unknown) {
-            MailGun.get().send(
+            app.notifications.send(
                 prefs.notificationAddress.get(),
-                "Can't determine if your car is plugged in. Please check");
+                "Can't determine if your car is plugged in. Please check", null);
             return new Result(true, "Can't tell if car is plugged in. Warning sent");
         }
         return new Result(true, "Vehicle is plugged-in. No notification sent");
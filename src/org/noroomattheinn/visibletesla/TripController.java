@@ -5,8 +5,15 @@
  */
 package org.noroomattheinn.visibletesla;
 
+import com.google.common.collect.Range;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
@@ -16,7 +23,6 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
 import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
@@ -36,16 +42,12 @@ import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.stage.FileChooser;
 import javafx.util.Callback;
 import jfxtras.labs.scene.control.CalendarPicker;
-import org.apache.commons.io.FileUtils;
-import org.noroomattheinn.tesla.ChargeState;
-import org.noroomattheinn.tesla.StreamState;
-import org.noroomattheinn.timeseries.Row;
-import org.noroomattheinn.utils.GeoUtils;
+import org.apache.commons.io.IOUtils;
 import org.noroomattheinn.utils.SimpleTemplate;
+import org.noroomattheinn.utils.ThreadManager;
 import org.noroomattheinn.utils.Utils;
 import org.noroomattheinn.visibletesla.data.Trip;
-import org.noroomattheinn.visibletesla.data.VTData;
-import org.noroomattheinn.visibletesla.data.WayPoint;
+import org.noroomattheinn.visibletesla.data.TripSummary;
 
 import static org.noroomattheinn.tesla.Tesla.logger;
 
@@ -65,7 +67,7 @@ public class TripController extends BaseController {
     private static final String IncludeGraphKey = "TR_INCLUDE_GRAPH";
     private static final String SnapToRoadKey = "TR_SNAP";
     private static final String PathTemplateFileName = "PathTemplate.html";
-    private static final long MaxTimeBetweenWayPoints = 15 * 60 * 1000;
+    private static final String TripsPlaceholder = "TRIPS";
     private static final String RangeRowName = "Range";
     private static final String OdoRowName = "Odometer";
     
@@ -76,9 +78,9 @@ public class TripController extends BaseController {
  *----------------------------------------------------------------------------*/
     
     private boolean useMiles = true;
+    private Calendar displayedMonth = Calendar.getInstance();   // In the picker
     
-    private Map<String,List<Trip>> dateToTrips = new HashMap<>();
-    private Map<String,Trip> selectedTrips = new HashMap<>();
+    private Map<String,TripSummary> selectedTrips = new HashMap<>();
     
     // Each of the following items defines a row of the property table
     private final GenericProperty rangeRow = new GenericProperty(RangeRowName, "0.0", "0.0");
@@ -113,16 +115,16 @@ public class TripController extends BaseController {
  * 
  *----------------------------------------------------------------------------*/
 
-    private List<Trip> getSelectedTrips() {
-        ArrayList<Trip> selection = new ArrayList<>();
+    private List<TripSummary> getSelectedSummaries() {
+        ArrayList<TripSummary> selection = new ArrayList<>();
         for (String item : availableTripsView.getSelectionModel().getSelectedItems()) {
-            Trip t = selectedTrips.get(item);
+            TripSummary t = selectedTrips.get(item);
             if (t != null) selection.add(t);
         }
-        Collections.sort(selection, new Comparator<Trip>() {
+        Collections.sort(selection, new Comparator<TripSummary>() {
             @Override
-            public int compare(Trip o1, Trip o2) {
-                return Long.signum(o1.firstWayPoint().getTime() - o2.firstWayPoint().getTime());
+            public int compare(TripSummary o1, TripSummary o2) {
+                return Long.signum(o1.startTime - o2.startTime);
             }
         });
         return selection;
@@ -140,29 +142,82 @@ public class TripController extends BaseController {
             String enclosingDirectory = file.getParent();
             if (enclosingDirectory != null)
                 prefs.storage().put(App.LastExportDirKey, enclosingDirectory);
-            if (vtData.exportTripsAsKML(getSelectedTrips(), file)) {
-                Dialogs.showInformationDialog(
-                        app.stage, "Your data has been exported",
-                        "Data Export Process" , "Export Complete");
-            } else {
-                Dialogs.showWarningDialog(
-                        app.stage, "There was a problem exporting your trip data to KMZ",
-                        "Data Export Process" , "Export Failed");
-            }
+            exportTrips(getSelectedSummaries(), file);
         }
     }
     
+    // Exporting reads the WayPoints of every trip, so like mapping it's
+    // done in the background
+    private void exportTrips(final List<TripSummary> summaries, final File file) {
+        exportItButton.setDisable(true);
+        ThreadManager.get().launch(new Runnable() {
+            @Override public void run() {
+                final boolean exported = vtData.exportTripsAsKML(summaries, file);
+                Platform.runLater(new Runnable() {
+                    @Override public void run() {
+                        exportItButton.setDisable(selectedTrips.isEmpty());
+                        if (exported) {
+                            Dialogs.showInformationDialog(
+                                    app.stage, "Your data has been exported",
+                                    "Data Export Process" , "Export Complete");
+                        } else {
+                            Dialogs.showWarningDialog(
+                                    app.stage, "There was a problem exporting your trip data to KMZ",
+                                    "Data Export Process" , "Export Failed");
+                        }
+                    }
+                });
+            }
+        }, "Export Trips");
+    }
+    
+    // WayPoints are only loaded when a Trip is actually mapped or exported.
+    // Reading them, looking up elevations, and writing the map can all take
+    // a while, so they're done in the background. Only showing the map
+    // happens on the FX thread.
     @FXML void mapItHandler(ActionEvent event) {
-        List<Trip> trips = getSelectedTrips();
+        final List<TripSummary> summaries = getSelectedSummaries();
+        if (summaries.isEmpty()) return;
+        final MapOptions options = new MapOptions();
+        
+        mapItButton.setDisable(true);
+        ThreadManager.get().launch(new Runnable() {
+            @Override public void run() {
+                final File map = writeMap(summaries, options);
+                Platform.runLater(new Runnable() {
+                    @Override public void run() {
+                        mapItButton.setDisable(selectedTrips.isEmpty());
+                        if (map != null) app.showDocument(map.toURI().toString());
+                    }
+                });
+            }
+        }, "Map Trips");
+    }
+
+    /**
+     * Load the trips and write a map of them to a temp file. This is slow,
+     * so don't call it on the FX Application Thread.
+     * @return  The map file, or null if there was nothing to map or the file
+     *          couldn't be written
+     */
+    private File writeMap(List<TripSummary> summaries, MapOptions options) {
+        List<Trip> trips = new ArrayList<>();
+        for (Trip t : vtData.loadTrips(summaries)) {
+            if (!t.isEmpty()) trips.add(t);
+        }
+        if (trips.isEmpty()) return null;
         
-        String map = getMapFromTemplate(trips);
+        if (options.includeGraph) {
+            for (Trip t : trips) { t.addElevationData(); }
+        }
         try {
             File tempFile = File.createTempFile("VTTrip", ".html");
-            FileUtils.write(tempFile, map);
-            app.showDocument(tempFile.toURI().toString());
+            writeMapFromTemplate(trips, tempFile, options);
+            return tempFile;
         } catch (IOException ex) {
             logger.warning("Unable to create temp file");
             // TO DO: Pop up a dialog!
+            return null;
         }
     }
 
@@ -172,7 +227,7 @@ public class TripController extends BaseController {
     }
     
     @FXML void endTripHandler(ActionEvent event) {
-        endCurrentTrip();
+        vtData.endCurrentTrip();
     }
     
 
@@ -210,7 +265,8 @@ public class TripController extends BaseController {
         
         calendarPicker.setCalendarRangeCallback(new Callback<CalendarPicker.CalendarRange,java.lang.Void>() {
             @Override public Void call(CalendarPicker.CalendarRange p) {
-                highlightDaysWithTrips(p.getStartCalendar());
+                displayedMonth = p.getStartCalendar();
+                highlightDaysWithTrips(displayedMonth);
                 return null;
             } });
         
@@ -258,38 +314,22 @@ public class TripController extends BaseController {
  *----------------------------------------------------------------------------*/
     
     private void reflectTripInfo() {
-        List<Trip> trips = getSelectedTrips();
-        if (trips == null || trips.isEmpty()) return;
-        WayPoint start = trips.get(0).firstWayPoint();
-        WayPoint end   = trips.get(trips.size()-1).lastWayPoint();
+        List<TripSummary> trips = getSelectedSummaries();
+        if (trips.isEmpty()) return;
+        TripSummary start = trips.get(0);
+        TripSummary end   = trips.get(trips.size()-1);
         
         double cvt = useMiles ? 1.0 : Utils.KilometersPerMile;
-        updateStartEndProps(
-                VTData.EstRangeKey, start.getTime(), end.getTime(), 
-                rangeRow, cvt);
-        updateStartEndProps(
-                VTData.SOCKey, start.getTime(), end.getTime(),
-                socRow, 1.0);
-        
-        updateStartEndProps(odoRow, start.getOdo(), end.getOdo(), cvt);
+        updateStartEndProps(rangeRow, start.startRange, end.endRange, cvt);
+        updateStartEndProps(socRow, start.startSOC, end.endSOC, 1.0);
+        updateStartEndProps(odoRow, start.startOdo, end.endOdo, cvt);
         
         double power = 0.0;
-        for (Trip t:trips) {
-            power += t.estimateEnergy();
+        for (TripSummary t : trips) {
+            power += t.energy;
         }
         updateStartEndProps(powerRow, 0.0, power, 1.0);
     }
-    
-    private void updateStartEndProps(
-            String statType, long startTime, long endTime,
-            GenericProperty prop, double conversionFactor) {
-        NavigableMap<Long,Row> rows = vtData.getRangeOfLoadedRows(startTime, endTime);
-
-        double startValue = rows.firstEntry().getValue().get(VTData.schema, statType);
-        double endValue = rows.lastEntry().getValue().get(VTData.schema, statType);
-        prop.setValue(String.format("%.1f", startValue * conversionFactor));
-        prop.setUnits(String.format("%.1f", endValue * conversionFactor));
-    }
 
     private void updateStartEndProps(
             GenericProperty prop,
@@ -318,15 +358,12 @@ public class TripController extends BaseController {
         double cvt = useMiles ? 1.0 : Utils.KilometersPerMile;
         for (Calendar c : calendarPicker.calendars()) {
             String dateKey = keyFromDate(c.getTime());
-            List<Trip> trips = dateToTrips.get(dateKey);
-            if (trips != null) {
-                for (Trip t : trips) {
-                    String id = String.format("%s @ %s, %.1f %s",
-                        dateKey, hourAndMinutes(t.firstWayPoint().getTime()),
-                        t.distance()*cvt, useMiles ? "mi" : "km");
-                    selectedTrips.put(id, t);
-                    availableTripsView.getItems().add(id);
-                }
+            for (TripSummary t : vtData.getTripsForDay(c.getTimeInMillis())) {
+                String id = String.format("%s @ %s, %.1f %s",
+                    dateKey, hourAndMinutes(t.startTime),
+                    t.distance()*cvt, useMiles ? "mi" : "km");
+                selectedTrips.put(id, t);
+                availableTripsView.getItems().add(id);
             }
         }
     }
@@ -339,30 +376,54 @@ public class TripController extends BaseController {
         return String.format("%1$tH:%1$tM", new Date(time));
     }
     
-    private String getMapFromTemplate(List<Trip> trips) {
-        SimpleTemplate template = new SimpleTemplate(getClass().getResourceAsStream(PathTemplateFileName));
+    /**
+     * Fill in the PathTemplate and write it to a file. The trip payload can be
+     * large, so it is streamed into the file between the portions of the
+     * template that precede and follow the TRIPS placeholder.
+     */
+    private void writeMapFromTemplate(
+            List<Trip> trips, File toFile, MapOptions options) throws IOException {
+        String text = IOUtils.toString(
+                getClass().getResourceAsStream(PathTemplateFileName), "UTF-8");
+        int split = text.indexOf(TripsPlaceholder);
+        String head = fillInTemplate(text.substring(0, split), trips, options);
+        String tail = fillInTemplate(
+                text.substring(split + TripsPlaceholder.length()), trips, options);
         
-        StringBuilder sb = new StringBuilder();
-        sb.append("[\n");
-        boolean first = true;
-        for (Trip t : trips) {
-            if (includeGraph.isSelected()) { t.addElevationData(); }
-            if (!first) sb.append(",\n");
-            sb.append(t.asJSON(useMiles));
-            first = false;
+        Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(toFile), StandardCharsets.UTF_8));
+        try {
+            w.write(head);
+            new TripMapWriter(options.useMiles).write(w, trips);
+            w.write(tail);
+        } finally {
+            w.close();
         }
-        sb.append("]\n");
+    }
+    
+    private String fillInTemplate(String part, List<Trip> trips, MapOptions options) {
+        SimpleTemplate template = new SimpleTemplate(
+                new ByteArrayInputStream(part.getBytes(StandardCharsets.UTF_8)));
         Date date = new Date(trips.get(0).firstWayPoint().getTime());
         return template.fillIn(
-                "TRIPS", sb.toString(),
                 "TITLE", "Tesla Path on " + date,
-                "EL_UNITS", useMiles ? "feet" : "meters",
-                "SP_UNITS", useMiles ? "mph" : "km/h",
-                "INCLUDE_GRAPH", includeGraph.isSelected() ? "true" : "false",
-                "SNAP", snapToRoad.isSelected() ? "true" : "false",
-                "GMAP_API_KEY", prefs.useCustomGoogleAPIKey.get() ?
-                    prefs.googleAPIKey.get() :
-                    Prefs.GoogleMapsAPIKey);
+                "EL_UNITS", options.useMiles ? "feet" : "meters",
+                "SP_UNITS", options.useMiles ? "mph" : "km/h",
+                "INCLUDE_GRAPH", options.includeGraph ? "true" : "false",
+                "SNAP", options.snapToRoad ? "true" : "false",
+                "GMAP_API_KEY", options.apiKey);
+    }
+    
+    /**
+     * The settings a map is drawn with, captured on the FX Application Thread
+     * so the map can be written on another
+     */
+    private class MapOptions {
+        final boolean useMiles = TripController.this.useMiles;
+        final boolean includeGraph = TripController.this.includeGraph.isSelected();
+        final boolean snapToRoad = TripController.this.snapToRoad.isSelected();
+        final String apiKey = prefs.useCustomGoogleAPIKey.get() ?
+                prefs.googleAPIKey.get() : Prefs.GoogleMapsAPIKey;
     }
     
     private boolean sameMonth(Calendar month, Calendar day) {
@@ -371,10 +432,20 @@ public class TripController extends BaseController {
     }
 
     private void highlightDaysWithTrips(Calendar month) {
+        Calendar first = (Calendar)month.clone();
+        first.set(Calendar.DAY_OF_MONTH, 1);
+        first.set(Calendar.HOUR_OF_DAY, 0);
+        first.set(Calendar.MINUTE, 0);
+        first.set(Calendar.SECOND, 0);
+        first.set(Calendar.MILLISECOND, 0);
+        Calendar next = (Calendar)first.clone();
+        next.add(Calendar.MONTH, 1);
+        
         List<Calendar> daysToHighlight = new ArrayList<>();
-        for (List<Trip> trips : dateToTrips.values()) {
+        for (TripSummary t : vtData.getTrips(
+                Range.closedOpen(first.getTimeInMillis(), next.getTimeInMillis()))) {
             Calendar day = Calendar.getInstance();
-            day.setTimeInMillis(trips.get(0).firstWayPoint().getTime());
+            day.setTimeInMillis(t.startTime);
             if (sameMonth(month, day)) daysToHighlight.add(day);
         }
         calendarPicker.highlightedCalendars().clear();
@@ -388,96 +459,23 @@ public class TripController extends BaseController {
  *----------------------------------------------------------------------------*/
     
     private void readTrips() {
-        Map<Long,Row> rows = vtData.getAllLoadedRows();
-        for (Row r : rows.values()) {
-            double lat = r.get(VTData.schema, VTData.LatitudeKey);
-            double lng = r.get(VTData.schema, VTData.LongitudeKey);
-            double odo = r.get(VTData.schema, VTData.OdometerKey);
-            if (lat == 0.0 && lng == 0.0 || odo == 0.0) continue;
-            WayPoint wp = new WayPoint(
-                r.timestamp,
-                odo,
-                r.get(VTData.schema, VTData.SpeedKey),
-                r.get(VTData.schema, VTData.HeadingKey),
-                lat, lng, Double.NaN,
-                r.get(VTData.schema, VTData.PowerKey),
-                r.get(VTData.schema, VTData.SOCKey));
-            handleNewWayPoint(wp);
-        }
-        endCurrentTrip();
-        
-        // Start listening for new WayPoints
-        vtData.lastStoredStreamState.addTracker(new Runnable() {
+        // Trips are detected and stored by VTData as data arrives. Just listen
+        // for newly completed trips.
+        vtData.lastTrip.addTracker(new Runnable() {
             @Override public void run() {
-                StreamState ss = vtData.lastStoredStreamState.get();
-                ChargeState cs = vtData.lastStoredChargeState.get();
-                handleNewWayPoint(
-                    new WayPoint(
-                        ss.timestamp, ss.odometer, ss.speed,
-                        ss.heading, ss.estLat, ss.estLng, Double.NaN,
-                        ss.power, cs.batteryPercent));
+                final Date d = new Date(vtData.lastTrip.get().startTime);
+                Platform.runLater(new Runnable() {
+                    @Override public void run() {
+                        highlightDaysWithTrips(displayedMonth);
+                        if (dateIsSelected(d)) { updateTripSelections(); }
+                    }
+                });
             }
         });
         
-        highlightDaysWithTrips(Calendar.getInstance());
-    }
-    
-    private void endCurrentTrip() {
-        if (tripInProgress == null) return;
-        
-        if (tripInProgress.distance() > 0.1) {
-            updateTripData(tripInProgress);
-        }
-        
-        tripInProgress = null;
-    }
-    
-    private Trip tripInProgress = null;
-    
-    private void handleNewWayPoint(WayPoint wp) {
-        if (tripInProgress == null) {
-            // No Trip in progress, start one
-            startNewTrip(wp);
-            return;
-        }
-        
-        WayPoint last = tripInProgress.lastWayPoint();
-        if ((wp.getTime() - last.getTime() > MaxTimeBetweenWayPoints)) {
-            // Finish the old trip and start a new one
-            endCurrentTrip();
-            startNewTrip(wp);
-            return;
-        }
-        
-        if (thereWasMotion(wp, last)) {
-            // Add to the current Trip
-            tripInProgress.addWayPoint(wp);
-        }
+        highlightDaysWithTrips(displayedMonth);
     }
     
-    private void startNewTrip(WayPoint wp) {
-        tripInProgress = new Trip();
-        tripInProgress.addWayPoint(wp);
-    }
-    
-    private void updateTripData(Trip t) {
-        WayPoint wp = t.firstWayPoint();
-        Date d = new Date(wp.getTime());
-        String dateKey = keyFromDate(d);
-        List<Trip> tripsForDay = dateToTrips.get(dateKey);
-        if (tripsForDay == null) {
-            tripsForDay = new ArrayList<>();
-            dateToTrips.put(dateKey, tripsForDay);
-        }
-        tripsForDay.add(t);
-        
-        if (dateIsSelected(d))  {
-            Platform.runLater(new Runnable() {
-                @Override public void run() { updateTripSelections(); } });
-        }
-        
-    }
-
     private boolean dateIsSelected(Date d) {
         Calendar tripDay = Calendar.getInstance();
         tripDay.setTime(d);
@@ -491,18 +489,5 @@ public class TripController extends BaseController {
         }
         return false;
     }
-    
-/*------------------------------------------------------------------------------
- *
- * PRIVATE - Methods to check proximity between points
- * 
- *----------------------------------------------------------------------------*/
-    
-    private boolean thereWasMotion(WayPoint wp1, WayPoint wp2) {
-        double turn =  180.0 - Math.abs((Math.abs(wp1.getHeading() - wp2.getHeading())%360.0) - 180.0);
-        double meters = GeoUtils.distance(wp1.getLat(), wp1.getLng(), wp2.getLat(), wp2.getLng());
-
-        return (meters >= 5 || (turn > 10 && meters > 3.0));
-    }
 
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+/*
+ * TripMapWriter.java - Copyright(c) 2013, 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 18, 2015
+ */
+package org.noroomattheinn.visibletesla;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import org.noroomattheinn.utils.Utils;
+import org.noroomattheinn.visibletesla.data.Trip;
+import org.noroomattheinn.visibletesla.data.WayPoint;
+
+/**
+ * TripMapWriter: Write the trip payload used by PathTemplate.html. Rather than
+ * a pretty-printed object per WayPoint, each trip is written as a small object
+ * whose fields are delta-encoded series using the encoded polyline algorithm.
+ * The template decodes them with decodeSeries(). Each point also carries the
+ * minimum zoom level at which it is significant. That level is computed with
+ * a Douglas-Peucker pass so the map can skip markers that would overlap at the
+ * current zoom.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+class TripMapWriter {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    // Scale factors used to quantize each series. They must match PathTemplate.html
+    private static final double LatLngScale = 1e5;
+    private static final double SpeedScale = 10;
+    private static final double PowerScale = 10;
+    private static final double ElevationScale = 10;
+
+    private static final int    MaxZoom = 21;
+    private static final double MetersPerPixelAtZoom0 = 156543.03392;
+    private static final double PixelTolerance = 2.0;
+    private static final double MetersPerDegree = 111320.0;
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final boolean useMiles;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    TripMapWriter(boolean useMiles) { this.useMiles = useMiles; }
+
+    /**
+     * Write a JavaScript array literal with one entry per Trip
+     * @param w     The Writer to which the payload is written
+     * @param trips The Trips to write
+     */
+    void write(Writer w, List<Trip> trips) throws IOException {
+        w.write("[\n");
+        boolean first = true;
+        for (Trip t : trips) {
+            if (!first) w.write(",\n");
+            writeTrip(w, t);
+            first = false;
+        }
+        w.write("]\n");
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Encoding a Trip
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void writeTrip(Writer w, Trip t) throws IOException {
+        List<WayPoint> wps = t.getWayPoints();
+        int n = wps.size();
+        long t0 = (n == 0) ? 0 : wps.get(0).getTime() / 1000;
+        Encoder lat = new Encoder(n), lng = new Encoder(n), time = new Encoder(n);
+        Encoder speed = new Encoder(n), heading = new Encoder(n);
+        Encoder power = new Encoder(n), elevation = new Encoder(n), zoom = new Encoder(n);
+        Encoder gaps = new Encoder(0);
+        int[] minZoom = minZoomLevels(wps);
+
+        for (int i = 0; i < n; i++) {
+            WayPoint wp = wps.get(i);
+            lat.add(Math.round(wp.getLat() * LatLngScale));
+            lng.add(Math.round(wp.getLng() * LatLngScale));
+            time.add(wp.getTime() / 1000 - t0);
+            speed.add(Math.round(
+                    (useMiles ? wp.getSpeed() : Utils.milesToKm(wp.getSpeed())) * SpeedScale));
+            heading.add(Math.round(wp.getHeading()));
+            power.add(Math.round(wp.getPower() * PowerScale));
+            double e = wp.getElevation();
+            if (Double.isNaN(e)) {
+                // Unknown, not zero. Repeat the last value and note the gap
+                elevation.repeat();
+                gaps.add(i);
+            } else {
+                elevation.add(Math.round(
+                        (useMiles ? Utils.metersToFeet(e) : e) * ElevationScale));
+            }
+            zoom.add(minZoom[i]);
+        }
+
+        w.write("{t0:"); w.write(Long.toString(t0));
+        w.write(",lat:\""); w.write(lat.toString());
+        w.write("\",lng:\""); w.write(lng.toString());
+        w.write("\",time:\""); w.write(time.toString());
+        w.write("\",speed:\""); w.write(speed.toString());
+        w.write("\",heading:\""); w.write(heading.toString());
+        w.write("\",power:\""); w.write(power.toString());
+        w.write("\",elevation:\""); w.write(elevation.toString());
+        w.write("\",gaps:\""); w.write(gaps.toString());
+        w.write("\",zoom:\""); w.write(zoom.toString());
+        w.write("\"}");
+    }
+
+    /**
+     * Compute, for each WayPoint, the lowest zoom level at which it is a
+     * significant part of the path. The significance of a point is the
+     * Douglas-Peucker tolerance at which it would be eliminated, bounded by
+     * the significance of the point that split its segment so that levels
+     * are monotonic. Endpoints are always significant.
+     */
+    private static int[] minZoomLevels(List<WayPoint> wps) {
+        int n = wps.size();
+        int[] levels = new int[n];
+        if (n <= 2) return levels;
+
+        // Project onto a plane in meters. This is accurate enough at trip scale
+        double cosLat = Math.cos(Math.toRadians(wps.get(0).getLat()));
+        double[] x = new double[n], y = new double[n];
+        for (int i = 0; i < n; i++) {
+            WayPoint wp = wps.get(i);
+            x[i] = wp.getLng() * MetersPerDegree * cosLat;
+            y[i] = wp.getLat() * MetersPerDegree;
+        }
+
+        double[] significance = new double[n];
+        significance[0] = significance[n-1] = Double.MAX_VALUE;
+        Deque<int[]> segments = new ArrayDeque<>();
+        segments.push(new int[] {0, n-1});
+        while (!segments.isEmpty()) {
+            int[] seg = segments.pop();
+            int from = seg[0], to = seg[1];
+            if (to - from < 2) continue;
+            double bound = Math.min(significance[from], significance[to]);
+            int farthest = -1;
+            double maxDist = -1;
+            for (int i = from + 1; i < to; i++) {
+                double d = distanceToSegment(x[i], y[i], x[from], y[from], x[to], y[to]);
+                if (d > maxDist) { maxDist = d; farthest = i; }
+            }
+            significance[farthest] = Math.min(maxDist, bound);
+            segments.push(new int[] {from, farthest});
+            segments.push(new int[] {farthest, to});
+        }
+
+        double mppAtZoom0 = MetersPerPixelAtZoom0 * cosLat * PixelTolerance;
+        for (int i = 0; i < n; i++) {
+            double s = significance[i];
+            if (s == Double.MAX_VALUE) { levels[i] = 0; }
+            else if (s <= 0) { levels[i] = MaxZoom; }
+            else {
+                int z = (int)Math.ceil(Math.log(mppAtZoom0 / s) / Math.log(2));
+                levels[i] = Math.max(0, Math.min(MaxZoom, z));
+            }
+        }
+        return levels;
+    }
+
+    private static double distanceToSegment(
+            double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double u = (len2 == 0) ? 0 : ((px - ax) * dx + (py - ay) * dy) / len2;
+        u = Math.max(0, Math.min(1, u));
+        double cx = ax + u * dx - px, cy = ay + u * dy - py;
+        return Math.sqrt(cx * cx + cy * cy);
+    }
+
+    /**
+     * Delta-encode a series of integers using the encoded polyline algorithm.
+     * The output characters are in the range [63..126]. The only one that
+     * needs escaping in a JavaScript string literal is the backslash.
+     */
+    private static class Encoder {
+        private final StringBuilder sb;
+        private long last = 0;
+
+        Encoder(int n) { sb = new StringBuilder(n * 2); }
+
+        void add(long value) {
+            long delta = value - last;
+            last = value;
+            long v = delta < 0 ? ~(delta << 1) : (delta << 1);
+            while (v >= 0x20) {
+                append((char)((0x20 | (v & 0x1f)) + 63));
+                v >>= 5;
+            }
+            append((char)(v + 63));
+        }
+
+        void repeat() { add(last); }
+
+        private void append(char c) {
+            if (c == '\\') sb.append('\\');
+            sb.append(c);
+        }
+
+        @Override public String toString() { return sb.toString(); }
+    }
+}
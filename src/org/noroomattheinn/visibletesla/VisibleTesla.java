@@ -16,6 +16,8 @@ import javafx.stage.Stage;
 import org.noroomattheinn.utils.MailGun;
 import org.noroomattheinn.utils.ThreadManager;
 import org.noroomattheinn.utils.Utils;
+import org.noroomattheinn.visibletesla.data.ElevationCache;
+import org.noroomattheinn.visibletesla.data.GeocodeCache;
 import org.noroomattheinn.visibletesla.data.VTData;
 import org.noroomattheinn.visibletesla.rest.RESTServer;
 import org.noroomattheinn.visibletesla.vehicle.VTVehicle;
@@ -70,8 +72,14 @@ public class VisibleTesla extends Application {
         // The App object depends on Prefs, so create it now
         App app = new App(this, stage, prefs);
         
+        // Cache reverse geocoding results and elevations. Used when generating
+        // messages and pages that include the car's location and when mapping
+        // trips.
+        GeocodeCache.createDefaultInstance(app.appFileFolder());
+        ElevationCache.createDefaultInstance(app.appFileFolder());
+        
         // The object representing the vehicle we're monitoring
-        VTVehicle v = new VTVehicle(prefs.overrides);
+        VTVehicle v = new VTVehicle(prefs.overrides, app.appFileFolder());
         
         // Even though it's not represented in the parameters, VTData
         // depends on VTVehicle, so now you can create it
@@ -80,9 +88,10 @@ public class VisibleTesla extends Application {
         
         // The RESTServer depends on the App object and the Vehicle
         RESTServer rs = new RESTServer(
-                app.api, v, app.authenticator,
+                app.api, v, data, app.authenticator,
                 prefs.enableRest, prefs.restPort,
-                prefs.customURLSource);
+                prefs.customURLSource,
+                prefs.restThreads, prefs.restVirtualThreads);
         logger.finest("Created RESTServer: " + rs);
         
         // OK, that's done. Now launch the MainController and let's get started!
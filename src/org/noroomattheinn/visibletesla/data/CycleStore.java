@@ -61,11 +61,24 @@ abstract class CycleStore<C extends BaseCycle>
     @Override public void stop() { cycleWriter.close(); }
     
     List<C> getCycles(Range<Long> period) {
+        final List<C> cycles = new ArrayList<>();
+        streamCycles(period, new VTData.CycleCollector<C>() {
+            @Override public boolean collect(C cycle) { cycles.add(cycle); return true; }
+        });
+        return cycles;
+    }
+    
+    /**
+     * Read the cycles that started in the period one at a time, passing each
+     * to the collector.
+     * @param period    The period of interest. Null means all.
+     * @param collector Receives each cycle. Return false to stop reading.
+     */
+    void streamCycles(Range<Long> period, VTData.CycleCollector<C> collector) {
         if (period == null) period = Range.all();
         long startTime = period.hasLowerBound() ? period.lowerEndpoint() : 0;
         long endTime = period.hasUpperBound() ? period.upperEndpoint() : Long.MAX_VALUE;
 
-        List<C> cycles = new ArrayList<>();
         BufferedReader r = null;
         try {
             r = new BufferedReader(new FileReader(cycleFile));
@@ -75,7 +88,7 @@ abstract class CycleStore<C extends BaseCycle>
                 while ((entry = r.readLine()) != null) {
                     C cycle = BaseCycle.fromJSON(entry, theClass);
                     if (cycle.startTime >= startTime && cycle.startTime <= endTime) {
-                        cycles.add(cycle);
+                        if (!collector.collect(cycle)) break;
                     } else if (cycle.startTime > endTime) { break; }
                 }
             } catch (IOException ex) {
@@ -89,7 +102,6 @@ abstract class CycleStore<C extends BaseCycle>
                 catch (IOException e) { logger.warning("Failed closing reader: " + e); }
             }
         }
-        return cycles;
     }
 }
 
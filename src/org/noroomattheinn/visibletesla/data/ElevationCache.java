@@ -0,0 +1,330 @@
+/*
+ * ElevationCache.java - Copyright(c) 2013, 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 23, 2015
+ */
+package org.noroomattheinn.visibletesla.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.noroomattheinn.utils.GeoUtils;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * ElevationCache: A persistent cache of elevations keyed by quantized
+ * lat/lng. Only locations that are not in the cache are sent to the
+ * elevation service, in chunks that respect the service's per-request
+ * limit, with a few chunks in flight at once. New results are appended to a
+ * file of fixed size records so the cache survives restarts. Locations whose
+ * request failed are not cached, so they are requested again next time.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class ElevationCache {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    public static final double DefaultQuantum = 1e-4;   // Degrees, ~11m
+    public static final int    DefaultChunkSize = 256;  // Locations per request
+    public static final int    DefaultParallelism = 3;  // Requests in flight
+    private static final String StoreName = "elevation.cache";
+    private static final int   RecordSize = 12;         // long key + float
+
+    /**
+     * The service that actually provides elevations
+     */
+    public interface ElevationService {
+        /**
+         * @param locations The locations of interest
+         * @return  The elevation in meters of each location, in order, or
+         *          null if the request failed. Elevations that aren't known
+         *          are NaN.
+         */
+        double[] getElevations(List<? extends GeoUtils.LocationSource> locations);
+    }
+
+    public static final ElevationService Remote = new ElevationService() {
+        @Override public double[] getElevations(List<? extends GeoUtils.LocationSource> locations) {
+            List<GeoUtils.ElevationData> edl = GeoUtils.getElevations(locations);
+            if (edl == null || edl.size() != locations.size()) return null;
+            double[] elevations = new double[edl.size()];
+            for (int i = 0; i < elevations.length; i++) { elevations[i] = edl.get(i).elevation; }
+            return elevations;
+        }
+    };
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static ElevationCache instance = null;
+
+    private final File storeFile;
+    private final ElevationService service;
+    private final double quantum;
+    private final int chunkSize;
+    private final ExecutorService requesters;
+    private final LongFloatMap elevations = new LongFloatMap();
+    private boolean loaded = false;
+
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+    public final AtomicLong requests = new AtomicLong();
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create the instance returned by get(), backed by the remote service
+     * @param container The folder in which to store the cache
+     */
+    public static synchronized void createDefaultInstance(File container) {
+        if (instance == null) {
+            instance = new ElevationCache(
+                    new File(container, StoreName), Remote,
+                    DefaultQuantum, DefaultChunkSize, DefaultParallelism);
+        }
+    }
+
+    /**
+     * @return The default instance or null if none has been created
+     */
+    public static synchronized ElevationCache get() { return instance; }
+
+    /**
+     * Create an ElevationCache. The store is read on first use.
+     * @param storeFile     Where the cache is kept on disk
+     * @param service       Used for locations that aren't in the cache
+     * @param quantum       Locations are rounded to a multiple of this (degrees)
+     * @param chunkSize     The maximum number of locations per request
+     * @param parallelism   The maximum number of requests in flight
+     */
+    public ElevationCache(File storeFile, ElevationService service,
+                          double quantum, int chunkSize, int parallelism) {
+        this.storeFile = storeFile;
+        this.service = service;
+        this.quantum = quantum;
+        this.chunkSize = chunkSize;
+        this.requesters = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ElevationRequest");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Return the elevation of each location, asking the service only for
+     * those that are not cached.
+     * @param lat   The latitudes of the locations
+     * @param lng   The longitudes of the locations
+     * @param n     The number of locations (the arrays may be longer)
+     * @return      The elevations in meters. Locations for which no elevation
+     *              is available are NaN.
+     */
+    public double[] getElevations(final double[] lat, final double[] lng, int n) {
+        long[] keys = new long[n];
+        double[] result = new double[n];
+        final List<Integer> missing = new ArrayList<>();  // Index of first use of each key
+        synchronized (this) {
+            load();
+            LongFloatMap pendingKeys = new LongFloatMap();
+            for (int i = 0; i < n; i++) {
+                keys[i] = key(lat[i], lng[i]);
+                float e = elevations.get(keys[i]);
+                if (!Float.isNaN(e)) { result[i] = e; continue; }
+                result[i] = Double.NaN;
+                if (Float.isNaN(pendingKeys.get(keys[i]))) {
+                    pendingKeys.put(keys[i], 0f);
+                    missing.add(i);
+                }
+            }
+        }
+        hits.addAndGet(n - missing.size());
+        misses.addAndGet(missing.size());
+        if (missing.isEmpty()) return result;
+
+        // Request the missing locations in chunks, several at a time
+        List<Future<double[]>> futures = new ArrayList<>();
+        for (int from = 0; from < missing.size(); from += chunkSize) {
+            final List<Integer> chunk = missing.subList(from, Math.min(missing.size(), from + chunkSize));
+            futures.add(requesters.submit(new Callable<double[]>() {
+                @Override public double[] call() {
+                    requests.incrementAndGet();
+                    return service.getElevations(locations(chunk, lat, lng));
+                }
+            }));
+        }
+
+        LongFloatMap found = new LongFloatMap();
+        for (int c = 0; c < futures.size(); c++) {
+            List<Integer> chunk = missing.subList(
+                    c * chunkSize, Math.min(missing.size(), (c + 1) * chunkSize));
+            double[] fetched = null;
+            try {
+                fetched = futures.get(c).get();
+            } catch (InterruptedException | ExecutionException e) {
+                logger.warning("Elevation request failed: " + e);
+            }
+            if (fetched == null || fetched.length != chunk.size()) continue;
+            for (int j = 0; j < fetched.length; j++) {
+                if (Double.isNaN(fetched[j])) continue;     // Not known. Don't cache it
+                found.put(keys[chunk.get(j)], (float)fetched[j]);
+            }
+        }
+
+        synchronized (this) { store(found); }
+        for (int i = 0; i < n; i++) {
+            if (Double.isNaN(result[i])) {
+                float e = found.get(keys[i]);
+                if (!Float.isNaN(e)) result[i] = e;
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() { load(); return elevations.size(); }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private long key(double lat, double lng) {
+        long qLat = Math.round(lat / quantum);
+        long qLng = Math.round(lng / quantum);
+        return (qLat << 32) | (qLng & 0xffffffffL);
+    }
+
+    private static List<GeoUtils.LocationSource> locations(
+            final List<Integer> indices, final double[] lat, final double[] lng) {
+        return new AbstractList<GeoUtils.LocationSource>() {
+            @Override public GeoUtils.LocationSource get(final int index) {
+                final int i = indices.get(index);
+                return new GeoUtils.LocationSource() {
+                    @Override public double getLat() { return lat[i]; }
+                    @Override public double getLng() { return lng[i]; }
+                };
+            }
+            @Override public int size() { return indices.size(); }
+        };
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        if (!storeFile.exists()) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(storeFile)))) {
+            long nRecords = storeFile.length() / RecordSize;
+            for (long r = 0; r < nRecords; r++) {
+                elevations.put(in.readLong(), in.readFloat());
+            }
+        } catch (EOFException e) {
+            // A partial record at the end. Ignore it.
+        } catch (IOException e) {
+            logger.warning("Unable to read elevation cache: " + e);
+        }
+    }
+
+    private void store(LongFloatMap found) {
+        if (found.size() == 0) return;
+        try (FileOutputStream fos = new FileOutputStream(storeFile, true);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            // A crash may have left a partial record. Drop it rather than
+            // completing it, since its key may be whole but its value not.
+            FileChannel channel = fos.getChannel();
+            long extra = channel.size() % RecordSize;
+            if (extra != 0) {
+                channel.truncate(channel.size() - extra);
+            }
+            for (int slot = 0; slot < found.keys.length; slot++) {
+                if (!found.used[slot]) continue;
+                elevations.put(found.keys[slot], found.values[slot]);
+                out.writeLong(found.keys[slot]);
+                out.writeFloat(found.values[slot]);
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to write elevation cache: " + e);
+        }
+    }
+
+    /**
+     * An open addressing map from long to float. Much smaller than a
+     * HashMap<Long,Float> for the number of entries a cache accumulates.
+     * Absent keys map to NaN.
+     */
+    private static class LongFloatMap {
+        long[] keys = new long[16];
+        float[] values = new float[16];
+        boolean[] used = new boolean[16];
+        int size = 0;
+
+        int size() { return size; }
+
+        float get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) return values[slot];
+            }
+            return Float.NaN;
+        }
+
+        void put(long key, float value) {
+            if ((size + 1) * 2 > keys.length) grow();
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (used[slot] && keys[slot] != key) slot = (slot + 1) & mask;
+            if (!used[slot]) { used[slot] = true; keys[slot] = key; size++; }
+            values[slot] = value;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            float[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new float[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h ^ (h >>> 32));
+        }
+    }
+}
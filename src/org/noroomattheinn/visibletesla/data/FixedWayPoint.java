@@ -0,0 +1,63 @@
+/*
+ * FixedWayPoint.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 31, 2015
+ */
+package org.noroomattheinn.visibletesla.data;
+
+/**
+ * FixedWayPoint: A WayPoint that holds its own values. These are used while
+ * a trip is being detected or loaded. Once a WayPoint has been added to a
+ * Trip its values are kept in the Trip's columns instead.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class FixedWayPoint extends WayPoint {
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final long   timestamp;
+    private final double odometer;
+    private final double speed;
+    private final double heading;
+    private final double power;
+    private final double soc;
+    private final double lat;
+    private final double lng;
+    private       double elevation;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    public FixedWayPoint(
+            long timestamp, double odometer, double speed,
+            double heading, double lat, double lng, double elevation,
+            double power, double soc) {
+        this.timestamp = timestamp;
+        this.odometer = odometer;
+        this.speed = speed;
+        this.heading = heading;
+        this.lat = lat;
+        this.lng = lng;
+        this.elevation = elevation;
+        this.power = power;
+        this.soc = soc;
+    }
+
+    @Override public long   getTime()       { return timestamp; }
+    @Override public double getElevation()  { return elevation; }
+    @Override public double getOdo()        { return odometer; }
+    @Override public double getHeading()    { return heading; }
+    @Override public double getPower()      { return power; }
+    @Override public double getSOC()        { return soc; }
+    @Override public double getSpeed()      { return speed; }
+    @Override public double getLat()        { return lat; }
+    @Override public double getLng()        { return lng; }
+    @Override public void setElevation(double e) { elevation = e; }
+}
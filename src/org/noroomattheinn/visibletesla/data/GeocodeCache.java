@@ -0,0 +1,457 @@
+/*
+ * GeocodeCache.java - Copyright(c) 2013, 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 22, 2015
+ */
+package org.noroomattheinn.visibletesla.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.noroomattheinn.utils.GeoUtils;
+import org.noroomattheinn.utils.ThreadManager;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * GeocodeCache: Cache the results of reverse geocoding (lat/lng to address).
+ * Locations are keyed by a geohash whose precision determines how close two
+ * locations must be to share an address. There are two levels: a small LRU
+ * of addresses in memory and an append-only log on disk. Only the index of
+ * the log (geohash to offset) is kept in memory; the address is read from
+ * disk when needed. Entries older than the TTL are looked up again, but the
+ * stale address is still used if the lookup fails. Concurrent misses for the
+ * same geohash share a single request to the Geocoder.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class GeocodeCache implements ThreadManager.Stoppable {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    public static final int  DefaultPrecision = 8;          // ~38m x 19m
+    public static final long DefaultTTL = 90L * 24 * 60 * 60 * 1000;   // 90 Days
+    public static final int  DefaultMemoryEntries = 256;
+    public static final int  DefaultStoredEntries = 10000;
+    private static final String StoreName = "geocode.cache";
+    private static final String Base32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    /**
+     * The service that actually performs reverse geocoding
+     */
+    public interface Geocoder {
+        /**
+         * @return The address of the location or null if it can't be determined
+         */
+        String lookup(double lat, double lng);
+    }
+
+    public static final Geocoder Remote = new Geocoder() {
+        @Override public String lookup(double lat, double lng) {
+            return GeoUtils.getAddrForLatLong(String.valueOf(lat), String.valueOf(lng));
+        }
+    };
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static GeocodeCache instance = null;
+
+    private final Geocoder geocoder;
+    private final int precision;
+    private final long ttl;
+    private final int maxStored;
+    private final File storeFile;
+    private final Map<String,Entry> memory;         // LRU of addresses
+    private final Map<String,Entry> index;          // Everything on disk
+    private RandomAccessFile log;
+    private long liveBytes = 0;
+    private final ExecutorService prefetcher;
+    private final ConcurrentMap<String,FutureTask<String>> inFlight =
+            new ConcurrentHashMap<>();
+
+    public final AtomicLong memoryHits = new AtomicLong();
+    public final AtomicLong diskHits = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create the instance returned by get(), backed by the remote geocoder
+     * and default bounds. It is closed when the app shuts down.
+     * @param container The folder in which to store the cache
+     */
+    public static synchronized void createDefaultInstance(File container) {
+        if (instance == null) {
+            instance = new GeocodeCache(
+                    new File(container, StoreName), Remote, DefaultPrecision,
+                    DefaultTTL, DefaultMemoryEntries, DefaultStoredEntries);
+            ThreadManager.get().addStoppable((ThreadManager.Stoppable)instance);
+        }
+    }
+
+    /**
+     * @return The default instance or null if none has been created
+     */
+    public static synchronized GeocodeCache get() { return instance; }
+
+    /**
+     * Create a GeocodeCache
+     * @param storeFile     Where the cache is kept on disk
+     * @param geocoder      Used for locations that aren't in the cache
+     * @param precision     The number of geohash characters in a key (1-12)
+     * @param ttl           How long (millis) an address is considered fresh
+     * @param maxMemory     The number of addresses to keep in memory
+     * @param maxStored     The number of addresses to keep on disk
+     */
+    public GeocodeCache(File storeFile, Geocoder geocoder, int precision,
+                        long ttl, final int maxMemory, int maxStored) {
+        this.storeFile = storeFile;
+        this.geocoder = geocoder;
+        this.precision = Math.max(1, Math.min(12, precision));
+        this.ttl = ttl;
+        this.maxStored = maxStored;
+        this.memory = new LinkedHashMap<String,Entry>(maxMemory, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                return size() > maxMemory;
+            }
+        };
+        this.index = new HashMap<>();
+        this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GeocodePrefetch");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        open();
+    }
+
+    /**
+     * Return the address of a location, asking the Geocoder if it is not
+     * cached or the cached address has expired.
+     * @return  The address or null if it can't be determined
+     */
+    public String lookup(double lat, double lng) {
+        String hash = geohash(lat, lng, precision);
+        Entry e = find(hash);
+        if (e != null && System.currentTimeMillis() - e.time < ttl) return e.address;
+
+        String address = fetch(hash, lat, lng);
+        if (address == null || address.isEmpty()) {
+            return (e == null) ? null : e.address;  // Better stale than nothing
+        }
+        return address;
+    }
+
+    /**
+     * Return the cached address of a location without ever calling the
+     * Geocoder. Expired addresses are returned.
+     * @return  The address or null if it is not cached
+     */
+    public String lookupCached(double lat, double lng) {
+        Entry e = find(geohash(lat, lng, precision));
+        return (e == null) ? null : e.address;
+    }
+
+    /**
+     * Look up the address of a location in the background if it isn't
+     * already cached and fresh.
+     */
+    public void prefetch(final double lat, final double lng) {
+        if (lat == 0 && lng == 0) return;
+        prefetcher.submit(new Runnable() {
+            @Override public void run() {
+                try { lookup(lat, lng); }
+                catch (Exception e) { logger.warning("Geocode prefetch failed: " + e); }
+            }
+        });
+    }
+
+    /**
+     * Prefetch the locations where the car most frequently rests.
+     * @param cycles    The cycles to consider
+     * @param limit     The maximum number of locations to prefetch
+     */
+    public void prefetchFrequent(List<? extends BaseCycle> cycles, int limit) {
+        final Map<String,Integer> counts = new HashMap<>();
+        final Map<String,BaseCycle> representative = new HashMap<>();
+        for (BaseCycle c : cycles) {
+            if (c.lat == 0 && c.lng == 0) continue;
+            String hash = geohash(c.lat, c.lng, precision);
+            Integer n = counts.get(hash);
+            counts.put(hash, n == null ? 1 : n + 1);
+            if (n == null) representative.put(hash, c);
+        }
+        List<String> hashes = new ArrayList<>(counts.keySet());
+        Collections.sort(hashes, new Comparator<String>() {
+            @Override public int compare(String a, String b) {
+                return counts.get(b) - counts.get(a);
+            }
+        });
+        for (String hash : hashes.subList(0, Math.min(limit, hashes.size()))) {
+            BaseCycle c = representative.get(hash);
+            prefetch(c.lat, c.lng);
+        }
+    }
+
+    /**
+     * Encode a location as a geohash
+     * @param precision The number of characters in the result
+     */
+    public static String geohash(double lat, double lng, int precision) {
+        double latLo = -90, latHi = 90, lngLo = -180, lngHi = 180;
+        StringBuilder sb = new StringBuilder(precision);
+        boolean isLng = true;
+        int bit = 0, ch = 0;
+        while (sb.length() < precision) {
+            if (isLng) {
+                double mid = (lngLo + lngHi) / 2;
+                if (lng >= mid) { ch = (ch << 1) | 1; lngLo = mid; }
+                else { ch <<= 1; lngHi = mid; }
+            } else {
+                double mid = (latLo + latHi) / 2;
+                if (lat >= mid) { ch = (ch << 1) | 1; latLo = mid; }
+                else { ch <<= 1; latHi = mid; }
+            }
+            isLng = !isLng;
+            if (++bit == 5) {
+                sb.append(Base32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override public void stop() { close(); }
+
+    public synchronized void close() {
+        prefetcher.shutdownNow();
+        if (log != null) {
+            try { log.close(); }
+            catch (IOException e) { logger.warning("Failed closing geocode cache: " + e); }
+            log = null;
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Managing the two levels of the cache
+ *
+ *----------------------------------------------------------------------------*/
+
+    private synchronized Entry find(String hash) {
+        Entry e = memory.get(hash);
+        if (e != null) { memoryHits.incrementAndGet(); return e; }
+
+        Entry onDisk = index.get(hash);
+        if (onDisk == null || log == null) return null;
+        try {
+            byte[] line = new byte[onDisk.length];
+            log.seek(onDisk.offset);
+            log.readFully(line);
+            e = parse(new String(line, StandardCharsets.UTF_8), onDisk.offset);
+        } catch (IOException ex) {
+            logger.warning("Unable to read geocode cache: " + ex);
+            return null;
+        }
+        if (e == null || !e.hash.equals(hash)) return null;
+        memory.put(hash, e);
+        diskHits.incrementAndGet();
+        return e;
+    }
+
+    /**
+     * Ask the Geocoder for the address of a location and cache the result.
+     * If a request for the same geohash is already underway, wait for its
+     * result rather than making another.
+     */
+    private String fetch(final String hash, final double lat, final double lng) {
+        FutureTask<String> request = new FutureTask<>(new Callable<String>() {
+            @Override public String call() {
+                misses.incrementAndGet();
+                String address = geocoder.lookup(lat, lng);
+                if (address != null && !address.isEmpty()) store(hash, address);
+                return address;
+            }
+        });
+        FutureTask<String> underway = inFlight.putIfAbsent(hash, request);
+        if (underway == null) {
+            try { request.run(); }
+            finally { inFlight.remove(hash, request); }
+            underway = request;
+        }
+        try {
+            return underway.get();
+        } catch (ExecutionException ex) {
+            logger.warning("Geocode lookup failed: " + ex.getCause());
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private synchronized void store(String hash, String address) {
+        Entry e = new Entry(hash, System.currentTimeMillis(), address);
+        memory.put(hash, e);
+        if (log == null) return;
+        try {
+            byte[] line = e.toLine().getBytes(StandardCharsets.UTF_8);
+            e.offset = log.length();
+            e.length = line.length - 1;     // Excluding the newline
+            log.seek(e.offset);
+            log.write(line);
+            Entry old = index.put(hash, e.withoutAddress());
+            if (old != null) liveBytes -= old.length + 1;
+            liveBytes += line.length;
+            if (index.size() > maxStored || log.length() > 2 * liveBytes + 4096) {
+                compact();
+            }
+        } catch (IOException ex) {
+            logger.warning("Unable to write geocode cache: " + ex);
+        }
+    }
+
+    private void open() {
+        try {
+            log = new RandomAccessFile(storeFile, "rw");
+            long offset = 0;
+            String line;
+            // RandomAccessFile.readLine doesn't decode UTF-8, so read raw
+            // lines and decode them ourselves.
+            while ((line = readRawLine()) != null) {
+                Entry e = parse(line, offset);
+                int length = line.getBytes(StandardCharsets.ISO_8859_1).length;
+                if (e != null) {
+                    e.length = length;
+                    Entry old = index.put(e.hash, e.withoutAddress());
+                    if (old != null) liveBytes -= old.length + 1;
+                    liveBytes += length + 1;
+                }
+                offset += length + 1;
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to open geocode cache: " + e);
+            log = null;
+        }
+    }
+
+    private String readRawLine() throws IOException {
+        // Returns the line with bytes mapped 1:1 to chars (ISO-8859-1)
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = log.read()) != -1 && c != '\n') { sb.append((char)c); }
+        return (c == -1 && sb.length() == 0) ? null : sb.toString();
+    }
+
+    /**
+     * Rewrite the log with only the newest entry for each geohash, dropping
+     * the oldest entries if there are more than maxStored.
+     */
+    private void compact() throws IOException {
+        List<Entry> live = new ArrayList<>(index.values());
+        Collections.sort(live, new Comparator<Entry>() {
+            @Override public int compare(Entry a, Entry b) { return Long.compare(b.time, a.time); }
+        });
+        if (live.size() > maxStored) live = live.subList(0, maxStored);
+
+        File tempFile = new File(storeFile.getPath() + ".tmp");
+        Map<String,Entry> newIndex = new HashMap<>();
+        long newLive = 0;
+        try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+            out.setLength(0);
+            for (Entry stored : live) {
+                byte[] line = new byte[stored.length + 1];
+                log.seek(stored.offset);
+                log.readFully(line, 0, stored.length);
+                line[stored.length] = '\n';
+                Entry moved = stored.withoutAddress();
+                moved.offset = out.getFilePointer();
+                out.write(line);
+                newIndex.put(moved.hash, moved);
+                newLive += line.length;
+            }
+        }
+        log.close();
+        if (!tempFile.renameTo(storeFile)) {
+            storeFile.delete();
+            if (!tempFile.renameTo(storeFile)) {
+                logger.warning("Unable to replace geocode cache");
+            }
+        }
+        log = new RandomAccessFile(storeFile, "rw");
+        index.clear();
+        index.putAll(newIndex);
+        liveBytes = newLive;
+        logger.fine("Compacted geocode cache to " + index.size() + " entries");
+    }
+
+    private static Entry parse(String line, long offset) {
+        String[] parts = line.split("\t", 3);
+        if (parts.length != 3) return null;
+        try {
+            Entry e = new Entry(parts[0], Long.parseLong(parts[1]), parts[2]);
+            e.offset = offset;
+            return e;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+        final String hash;
+        final long time;
+        final String address;
+        long offset;
+        int length;
+
+        Entry(String hash, long time, String address) {
+            this.hash = hash;
+            this.time = time;
+            this.address = address;
+        }
+
+        Entry withoutAddress() {
+            Entry e = new Entry(hash, time, null);
+            e.offset = offset;
+            e.length = length;
+            return e;
+        }
+
+        String toLine() {
+            String clean = address.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+            return hash + "\t" + time + "\t" + clean + "\n";
+        }
+    }
+}
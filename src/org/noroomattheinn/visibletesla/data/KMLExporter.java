@@ -5,28 +5,47 @@
  */
 package org.noroomattheinn.visibletesla.data;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.util.Date;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.noroomattheinn.timeseries.TimeSeries;
 import static org.noroomattheinn.tesla.Tesla.logger;
 
 /**
- * KMLExporter: Export a Trip to a KML file
- * 
+ * KMLExporter: Export Trips to a KMZ file. The KML is generated directly into
+ * the zip entry. The Trips are loaded in a single pass over the stored data
+ * and each one is handed to a worker thread to be encoded as soon as it has
+ * been loaded. The fragments are written in order. The pass waits while a
+ * small window of Trips is being encoded, so only that window of Trips and
+ * fragments is in memory at any time, however many Trips are exported.
+ *
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
 class KMLExporter {
+    private static final String KMLFileName = "doc.kml";
     private static final String CarIconFileName = "car.png";
     private static final String CarIconResource = "org/noroomattheinn/TeslaResources/02_loc_arrow@2x.png";
+    private static final int    BufferSize = 64 * 1024;
+    private static final long[] Pow10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
     private final String[] pathColors = {
         "ff0000ff",     // Red
         "ff00ff00",     // Green
@@ -35,160 +54,274 @@ class KMLExporter {
         "ffff00ff",     // Magenta
         "ff0000ff"      // Yellow
     };
-    private int pathColorIndex = 0;
-    private int indent = 0;
-    private PrintWriter pw;
 
-    private void emitIndent() {
-        for (int i = 0; i < indent; i++) {
-            pw.print("    ");
+    /**
+     * Export Trips to a KMZ file.
+     * @param store     The TripStore that loads the Trips
+     * @param trips     The trips to export
+     * @param ts        The TimeSeries holding their WayPoints
+     * @param toFile    The KMZ file to create
+     * @return          true if the export succeeded, false otherwise
+     */
+    boolean export(
+            TripStore store, List<TripSummary> trips, TimeSeries ts, File toFile) {
+        int nThreads = Math.max(1, Math.min(
+                Runtime.getRuntime().availableProcessors(), trips.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "KMLExport");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        ZipOutputStream zos = null;
+        try {
+            zos = new ZipOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(toFile), BufferSize));
+
+            zos.putNextEntry(new ZipEntry(KMLFileName));
+            Writer w = new BufferedWriter(
+                    new OutputStreamWriter(zos, StandardCharsets.UTF_8), BufferSize);
+            emitKML(store, trips, ts, new Encoder(pool, nThreads * 2, w), w);
+            w.flush();
+            zos.closeEntry();
+
+            zos.putNextEntry(new ZipEntry(CarIconFileName));
+            InputStream is = getClass().getClassLoader().getResourceAsStream(CarIconResource);
+            try { IOUtils.copy(is, zos); } finally { is.close(); }
+            zos.closeEntry();
+            return true;
+        } catch (IOException | ExecutionException ex) {
+            logger.warning("Unable to create KMZ file: " + ex);
+            return false;
+        } catch (InterruptedException ex) {
+            logger.warning("Interrupted while creating KMZ file");
+            return false;
+        } finally {
+            pool.shutdownNow();
+            if (zos != null) try {
+                zos.close();
+            } catch (IOException ex) {
+                logger.warning("Failed closing ZipOutputStream: " + ex);
+            }
         }
     }
 
-    private void println(String s) { emitIndent(); pw.println(s); }
-    private void emitOpen(String s) { emitIndent(); pw.println(s); indent++; }
-    private void emitClose(String s) { indent--; emitIndent(); pw.println(s); }
-    private void format(String s, Object... args) {
-        emitIndent();
-        pw.format(s, args);
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Methods for emitting the document
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void emitKML(
+            TripStore store, List<TripSummary> trips, TimeSeries ts,
+            Encoder encoder, Writer w)
+            throws IOException, InterruptedException, ExecutionException {
+        w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        w.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n");
+        w.write("<Document>\n");
+
+        store.streamTrips(trips, ts, encoder);
+        encoder.finish();
+
+        w.write("</Document>\n");
+        w.write("</kml>\n");
     }
 
-    boolean export(List<Trip> trips, File toFile) {
-        File tempDir;
-        File kmlFile;
+    /**
+     * Encodes Trips as they are loaded. At most 'window' Trips are being
+     * encoded at once; when that many are in flight, loading waits while the
+     * oldest fragment is written. Fragments are written in the order the
+     * Trips were loaded regardless of when they complete.
+     */
+    private class Encoder implements TripStore.TripCollector {
+        private final ExecutorService pool;
+        private final int window;
+        private final Writer w;
+        private final Deque<Future<String>> inFlight = new ArrayDeque<>();
+        private int nTrips = 0;
+        private Exception failure = null;
 
-        try {
-            tempDir = Files.createTempDirectory("VTKML").toFile();
-            kmlFile = File.createTempFile("VTKML", ".kml", tempDir);
-            pw = new PrintWriter(kmlFile);
-            InputStream is =
-                    getClass().getClassLoader().getResourceAsStream(CarIconResource);
-            File carIconFile = new File(tempDir, CarIconFileName);
-            FileUtils.copyInputStreamToFile(is, carIconFile);
-            emitKML(trips);
-            pw.flush(); pw.close();
-            return zipEm(toFile, carIconFile, kmlFile);
-        } catch (IOException ex) {
-            logger.warning("Unable to create KML file or directory");
-            return false;
+        Encoder(ExecutorService pool, int window, Writer w) {
+            this.pool = pool;
+            this.window = window;
+            this.w = w;
         }
-    }
 
-    private void emitKML(List<Trip> trips) {
-        println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        println("<kml xmlns=\"http://www.opengis.net/kml/2.2\">");
-        emitOpen("<Document>");
+        @Override public boolean collect(final Trip t) {
+            final String color = pathColors[nTrips++ % pathColors.length];
+            inFlight.add(pool.submit(new Callable<String>() {
+                @Override public String call() {
+                    return t.isEmpty() ? "" : encodeTrip(t, color);
+                }
+            }));
+            try {
+                while (inFlight.size() >= window) { writeOldest(); }
+                return true;
+            } catch (IOException | InterruptedException | ExecutionException e) {
+                failure = e;
+                return false;
+            }
+        }
 
-        for (Trip t : trips) {
-            emitPath(t);
-            emitFolderOfMarkers(t);
+        /**
+         * Write the fragments still in flight or, if loading was stopped by
+         * a failure, throw it
+         */
+        void finish() throws IOException, InterruptedException, ExecutionException {
+            if (failure == null) {
+                while (!inFlight.isEmpty()) { writeOldest(); }
+                return;
+            }
+            if (failure instanceof IOException) throw (IOException)failure;
+            if (failure instanceof InterruptedException) throw (InterruptedException)failure;
+            throw (ExecutionException)failure;
         }
 
-        emitClose("</Document>");
-        println("</kml>");
+        private void writeOldest()
+                throws IOException, InterruptedException, ExecutionException {
+            w.write(inFlight.removeFirst().get());
+        }
     }
 
-    private void emitCarMarker(WayPoint wp) {
-            emitOpen("<Placemark>");
-            emitExtendedData(wp);
-            emitPoint(wp);
-            emitIcon(wp);
-            emitClose("</Placemark>");
+    private static String encodeTrip(Trip t, String color) {
+        Fragment f = new Fragment(t.size() * 600);
+        emitPath(f, t, color);
+        emitFolderOfMarkers(f, t);
+        return f.toString();
     }
 
-    private void emitExtendedData(WayPoint wp) {
-        emitOpen("<ExtendedData>");
-
-        format("<Data name=\"Time\"><value>%1$tH:%1$tM:%1$tS</value></Data>\n", new Date(wp.getTime()));
-        format("<Data name=\"Power\"><value>%.1f</value></Data>\n", wp.getPower());
-        format("<Data name=\"SOC\"><value>%.1f</value></Data>\n", wp.getSOC());
-
-        emitClose("</ExtendedData>"); 
+    private static void emitPath(Fragment f, Trip t, String color) {
+        f.indent = 1;
+        f.open("<Placemark>");
+        f.line().append("<name>Tesla Path on ");
+        appendDateAndTime(f.sb, t.firstWayPoint().getTime());
+        f.sb.append("</name>\n");
+        f.open("<Style>");
+        f.open("<LineStyle>");
+        f.line().append("<color>").append(color).append("</color>\n");
+        f.println("<width>3</width>");
+        f.close("</LineStyle>");
+        f.close("</Style>");
+        f.open("<LineString>");
+        f.println("<tessellate>1</tessellate>");
+        f.open("<coordinates>");
+        for (WayPoint wp : t.getWayPoints()) {
+            appendCoordinates(f.line(), wp).append('\n');
+        }
+        f.close("</coordinates>");
+        f.close("</LineString>");
+        f.close("</Placemark>");
     }
 
-    private void emitFolderOfMarkers(Trip t) {
-        emitOpen("<Folder>");
-        println("<open>0</open>");
-        format( "<name>"+
-                   "Tesla Positions on %1$tY-%1$tm-%1$td @ "+
-                   "%1$tH:%1$tM</name>\n", new Date(t.firstWayPoint().getTime()));
+    private static void emitFolderOfMarkers(Fragment f, Trip t) {
+        f.open("<Folder>");
+        f.println("<open>0</open>");
+        f.line().append("<name>Tesla Positions on ");
+        appendDateAndTime(f.sb, t.firstWayPoint().getTime());
+        f.sb.append("</name>\n");
+        Calendar c = Calendar.getInstance();
         for (WayPoint wp : t.getWayPoints()) {
-            emitCarMarker(wp);
+            emitCarMarker(f, wp, c);
         }
-        emitClose("</Folder>");
+        f.close("</Folder>");
     }
 
-    private void emitPath(Trip t) {
-            emitOpen("<Placemark>");
-            format(
-                "<name>Tesla Path on %1$tY-%1$tm-%1$td @ %1$tH:%1$tM</name>\n",
-                new Date(t.firstWayPoint().getTime()));
-            emitOpen("<Style>");
-            emitOpen("<LineStyle>");
-            format("<color>%s</color>\n", pathColors[pathColorIndex++ % pathColors.length]);
-            println("<width>3</width>");
-            emitClose("</LineStyle>"); 
-            emitClose("</Style>"); 
-            emitOpen("<LineString>");
-            println("<tessellate>1</tessellate>");
-            emitOpen("<coordinates>");
-            for (WayPoint wp : t.getWayPoints()) {
-                format("%f,%f,0\n", wp.getLng(), wp.getLat());
-            }
-            emitClose("</coordinates>"); 
-            emitClose("</LineString>"); 
-            emitClose("</Placemark>"); 
+    private static void emitCarMarker(Fragment f, WayPoint wp, Calendar c) {
+        f.open("<Placemark>");
+
+        f.open("<ExtendedData>");
+        c.setTimeInMillis(wp.getTime());
+        StringBuilder sb = f.line().append("<Data name=\"Time\"><value>");
+        append2(sb, c.get(Calendar.HOUR_OF_DAY)).append(':');
+        append2(sb, c.get(Calendar.MINUTE)).append(':');
+        append2(sb, c.get(Calendar.SECOND)).append("</value></Data>\n");
+        appendFixed(f.line().append("<Data name=\"Power\"><value>"), wp.getPower(), 1)
+                .append("</value></Data>\n");
+        appendFixed(f.line().append("<Data name=\"SOC\"><value>"), wp.getSOC(), 1)
+                .append("</value></Data>\n");
+        f.close("</ExtendedData>");
+
+        f.open("<Point>");
+        appendCoordinates(f.line().append("<coordinates>"), wp).append("</coordinates>\n");
+        f.close("</Point>");
+
+        f.open("<Style>");
+        f.open("<IconStyle>");
+        f.println("<scale>0.7</scale>");
+        appendFixed(f.line().append("<heading>"), wp.getHeading(), 6).append("</heading>\n");
+        f.line().append("<Icon><href>").append(CarIconFileName).append("</href></Icon>\n");
+        f.close("</IconStyle>");
+        f.close("</Style>");
+
+        f.close("</Placemark>");
     }
 
-    private void emitPoint(WayPoint wp) {
-        emitOpen("<Point>");
-        format("<coordinates>%f,%f,0</coordinates>\n", wp.getLng(), wp.getLat());
-        emitClose("</Point>"); 
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Formatting helpers. These produce the same text as the
+ * corresponding String.format patterns without the parsing overhead.
+ *
+ *----------------------------------------------------------------------------*/
+
+    // "%f,%f,0"
+    private static StringBuilder appendCoordinates(StringBuilder sb, WayPoint wp) {
+        appendFixed(sb, wp.getLng(), 6).append(',');
+        return appendFixed(sb, wp.getLat(), 6).append(",0");
     }
 
-    private void emitIcon(WayPoint wp) {
-        emitOpen("<Style>"); 
-        emitOpen("<IconStyle>");
-        println("<scale>0.7</scale>");
-        format("<heading>%f</heading>\n", wp.getHeading());
-        format("<Icon><href>%s</href></Icon>\n", CarIconFileName);
-        emitClose("</IconStyle>"); 
-        emitClose("</Style>"); 
+    // "%1$tY-%1$tm-%1$td @ %1$tH:%1$tM"
+    private static void appendDateAndTime(StringBuilder sb, long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        sb.append(c.get(Calendar.YEAR)).append('-');
+        append2(sb, c.get(Calendar.MONTH) + 1).append('-');
+        append2(sb, c.get(Calendar.DAY_OF_MONTH)).append(" @ ");
+        append2(sb, c.get(Calendar.HOUR_OF_DAY)).append(':');
+        append2(sb, c.get(Calendar.MINUTE));
     }
 
-    private boolean zipEm(File toFile, File... files) {
-        FileInputStream fis = null;
-        try {
-            byte[] buffer = new byte[1024];
-            FileOutputStream fos = new FileOutputStream(toFile);
-            ZipOutputStream zos = new ZipOutputStream(fos);
+    private static StringBuilder append2(StringBuilder sb, int value) {
+        if (value < 10) sb.append('0');
+        return sb.append(value);
+    }
 
-            for (File file : files) {
-                fis = new FileInputStream(file);
-                zos.putNextEntry(new ZipEntry(file.getName()));
+    static StringBuilder appendFixed(StringBuilder sb, double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return sb.append(value > 0 ? "Infinity" : (value < 0 ? "-Infinity" : "NaN"));
+        }
+        long scale = Pow10[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0) sb.append('-');
+        sb.append(scaled / scale);
+        if (decimals > 0) {
+            sb.append('.');
+            long fraction = scaled % scale;
+            for (long p = scale / 10; p > 1 && fraction < p; p /= 10) sb.append('0');
+            sb.append(fraction);
+        }
+        return sb;
+    }
 
-                int length;
-                while ((length = fis.read(buffer)) > 0) {
-                    zos.write(buffer, 0, length);
-                }
+    /**
+     * A fragment of the KML document for a single Trip, with the same
+     * indentation the document has always used.
+     */
+    private static class Fragment {
+        final StringBuilder sb;
+        int indent = 0;
 
-                zos.closeEntry();
-                fis.close();
-                fis = null;
-            }
-            zos.close();
-        } catch (IOException ioe) {
-            logger.warning("Error creating zip file: " + ioe);
-            return false;
-        } finally {
-            if (fis != null) try {
-                fis.close();
-            } catch (IOException ex) {
-                logger.warning("Failed closing FileInputStream: " + ex);
-            }
+        Fragment(int capacity) { sb = new StringBuilder(capacity); }
+
+        StringBuilder line() {
+            for (int i = 0; i < indent; i++) { sb.append("    "); }
+            return sb;
         }
+        void println(String s) { line().append(s).append('\n'); }
+        void open(String s) { println(s); indent++; }
+        void close(String s) { indent--; println(s); }
 
-        return true;
+        @Override public String toString() { return sb.toString(); }
     }
-
-}
\ No newline at end of file
+}
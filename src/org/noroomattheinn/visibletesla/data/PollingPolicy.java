@@ -0,0 +1,119 @@
+/*
+ * PollingPolicy.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 14, 2015
+ */
+package org.noroomattheinn.visibletesla.data;
+
+import javafx.beans.property.IntegerProperty;
+import org.noroomattheinn.tesla.ChargeState;
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * PollingPolicy: Decide how long the StatsStreamer should wait before its
+ * next poll. The interval shrinks when the car is moving or when the state
+ * of charge or charge current is changing quickly. It grows when readings
+ * are flat and backs off after failed polls. The result is always within
+ * the configured [minInterval..maxInterval] bounds.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+class PollingPolicy {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final double FastSOCChange = 1.0;     // Percent between polls
+    private static final double FastAmpChange = 2.0;     // Amps between polls
+    private static final double FlatAmpChange = 0.5;     // Amps between polls
+    private static final double GrowthFactor  = 1.5;
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final IntegerProperty minInterval;  // In seconds
+    private final IntegerProperty maxInterval;  // In seconds
+    private long    interval;                   // In millis, last decision
+    private double  lastSOC = Double.NaN;
+    private double  lastAmps = Double.NaN;
+    private int     consecutiveFailures = 0;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    PollingPolicy(IntegerProperty minInterval, IntegerProperty maxInterval) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.interval = maxMillis();
+    }
+
+    /**
+     * Compute the amount of time to wait before the next poll.
+     *
+     * @param state     The current state of the car
+     * @param cs        The most recent ChargeState (may be null)
+     * @param failed    Whether the most recent poll failed to produce new data
+     * @return          The interval to wait, in milliseconds
+     */
+    long nextInterval(StatsStreamer.CarState state, ChargeState cs, boolean failed) {
+        String reason;
+        if (failed) {
+            consecutiveFailures++;
+            interval = interval * 2;
+            reason = "backoff after " + consecutiveFailures + " failure(s)";
+        } else {
+            consecutiveFailures = 0;
+            double dSOC = (cs == null) ? 0 : delta(cs.batteryPercent, lastSOC);
+            double dAmps = (cs == null) ? 0 : delta(cs.chargerActualCurrent, lastAmps);
+            if (cs != null) { lastSOC = cs.batteryPercent; lastAmps = cs.chargerActualCurrent; }
+
+            if (state == StatsStreamer.CarState.Moving) {
+                interval = minMillis();
+                reason = "moving";
+            } else if (dSOC >= FastSOCChange || dAmps >= FastAmpChange) {
+                interval = interval / 2;
+                reason = String.format("changing (dSOC: %.1f, dAmps: %.1f)", dSOC, dAmps);
+            } else if (dSOC == 0 && dAmps < FlatAmpChange) {
+                interval = (long)(interval * GrowthFactor);
+                reason = "flat";
+            } else {
+                reason = "steady";
+            }
+
+            // While charging, never wait so long that we'd miss the shape
+            // of the charge curve
+            if (state == StatsStreamer.CarState.Charging) {
+                interval = Math.min(interval, (minMillis() + maxMillis()) / 2);
+            }
+        }
+
+        interval = Math.max(minMillis(), Math.min(maxMillis(), interval));
+        logger.fine(String.format(
+                "Poll scheduling: state: %s, interval: %ds, reason: %s",
+                state, interval / 1000, reason));
+        return interval;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private long minMillis() { return Math.max(1, minInterval.get()) * 1000L; }
+    private long maxMillis() { return Math.max(minInterval.get(), maxInterval.get()) * 1000L; }
+
+    private static double delta(double cur, double last) {
+        if (Double.isNaN(last)) return 0;
+        return Math.abs(cur - last);
+    }
+}
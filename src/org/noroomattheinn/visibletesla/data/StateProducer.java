@@ -5,20 +5,47 @@
  */
 package org.noroomattheinn.visibletesla.data;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.noroomattheinn.metrics.ExecutorMetrics;
 import org.noroomattheinn.tesla.BaseState;
 import org.noroomattheinn.tesla.Vehicle;
 import org.noroomattheinn.utils.Utils;
 import org.noroomattheinn.utils.Executor;
+import org.noroomattheinn.utils.ThreadManager;
 import org.noroomattheinn.visibletesla.vehicle.VTVehicle;
+import static org.noroomattheinn.tesla.Tesla.logger;
 
 
 /**
- * StateProducer: Produce state updates on demand.
+ * StateProducer: Produce state updates on demand. A request may cover several
+ * state types. Those are queried concurrently (with bounded parallelism) and
+ * share a single trip through the Executor's queue and retry mechanism. Only
+ * the types that failed are re-queried on a retry.
  *
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
-class StateProducer extends Executor<StateProducer.Request> {
+class StateProducer extends Executor<StateProducer.Request>
+                    implements ThreadManager.Stoppable {
+    
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ * 
+ *----------------------------------------------------------------------------*/
+    
+    private static final int MaxParallelQueries = 3;
     
 /*------------------------------------------------------------------------------
  *
@@ -26,13 +53,16 @@ class StateProducer extends Executor<StateProducer.Request> {
  * 
  *----------------------------------------------------------------------------*/
     
-    private Map<Vehicle.StateType,Long> lastProduced = Utils.newHashMap(
-        Vehicle.StateType.Charge,   0L,
-        Vehicle.StateType.Drive,    0L,
-        Vehicle.StateType.GUI,      0L,
-        Vehicle.StateType.HVAC,     0L,
-        Vehicle.StateType.Vehicle,  0L);
+    private final Map<Vehicle.StateType,Long> lastProduced = Collections.synchronizedMap(
+        Utils.newHashMap(
+            Vehicle.StateType.Charge,   0L,
+            Vehicle.StateType.Drive,    0L,
+            Vehicle.StateType.GUI,      0L,
+            Vehicle.StateType.HVAC,     0L,
+            Vehicle.StateType.Vehicle,  0L));
     private final VTVehicle vtVehicle;
+    private final ExecutorService queryPool;
+    private final ExecutorMetrics metrics;
     
 /*==============================================================================
  * -------                                                               -------
@@ -43,11 +73,57 @@ class StateProducer extends Executor<StateProducer.Request> {
     StateProducer(VTVehicle v, FeedbackListener feedbackListener) {
         super("StateProducer",  feedbackListener);
         this.vtVehicle = v;
+        this.queryPool = Executors.newFixedThreadPool(
+                MaxParallelQueries, new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "StateQuery");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.metrics = new ExecutorMetrics("StateProducer", queue);
+        ThreadManager.get().addStoppable((ThreadManager.Stoppable)this);
     }
     
     void produce(Vehicle.StateType whichState, Object progressContext) {
-        super.produce(new Request(whichState, progressContext));
+        super.produce(new Request(EnumSet.of(whichState), progressContext));
     }
+    
+    void produce(Set<Vehicle.StateType> whichStates, Object progressContext) {
+        if (whichStates.isEmpty()) return;
+        super.produce(new Request(EnumSet.copyOf(whichStates), progressContext));
+    }
+    
+    /**
+     * Synchronously query a set of states in parallel. The states are returned,
+     * but not noted with the VTVehicle. Invalid states are included in the
+     * result so the caller can decide whether to retry.
+     * 
+     * @param whichStates   The state types to query
+     * @return              A map from state type to the resulting state
+     */
+    Map<Vehicle.StateType,BaseState> query(Set<Vehicle.StateType> whichStates) {
+        final Vehicle v = vtVehicle.getVehicle();
+        Map<Vehicle.StateType,Future<BaseState>> futures =
+                new EnumMap<>(Vehicle.StateType.class);
+        for (final Vehicle.StateType type : whichStates) {
+            futures.put(type, queryPool.submit(new Callable<BaseState>() {
+                @Override public BaseState call() { return v.query(type); }
+            }));
+        }
+        
+        Map<Vehicle.StateType,BaseState> results = new EnumMap<>(Vehicle.StateType.class);
+        for (Map.Entry<Vehicle.StateType,Future<BaseState>> entry : futures.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().get());
+            } catch (InterruptedException | ExecutionException e) {
+                logger.warning("Problem querying " + entry.getKey() + ": " + e);
+            }
+        }
+        return results;
+    }
+    
+    @Override public void stop() { queryPool.shutdownNow(); }
         
 /*------------------------------------------------------------------------------
  *
@@ -56,28 +132,69 @@ class StateProducer extends Executor<StateProducer.Request> {
  *----------------------------------------------------------------------------*/
     
     @Override  protected boolean requestSuperseded(Request r) {
-        return r.timeOfRequest < lastProduced.get(r.stateType);
+        removeSuperseded(r);
+        return r.stateTypes.isEmpty();
+    }
+    
+    @Override protected Request filter(Request r) {
+        Request filtered = super.filter(r);
+        metrics.submitted(filtered != null);
+        return filtered;
     }
     
     @Override protected boolean execRequest(Request r) {
-        final BaseState state = vtVehicle.getVehicle().query(r.stateType);
-        if (state.valid) {
-            lastProduced.put(r.stateType, System.currentTimeMillis());
-            vtVehicle.noteUpdatedState(state);
-            return true;
+        long began = metrics.attemptStarted();
+        boolean succeeded = false;
+        try {
+            return (succeeded = attempt(r));
+        } finally {
+            metrics.attemptEnded(began, succeeded);
+        }
+    }
+    
+    private boolean attempt(Request r) {
+        removeSuperseded(r);
+        if (r.stateTypes.isEmpty()) return true;
+        
+        Map<Vehicle.StateType,BaseState> results = query(r.stateTypes);
+        List<BaseState> valid = new ArrayList<>();
+        for (Map.Entry<Vehicle.StateType,BaseState> entry : results.entrySet()) {
+            BaseState state = entry.getValue();
+            if (state != null && state.valid) {
+                lastProduced.put(entry.getKey(), System.currentTimeMillis());
+                r.stateTypes.remove(entry.getKey());  // Don't retry this one
+                valid.add(state);
+            }
+        }
+        
+        // Deliver everything we got as a group
+        for (BaseState state : valid) { vtVehicle.noteUpdatedState(state); }
+        return r.stateTypes.isEmpty();
+    }
+    
+    /**
+     * Drop any types in the request that have been produced since the request
+     * was made, by this request or by another one.
+     */
+    private void removeSuperseded(Request r) {
+        List<Vehicle.StateType> superseded = new ArrayList<>();
+        for (Vehicle.StateType type : r.stateTypes) {
+            if (r.timeOfRequest < lastProduced.get(type)) { superseded.add(type); }
         }
-        return false;
+        r.stateTypes.removeAll(superseded);
     }
     
     static class Request extends Executor.Request {
-        Vehicle.StateType stateType;
+        final EnumSet<Vehicle.StateType> stateTypes;
+        private final String name;
 
-        Request(Vehicle.StateType stateType, Object progressContext) {
+        Request(EnumSet<Vehicle.StateType> stateTypes, Object progressContext) {
             super(progressContext);
-            this.stateType = stateType;
+            this.stateTypes = stateTypes;
+            this.name = (stateTypes.size() == 1) ?
+                    stateTypes.iterator().next().name() : "Batch" + stateTypes;
         }
         
-        @Override protected String getRequestName() { return stateType.name(); }
+        @Override protected String getRequestName() { return name; }
     }
 }
-
@@ -31,8 +31,7 @@ class StatsStreamer implements Runnable {
  *----------------------------------------------------------------------------*/
     
     private static final long AllowSleepInterval = 30 * 60 * 1000;  // 30 Minutes
-    private static final long DefaultInterval =     4 * 60 * 1000;  //  4 Minutes
-    private enum CarState {Moving, Charging, Idle, Asleep};
+    enum CarState {Moving, Charging, Idle, Asleep};
     
 /*------------------------------------------------------------------------------
  *
@@ -44,6 +43,7 @@ class StatsStreamer implements Runnable {
     private final VTVehicle vtVehicle;
     private final TrackedObject<CarState> carState;
     private final BooleanProperty streamWhenPossible;
+    private final PollingPolicy pollingPolicy;
     private Predicate wakeEarly = Utils.alwaysFalse;
     private Predicate passiveCollection = Utils.alwaysFalse;
     
@@ -53,10 +53,12 @@ class StatsStreamer implements Runnable {
  * -------                                                               -------
  *============================================================================*/
     
-    StatsStreamer(VTData data, VTVehicle vehicle, BooleanProperty streamWhenPossible) {
+    StatsStreamer(VTData data, VTVehicle vehicle, BooleanProperty streamWhenPossible,
+                  PollingPolicy pollingPolicy) {
         this.vtData = data;
         this.vtVehicle = vehicle;
         this.streamWhenPossible = streamWhenPossible;
+        this.pollingPolicy = pollingPolicy;
         this.carState = new TrackedObject<>(CarState.Idle);
         
         // The following two changeListeners look similar, but the order of
@@ -104,11 +106,15 @@ class StatsStreamer implements Runnable {
     
     @Override public void run() {
         try {
+            long lastPollTime = 0;  // Time of the last poll that was issued
             while (!ThreadManager.get().shuttingDown()) {
 //                String theState = String.format(
 //                        "App State: %s, App Mode: %s, Car State: %s",
 //                        App.get().state, App.get().mode.get().name(), carState.get());
 //                logger.finer(theState);
+                // A poll that never yielded a new ChargeState counts as a failure
+                boolean failed = lastPollTime != 0 &&
+                        vtVehicle.chargeState.lastSet() < lastPollTime;
                 boolean produce = true;
                 if (passiveCollection.eval()) {
                     if (carState.get() == CarState.Idle) {
@@ -121,26 +127,32 @@ class StatsStreamer implements Runnable {
                         else produce = false;
                     }
                 }
-                if (produce) produce();
-                Utils.sleep(DefaultInterval, wakeEarly);
+                lastPollTime = 0;
+                if (produce) {
+                    if (produce()) lastPollTime = System.currentTimeMillis();
+                    else failed = true;
+                }
+                long interval = pollingPolicy.nextInterval(
+                        carState.get(), vtVehicle.chargeState.get(), failed);
+                Utils.sleep(interval, wakeEarly);
             }
         } catch (Exception e) {
             logger.severe("Uncaught exception in StatsStreamer: " + e.getMessage());
         }
     }
     
-    private void produce() {
+    private boolean produce() {
         if (carState.get() == CarState.Asleep) {
             if (!wakeupVehicle()) {
                 // If we're unable to wake up the car, don't bother trying to
-                // produce more data. TO DO: Should we do something so that this
-                // is retried sooner rather than later?
+                // produce more data. The PollingPolicy will back off.
                 logger.warning("Unable to wakeup the car after many attempts");
-                return;
+                return false;
             }
         }
         vtData.produceStream(streamWhenPossible.get());
         vtData.produceState(Vehicle.StateType.Charge, null);
+        return true;
     }
     
 /*------------------------------------------------------------------------------
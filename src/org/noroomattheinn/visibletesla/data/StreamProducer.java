@@ -5,6 +5,7 @@
  */
 package org.noroomattheinn.visibletesla.data;
 
+import org.noroomattheinn.metrics.ExecutorMetrics;
 import org.noroomattheinn.tesla.StreamState;
 import org.noroomattheinn.tesla.Streamer;
 import org.noroomattheinn.utils.Executor;
@@ -36,6 +37,7 @@ class StreamProducer extends Executor<StreamProducer.Request>
     
     private final  Streamer  streamer;
     private final  VTVehicle vtVehicle;
+    private final  ExecutorMetrics metrics;
     private        long      lastSnapshotTime = 0;
     
 /*==============================================================================
@@ -48,6 +50,7 @@ class StreamProducer extends Executor<StreamProducer.Request>
         super("StreamProducer", feedbackListener);
         this.vtVehicle = v;
         this.streamer = v.getVehicle().getStreamer();
+        this.metrics = new ExecutorMetrics("StreamProducer", queue);
         ThreadManager.get().addStoppable((ThreadManager.Stoppable)this);
     }
     
@@ -64,6 +67,16 @@ class StreamProducer extends Executor<StreamProducer.Request>
  *----------------------------------------------------------------------------*/
 
     @Override protected boolean execRequest(Request r) throws Exception {
+        long began = metrics.attemptStarted();
+        boolean succeeded = false;
+        try {
+            return (succeeded = attempt(r));
+        } finally {
+            metrics.attemptEnded(began, succeeded);
+        }
+    }
+
+    private boolean attempt(Request r) throws Exception {
         StreamState snapshot = r.continuation ? streamer.tryExistingStream() :
                                                 streamer.beginStreamIfNeeded();
         if (snapshot == null) {
@@ -88,6 +101,7 @@ class StreamProducer extends Executor<StreamProducer.Request>
             filtered = null;
             logger.finest("Filtering (s: " + r.stream + ", " + r.continuation +"), rqs = " + queue.remainingCapacity());
         }
+        metrics.submitted(filtered != null);
 
         return filtered;
     }
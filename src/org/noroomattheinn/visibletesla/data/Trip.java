@@ -5,87 +5,151 @@
  */
 package org.noroomattheinn.visibletesla.data;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 import org.noroomattheinn.utils.GeoUtils;
 
 /**
- * Object that represents a single trip.
+ * Object that represents a single trip. The WayPoints of the trip are stored
+ * in columns (one primitive array per field) rather than as individual
+ * objects. Callers that want WayPoints get lightweight views onto the
+ * columns.
  *
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
 public class Trip {
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final int InitialCapacity = 64;
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private int      size;
+    private long[]   time;
+    private double[] odometer, speed, heading, lat, lng, elevation, power, soc;
+    private double   energyEstimate = Double.NaN;
     private final List<WayPoint> waypoints;
-    private double energyEstimate = Double.NaN;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
 
     public Trip() {
-        waypoints = new ArrayList<>();
+        size = 0;
+        allocate(InitialCapacity);
+        waypoints = new AbstractList<WayPoint>() {
+            @Override public WayPoint get(int index) {
+                if (index < 0 || index >= size) throw new IndexOutOfBoundsException();
+                return new WayPointView(index);
+            }
+            @Override public int size() { return size; }
+        };
     }
 
-    public void addWayPoint(WayPoint wp) { 
-        waypoints.add(wp);
+    public void addWayPoint(WayPoint wp) {
+        if (size == time.length) { allocate(size * 2); }
+        time[size] = wp.getTime();
+        odometer[size] = wp.getOdo();
+        speed[size] = wp.getSpeed();
+        heading[size] = wp.getHeading();
+        lat[size] = wp.getLat();
+        lng[size] = wp.getLng();
+        elevation[size] = wp.getElevation();
+        power[size] = wp.getPower();
+        soc[size] = wp.getSOC();
+        size++;
+        energyEstimate = Double.NaN;
     }
 
+    /**
+     * Return a read-only List of WayPoints. The elements are views onto the
+     * underlying columns. Each holds only its index and is created when it is
+     * requested, so a pass over the WayPoints leaves nothing behind.
+     * @return The WayPoints of this Trip
+     */
     public List<WayPoint> getWayPoints() { return waypoints; }
 
+    /**
+     * Add elevation data using the default ElevationCache or, if there is
+     * none, directly from the service. As with addElevationData(cache),
+     * WayPoints whose elevation can't be determined are left as NaN.
+     */
     public void addElevationData() {
-        if (!Double.isNaN(waypoints.get(0).getElevation())) return;   // Already added
+        ElevationCache cache = ElevationCache.get();
+        if (cache != null) { addElevationData(cache); return; }
+        
+        if (hasAllElevations()) return;     // Already added
         List<GeoUtils.ElevationData> edl = GeoUtils.getElevations(waypoints);
         if (edl == null) return;
-        int nElevations = edl.size();
-        for (int i = 0; i < waypoints.size(); i++) {
-            waypoints.get(i).setElevation((i < nElevations) ? edl.get(i).elevation : 0.0);
+        int nElevations = Math.min(size, edl.size());
+        for (int i = 0; i < nElevations; i++) {
+            elevation[i] = edl.get(i).elevation;
         }
     }
-    
+
+    /**
+     * Add elevation data using the given cache. Only WayPoints whose
+     * locations are not already cached require a request to the service.
+     * WayPoints whose elevation can't be determined are left as NaN, so they
+     * are asked for again the next time.
+     * @param cache The cache to use
+     */
+    public void addElevationData(ElevationCache cache) {
+        if (hasAllElevations()) return;     // Already added
+        double[] e = cache.getElevations(lat, lng, size);
+        System.arraycopy(e, 0, elevation, 0, size);
+    }
+
     public double distance() {
-        if (waypoints.isEmpty()) return 0.0;
-        double startOdo = firstWayPoint().getOdo();
-        double endOdo = lastWayPoint().getOdo();
-        return (endOdo - startOdo);
+        if (size == 0) return 0.0;
+        return (odometer[size-1] - odometer[0]);
     }
-    
+
     public double estimateEnergy() {
         if (!Double.isNaN(energyEstimate)) return energyEstimate;
         double cumulative = 0.0;
-
-        Double lastPower = null;
-        long lastTime = 0;
-        for (WayPoint wp: waypoints) {
-            double power = wp.getPower();
-            if (lastPower == null) {
-                lastPower = power;
-                lastTime = wp.getTime();
-            } else {
-                double thisEnergy;
-                long dT = wp.getTime() - lastTime;
-                double dP = Math.abs(power-lastPower);
-                double minP = Math.min(power, lastPower);
-                thisEnergy = minP * dT + (dP*dT)/2.0;
-                cumulative += thisEnergy;
-                lastTime = wp.getTime();
-                lastPower = power;
-            }
+        for (int i = 1; i < size; i++) {
+            long dT = time[i] - time[i-1];
+            double dP = Math.abs(power[i] - power[i-1]);
+            double minP = Math.min(power[i], power[i-1]);
+            cumulative += minP * dT + (dP*dT)/2.0;
         }
         energyEstimate = cumulative/(1000*60*60);
         return energyEstimate;
     }
 
-
-    public boolean isEmpty() { return waypoints.isEmpty(); }
+    public boolean isEmpty() { return size == 0; }
+    public int size() { return size; }
     public WayPoint firstWayPoint() { return waypoints.get(0); }
-    public WayPoint lastWayPoint() { return waypoints.get(waypoints.size()-1); }
+    public WayPoint lastWayPoint() { return waypoints.get(size-1); }
+
+    /**
+     * Release any unused capacity in the columns. Call this once all of the
+     * WayPoints have been added.
+     */
+    public void compact() {
+        if (size < time.length) allocate(Math.max(1, size));
+    }
 
     public String asJSON() { return asJSON(true); }
 
     public String asJSON(boolean useMiles) {
         StringBuilder sb = new StringBuilder();
-        boolean first = true;
         sb.append("[\n");
-        for (WayPoint wp : waypoints) {
-            if (first) first = false;
-            else sb.append(",\n");
-            sb.append(wp.asJSON(useMiles));
+        for (int i = 0; i < size; i++) {
+            if (i != 0) sb.append(",\n");
+            sb.append(waypoints.get(i).asJSON(useMiles));
         }
         sb.append("]\n");
         return sb.toString();
@@ -93,5 +157,58 @@ public class Trip {
     }
 
     @Override public String toString() { return asJSON(); }
-    
-}
\ No newline at end of file
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods and Classes
+ *
+ *----------------------------------------------------------------------------*/
+
+    private boolean hasAllElevations() {
+        for (int i = 0; i < size; i++) {
+            if (Double.isNaN(elevation[i])) return false;
+        }
+        return true;
+    }
+
+    private void allocate(int capacity) {
+        if (time == null) {
+            time = new long[capacity];
+            odometer = new double[capacity]; speed = new double[capacity];
+            heading = new double[capacity];  lat = new double[capacity];
+            lng = new double[capacity];      elevation = new double[capacity];
+            power = new double[capacity];    soc = new double[capacity];
+        } else {
+            time = Arrays.copyOf(time, capacity);
+            odometer = Arrays.copyOf(odometer, capacity);
+            speed = Arrays.copyOf(speed, capacity);
+            heading = Arrays.copyOf(heading, capacity);
+            lat = Arrays.copyOf(lat, capacity);
+            lng = Arrays.copyOf(lng, capacity);
+            elevation = Arrays.copyOf(elevation, capacity);
+            power = Arrays.copyOf(power, capacity);
+            soc = Arrays.copyOf(soc, capacity);
+        }
+    }
+
+    /**
+     * A WayPoint whose values live in the columns of the enclosing Trip. It
+     * holds nothing but its index.
+     */
+    private class WayPointView extends WayPoint {
+        private final int index;
+
+        WayPointView(int index) { this.index = index; }
+
+        @Override public long   getTime()       { return time[index]; }
+        @Override public double getElevation()  { return elevation[index]; }
+        @Override public double getOdo()        { return odometer[index]; }
+        @Override public double getHeading()    { return heading[index]; }
+        @Override public double getPower()      { return power[index]; }
+        @Override public double getSOC()        { return soc[index]; }
+        @Override public double getSpeed()      { return speed[index]; }
+        @Override public double getLat()        { return lat[index]; }
+        @Override public double getLng()        { return lng[index]; }
+        @Override public void setElevation(double e) { elevation[index] = e; }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * TripMonitor.java - Copyright(c) 2013, 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 17, 2015
+ */
+package org.noroomattheinn.visibletesla.data;
+
+import org.noroomattheinn.tesla.ChargeState;
+import org.noroomattheinn.tesla.StreamState;
+import org.noroomattheinn.timeseries.Row;
+import org.noroomattheinn.utils.GeoUtils;
+import org.noroomattheinn.utils.TrackedObject;
+
+/**
+ * TripMonitor - Detect trips incrementally as location data is stored. A trip
+ * is a sequence of WayPoints with motion between them and no gap longer than
+ * MaxTimeBetweenWayPoints. When a trip completes, its TripSummary is published
+ * through lastTrip.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+class TripMonitor {
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    static final long MaxTimeBetweenWayPoints = 15 * 60 * 1000;
+    private static final double MinTripDistance = 0.1;     // Miles
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final TrackedObject<TripSummary> lastTrip;
+    private TripSummary tripInProgress = null;
+    private WayPoint    lastWayPoint = null;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    TripMonitor(final VTData vtData, TrackedObject<TripSummary> lastTrip) {
+        this.lastTrip = lastTrip;
+
+        vtData.lastStoredStreamState.addTracker(new Runnable() {
+            @Override public void run() {
+                StreamState ss = vtData.lastStoredStreamState.get();
+                ChargeState cs = vtData.lastStoredChargeState.get();
+                handleNewWayPoint(new FixedWayPoint(
+                        ss.timestamp, ss.odometer, ss.speed,
+                        ss.heading, ss.estLat, ss.estLng, Double.NaN,
+                        ss.power, cs == null ? 0.0 : cs.batteryPercent),
+                        cs == null ? 0.0 : cs.range);
+            }
+        });
+
+        // ChargeStates keep arriving while the car is parked. Use them to
+        // notice that the trip in progress has ended.
+        vtData.lastStoredChargeState.addTracker(new Runnable() {
+            @Override public void run() {
+                ChargeState cs = vtData.lastStoredChargeState.get();
+                if (cs != null) { checkForEnd(cs.timestamp); }
+            }
+        });
+    }
+
+    /**
+     * Process a Row from the TimeSeries. Rows without location information
+     * are ignored.
+     * @param r The row to process
+     */
+    void handleNewData(Row r) {
+        WayPoint wp = wayPointFromRow(r);
+        if (wp != null) {
+            handleNewWayPoint(wp, r.get(VTData.schema, VTData.EstRangeKey));
+        }
+    }
+
+    /**
+     * Complete the trip in progress, if any.
+     */
+    synchronized void endCurrentTrip() {
+        if (tripInProgress == null) return;
+        if (tripInProgress.distance() > MinTripDistance) {
+            lastTrip.set(tripInProgress);
+        }
+        tripInProgress = null;
+        lastWayPoint = null;
+    }
+
+    /**
+     * Complete the trip in progress if nothing has moved for long enough.
+     * @param now   The current time
+     */
+    synchronized void checkForEnd(long now) {
+        if (tripInProgress == null) return;
+        if (now - lastWayPoint.getTime() > MaxTimeBetweenWayPoints) {
+            endCurrentTrip();
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Methods shared with the code that loads WayPoints for a stored trip. Using
+ * the same rules ensures that a loaded Trip matches its TripSummary.
+ *
+ *----------------------------------------------------------------------------*/
+
+    static WayPoint wayPointFromRow(Row r) {
+        double lat = r.get(VTData.schema, VTData.LatitudeKey);
+        double lng = r.get(VTData.schema, VTData.LongitudeKey);
+        double odo = r.get(VTData.schema, VTData.OdometerKey);
+        if (lat == 0.0 && lng == 0.0 || odo == 0.0) return null;
+        return new FixedWayPoint(
+            r.timestamp,
+            odo,
+            r.get(VTData.schema, VTData.SpeedKey),
+            r.get(VTData.schema, VTData.HeadingKey),
+            lat, lng, Double.NaN,
+            r.get(VTData.schema, VTData.PowerKey),
+            r.get(VTData.schema, VTData.SOCKey));
+    }
+
+    static boolean thereWasMotion(WayPoint wp1, WayPoint wp2) {
+        double turn =  180.0 - Math.abs((Math.abs(wp1.getHeading() - wp2.getHeading())%360.0) - 180.0);
+        double meters = GeoUtils.distance(wp1.getLat(), wp1.getLng(), wp2.getLat(), wp2.getLng());
+
+        return (meters >= 5 || (turn > 10 && meters > 3.0));
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Private Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private synchronized void handleNewWayPoint(WayPoint wp, double range) {
+        if (tripInProgress == null) {
+            startTrip(wp, range);
+            return;
+        }
+
+        // Stored data is replayed at startup while new data may be arriving
+        if (wp.getTime() <= lastWayPoint.getTime()) return;
+
+        if (wp.getTime() - lastWayPoint.getTime() > MaxTimeBetweenWayPoints) {
+            // Finish the old trip and start a new one
+            endCurrentTrip();
+            startTrip(wp, range);
+            return;
+        }
+
+        if (thereWasMotion(wp, lastWayPoint)) { updateTrip(wp, range); }
+    }
+
+
+    private void startTrip(WayPoint wp, double range) {
+        tripInProgress = new TripSummary();
+        tripInProgress.startTime = wp.getTime();
+        tripInProgress.startOdo = wp.getOdo();
+        tripInProgress.startSOC = wp.getSOC();
+        tripInProgress.startRange = range;
+        tripInProgress.lat = wp.getLat();
+        tripInProgress.lng = wp.getLng();
+        tripInProgress.minLat = tripInProgress.maxLat = wp.getLat();
+        tripInProgress.minLng = tripInProgress.maxLng = wp.getLng();
+        tripInProgress.energy = 0.0;
+        tripInProgress.nWayPoints = 0;
+        lastWayPoint = null;
+        updateTrip(wp, range);
+    }
+
+    private void updateTrip(WayPoint wp, double range) {
+        TripSummary t = tripInProgress;
+        if (lastWayPoint != null) {
+            // Same trapezoidal estimate as Trip.estimateEnergy
+            long dT = wp.getTime() - lastWayPoint.getTime();
+            double dP = Math.abs(wp.getPower() - lastWayPoint.getPower());
+            double minP = Math.min(wp.getPower(), lastWayPoint.getPower());
+            t.energy += (minP * dT + (dP*dT)/2.0)/(1000*60*60);
+        }
+        t.endTime = wp.getTime();
+        t.endOdo = wp.getOdo();
+        t.endSOC = wp.getSOC();
+        t.endRange = range;
+        t.minLat = Math.min(t.minLat, wp.getLat());
+        t.maxLat = Math.max(t.maxLat, wp.getLat());
+        t.minLng = Math.min(t.minLng, wp.getLng());
+        t.maxLng = Math.max(t.maxLng, wp.getLng());
+        t.nWayPoints++;
+        lastWayPoint = wp;
+    }
+
+}
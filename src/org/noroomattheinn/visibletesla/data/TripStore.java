@@ -0,0 +1,280 @@
+/*
+ * TripStore.java - Copyright(c) 2013, 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 17, 2015
+ */
+package org.noroomattheinn.visibletesla.data;
+
+import com.google.common.collect.Range;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import static org.noroomattheinn.tesla.Tesla.logger;
+import org.noroomattheinn.timeseries.Row;
+import org.noroomattheinn.timeseries.TimeSeries;
+import org.noroomattheinn.timeseries.TimeSeries.RowCollector;
+import org.noroomattheinn.utils.TrackedObject;
+import org.noroomattheinn.visibletesla.vehicle.VTVehicle;
+
+/**
+ * TripStore: Manage persistent storage for Trip summaries. Summaries are small
+ * so the entire set is kept in memory, indexed by start time. The WayPoints
+ * for a Trip are only loaded when they are requested.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+class TripStore extends CycleStore<TripSummary> {
+/*------------------------------------------------------------------------------
+ *
+ * Internal  State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final TrackedObject<TripSummary> lastTrip;
+    private final NavigableMap<Long,TripSummary> index;
+    private boolean doingInitialLoad;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    TripStore(File container, VTVehicle v, TrackedObject<TripSummary> lastTrip)
+            throws FileNotFoundException {
+        super("trip", TripSummary.class, container, v);
+        this.lastTrip = lastTrip;
+        this.doingInitialLoad = false;
+        this.index = new TreeMap<>();
+        for (TripSummary t : getCycles(null)) { index.put(t.startTime, t); }
+
+        lastTrip.addTracker(new Runnable() {
+            @Override public void run() {
+                TripSummary t = lastTrip.get();
+                synchronized (index) { index.put(t.startTime, t); }
+                cycleWriter.println(t.toJSONString());
+                if (!doingInitialLoad) { cycleWriter.flush(); }
+            }
+        });
+    }
+
+    /**
+     * Return the summaries of all trips that started during the given period
+     * @param period    The period of interest. If null, return all trips
+     * @return          The trips, ordered by start time
+     */
+    List<TripSummary> getTrips(Range<Long> period) {
+        if (period == null) period = Range.all();
+        long startTime = period.hasLowerBound() ? period.lowerEndpoint() : 0;
+        long endTime = period.hasUpperBound() ? period.upperEndpoint() : Long.MAX_VALUE;
+        synchronized (index) {
+            return new ArrayList<>(index.subMap(startTime, true, endTime, true).values());
+        }
+    }
+
+    /**
+     * Return the summaries of all trips that started on the same day as
+     * the given time.
+     * @param time  A time within the day of interest
+     * @return      The trips, ordered by start time
+     */
+    List<TripSummary> getTripsForDay(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        long startOfDay = c.getTimeInMillis();
+        c.add(Calendar.DAY_OF_MONTH, 1);
+        return getTrips(Range.closedOpen(startOfDay, c.getTimeInMillis()));
+    }
+
+    /**
+     * Load the WayPoints for a trip from the TimeSeries. The same rules used
+     * to detect the trip are used to select its WayPoints.
+     * @param summary   The trip to load
+     * @param ts        The TimeSeries holding the raw data
+     * @return          The Trip with its WayPoints
+     */
+    Trip loadTrip(TripSummary summary, TimeSeries ts) {
+        return loadTrips(Collections.singletonList(summary), ts).get(0);
+    }
+
+    /**
+     * Load the WayPoints for a number of trips in a single pass over the
+     * TimeSeries rather than one pass per trip. All of the Trips are held
+     * in memory at once; use streamTrips when there may be many of them.
+     * @param summaries The trips to load, in any order
+     * @param ts        The TimeSeries holding the raw data
+     * @return          The Trips with their WayPoints, ordered by start time
+     */
+    List<Trip> loadTrips(List<TripSummary> summaries, TimeSeries ts) {
+        final List<Trip> trips = new ArrayList<>(summaries.size());
+        streamTrips(summaries, ts, new TripCollector() {
+            @Override public boolean collect(Trip t) { trips.add(t); return true; }
+        });
+        return trips;
+    }
+
+    /**
+     * Load the WayPoints for a number of trips in a single pass over the
+     * TimeSeries, handing each Trip to a collector as soon as the pass has
+     * moved beyond it. Trips never overlap, so each row belongs to at most
+     * one of them. The collector is called on the caller's thread, once
+     * for each trip in order of start time, including trips that have no
+     * WayPoints.
+     * @param summaries The trips to load, in any order
+     * @param ts        The TimeSeries holding the raw data
+     * @param collector Receives the Trips
+     */
+    void streamTrips(
+            List<TripSummary> summaries, TimeSeries ts, TripCollector collector) {
+        List<TripSummary> sorted = new ArrayList<>(summaries);
+        if (sorted.isEmpty()) return;
+        Collections.sort(sorted, new Comparator<TripSummary>() {
+            @Override public int compare(TripSummary o1, TripSummary o2) {
+                return Long.compare(o1.startTime, o2.startTime);
+            }
+        });
+
+        long lastEnd = Long.MIN_VALUE;
+        for (TripSummary s : sorted) { lastEnd = Math.max(lastEnd, s.endTime); }
+        TripScanner scanner = new TripScanner(sorted, collector);
+        ts.streamRows(Range.closed(sorted.get(0).startTime, lastEnd), scanner);
+        scanner.finish();
+    }
+
+    /**
+     * Receives Trips from streamTrips as they are loaded
+     */
+    interface TripCollector {
+        /**
+         * @param t The next Trip
+         * @return  true to keep loading, false to stop
+         */
+        boolean collect(Trip t);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Methods related to creating the TripStore the first time. If necessary, we
+ * paw through old data from the StatsCollector to initialize the TripStore.
+ * We do this at most once in the lifetime of an installation of VT
+ *
+ *----------------------------------------------------------------------------*/
+
+    static boolean requiresInitialLoad(File container, String baseName) {
+        File f = new File(container, baseName+".trip.json");
+        return !f.exists();
+    }
+
+    void doIntialLoad(final TripMonitor tm, TimeSeries ts) {
+        // Create a trip file based on existing data. This is a one time thing.
+        logger.info("Synthesizing Trip data - one time only");
+        try {
+            doingInitialLoad = true;
+            ts.streamRows(null, new RowCollector() {
+                @Override public boolean collect(Row r) {
+                    tm.handleNewData(r);
+                    return true;
+                }
+            });
+            tm.endCurrentTrip();
+        } catch (Exception e) {
+            logger.warning("Error during intial load of Trips: " + e);
+        }
+        doingInitialLoad = false;
+        cycleWriter.flush();
+    }
+
+    /**
+     * Trips are only written once they end, so a trip that was in progress
+     * (or had not yet been noticed to end) when VT last exited is not in the
+     * store. Replay the data stored since the last recorded trip ended so it
+     * is detected again, and end it now if it is already over.
+     * @param tm    The TripMonitor that will detect the trips
+     * @param ts    The TimeSeries holding the raw data
+     */
+    void catchUp(final TripMonitor tm, TimeSeries ts) {
+        long since;
+        synchronized (index) {
+            since = index.isEmpty() ?
+                cycleFile.lastModified() - TripMonitor.MaxTimeBetweenWayPoints :
+                index.lastEntry().getValue().endTime;
+        }
+        try {
+            ts.streamRows(Range.greaterThan(since), new RowCollector() {
+                @Override public boolean collect(Row r) {
+                    tm.handleNewData(r);
+                    return true;
+                }
+            });
+            tm.checkForEnd(System.currentTimeMillis());
+        } catch (Exception e) {
+            logger.warning("Error while catching up on Trips: " + e);
+        }
+    }
+
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Assigning rows to trips during a single pass
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static class TripScanner implements RowCollector {
+        private final List<TripSummary> summaries;  // Ordered by start time
+        private final TripCollector collector;
+        private int current = 0;
+        private Trip trip = new Trip();
+        private WayPoint last = null;
+        private boolean done = false;
+
+        TripScanner(List<TripSummary> summaries, TripCollector collector) {
+            this.summaries = summaries;
+            this.collector = collector;
+        }
+
+        @Override public boolean collect(Row r) {
+            while (r.timestamp > summaries.get(current).endTime) {
+                if (!next()) return false;
+            }
+            if (r.timestamp < summaries.get(current).startTime) return true;
+            WayPoint wp = TripMonitor.wayPointFromRow(r);
+            if (wp == null) return true;
+            if (last == null || TripMonitor.thereWasMotion(wp, last)) {
+                trip.addWayPoint(wp);
+                last = wp;
+            }
+            return true;
+        }
+
+        /**
+         * Hand over the trips the pass didn't get beyond
+         */
+        void finish() { while (!done) next(); }
+
+        /**
+         * Hand over the current trip and move on to the next one. The
+         * scanner drops its reference so the collector decides how long
+         * the trip stays in memory.
+         * @return  false if there are no more trips or the collector wants
+         *          no more
+         */
+        private boolean next() {
+            trip.compact();
+            boolean more = collector.collect(trip) && ++current < summaries.size();
+            trip = more ? new Trip() : null;
+            last = null;
+            done = !more;
+            return more;
+        }
+    }
+}
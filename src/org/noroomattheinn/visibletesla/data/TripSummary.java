@@ -0,0 +1,74 @@
+/*
+ * TripSummary.java - Copyright(c) 2013, 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 17, 2015
+ */
+package org.noroomattheinn.visibletesla.data;
+
+import java.util.Locale;
+
+/**
+ * Object that summarizes a single trip without holding its WayPoints. The
+ * WayPoints for the trip can be loaded on demand from the underlying
+ * TimeSeries using the trip's start and end times. The lat, lng fields
+ * inherited from BaseCycle give the location where the trip started.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class TripSummary extends BaseCycle {
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    public double startOdo, endOdo;
+    public double startRange, endRange;
+    public double startSOC, endSOC;
+    public double energy;                   // Estimated energy used in kWh
+    public double minLat, maxLat;           // The bounding box of the trip
+    public double minLng, maxLng;
+    public int    nWayPoints;
+
+    public TripSummary() { }
+
+    @Override public String toJSONString() {
+        return String.format(Locale.US,     // Get the correct decimal point char
+                "{ " +
+                "  \"startTime\": %d, " +
+                "  \"endTime\": %d, " +
+                "  \"startOdo\": %.1f, " +
+                "  \"endOdo\": %.1f, " +
+                "  \"startRange\": %.1f, " +
+                "  \"endRange\": %.1f, " +
+                "  \"startSOC\": %.1f, " +
+                "  \"endSOC\": %.1f, " +
+                "  \"energy\": %.2f, " +
+                "  \"minLat\": %.6f, " +
+                "  \"maxLat\": %.6f, " +
+                "  \"minLng\": %.6f, " +
+                "  \"maxLng\": %.6f, " +
+                "  \"nWayPoints\": %d, " +
+                "  \"lat\": %.6f, " +
+                "  \"lng\": %.6f " +
+                " }",
+                startTime, endTime, startOdo, endOdo, startRange, endRange,
+                startSOC, endSOC, energy, minLat, maxLat, minLng, maxLng,
+                nWayPoints, lat, lng);
+    }
+
+    /**
+     * Return the distance covered by this trip
+     * @return The distance. Always given in miles.
+     */
+    public double distance() { return endOdo - startOdo; }
+
+    /**
+     * Determine whether any part of the trip's bounding box lies within the
+     * given bounding box.
+     */
+    public boolean intersects(double south, double west, double north, double east) {
+        return minLat <= north && maxLat >= south && minLng <= east && maxLng >= west;
+    }
+}
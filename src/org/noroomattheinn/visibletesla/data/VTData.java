@@ -9,8 +9,11 @@ import com.google.common.collect.Range;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.IntegerProperty;
@@ -20,11 +23,13 @@ import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.scene.control.ProgressIndicator;
+import org.noroomattheinn.tesla.BaseState;
 import org.noroomattheinn.tesla.ChargeState;
 import org.noroomattheinn.tesla.StreamState;
 import org.noroomattheinn.tesla.Vehicle;
 import org.noroomattheinn.timeseries.Row;
 import org.noroomattheinn.timeseries.RowDescriptor;
+import org.noroomattheinn.timeseries.TimeSeries;
 import org.noroomattheinn.utils.CalTime;
 import org.noroomattheinn.utils.Executor.FeedbackListener;
 import org.noroomattheinn.utils.TrackedObject;
@@ -67,6 +72,9 @@ public class VTData {
         LatitudeKey, LongitudeKey, HeadingKey, SpeedKey, OdometerKey, PowerKey};
     public static final RowDescriptor schema = new RowDescriptor(Columns);
 
+    private static final long PrefetchPeriod = 90L * 24 * 60 * 60 * 1000;  // 90 Days
+    private static final int  PrefetchLocations = 10;
+
 /*------------------------------------------------------------------------------
  *
  * Internal State
@@ -78,11 +86,14 @@ public class VTData {
     private final VTVehicle         vtVehicle;
     private final Options           options;
     private       StatsCollector    statsCollector;
+    private       Range<Long>       loadedPeriod;
     private       StreamProducer    streamProducer;
     private       StateProducer     stateProducer;
     private       StatsStreamer     statsStreamer;
     private       RestStore         restStore;
     private       ChargeStore       chargeStore;
+    private       TripStore         tripStore;
+    private       TripMonitor       tripMonitor;
     
 /*==============================================================================
  * -------                                                               -------
@@ -92,6 +103,7 @@ public class VTData {
     
     public final TrackedObject<ChargeCycle>     lastChargeCycle;
     public final TrackedObject<RestCycle>       lastRestCycle;
+    public final TrackedObject<TripSummary>     lastTrip;
     public final TrackedObject<StreamState>     lastStoredStreamState;
     public final TrackedObject<ChargeState>     lastStoredChargeState;
 
@@ -101,6 +113,7 @@ public class VTData {
         this.vtVehicle = v;
         this.lastChargeCycle = new TrackedObject<>(null);
         this.lastRestCycle = new TrackedObject<>(null);
+        this.lastTrip = new TrackedObject<>(null);
         this.feedbackListener = fl;
         this.lastStoredStreamState = new TrackedObject<>(new StreamState());
         this.lastStoredChargeState = new TrackedObject<>(null);        
@@ -110,6 +123,8 @@ public class VTData {
         public final ObjectProperty<Range<Long>> loadPeriod;
         public final IntegerProperty  locMinTime;
         public final IntegerProperty  locMinDist;
+        public final IntegerProperty  minPollInterval;
+        public final IntegerProperty  maxPollInterval;
         public final BooleanProperty  streamWhenPossible;
         public final BooleanProperty  submitAnonCharge;
         public final BooleanProperty  submitAnonRest;
@@ -123,6 +138,8 @@ public class VTData {
             this.loadPeriod = new SimpleObjectProperty<>();
             this.locMinTime  = new SimpleIntegerProperty();
             this.locMinDist  = new SimpleIntegerProperty();
+            this.minPollInterval = new SimpleIntegerProperty();
+            this.maxPollInterval = new SimpleIntegerProperty();
             this.streamWhenPossible = new SimpleBooleanProperty();
             this.submitAnonCharge = new SimpleBooleanProperty();
             this.submitAnonRest = new SimpleBooleanProperty();
@@ -136,6 +153,7 @@ public class VTData {
         public Options(
                 ObjectProperty<Range<Long>> loadPeriod,
                 IntegerProperty locMinTime, IntegerProperty locMinDist,
+                IntegerProperty minPollInterval, IntegerProperty maxPollInterval,
                 BooleanProperty streamWhenPossible,
                 BooleanProperty submitAnonCharge, BooleanProperty submitAnonRest,
                 BooleanProperty includeLocData, DoubleProperty ditherLocAmt,
@@ -145,6 +163,8 @@ public class VTData {
             this.loadPeriod = loadPeriod;
             this.locMinTime = locMinTime;
             this.locMinDist = locMinDist;
+            this.minPollInterval = minPollInterval;
+            this.maxPollInterval = maxPollInterval;
             this.streamWhenPossible = streamWhenPossible;
             this.submitAnonCharge = submitAnonCharge;
             this.submitAnonRest = submitAnonRest;
@@ -163,14 +183,18 @@ public class VTData {
  *----------------------------------------------------------------------------*/
     
     public void setVehicle(Vehicle v) throws IOException {
+        loadedPeriod = options.loadPeriod.get();
         statsCollector = new StatsCollector(
-                container, this, vtVehicle, options.loadPeriod.get(),
+                container, this, vtVehicle, loadedPeriod,
                 options.locMinTime, options.locMinDist);
         streamProducer = new StreamProducer(vtVehicle, feedbackListener);
         stateProducer = new StateProducer(vtVehicle, feedbackListener);
-        statsStreamer = new StatsStreamer(this, vtVehicle, options.streamWhenPossible);
+        statsStreamer = new StatsStreamer(
+                this, vtVehicle, options.streamWhenPossible,
+                new PollingPolicy(options.minPollInterval, options.maxPollInterval));
         initChargeStore();
         initRestStore();
+        initTripStore();
     }
     
     public void setWakeEarly(Predicate wakeEarly) {
@@ -213,6 +237,27 @@ public class VTData {
         stateProducer.produce(whichState, pi);
     }
     
+    /**
+     * Produce several states as a single batch. The states are queried in
+     * parallel and delivered to the VTVehicle together.
+     * @param whichStates   The types of state to produce
+     * @param pi            A ProgressIndicator to use while producing, or null
+     */
+    public void produceStates(Set<Vehicle.StateType> whichStates, ProgressIndicator pi) {
+        stateProducer.produce(whichStates, pi);
+    }
+    
+    /**
+     * Synchronously query several states in parallel. The resulting states are
+     * not noted with the VTVehicle. Invalid states are returned as-is so the
+     * caller can decide whether to retry.
+     * @param whichStates   The types of state to query
+     * @return              A map from state type to the state that was returned
+     */
+    public Map<Vehicle.StateType,BaseState> queryStates(Set<Vehicle.StateType> whichStates) {
+        return stateProducer.query(whichStates);
+    }
+    
 /*------------------------------------------------------------------------------
  *
  * Getting and Exporting Cycle information
@@ -239,9 +284,68 @@ public class VTData {
         return chargeStore.getCycles(period);
     }
     
-    public boolean exportTripsAsKML(List<Trip> trips, File toFile) {
+    /**
+     * Return the summaries of all trips that started during the given period.
+     * This does not require loading any WayPoints.
+     * @param period    The period of interest. If null, return all trips
+     * @return          The trips, ordered by start time
+     */
+    public List<TripSummary> getTrips(Range<Long> period) {
+        return tripStore.getTrips(period);
+    }
+    
+    /**
+     * Return the summaries of all trips that started on the day containing
+     * the given time.
+     * @param time  A time within the day of interest
+     * @return      The trips, ordered by start time
+     */
+    public List<TripSummary> getTripsForDay(long time) {
+        return tripStore.getTripsForDay(time);
+    }
+    
+    /**
+     * Load the WayPoints for the given trip. The data may lie outside the
+     * loadPeriod, in which case it is read from the persistent store.
+     * @param summary   The trip to load
+     * @return          A Trip containing all of the WayPoints
+     */
+    public Trip getTrip(TripSummary summary) {
+        return tripStore.loadTrip(summary, statsCollector.getFullTimeSeries());
+    }
+    
+    /**
+     * Load the WayPoints for a number of trips. They are read in a single
+     * pass over the stored data, which may take a while for older trips, so
+     * don't call this on the FX Application Thread.
+     * @param summaries The trips to load
+     * @return          The Trips, ordered by start time
+     */
+    public List<Trip> loadTrips(List<TripSummary> summaries) {
+        return tripStore.loadTrips(summaries, statsCollector.getFullTimeSeries());
+    }
+    
+    /**
+     * Complete the trip in progress (if any) rather than waiting for a gap
+     * in motion to end it.
+     */
+    public void endCurrentTrip() {
+        tripMonitor.endCurrentTrip();
+    }
+    
+    /**
+     * Export the given trips to a KMZ file. The WayPoints of all of the trips
+     * are loaded in a single pass over the stored data and each trip is
+     * encoded as soon as it has been loaded, so only a few trips are in
+     * memory at a time. This reads the stored data, so don't call it on the
+     * FX Application Thread.
+     * @param trips     The trips to export
+     * @param toFile    The KMZ file to create
+     * @return          true if the export succeeded, false otherwise
+     */
+    public boolean exportTripsAsKML(List<TripSummary> trips, File toFile) {
         KMLExporter ke = new KMLExporter();
-        return ke.export(trips, toFile);
+        return ke.export(tripStore, trips, statsCollector.getFullTimeSeries(), toFile);
     }
     
 /*------------------------------------------------------------------------------
@@ -259,6 +363,23 @@ public class VTData {
         return statsCollector.getAllLoadedRows();
     }
     
+    /**
+     * The time of the earliest stored row, whether or not it is loaded
+     * 
+     * @return The time, or Long.MAX_VALUE if nothing has been stored
+     */
+    public long getFirstStoredTime() {
+        return statsCollector.getFullTimeSeries().firstTime();
+    }
+    
+    /**
+     * The period that was loaded into memory when the vehicle was set. Rows
+     * stored since then are loaded too.
+     * 
+     * @return The period, as given by the loadPeriod option at that time
+     */
+    public Range<Long> getLoadedPeriod() { return loadedPeriod; }
+    
     /**
      * Return an index on a set of rows covered by the period [startTime..endTime].
      * 
@@ -270,6 +391,44 @@ public class VTData {
         return statsCollector.getRangeOfLoadedRows(startTime, endTime);
     }
     
+    /**
+     * Determine whether the stored data can be read yet. It can't be read
+     * until a vehicle has been set.
+     * @return  true if the data stores are available
+     */
+    public boolean storesAvailable() {
+        return statsCollector != null && restStore != null && chargeStore != null;
+    }
+    
+    /**
+     * Pass each stored row in the period to a collector without accumulating
+     * them, so the memory used doesn't depend on the length of the period.
+     * 
+     * @param period    The period of interest. Null means all.
+     * @param collector Receives each row in order. Return false to stop.
+     */
+    public void streamRows(Range<Long> period, TimeSeries.RowCollector collector) {
+        statsCollector.getFullTimeSeries().streamRows(period, collector);
+    }
+    
+    /**
+     * Pass each RestCycle that started in the period to a collector.
+     * @param period    The period of interest. Null means all.
+     * @param collector Receives each cycle in order. Return false to stop.
+     */
+    public void streamRestCycles(Range<Long> period, CycleCollector<RestCycle> collector) {
+        restStore.streamCycles(period, collector);
+    }
+    
+    /**
+     * Pass each ChargeCycle that started in the period to a collector.
+     * @param period    The period of interest. Null means all.
+     * @param collector Receives each cycle in order. Return false to stop.
+     */
+    public void streamChargeCycles(Range<Long> period, CycleCollector<ChargeCycle> collector) {
+        chargeStore.streamCycles(period, collector);
+    }
+    
 /*------------------------------------------------------------------------------
  *
  * Private Utility Methods
@@ -291,6 +450,37 @@ public class VTData {
         if (needsInitialLoad) {
             restStore.doIntialLoad(rm, statsCollector.getFullTimeSeries());
         }
+        prefetchAddresses();
+    }
+    
+    /**
+     * Warm the GeocodeCache with the places the car rests most often and
+     * with each new resting place. Messages and pages that include the car's
+     * address are usually generated while it is parked.
+     */
+    private void prefetchAddresses() {
+        final GeocodeCache gc = GeocodeCache.get();
+        if (gc == null) return;
+        long since = System.currentTimeMillis() - PrefetchPeriod;
+        gc.prefetchFrequent(restStore.getCycles(Range.atLeast(since)), PrefetchLocations);
+        lastRestCycle.addTracker(new Runnable() {
+            @Override public void run() {
+                RestCycle rc = lastRestCycle.get();
+                if (rc != null) gc.prefetch(rc.lat, rc.lng);
+            }
+        });
+    }
+    
+    private void initTripStore() throws FileNotFoundException {
+        boolean needsInitialLoad = TripStore.requiresInitialLoad(
+                container, vtVehicle.getVehicle().getVIN());
+        tripStore = new TripStore(container, vtVehicle, lastTrip);
+        tripMonitor = new TripMonitor(this, lastTrip);
+        if (needsInitialLoad) {
+            tripStore.doIntialLoad(tripMonitor, statsCollector.getFullTimeSeries());
+        } else {
+            tripStore.catchUp(tripMonitor, statsCollector.getFullTimeSeries());
+        }
     }
     
     private void initChargeStore() throws FileNotFoundException {
@@ -311,4 +501,8 @@ public class VTData {
     public static interface TimeBasedPredicate extends Predicate {
         void setTime(long time);
     }
+    
+    public static interface CycleCollector<C> {
+        boolean collect(C cycle);
+    }
 }
\ No newline at end of file
@@ -10,67 +10,40 @@ import org.noroomattheinn.utils.GeoUtils;
 import org.noroomattheinn.utils.Utils;
 
 /**
- * WayPoint: Describes a point on a trip
+ * WayPoint: Describes a point on a trip. This class only defines how the
+ * values of a WayPoint are accessed, not where they are kept. Subclasses
+ * either hold the values themselves (FixedWayPoint) or read them from
+ * elsewhere, such as the columns of a Trip.
  * 
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
-public class WayPoint implements GeoUtils.LocationSource {
-/*------------------------------------------------------------------------------
- *
- * Internal State
- * 
- *----------------------------------------------------------------------------*/
-    
-    private final long   timestamp;
-    private final double odometer;
-    private final double speed;
-    private final double heading;
-    private final double power;
-    private final double soc;
-    private final double lat;
-    private final double lng;
-    private       double elevation;
-    
+public abstract class WayPoint implements GeoUtils.LocationSource {
+
 /*==============================================================================
  * -------                                                               -------
  * -------              Public Interface To This Class                   ------- 
  * -------                                                               -------
  *============================================================================*/
 
-    public WayPoint(
-            long timestamp, double odometer, double speed,
-            double heading, double lat, double lng, double elevation,
-            double power, double soc) {
-        this.timestamp = timestamp;
-        this.odometer = odometer;
-        this.speed = speed;
-        this.heading = heading;
-        this.lat = lat;
-        this.lng = lng;
-        this.elevation = elevation;
-        this.power = power;
-        this.soc = soc;
-    }
-    
     public String asJSON() { return asJSON(true); }
 
     public String asJSON(boolean useMiles) {
         double adjustedSpeed, adjustedOdo, adjustedElevation;
 
         if (useMiles) {
-            adjustedSpeed = speed;
-            adjustedOdo = odometer;
-            adjustedElevation = Utils.round(Utils.metersToFeet(elevation), 0);
+            adjustedSpeed = getSpeed();
+            adjustedOdo = getOdo();
+            adjustedElevation = Utils.round(Utils.metersToFeet(getElevation()), 0);
         } else {
-            adjustedSpeed = Utils.round(Utils.milesToKm(speed), 1);
-            adjustedOdo = Utils.round(Utils.milesToKm(odometer),1);
-            adjustedElevation = Utils.round(elevation, 1);
+            adjustedSpeed = Utils.round(Utils.milesToKm(getSpeed()), 1);
+            adjustedOdo = Utils.round(Utils.milesToKm(getOdo()),1);
+            adjustedElevation = Utils.round(getElevation(), 1);
         }
 
         StringBuilder sb = new StringBuilder();
         sb.append("{\n");
         sb.append("    timestamp: \"");
-        sb.append(String.format("%1$tm/%1$td/%1$ty %1$tH:%1$tM:%1$tS", new Date(timestamp)));
+        sb.append(String.format("%1$tm/%1$td/%1$ty %1$tH:%1$tM:%1$tS", new Date(getTime())));
         sb.append("\",\n");
         sb.append("    lat: ").append(getLat()).append(",\n");
         sb.append("    lng: ").append(getLng()).append(",\n");
@@ -78,7 +51,7 @@ public class WayPoint implements GeoUtils.LocationSource {
         sb.append("    heading: ").append(getHeading()).append(",\n");
         sb.append("    power: ").append(getPower()).append(",\n");
         sb.append("    odometer: ").append(adjustedOdo).append(",\n");
-        sb.append("    soc: ").append(soc).append(",\n");
+        sb.append("    soc: ").append(getSOC()).append(",\n");
         sb.append("    elevation: ").append(adjustedElevation).append("\n");
         sb.append("}\n");
 
@@ -87,20 +60,16 @@ public class WayPoint implements GeoUtils.LocationSource {
 
     @Override public String toString() { return asJSON(); }
     
-    public long   getTime()         { return timestamp; }
-    public double getElevation()    { return elevation; }
-    public double getOdo()          { return odometer; }
-    public double getHeading()      { return heading; }
-    public double getPower()        { return power; }
-    public double getSOC()          { return soc; }
-    public double getSpeed()        { return speed; }
+    public abstract long   getTime();
+    public abstract double getElevation();
+    public abstract double getOdo();
+    public abstract double getHeading();
+    public abstract double getPower();
+    public abstract double getSOC();
+    public abstract double getSpeed();
     
-    // The following getters are also part of the GeoUtils.LocationSource interface
-    @Override public double getLat() { return lat; }
-    @Override public double getLng() { return lng; }
-
-    // Elevation is the only field that can be set after the WayPoint is created
-    // This is done so that it can be added lazily only when needed
-    public void setElevation(double e) { elevation = e; }
+    // Elevation is the only value that can be set after the WayPoint is
+    // created. This is done so that it can be added lazily only when needed
+    public abstract void setElevation(double e);
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+/*
+ * CachedResponse.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 28, 2015
+ */
+
+package org.noroomattheinn.visibletesla.rest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * CachedResponse: The body of a response that may be sent more than once,
+ * along with its type, a hash of its content for use as an ETag, and the
+ * compressed form of the body once it has been needed. Send it with
+ * HTTPSupport.send(HttpExchange, int, CachedResponse). Instances are
+ * immutable and may be shared between threads.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class CachedResponse {
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    public final String type;
+    public final byte[] body;
+    public final String tag;                // Content hash, without quotes
+    private final boolean compressible;
+    private volatile byte[] gzipped = null;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    public CachedResponse(String type, byte[] body) {
+        this.type = type;
+        this.body = body;
+        this.tag = hash(body);
+        this.compressible = HTTPSupport.worthCompressing(type, body.length);
+    }
+
+    public CachedResponse(String type, String body) {
+        this(type, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compress the body now rather than when it is first requested
+     * @return  this
+     */
+    public CachedResponse precompress() throws IOException {
+        if (compressible) gzipped();
+        return this;
+    }
+
+    /**
+     * @return  The number of bytes held, including the compressed form
+     */
+    public int size() {
+        byte[] g = gzipped;
+        return body.length + (g == null ? 0 : g.length);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Methods used by HTTPSupport
+ *
+ *----------------------------------------------------------------------------*/
+
+    boolean compressible() { return compressible; }
+
+    byte[] gzipped() throws IOException {
+        byte[] g = gzipped;
+        if (g == null) {
+            // Two threads may both compress it. Either result will do.
+            g = HTTPSupport.gzip(body);
+            gzipped = g;
+        }
+        return g;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            return HTTPSupport.toHex(digest).substring(0, 20).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * DataQuery.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 25, 2015
+ */
+
+package org.noroomattheinn.visibletesla.rest;
+
+import com.google.common.collect.Range;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.noroomattheinn.timeseries.Row;
+import org.noroomattheinn.timeseries.RowDescriptor;
+import org.noroomattheinn.timeseries.TimeSeries;
+
+/**
+ * DataQuery: The parameters of a request for stored data along with the code
+ * that writes the result. Rows and cycles are written as they are read from
+ * the store, so the memory used does not depend on the period requested. A
+ * response contains at most MaxRows rows. If there are more, the response
+ * ends with a token that continues the query where it left off when it is
+ * passed back as the page parameter.
+ *
+ * Parameters:
+ *   from, to   The period of interest in millis since the epoch. The default
+ *              is all stored data.
+ *   columns    A comma separated list of columns (series only). The default
+ *              is all columns.
+ *   bucket     Aggregate the rows in buckets of this duration (series only).
+ *              Either millis or a number followed by s, m, h, or d.
+ *   agg        How values are aggregated: avg (default), min, max, first,
+ *              last, sum, or count
+ *   format     json (default) or csv
+ *   limit      The maximum number of rows in the response, up to MaxRows
+ *   page       The token that ended a previous response
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class DataQuery {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    public static final int MaxRows = 10000;
+
+    private enum Aggregation { avg, min, max, first, last, sum, count };
+
+    /**
+     * A source of rows, such as a TimeSeries
+     */
+    public interface RowSource {
+        void streamRows(Range<Long> period, TimeSeries.RowCollector collector);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final long from, to;
+    private final List<String> columns;     // null means all
+    private final long bucket;              // 0 means no aggregation
+    private final Aggregation agg;
+    private final boolean csv;
+    private final int limit;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create a DataQuery from the parameters of a request
+     * @param params    The parameters of the request
+     * @throws IllegalArgumentException If a parameter is invalid. The message
+     *                  describes the problem.
+     */
+    public DataQuery(Map<String,String> params) throws IllegalArgumentException {
+        String page = params.get("page");
+        this.from = (page != null) ? parseToken(page) : longParam(params, "from", 0L);
+        this.to = longParam(params, "to", Long.MAX_VALUE);
+        if (to < from) throw new IllegalArgumentException("to is before from");
+
+        String c = params.get("columns");
+        this.columns = (c == null || c.isEmpty()) ? null : split(c);
+
+        String b = params.get("bucket");
+        this.bucket = (b == null || b.isEmpty()) ? 0 : parseDuration(b);
+
+        String a = params.get("agg");
+        try {
+            this.agg = (a == null) ? Aggregation.avg : Aggregation.valueOf(a.toLowerCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown aggregation: " + a);
+        }
+
+        String f = params.get("format");
+        if (f != null && !f.equals("json") && !f.equals("csv"))
+            throw new IllegalArgumentException("Unknown format: " + f);
+        this.csv = "csv".equals(f);
+
+        long l = longParam(params, "limit", MaxRows);
+        if (l <= 0) throw new IllegalArgumentException("limit must be positive");
+        this.limit = (int)Math.min(l, MaxRows);
+    }
+
+    public String contentType() {
+        return csv ? "text/csv; charset=UTF-8" : "application/json; charset=UTF-8";
+    }
+
+    /**
+     * Check that the columns requested by this query are in a schema. Call
+     * this before starting a response since writeSeries can't report the
+     * problem once output has begun.
+     * @param schema    The schema of the series to be queried
+     * @throws IllegalArgumentException If a column is not in the schema
+     */
+    public void checkColumns(RowDescriptor schema) throws IllegalArgumentException {
+        if (columns == null) return;
+        List<String> known = Arrays.asList(schema.columnNames);
+        for (String name : columns) {
+            if (!known.contains(name))
+                throw new IllegalArgumentException("Unknown column: " + name);
+        }
+    }
+
+    /**
+     * Write the rows of a series that match this query
+     * @param source    The source of the rows
+     * @param schema    The schema of the rows. The columns of the query must
+     *                  already have been checked against it.
+     * @param w         The Writer to which the result is written
+     * @throws IOException If there was a problem writing the result
+     */
+    public void writeSeries(RowSource source, RowDescriptor schema, Writer w)
+            throws IOException {
+        SeriesWriter sw = new SeriesWriter(schema, w);
+        source.streamRows(Range.closed(from, to), sw);
+        sw.finish();
+    }
+
+    /**
+     * Return an object that writes cycles, which are supplied in order by the
+     * caller. Only cycles in the period of this query should be supplied.
+     * @param type  The type of the cycles, eg "rest"
+     * @param w     The Writer to which the cycles are written
+     * @return      The CycleWriter
+     */
+    public CycleWriter cycleWriter(String type, Writer w) throws IOException {
+        return new CycleWriter(type, w);
+    }
+
+    /**
+     * @return The period covered by this query
+     */
+    public Range<Long> period() { return Range.closed(from, to); }
+
+    /**
+     * Writes cycles as they are read. The caller supplies each cycle in order
+     * to add() and then calls finish().
+     */
+    public class CycleWriter {
+        private final Writer w;
+        private List<String> header = null;
+        private int nWritten = 0;
+        private long next = -1;
+        private IOException error = null;
+
+        private CycleWriter(String type, Writer w) throws IOException {
+            this.w = w;
+            if (!csv) { w.write("{\"type\":\"" + type + "\",\"cycles\":["); }
+        }
+
+        /**
+         * Add a cycle to the result
+         * @param startTime The start time of the cycle
+         * @param json      The JSON representation of the cycle
+         * @return          false if no more cycles should be supplied
+         */
+        public boolean add(long startTime, String json) {
+            if (nWritten == limit) { next = startTime; return false; }
+            try {
+                if (csv) {
+                    writeCSVCycle(json);
+                } else {
+                    if (nWritten > 0) w.write(',');
+                    w.write('\n');
+                    w.write(json.trim());
+                }
+                nWritten++;
+                return true;
+            } catch (IOException e) {
+                error = e;
+                return false;
+            }
+        }
+
+        /**
+         * Complete the result
+         * @throws IOException If there was a problem writing any of the result
+         */
+        public void finish() throws IOException {
+            if (error != null) throw error;
+            writeEnd(w, next);
+        }
+
+        private void writeCSVCycle(String json) throws IOException {
+            JsonObject o = new JsonParser().parse(json).getAsJsonObject();
+            if (header == null) {
+                header = new ArrayList<>();
+                for (Map.Entry<String,JsonElement> e : o.entrySet()) { header.add(e.getKey()); }
+                writeCSVLine(w, header);
+            }
+            for (int i = 0; i < header.size(); i++) {
+                if (i > 0) w.write(',');
+                JsonElement e = o.get(header.get(i));
+                if (e != null && !e.isJsonNull()) w.write(e.getAsString());
+            }
+            w.write('\n');
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Writing Series
+ *
+ *----------------------------------------------------------------------------*/
+
+    private class SeriesWriter implements TimeSeries.RowCollector {
+        private final Writer w;
+        private final int[] index;      // Index in the row of each column
+        private final long mask;        // The bits of all included columns
+        private int nWritten = 0;
+        private long next = -1;
+        private IOException error = null;
+
+        // State of the current bucket when aggregating
+        private long bucketStart = -1;
+        private final double[] acc;
+        private final int[] n;
+
+        SeriesWriter(RowDescriptor schema, Writer w) throws IOException {
+            this.w = w;
+            List<String> names = (columns == null) ? Arrays.asList(schema.columnNames) : columns;
+            index = new int[names.size()];
+            long m = 0;
+            for (int i = 0; i < index.length; i++) {
+                String name = names.get(i);
+                index[i] = schema.indexOfColumn(name);
+                m |= schema.bitForColumn(name);
+            }
+            mask = m;
+            acc = new double[index.length];
+            n = new int[index.length];
+
+            List<String> header = new ArrayList<>(names.size() + 1);
+            header.add("time");
+            header.addAll(names);
+            if (csv) {
+                writeCSVLine(w, header);
+            } else {
+                w.write("{\"columns\":[");
+                for (int i = 0; i < header.size(); i++) {
+                    if (i > 0) w.write(',');
+                    w.write('"'); w.write(header.get(i)); w.write('"');
+                }
+                w.write("],\"rows\":[");
+            }
+        }
+
+        @Override public boolean collect(Row r) {
+            if ((r.bitVector & mask) == 0) return true;
+            try {
+                if (bucket == 0) {
+                    if (nWritten == limit) { next = r.timestamp; return false; }
+                    writeRow(r.timestamp, r);
+                } else {
+                    long start = r.timestamp - (r.timestamp % bucket);
+                    if (start != bucketStart && bucketStart != -1) {
+                        if (nWritten == limit) { next = bucketStart; return false; }
+                        writeBucket();
+                    }
+                    bucketStart = start;
+                    accumulate(r);
+                }
+                return true;
+            } catch (IOException e) {
+                error = e;
+                return false;
+            }
+        }
+
+        void finish() throws IOException {
+            if (error != null) throw error;
+            if (bucketStart != -1 && next == -1) {
+                if (nWritten == limit) next = bucketStart;
+                else writeBucket();
+            }
+            writeEnd(w, next);
+        }
+
+        private void accumulate(Row r) {
+            for (int i = 0; i < index.length; i++) {
+                if ((r.bitVector & (1L << index[i])) == 0) continue;
+                double v = r.values[index[i]];
+                if (n[i] == 0) { acc[i] = (agg == Aggregation.count) ? 1 : v; n[i] = 1; continue; }
+                switch (agg) {
+                    case avg:
+                    case sum: acc[i] += v; break;
+                    case min: acc[i] = Math.min(acc[i], v); break;
+                    case max: acc[i] = Math.max(acc[i], v); break;
+                    case first: break;
+                    case last: acc[i] = v; break;
+                    case count: acc[i]++; break;
+                }
+                n[i]++;
+            }
+        }
+
+        private void writeBucket() throws IOException {
+            if (agg == Aggregation.avg) {
+                for (int i = 0; i < acc.length; i++) { if (n[i] > 0) acc[i] /= n[i]; }
+            }
+            startRow(bucketStart);
+            for (int i = 0; i < acc.length; i++) { writeValue(n[i] > 0, acc[i]); }
+            endRow();
+            for (int i = 0; i < acc.length; i++) { acc[i] = 0; n[i] = 0; }
+        }
+
+        private void writeRow(long time, Row r) throws IOException {
+            startRow(time);
+            for (int i = 0; i < index.length; i++) {
+                writeValue((r.bitVector & (1L << index[i])) != 0, r.values[index[i]]);
+            }
+            endRow();
+        }
+
+        private void startRow(long time) throws IOException {
+            if (!csv) {
+                if (nWritten > 0) w.write(',');
+                w.write("\n[");
+            }
+            w.write(Long.toString(time));
+        }
+
+        private void writeValue(boolean present, double v) throws IOException {
+            w.write(',');
+            if (!present || Double.isNaN(v) || Double.isInfinite(v)) {
+                if (!csv) w.write("null");
+            } else if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+                w.write(Long.toString((long)v));
+            } else {
+                w.write(Double.toString(v));
+            }
+        }
+
+        private void endRow() throws IOException {
+            w.write(csv ? "\n" : "]");
+            nWritten++;
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void writeEnd(Writer w, long next) throws IOException {
+        String token = (next == -1) ? null : Long.toString(next, 36);
+        if (csv) {
+            if (token != null) { w.write("# next="); w.write(token); w.write('\n'); }
+        } else {
+            w.write("\n],\"next\":");
+            w.write(token == null ? "null" : "\"" + token + "\"");
+            w.write("}\n");
+        }
+    }
+
+    private static void writeCSVLine(Writer w, List<String> values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) w.write(',');
+            w.write(values.get(i));
+        }
+        w.write('\n');
+    }
+
+    private static long longParam(Map<String,String> params, String name, long defaultValue) {
+        String v = params.get(name);
+        if (v == null || v.isEmpty()) return defaultValue;
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + v);
+        }
+    }
+
+    private static long parseToken(String token) {
+        try {
+            long t = Long.parseLong(token, 36);
+            if (t >= 0) return t;
+        } catch (NumberFormatException e) { }
+        throw new IllegalArgumentException("Invalid page: " + token);
+    }
+
+    private static long parseDuration(String d) {
+        long unit = 1;
+        switch (d.charAt(d.length() - 1)) {
+            case 's': unit = 1000L; break;
+            case 'm': unit = 60 * 1000L; break;
+            case 'h': unit = 60 * 60 * 1000L; break;
+            case 'd': unit = 24 * 60 * 60 * 1000L; break;
+        }
+        String number = (unit == 1) ? d : d.substring(0, d.length() - 1);
+        try {
+            long duration = Long.parseLong(number) * unit;
+            if (duration > 0) return duration;
+        } catch (NumberFormatException e) { }
+        throw new IllegalArgumentException("Invalid bucket: " + d);
+    }
+
+    private static List<String> split(String list) {
+        List<String> result = new ArrayList<>();
+        for (String s : list.split(",")) {
+            s = s.trim();
+            if (!s.isEmpty()) result.add(s);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * HTTPSupport.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 24, 2015
+ */
+
+package org.noroomattheinn.visibletesla.rest;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.noroomattheinn.metrics.Histogram;
+import org.noroomattheinn.metrics.Metrics;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * HTTPSupport: Executors and response handling shared by the handlers of
+ * the RESTServer. Responses whose length is known are sent with an exact
+ * Content-Length so the connection can be kept alive for the next request.
+ * Responses whose length is not known are sent with chunked encoding. Text
+ * responses are compressed when the client accepts gzip. Responses that are
+ * sent repeatedly can be held as CachedResponses, which carry an ETag so a
+ * client that already has the content gets a 304 (Not Modified) instead.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class HTTPSupport {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final int    QueuePerThread = 16;    // Waiting requests per thread
+    private static final int    MinGzipSize = 512;      // Not worth compressing below this
+    private static final String GzipSuffix = "-gz";     // Added to the ETag
+    private static final char[] HexDigits = "0123456789ABCDEF".toCharArray();
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create the executor on which requests are handled.
+     * @param threads   The size of the pool of platform threads
+     * @param virtual   If true and the runtime supports virtual threads, each
+     *                  request gets its own virtual thread and threads is
+     *                  ignored
+     * @return          The executor. When the pool's queue is full, requests
+     *                  are handled on the thread that accepted them, which
+     *                  slows the acceptance of new requests rather than
+     *                  dropping them.
+     */
+    public static ExecutorService newExecutor(int threads, boolean virtual) {
+        if (virtual) {
+            ExecutorService es = newVirtualThreadExecutor();
+            if (es != null) {
+                logger.info("RESTServer using virtual threads");
+                return es;
+            }
+        }
+        threads = Math.max(1, threads);
+        logger.info("RESTServer using " + threads + " threads");
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QueuePerThread),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "RESTServer-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * A filter that records how long the requests in a context take and the
+     * status codes they are answered with. The time covers authentication
+     * and the handler; for a streamed response it ends when the handler
+     * returns.
+     * @param context   The path of the context, used to label the metrics
+     */
+    public static Filter timed(final String context) {
+        final Histogram latency = Metrics.get().histogram("rest_request_seconds",
+                "Time taken to handle a REST request", "context", context);
+        return new Filter() {
+            @Override public void doFilter(HttpExchange exchange, Chain chain)
+                    throws IOException {
+                long began = System.nanoTime();
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    latency.time(began);
+                    Metrics.get().counter("rest_responses_total",
+                            "REST responses by context and status code",
+                            "context", context,
+                            "code", Integer.toString(exchange.getResponseCode())).inc();
+                }
+            }
+
+            @Override public String description() { return "Request timing"; }
+        };
+    }
+
+    /**
+     * Send a complete text response and close the exchange.
+     * @param exchange  The exchange being answered
+     * @param code      The HTTP status code
+     * @param response  The body of the response, encoded as UTF-8
+     */
+    public static void send(HttpExchange exchange, int code, String response)
+            throws IOException {
+        send(exchange, code, response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send a complete response and close the exchange. If a Content-Type has
+     * been set and is a text type, the body is compressed when the client
+     * accepts gzip.
+     * @param exchange  The exchange being answered
+     * @param code      The HTTP status code
+     * @param response  The body of the response
+     */
+    public static void send(HttpExchange exchange, int code, byte[] response)
+            throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        if (worthCompressing(headers.getFirst("Content-Type"), response.length)) {
+            headers.add("Vary", "Accept-Encoding");
+            if (acceptsGzip(exchange)) {
+                response = gzip(response);
+                headers.set("Content-Encoding", "gzip");
+            }
+        }
+        write(exchange, code, response);
+    }
+
+    /**
+     * Send a cached response and close the exchange. The response carries
+     * an ETag and if the client says it already has that version, only a
+     * 304 (Not Modified) is sent. The compressed form of the body is sent
+     * to clients that accept gzip and is made only once.
+     * @param exchange  The exchange being answered
+     * @param code      The HTTP status code
+     * @param response  The response to send. It supplies the Content-Type.
+     */
+    public static void send(HttpExchange exchange, int code, CachedResponse response)
+            throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", response.type);
+        boolean gzip = false;
+        if (response.compressible()) {
+            headers.add("Vary", "Accept-Encoding");
+            gzip = acceptsGzip(exchange);
+        }
+        // Each encoding of the content has its own tag
+        headers.set("ETag", "\"" + response.tag + (gzip ? GzipSuffix : "") + "\"");
+        if (code == 200 && hasVersion(exchange, response.tag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        if (gzip) headers.set("Content-Encoding", "gzip");
+        write(exchange, code, gzip ? response.gzipped() : response.body);
+    }
+
+    /**
+     * Begin a response whose length is not known in advance. The body is
+     * sent with chunked encoding and compressed if it is a text type and the
+     * client accepts gzip. Closing the returned stream completes the response
+     * and the caller must also close the exchange.
+     * @param exchange  The exchange being answered
+     * @param code      The HTTP status code
+     * @return          The stream to which the body should be written
+     */
+    public static OutputStream beginChunked(HttpExchange exchange, int code)
+            throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        boolean gzip = false;
+        if (compressible(headers.getFirst("Content-Type"))) {
+            headers.add("Vary", "Accept-Encoding");
+            if (acceptsGzip(exchange)) {
+                headers.set("Content-Encoding", "gzip");
+                gzip = true;
+            }
+        }
+        exchange.sendResponseHeaders(code, 0);
+        OutputStream os = exchange.getResponseBody();
+        return gzip ? new GZIPOutputStream(os, 8192, true) : os;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    static boolean worthCompressing(String type, int length) {
+        return length >= MinGzipSize && compressible(type);
+    }
+
+    static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes)) {
+            gz.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode bytes as upper case hex, two digits per byte
+     */
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HexDigits[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HexDigits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Decode hex in either case
+     * @throws IllegalArgumentException if s isn't an even number of hex digits
+     */
+    static byte[] fromHex(String s) {
+        if (s.length() % 2 != 0) throw new IllegalArgumentException("Odd length hex: " + s);
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16);
+            int lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("Not hex: " + s);
+            bytes[i] = (byte)((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    private static void write(HttpExchange exchange, int code, byte[] response)
+            throws IOException {
+        try {
+            boolean noBody = response.length == 0 || exchange.getRequestMethod().equals("HEAD");
+            // A length of 0 would mean chunked. Say -1 when there is no body
+            exchange.sendResponseHeaders(code, noBody ? -1 : response.length);
+            if (!noBody) {
+                OutputStream os = exchange.getResponseBody();
+                os.write(response);
+                os.close();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Does an If-None-Match header name the given tag, in either encoding?
+     */
+    private static boolean hasVersion(HttpExchange exchange, String tag) {
+        String match = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (match == null) return false;
+        for (String t : match.split(",")) {
+            t = t.trim();
+            if (t.equals("*")) return true;
+            if (t.startsWith("W/")) t = t.substring(2);
+            t = StringUtils.strip(t, "\"");
+            if (t.endsWith(GzipSuffix)) t = t.substring(0, t.length() - GzipSuffix.length());
+            if (t.equals(tag)) return true;
+        }
+        return false;
+    }
+
+    private static boolean compressible(String type) {
+        if (type == null) return false;
+        return type.startsWith("text/") || type.startsWith("application/javascript") ||
+               type.startsWith("application/json");
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accepted == null) return false;
+        for (String coding : accepted.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+            for (int i = 1; i < parts.length; i++) {
+                String p = parts[i].trim();
+                if (!p.startsWith("q=")) continue;
+                try {
+                    if (Double.parseDouble(p.substring(2)) == 0) return false;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // Looked up reflectively so the code still runs on older runtimes
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * LiveStream.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 26, 2015
+ */
+
+package org.noroomattheinn.visibletesla.rest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang3.StringUtils;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * LiveStream: Push changes in vehicle state to clients as they happen rather
+ * than having clients poll for the whole state.
+ *
+ * The state is a set of named fields. Each change to a field is stamped with
+ * a new version number. A client only needs to remember the version it last
+ * received; the next message it gets contains the fields that changed after
+ * that version. Versions start over whenever the stream is created, so the
+ * version a client is given is prefixed with an epoch that identifies this
+ * stream ("epoch-version"). A client that presents a version from another
+ * epoch, such as one from before a restart, is sent every field.
+ *
+ * Changes that occur while a client is waiting for its next message are
+ * coalesced into that message, so the memory used per client is constant no
+ * matter how quickly the state changes or how slowly the client reads.
+ *
+ * Two endpoints are provided under the context this handler is given:
+ *   .../stream     Server-Sent Events. Each event's id is the version, so a
+ *                  reconnecting client gets the changes it missed. Optional
+ *                  parameter interval (millis) limits the event rate.
+ *   .../poll       Long poll. Parameter since is the version from the last
+ *                  response. The response is sent as soon as something has
+ *                  changed or after timeout seconds with an empty delta.
+ * Messages have the form {"v":"epoch-version","d":{field:value,...}}
+ *
+ * Open connections don't hold a thread. Messages are written by a small
+ * pool and a client whose write stalls is dropped.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class LiveStream implements HttpHandler {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    public static final long    DefaultInterval = 1000;     // Millis between events
+    public static final long    MinInterval = 250;
+    private static final long   HeartbeatInterval = 15 * 1000;
+    private static final long   DefaultPollTimeout = 25 * 1000;
+    private static final long   MaxPollTimeout = 120 * 1000;
+    private static final long   SlowWrite = 1000;           // Then add a writer
+    private static final long   WriteTimeout = 10 * 1000;   // Then drop the client
+    private static final long   CheckInterval = 1000;       // For heartbeats & timeouts
+    private static final int    MaxClients = 1000;
+    private static final int    MaxExtraThreads = 32;       // To replace stalled ones
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final Map<String,String> values = new LinkedHashMap<>();  // JSON literals
+    private final Map<String,Long> changedAt = new HashMap<>();
+    private final Map<Long,String> deltaCache = new HashMap<>();     // By since version
+    private long version = 0;
+    private final String epoch;     // Distinguishes our versions from any before
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final List<Waiter> waiters = new CopyOnWriteArrayList<>();
+    private final ScheduledThreadPoolExecutor writers;
+    private final ScheduledExecutorService watchdog;    // Never writes, so never stalls
+    private final int nThreads;
+    private int nExtraThreads = 0;
+    private final AtomicInteger nStalled = new AtomicInteger();
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create a LiveStream
+     * @param threads   The number of threads used to write to clients. This
+     *                  does not limit the number of clients.
+     */
+    public LiveStream(int threads) {
+        nThreads = Math.max(1, threads);
+        epoch = Long.toString(System.currentTimeMillis(), 36);
+        writers = new ScheduledThreadPoolExecutor(nThreads, daemonThreads("LiveStream-"));
+        watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("LiveStream-Watchdog-"));
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() { checkClients(); }
+        }, CheckInterval, CheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Merge new values into the state and notify clients of the fields whose
+     * values changed.
+     * @param fields    A map from field name to value. Each value must be a
+     *                  JSON literal (a number, a quoted string, true, false,
+     *                  or null).
+     */
+    public void update(Map<String,String> fields) {
+        synchronized (this) {
+            boolean changed = false;
+            for (Map.Entry<String,String> e : fields.entrySet()) {
+                String old = values.get(e.getKey());
+                if (e.getValue().equals(old)) continue;
+                if (!changed) { version++; deltaCache.clear(); changed = true; }
+                values.put(e.getKey(), e.getValue());
+                changedAt.put(e.getKey(), version);
+            }
+            if (!changed) return;
+        }
+        for (Subscriber s : subscribers) { s.schedule(); }
+        for (Waiter w : waiters) { w.complete(); }
+    }
+
+    public int subscribers() { return subscribers.size(); }
+
+    public int waiters() { return waiters.size(); }
+
+    public int stalled() { return nStalled.get(); }
+
+    /**
+     * Close every client connection and stop writing
+     */
+    public void stop() {
+        watchdog.shutdownNow();
+        writers.shutdownNow();
+        for (Subscriber s : subscribers) { s.close(); }
+        for (Waiter w : waiters) { w.exchange.close(); }
+        waiters.clear();
+    }
+
+    @Override public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            HTTPSupport.send(exchange, 400, "GET only on live endpoint\n");
+            return;
+        }
+        if (subscribers.size() + waiters.size() >= MaxClients) {
+            HTTPSupport.send(exchange, 503, "503 (Too many live clients)\n");
+            return;
+        }
+        String path = StringUtils.stripEnd(exchange.getRequestURI().getPath(), "/");
+        Map<String,String> params = getParams(exchange.getRequestURI().getQuery());
+        switch (StringUtils.substringAfterLast(path, "/")) {
+            case "stream":
+                long since = sinceValue(exchange.getRequestHeaders().getFirst("Last-Event-ID"));
+                long interval = Math.max(MinInterval,
+                        longValue(params.get("interval"), DefaultInterval));
+                subscribe(exchange, since, interval);
+                break;
+            case "poll":
+                long timeout = Math.min(MaxPollTimeout,
+                        longValue(params.get("timeout"), DefaultPollTimeout / 1000) * 1000);
+                poll(exchange, sinceValue(params.get("since")), timeout);
+                break;
+            default:
+                HTTPSupport.send(exchange, 404, "404 (Not Found)\n");
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Server-Sent Events
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void subscribe(HttpExchange exchange, long since, long interval) throws IOException {
+        // Not compressed: a compressor per client would cost far more memory
+        // than the rest of the client's state and events are small.
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        Subscriber s = new Subscriber(exchange, since, interval);
+        subscribers.add(s);
+        s.schedule();
+        // Return without closing the exchange. The subscriber writes to it
+    }
+
+    private class Subscriber implements Runnable {
+        final HttpExchange exchange;
+        final OutputStream os;
+        final long interval;
+        long sentVersion;
+        volatile long lastWrite = 0;
+        boolean scheduled = false;
+        boolean first = true;
+        volatile long writeStarted = 0;
+        volatile boolean slow = false;      // A writer was added to cover for it
+        volatile boolean closed = false;
+
+        Subscriber(HttpExchange exchange, long since, long interval) {
+            this.exchange = exchange;
+            this.os = exchange.getResponseBody();
+            this.sentVersion = since;
+            this.interval = interval;
+        }
+
+        /**
+         * Arrange for pending changes to be written no sooner than the
+         * client's interval after the last write. Does nothing if a write
+         * is already scheduled or in progress since it will pick up the
+         * changes.
+         */
+        synchronized void schedule() {
+            if (scheduled || closed) return;
+            scheduled = true;
+            long delay = Math.max(0, lastWrite + interval - System.currentTimeMillis());
+            try {
+                writers.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {     // Shutting down
+                scheduled = false;
+            }
+        }
+
+        @Override public void run() {
+            long now = System.currentTimeMillis();
+            try {
+                StringBuilder sb = new StringBuilder();
+                if (first) { sb.append("retry: 3000\n"); first = false; }
+                long[] v = new long[1];
+                String delta = delta(sentVersion, v);
+                if (delta != null) {
+                    sb.append("id: ").append(token(v[0])).append("\ndata: ").append(delta).append("\n\n");
+                } else if (now - lastWrite >= HeartbeatInterval || sb.length() > 0) {
+                    sb.append(":\n\n");
+                }
+                if (sb.length() > 0) {
+                    writeStarted = now;
+                    try {
+                        os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                        os.flush();
+                    } finally {
+                        writeStarted = 0;
+                        if (slow) { slow = false; removeWriter(); }
+                    }
+                    lastWrite = now;
+                    if (delta != null) sentVersion = v[0];
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            synchronized (this) { scheduled = false; }
+            if (currentVersion() > sentVersion) schedule();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            subscribers.remove(this);
+            exchange.close();
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Long Polling
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void poll(HttpExchange exchange, long since, long timeout) throws IOException {
+        Waiter w = new Waiter(exchange, since, System.currentTimeMillis() + timeout);
+        waiters.add(w);
+        // Check after adding so that an update between the check and the
+        // add can't be missed
+        if (currentVersion() > since) w.complete();
+    }
+
+    private class Waiter {
+        final HttpExchange exchange;
+        final long since;
+        final long deadline;
+        boolean done = false;
+
+        Waiter(HttpExchange exchange, long since, long deadline) {
+            this.exchange = exchange;
+            this.since = since;
+            this.deadline = deadline;
+        }
+
+        void complete() {
+            synchronized (this) {
+                if (done) return;
+                done = true;
+            }
+            waiters.remove(this);
+            try {
+                writers.execute(new Runnable() {
+                    @Override public void run() { respond(); }
+                });
+            } catch (RuntimeException e) {     // Shutting down
+                exchange.close();
+            }
+        }
+
+        private void respond() {
+            long[] v = new long[1];
+            String delta = delta(since, v);
+            if (delta == null) delta = "{\"v\":\"" + token(v[0]) + "\",\"d\":{}}";
+            try {
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+                HTTPSupport.send(exchange, 200, delta);
+            } catch (IOException e) {
+                logger.finest("Long poll client went away: " + e);
+            }
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private synchronized long currentVersion() { return version; }
+
+    private String token(long v) { return epoch + "-" + v; }
+
+    /**
+     * Return the version named by a token a client sent. A token from
+     * another epoch, or a version this epoch hasn't reached, names the state
+     * before any fields were set, so the client is sent all of them.
+     * @param token The token or null if the client didn't send one
+     * @return      The version
+     */
+    private long sinceValue(String token) {
+        if (token == null) return 0;
+        token = token.trim();
+        if (!StringUtils.substringBeforeLast(token, "-").equals(epoch)) return 0;
+        long since = longValue(StringUtils.substringAfterLast(token, "-"), 0);
+        return (since < 0 || since > currentVersion()) ? 0 : since;
+    }
+
+    /**
+     * Return the fields that changed after the given version. Many clients
+     * are usually at the same version, so the result is cached until the
+     * next change.
+     * @param since     The version the client has
+     * @param current   Returns the current version in element 0
+     * @return          The message or null if nothing has changed since then
+     */
+    private synchronized String delta(long since, long[] current) {
+        current[0] = version;
+        if (since >= version) return null;
+        String d = deltaCache.get(since);
+        if (d != null) return d;
+        StringBuilder sb = new StringBuilder(64);
+        sb.append("{\"v\":\"").append(token(version)).append("\",\"d\":{");
+        boolean first = true;
+        for (Map.Entry<String,String> e : values.entrySet()) {
+            if (changedAt.get(e.getKey()) <= since) continue;
+            if (!first) sb.append(',');
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+            first = false;
+        }
+        d = sb.append("}}").toString();
+        deltaCache.put(since, d);
+        return d;
+    }
+
+    /**
+     * Send heartbeats to idle subscribers, cover for and eventually drop
+     * subscribers whose writes have stalled, and answer long polls that have
+     * timed out. This runs on its own thread since every writer could be
+     * stalled.
+     */
+    private void checkClients() {
+        long now = System.currentTimeMillis();
+        for (Subscriber s : subscribers) {
+            long started = s.writeStarted;
+            if (started != 0 && now - started > WriteTimeout) {
+                dropStalled(s);
+            } else if (started != 0 && now - started > SlowWrite) {
+                // Keep the other clients going while this one is blocked
+                if (!s.slow && addWriter()) s.slow = true;
+            } else if (now - s.lastWrite >= HeartbeatInterval) {
+                s.schedule();
+            }
+        }
+        List<Waiter> expired = new ArrayList<>();
+        for (Waiter w : waiters) { if (now >= w.deadline) expired.add(w); }
+        for (Waiter w : expired) { w.complete(); }
+    }
+
+    /**
+     * A client has stopped reading and its socket buffer is full, so a
+     * writer thread is blocked. The write can't be interrupted and closing
+     * the exchange also writes, so close it on a thread of its own. The
+     * blocked writer is released, and the writer added for it removed, when
+     * the connection finally fails.
+     */
+    private void dropStalled(final Subscriber s) {
+        if (s.closed) return;
+        logger.info("Dropping stalled live stream client");
+        s.closed = true;
+        subscribers.remove(s);
+        nStalled.incrementAndGet();
+        Thread closer = new Thread(new Runnable() {
+            @Override public void run() { s.exchange.close(); }
+        }, "LiveStream-Closer");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    private synchronized boolean addWriter() {
+        if (nExtraThreads >= MaxExtraThreads) return false;
+        nExtraThreads++;
+        writers.setCorePoolSize(nThreads + nExtraThreads);
+        return true;
+    }
+
+    private synchronized void removeWriter() {
+        nExtraThreads--;
+        writers.setCorePoolSize(nThreads + nExtraThreads);
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static Map<String,String> getParams(String query) {
+        Map<String,String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String param : query.split("&")) {
+            String pair[] = param.split("=");
+            params.put(pair[0], pair.length > 1 ? pair[1] : "");
+        }
+        return params;
+    }
+
+    private static long longValue(String s, long defaultValue) {
+        if (s == null) return defaultValue;
+        try { return Long.parseLong(s.trim()); }
+        catch (NumberFormatException e) { return defaultValue; }
+    }
+}
@@ -6,33 +6,57 @@
 
 package org.noroomattheinn.visibletesla.rest;
 
+import com.google.common.collect.Range;
 import com.sun.net.httpserver.BasicAuthenticator;
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.StringProperty;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.noroomattheinn.metrics.Gauge;
+import org.noroomattheinn.metrics.Metrics;
+import org.noroomattheinn.tesla.ChargeState;
+import org.noroomattheinn.tesla.StreamState;
 import static org.noroomattheinn.tesla.Tesla.logger;
+import org.noroomattheinn.tesla.VehicleState;
+import org.noroomattheinn.timeseries.TimeSeries;
 import org.noroomattheinn.utils.Utils;
 import org.noroomattheinn.visibletesla.MessageTemplate;
 import org.noroomattheinn.utils.LRUMap;
 import org.noroomattheinn.utils.ThreadManager;
 import org.noroomattheinn.visibletesla.AppAPI;
+import org.noroomattheinn.visibletesla.data.ChargeCycle;
+import org.noroomattheinn.visibletesla.data.RestCycle;
+import org.noroomattheinn.visibletesla.data.VTData;
 import org.noroomattheinn.visibletesla.vehicle.VTVehicle;
 
 /**
- * RESTServer: Provide minimal external services.
+ * RESTServer: Provide minimal external services. Requests are handled on a
+ * bounded pool of threads, or on virtual threads where the runtime supports
+ * them, so a slow request such as a fetch from the custom page source does
+ * not hold up other clients. Changes in vehicle state are pushed to clients
+ * that subscribe to /v1/live so they needn't poll for them. The app's
+ * metrics, including the latency of every context here, are served from
+ * /v1/metrics in the Prometheus text format or as JSON.
  * 
  * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
  */
@@ -44,6 +68,12 @@ public class RESTServer implements ThreadManager.Stoppable {
  * 
  *----------------------------------------------------------------------------*/
 
+    private static final int ConnectTimeout = 10 * 1000;    // For custom pages
+    private static final int LiveThreads = 2;
+    private static final int AssetCacheSize = 64;
+    private static final int MaxCachedAsset = 1024 * 1024;
+    private static final int ReadTimeout = 30 * 1000;
+
     private static final Map<String,AppAPI.Mode> toAppMode = 
             Utils.newHashMap("sleep",   AppAPI.Mode.AllowSleeping,
                              "wakeup",  AppAPI.Mode.StayAwake,
@@ -57,12 +87,18 @@ public class RESTServer implements ThreadManager.Stoppable {
     
     private final AppAPI api;
     private final VTVehicle vtVehicle;
+    private final VTData vtData;
     private final BasicAuthenticator authenticator;
     private final BooleanProperty restEnabled;
     private final IntegerProperty restPort;
     private final StringProperty urlSource;
+    private final IntegerProperty restThreads;
+    private final BooleanProperty restVirtualThreads;
     
     private HttpServer server;
+    private ExecutorService executor;
+    private LiveStream liveStream;
+    private final RenderCache infoCache = new RenderCache(4);
     private boolean launched = false;
     
 /*==============================================================================
@@ -72,15 +108,19 @@ public class RESTServer implements ThreadManager.Stoppable {
  *============================================================================*/
     
     public RESTServer(
-            AppAPI api, VTVehicle v, BasicAuthenticator authenticator,
+            AppAPI api, VTVehicle v, VTData vtData, BasicAuthenticator authenticator,
             BooleanProperty restEnabled, IntegerProperty restPort,
-            StringProperty urlSource) {
+            StringProperty urlSource,
+            IntegerProperty restThreads, BooleanProperty restVirtualThreads) {
         this.server = null;
         this.api = api;
         this.vtVehicle = v;
+        this.vtData = vtData;
         this.restEnabled = restEnabled;
         this.urlSource = urlSource;
         this.restPort = restPort;
+        this.restThreads = restThreads;
+        this.restVirtualThreads = restVirtualThreads;
         this.authenticator = authenticator;
         ThreadManager.get().addStoppable((ThreadManager.Stoppable)this);
         watch(v);
@@ -91,6 +131,14 @@ public class RESTServer implements ThreadManager.Stoppable {
             server.stop(0);
             server = null;
         }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (liveStream != null) {
+            liveStream.stop();
+            liveStream = null;
+        }
     }
 
 /*------------------------------------------------------------------------------
@@ -118,22 +166,46 @@ public class RESTServer implements ThreadManager.Stoppable {
         try {
             server = HttpServer.create(new InetSocketAddress(restPort.get()), 0);
             
-            HttpContext cc;
-            cc = server.createContext("/v1/action/activity", activityRequest);
-            cc.setAuthenticator(authenticator);
-            cc = server.createContext("/v1/action/info", infoRequest);
-            cc.setAuthenticator(authenticator);
-            cc = server.createContext("/", staticPageRequest);
-            cc.setAuthenticator(authenticator);
+            addContext("/v1/action/activity", activityRequest);
+            addContext("/v1/action/info", infoRequest);
+            addContext("/v1/data/series", seriesRequest);
+            addContext("/v1/data/cycles", cyclesRequest);
+            liveStream = new LiveStream(LiveThreads);
+            addContext("/v1/live", liveStream);
+            addContext("/v1/metrics", metricsRequest);
+            addContext("/", staticPageRequest);
 
-            server.setExecutor(null); // creates a default executor
+            executor = HTTPSupport.newExecutor(
+                    restThreads.get(), restVirtualThreads.get());
+            trackExecutor(executor);
+            server.setExecutor(executor);
             server.start();
+            trackLiveState();
         } catch (IOException ex) {
             logger.severe("Unable to start RESTServer: " + ex.getMessage());
         }
     }
 
 
+    private void addContext(String path, HttpHandler handler) {
+        HttpContext cc = server.createContext(path, handler);
+        cc.setAuthenticator(authenticator);
+        cc.getFilters().add(HTTPSupport.timed(path));
+    }
+    
+    private static void trackExecutor(ExecutorService executor) {
+        if (!(executor instanceof ThreadPoolExecutor)) return; // Virtual threads
+        final ThreadPoolExecutor pool = (ThreadPoolExecutor)executor;
+        Metrics.get().gauge("rest_queue_depth", "REST requests waiting for a thread",
+                new Gauge.Source() {
+                    @Override public double value() { return pool.getQueue().size(); }
+                });
+        Metrics.get().gauge("rest_active_threads", "REST requests being handled",
+                new Gauge.Source() {
+                    @Override public double value() { return pool.getActiveCount(); }
+                });
+    }
+
 /*------------------------------------------------------------------------------
  *
  * PRIVATE - Request Handlers
@@ -180,13 +252,27 @@ public class RESTServer implements ThreadManager.Stoppable {
             }
             logger.info("Requested info type: " + infoType);
             String response;
+            Object[] version;
+            CachedResponse cached;
             switch (infoType) {
                 case "car_state":
-                    response = vtVehicle.carStateAsJSON();
-                    break;
+                    version = vtVehicle.carStateVersion();
+                    cached = infoCache.get(infoType, version);
+                    if (cached == null) {
+                        cached = infoCache.put(infoType, version, new CachedResponse(
+                                "application/json", vtVehicle.carStateAsJSON()));
+                    }
+                    HTTPSupport.send(exchange, 200, cached);
+                    return;
                 case "car_details":
-                    response = vtVehicle.carDetailsAsJSON();
-                    break;
+                    version = vtVehicle.carDetailsVersion();
+                    cached = infoCache.get(infoType, version);
+                    if (cached == null) {
+                        cached = infoCache.put(infoType, version, new CachedResponse(
+                                "application/json", vtVehicle.carDetailsAsJSON()));
+                    }
+                    HTTPSupport.send(exchange, 200, cached);
+                    return;
                 case "inactivity_mode":
                     response = String.format("{ \"mode\": \"%s\" }", api.mode.get().name());
                     break;
@@ -206,6 +292,107 @@ public class RESTServer implements ThreadManager.Stoppable {
         }
     };
 
+    private HttpHandler metricsRequest = new HttpHandler() {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendResponse(exchange, 400, "GET only on metrics endpoint\n");
+                return;
+            }
+            // Prometheus text unless JSON is asked for by parameter or by
+            // an Accept header that doesn't also take plain text
+            String format = getParams(exchange.getRequestURI().getQuery()).get("format");
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            boolean json = (format != null) ? format.equals("json") :
+                    (accept != null && accept.contains("application/json") &&
+                     !accept.contains("text/plain"));
+            StringBuilder sb = new StringBuilder(16 * 1024);
+            if (json) Metrics.get().writeJSON(sb);
+            else Metrics.get().writePrometheus(sb);
+            exchange.getResponseHeaders().add(
+                    "Content-Type", json ? Metrics.JSONType : Metrics.PrometheusType);
+            exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+            sendResponse(exchange, 200, sb.toString());
+        }
+    };
+
+    private HttpHandler seriesRequest = new HttpHandler() {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendResponse(exchange, 400, "GET only on series endpoint\n");
+                return;
+            }
+            if (!vtData.storesAvailable()) {
+                sendResponse(exchange, 503, "503 (Data not yet available)\n");
+                return;
+            }
+            DataQuery query;
+            try {
+                query = new DataQuery(getParams(exchange.getRequestURI().getQuery()));
+                query.checkColumns(VTData.schema);
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Type", query.contentType());
+            try (Writer w = dataWriter(exchange)) {
+                query.writeSeries(new DataQuery.RowSource() {
+                    @Override public void streamRows(
+                            Range<Long> period, TimeSeries.RowCollector collector) {
+                        vtData.streamRows(period, collector);
+                    }
+                }, VTData.schema, w);
+            } finally {
+                exchange.close();
+            }
+        }
+    };
+
+    private HttpHandler cyclesRequest = new HttpHandler() {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendResponse(exchange, 400, "GET only on cycles endpoint\n");
+                return;
+            }
+            String path = StringUtils.stripEnd(exchange.getRequestURI().getPath(), "/");
+            String cycleType = StringUtils.substringAfterLast(path, "/");
+            if (!cycleType.equals("rest") && !cycleType.equals("charge")) {
+                sendResponse(exchange, 400, "Unknown cycle type " + cycleType + "\n");
+                return;
+            }
+            if (!vtData.storesAvailable()) {
+                sendResponse(exchange, 503, "503 (Data not yet available)\n");
+                return;
+            }
+            DataQuery query;
+            try {
+                query = new DataQuery(getParams(exchange.getRequestURI().getQuery()));
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Type", query.contentType());
+            try (Writer w = dataWriter(exchange)) {
+                final DataQuery.CycleWriter cw = query.cycleWriter(cycleType, w);
+                if (cycleType.equals("rest")) {
+                    vtData.streamRestCycles(query.period(), new VTData.CycleCollector<RestCycle>() {
+                        @Override public boolean collect(RestCycle c) {
+                            return cw.add(c.startTime, c.toJSONString());
+                        }
+                    });
+                } else {
+                    vtData.streamChargeCycles(query.period(), new VTData.CycleCollector<ChargeCycle>() {
+                        @Override public boolean collect(ChargeCycle c) {
+                            return cw.add(c.startTime, c.toJSONString());
+                        }
+                    });
+                }
+                cw.finish();
+            } finally {
+                exchange.close();
+            }
+        }
+    };
+
     private Map<String, String> getParams(String query) {
         Map<String, String> params = new HashMap<>();
         if (query != null) {
@@ -222,75 +409,209 @@ public class RESTServer implements ThreadManager.Stoppable {
     }
     
     private HttpHandler staticPageRequest = new HttpHandler() {
-        LRUMap<String,byte[]> cache = new LRUMap<>(10);
+        // Requests are handled concurrently so access to the caches is
+        // synchronized on the cache. No lock is held while reading content
+        // or rendering a page.
+        final LRUMap<String,CachedResponse> assets = new LRUMap<>(AssetCacheSize);
+        final LRUMap<String,MessageTemplate> templates = new LRUMap<>(10);
+        final RenderCache pages = new RenderCache(10);
         @Override public void handle(HttpExchange exchange) throws IOException {
             // TO DO: Check for path traversal attack!
             String path = StringUtils.stripEnd(exchange.getRequestURI().getPath(), "/");
             path = StringUtils.stripStart(path, "/");
+            // Neither stored nor rendered from a stored template
+            boolean noCache = path.startsWith("custom/_nc_");
+            String type = getMimeType(StringUtils.substringAfterLast(path, "."));
             try {
-                byte[] content = cache.get(path);
-                if (content == null) {
-                    InputStream is;
-                    if (path.startsWith("custom/")) {
-                        String cPath = path.substring(7);
-                        is = new URL(urlSource.get()+cPath).openStream();
-                    } else if (path.startsWith("TeslaResources/")) {
-                        path = "org/noroomattheinn/" + path;
-                        is = getClass().getClassLoader().getResourceAsStream(path);
-                    } else {
-                        is = getClass().getResourceAsStream(path);
+                CachedResponse response;
+                if (type.equalsIgnoreCase("text/html")) {
+                    MessageTemplate mt;
+                    synchronized (templates) { mt = noCache ? null : templates.get(path); }
+                    if (mt == null) {
+                        InputStream is = openContent(path);
+                        if (is == null) {
+                            sendResponse(exchange, 404, "404 (Not Found)\n");
+                            return;
+                        }
+                        String source;
+                        try (InputStream in = is) { source = IOUtils.toString(in, "UTF-8"); }
+                        if (noCache) {
+                            mt = MessageTemplate.get(source);
+                        } else {
+                            mt = new MessageTemplate(source);
+                            synchronized (templates) { templates.put(path, mt); }
+                        }
                     }
-
-                    if (is == null) {
-                        sendResponse(exchange, 404, "404 (Not Found)\n");
-                        return;
-                    } else {
-                        content = IOUtils.toByteArray(is);
-                        if (!path.startsWith("custom/_nc_"))
-                            cache.put(path, content);
+                    // Rendered again only when the state the page shows changes
+                    Object[] version = mt.version(api, vtVehicle);
+                    response = pages.get(path, version);
+                    if (response == null) {
+                        response = pages.put(path, version, new CachedResponse(
+                                "text/html; charset=UTF-8",
+                                mt.getMessage(api, vtVehicle, null)));
+                    }
+                } else {
+                    synchronized (assets) { response = noCache ? null : assets.get(path); }
+                    if (response == null) {
+                        InputStream is = openContent(path);
+                        if (is == null) {
+                            sendResponse(exchange, 404, "404 (Not Found)\n");
+                            return;
+                        }
+                        if (noCache) {
+                            // Pass it along as it arrives
+                            exchange.getResponseHeaders().add("Content-Type", type);
+                            try (InputStream in = is; OutputStream os =
+                                    HTTPSupport.beginChunked(exchange, 200)) {
+                                IOUtils.copy(in, os);
+                            } finally {
+                                exchange.close();
+                            }
+                            return;
+                        }
+                        byte[] content;
+                        try (InputStream in = is) { content = IOUtils.toByteArray(in); }
+                        response = new CachedResponse(type, content).precompress();
+                        if (content.length <= MaxCachedAsset) {
+                            synchronized (assets) { assets.put(path, response); }
+                        }
+                    }
+                    if (cacheOnClient(type)) {
+                        exchange.getResponseHeaders().add("Cache-Control", "max-age=2592000");
                     }
                 }
-                
-                String type = getMimeType(StringUtils.substringAfterLast(path, "."));
-                if (type.equalsIgnoreCase("text/html")) {
-                    MessageTemplate mt = new MessageTemplate(new String(content, "UTF-8"));
-                    content = mt.getMessage(api, vtVehicle, null).getBytes();
-                } else if (cacheOnClient(type)) {
-                    exchange.getResponseHeaders().add("Cache-Control", "max-age=2592000");
-                }
-
-                exchange.getResponseHeaders().add("Content-Type", type);
-                sendResponse(exchange, 200, content);
+                HTTPSupport.send(exchange, 200, response);
             } catch (IOException ex) {
                 logger.severe("Error reading requested file: " + ex.getMessage());
-                sendResponse(exchange, 404, "404 (Not Found)\n");
+                if (exchange.getResponseCode() == -1) {   // Headers not yet sent
+                    sendResponse(exchange, 404, "404 (Not Found)\n");
+                }
             }
         }
     };
     
 
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Feeding the live stream
+ * 
+ *----------------------------------------------------------------------------*/
+    
+    private void trackLiveState() {
+        final LiveStream live = liveStream;
+        vtVehicle.streamState.addTracker(new Runnable() {
+            @Override public void run() { live.update(streamFields(vtVehicle.streamState.get())); }
+        });
+        vtVehicle.chargeState.addTracker(new Runnable() {
+            @Override public void run() { live.update(chargeFields(vtVehicle.chargeState.get())); }
+        });
+        vtVehicle.vehicleState.addTracker(new Runnable() {
+            @Override public void run() { live.update(vehicleFields(vtVehicle.vehicleState.get())); }
+        });
+        live.update(streamFields(vtVehicle.streamState.get()));
+        live.update(chargeFields(vtVehicle.chargeState.get()));
+        live.update(vehicleFields(vtVehicle.vehicleState.get()));
+    }
+
+    private static Map<String,String> streamFields(StreamState ss) {
+        Map<String,String> f = new LinkedHashMap<>();
+        if (ss == null) return f;
+        f.put("lat", num(ss.estLat, "%.6f"));
+        f.put("lng", num(ss.estLng, "%.6f"));
+        f.put("heading", num(ss.heading));
+        f.put("speed", num(ss.speed));
+        f.put("power", num(ss.power));
+        f.put("odometer", num(ss.odometer));
+        f.put("soc", num(ss.soc));
+        f.put("shift", str(ss.shiftState()));
+        return f;
+    }
+
+    private static Map<String,String> chargeFields(ChargeState cs) {
+        Map<String,String> f = new LinkedHashMap<>();
+        if (cs == null) return f;
+        f.put("batteryPercent", num(cs.batteryPercent));
+        f.put("range", num(cs.range));
+        f.put("estimatedRange", num(cs.estimatedRange));
+        f.put("idealRange", num(cs.idealRange));
+        f.put("chargingState", str(String.valueOf(cs.chargingState)));
+        f.put("charging", String.valueOf(cs.chargingState == ChargeState.Status.Charging));
+        f.put("chargerVoltage", num(cs.chargerVoltage));
+        f.put("chargerCurrent", num(cs.chargerActualCurrent));
+        f.put("chargerPower", num(cs.chargerPower));
+        f.put("chargeRate", num(cs.chargeRate));
+        f.put("batteryCurrent", num(cs.batteryCurrent));
+        f.put("chargePort", str(cs.chargePortOpen ? "open" : "closed"));
+        f.put("fastCharger", String.valueOf(cs.fastChargerPresent));
+        return f;
+    }
+
+    // Named as in car_state so a dashboard can use either
+    private static Map<String,String> vehicleFields(VehicleState vs) {
+        Map<String,String> f = new LinkedHashMap<>();
+        if (vs == null) return f;
+        f.put("rf", str(vs.isPFOpen ? "open" : "closed"));
+        f.put("rr", str(vs.isPROpen ? "open" : "closed"));
+        f.put("lf", str(vs.isDFOpen ? "open" : "closed"));
+        f.put("lr", str(vs.isDROpen ? "open" : "closed"));
+        f.put("ft", str(vs.isFTOpen ? "open" : "closed"));
+        f.put("rt", str(vs.isRTOpen ? "open" : "closed"));
+        f.put("panoPct", num(vs.panoPercent));
+        f.put("locked", String.valueOf(vs.locked));
+        return f;
+    }
+
+    private static String num(double d) {
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) return Long.toString((long)d);
+        return num(d, "%.1f");
+    }
+
+    private static String num(double d, String format) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) return "null";
+        return String.format(Locale.US, format, d);
+    }
+
+    private static String str(String s) {
+        if (s == null) return "null";
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
 /*------------------------------------------------------------------------------
  *
  * PRIVATE - Utility Methods
  * 
  *----------------------------------------------------------------------------*/
 
+    private Writer dataWriter(HttpExchange exchange) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                HTTPSupport.beginChunked(exchange, 200), "UTF-8"), 16 * 1024);
+    }
+    
+    /**
+     * Open the content for a path: a page from the custom page source, an
+     * image from TeslaResources, or one of our own resources
+     * @return  The content, or null if there is no such resource
+     */
+    private InputStream openContent(String path) throws IOException {
+        if (path.startsWith("custom/")) {
+            String cPath = path.substring(7);
+            URLConnection c = new URL(urlSource.get()+cPath).openConnection();
+            c.setConnectTimeout(ConnectTimeout);
+            c.setReadTimeout(ReadTimeout);
+            return c.getInputStream();
+        } else if (path.startsWith("TeslaResources/")) {
+            String resource = "org/noroomattheinn/" + path;
+            return getClass().getClassLoader().getResourceAsStream(resource);
+        }
+        return getClass().getResourceAsStream(path);
+    }
+
     private boolean cacheOnClient(String type) {
         return (!type.equals("text/html"));
     }
     
     private void sendResponse(HttpExchange exchange, int code, String response) throws IOException {
-        exchange.sendResponseHeaders(code, response.length());
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
-        os.close();
-    }
-    
-    private void sendResponse(HttpExchange exchange, int code, byte[] response) throws IOException {
-        exchange.sendResponseHeaders(code, response.length);
-        OutputStream os = exchange.getResponseBody();
-        os.write(response);
-        os.close();
+        HTTPSupport.send(exchange, code, response);
     }
     
     private String getMimeType(String type) {
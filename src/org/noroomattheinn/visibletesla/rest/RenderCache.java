@@ -0,0 +1,91 @@
+/*
+ * RenderCache.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 28, 2015
+ */
+
+package org.noroomattheinn.visibletesla.rest;
+
+import org.noroomattheinn.utils.LRUMap;
+
+/**
+ * RenderCache: Responses that are generated from vehicle state, each stored
+ * with the version of the state it was generated from. A version is an
+ * array of the objects the response was generated from (see
+ * MessageTemplate.version and VTVehicle.carStateVersion). A stored response
+ * is returned only if every element of the current version is identical to
+ * the one it was stored with. This class is thread safe.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class RenderCache {
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final LRUMap<String,Entry> entries;
+
+    private static class Entry {
+        final Object[] version;
+        final CachedResponse response;
+        Entry(Object[] version, CachedResponse response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    public RenderCache(int size) {
+        entries = new LRUMap<>(size);
+    }
+
+    /**
+     * @param key       Identifies the response, for example by path
+     * @param version   The current version of the state it depends on. If
+     *                  null, the response can't be cached.
+     * @return          The stored response or null if there is none for the
+     *                  current version
+     */
+    public synchronized CachedResponse get(String key, Object[] version) {
+        if (version == null) return null;
+        Entry e = entries.get(key);
+        if (e == null || !sameVersion(e.version, version)) return null;
+        return e.response;
+    }
+
+    /**
+     * Store a response, replacing any for an earlier version
+     * @param key       Identifies the response
+     * @param version   The version of the state it was generated from. It
+     *                  must be obtained before the state was read. If null,
+     *                  nothing is stored.
+     * @param response  The response
+     * @return          The response
+     */
+    public synchronized CachedResponse put(String key, Object[] version, CachedResponse response) {
+        if (version != null) entries.put(key, new Entry(version, response));
+        return response;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static boolean sameVersion(Object[] a, Object[] b) {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+}
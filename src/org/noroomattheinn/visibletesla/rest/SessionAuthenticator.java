@@ -0,0 +1,215 @@
+/*
+ * SessionAuthenticator.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 27, 2015
+ */
+
+package org.noroomattheinn.visibletesla.rest;
+
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * SessionAuthenticator: A BasicAuthenticator that avoids verifying the same
+ * password over and over. Verifying a password is deliberately expensive
+ * and a browser sends the credentials with every request for a page, its
+ * scripts, and its images.
+ *
+ * Two things make repeat requests cheap:
+ * - Credentials that were verified recently are remembered. They are kept
+ *   as a keyed hash, never as the password itself.
+ * - After a successful login a signed session token is issued as a cookie.
+ *   A request that presents a valid token, either as the cookie or as an
+ *   "Authorization: Bearer" header, is accepted without checking a
+ *   password at all. Clients that ignore cookies still work with Basic
+ *   authentication alone.
+ *
+ * Both are discarded by invalidate(), which must be called whenever the
+ * password changes. Invalidating also changes the signing key so every
+ * outstanding token stops working.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public abstract class SessionAuthenticator extends BasicAuthenticator {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    public static final String  CookieName = "VTSession";
+    private static final long   CacheLifetime = 5 * 60 * 1000;
+    private static final long   SessionLifetime = 12 * 60 * 60 * 1000;
+    private static final int    MaxCached = 32;
+    private static final String MacAlgorithm = "HmacSHA256";
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String,Long> verified = new LinkedHashMap<>();  // To expiry
+    private Mac mac;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    public SessionAuthenticator(String realm) {
+        super(realm);
+        newKey();
+    }
+
+    /**
+     * Check a user and password the expensive way. Called only when the
+     * credentials haven't been verified recently.
+     */
+    protected abstract boolean verify(String user, String pwd);
+
+    /**
+     * Forget all verified credentials and make all session tokens invalid.
+     * Call this whenever the password changes.
+     */
+    public synchronized void invalidate() {
+        verified.clear();
+        newKey();
+    }
+
+    @Override public Result authenticate(HttpExchange exchange) {
+        String user = checkToken(presentedToken(exchange));
+        if (user != null) return new Success(new HttpPrincipal(user, realm));
+        Result result = super.authenticate(exchange);
+        if (result instanceof Success) {
+            String name = ((Success)result).getPrincipal().getUsername();
+            exchange.getResponseHeaders().add("Set-Cookie", String.format(
+                    "%s=%s; Path=/; Max-Age=%d; HttpOnly; SameSite=Strict",
+                    CookieName, newToken(name), SessionLifetime / 1000));
+        }
+        return result;
+    }
+
+    @Override public boolean checkCredentials(String user, String pwd) {
+        long now = System.currentTimeMillis();
+        String key = sign(user + ":" + pwd);
+        synchronized (this) {
+            Long expiry = verified.get(key);
+            if (expiry != null && expiry > now) return true;
+        }
+        if (!verify(user, pwd)) return false;
+        synchronized (this) {
+            // Only remember credentials signed with the current key so that
+            // a verification that raced with invalidate() is not kept
+            if (key.equals(sign(user + ":" + pwd))) {
+                verified.put(key, now + CacheLifetime);
+                prune(now);
+            }
+        }
+        return true;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Session Tokens
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * A token is the hex encoding of "user:expiry" followed by a dot and the
+     * signature of that payload.
+     */
+    private String newToken(String user) {
+        long expiry = System.currentTimeMillis() + SessionLifetime;
+        String payload = HTTPSupport.toHex(
+                (user + ":" + expiry).getBytes(StandardCharsets.UTF_8));
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * Check a token's signature in constant time and then its expiry.
+     * @return  The user the token was issued to, or null if the token is
+     *          missing, forged, or expired
+     */
+    private String checkToken(String token) {
+        if (token == null) return null;
+        int dot = token.indexOf('.');
+        if (dot < 0) return null;
+        String payload = token.substring(0, dot);
+        byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+        byte[] presented = token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, presented)) return null;
+        try {
+            String decoded = new String(
+                    HTTPSupport.fromHex(payload), StandardCharsets.UTF_8);
+            int colon = decoded.lastIndexOf(':');
+            long expiry = Long.parseLong(decoded.substring(colon + 1));
+            if (expiry < System.currentTimeMillis()) return null;
+            return decoded.substring(0, colon);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static String presentedToken(HttpExchange exchange) {
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth != null && auth.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return auth.substring(7).trim();
+        }
+        List<String> cookies = exchange.getRequestHeaders().get("Cookie");
+        if (cookies == null) return null;
+        for (String header : cookies) {
+            for (String cookie : header.split(";")) {
+                String c = cookie.trim();
+                if (c.startsWith(CookieName + "=")) return c.substring(CookieName.length() + 1);
+            }
+        }
+        return null;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private synchronized void newKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        try {
+            mac = Mac.getInstance(MacAlgorithm);
+            mac.init(new SecretKeySpec(key, MacAlgorithm));
+        } catch (GeneralSecurityException e) {
+            // Every Java runtime is required to support HmacSHA256
+            logger.severe("Unable to create session key: " + e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized String sign(String s) {
+        return HTTPSupport.toHex(mac.doFinal(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void prune(long now) {
+        Iterator<Long> it = verified.values().iterator();
+        while (it.hasNext()) { if (it.next() <= now) it.remove(); }
+        it = verified.values().iterator();
+        while (verified.size() > MaxCached && it.hasNext()) { it.next(); it.remove(); }
+    }
+}
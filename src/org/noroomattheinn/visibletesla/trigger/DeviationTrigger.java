@@ -5,6 +5,8 @@
  */
 package org.noroomattheinn.visibletesla.trigger;
 
+import org.noroomattheinn.metrics.Counter;
+
 /**
  * DeviationTrigger: Determines whether a sample deviates from a historical
  * baseline.
@@ -18,6 +20,8 @@ public class DeviationTrigger {
     private long firstTime, lastTime, firstTriggerTime;
     private long baselineInterval;
     private long sampleCount;
+    private final Counter evaluations = GenericTrigger.evaluationCounter("Deviation");
+    private final Counter fired = GenericTrigger.firedCounter("Deviation");
     
     /**
      * An object that monitors whether a sample deviates from an established
@@ -45,6 +49,7 @@ public class DeviationTrigger {
      *                  baseline is still being formed.
      */
     public boolean evalPredicate(double sample) {
+        evaluations.inc();
         if (sample <= 0) {
             resetBaseline();
             return false;
@@ -67,6 +72,7 @@ public class DeviationTrigger {
                 } else if (System.currentTimeMillis() - firstTriggerTime > baselineInterval) {
                     baseline = runningAverage;
                     resetBaseline();    // Start a new baseline
+                    fired.inc();
                     return true;
                 }
             } else {	// The sample is in range of the average
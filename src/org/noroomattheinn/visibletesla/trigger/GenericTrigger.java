@@ -11,6 +11,8 @@ import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import org.noroomattheinn.metrics.Counter;
+import org.noroomattheinn.metrics.Metrics;
 import static org.noroomattheinn.tesla.Tesla.logger;
 
 /**
@@ -50,6 +52,7 @@ public class GenericTrigger<T> {
     private final Predicate         predicate;
     private final long              bounceInterval;
     private final RW<T>             th;
+    private final Counter           evaluations, fired;
     
     private T                       curVal, lastVal;
     private long                    lastTimeSatisfied;
@@ -72,6 +75,8 @@ public class GenericTrigger<T> {
         this.predicate = predicate;
         this.bounceInterval = bounceInterval;
         this.th = th;
+        this.evaluations = evaluationCounter(key);
+        this.fired = firedCounter(key);
         
         this.lastTimeSatisfied = 0;
         this.curVal = this.lastVal = null;
@@ -115,15 +120,32 @@ public class GenericTrigger<T> {
 
     public boolean evalPredicate(T newVal) {
         curVal = newVal;
+        evaluations.inc();
         if (isEnabled.get() && !bouncing()) {
             if (satisfied(newVal)) {
                 lastTimeSatisfied = System.currentTimeMillis();
+                fired.inc();
                 return true;
             }
         }
         return false;
     }
     
+    /**
+     * The counters kept for each trigger, also used by the triggers that
+     * aren't GenericTriggers
+     * @param trigger   The name or key of the trigger
+     */
+    public static Counter evaluationCounter(String trigger) {
+        return Metrics.get().counter("trigger_evaluations_total",
+                "Times a trigger's predicate was evaluated", "trigger", trigger);
+    }
+    
+    public static Counter firedCounter(String trigger) {
+        return Metrics.get().counter("trigger_fired_total",
+                "Times a trigger's predicate was satisfied", "trigger", trigger);
+    }
+    
     public String defaultMessage() {
         String val = getCurrentVal();
         String targetVal = getCurrentVal();
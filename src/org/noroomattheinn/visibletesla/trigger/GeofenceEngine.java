@@ -0,0 +1,319 @@
+/*
+ * GeofenceEngine.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 20, 2015
+ */
+package org.noroomattheinn.visibletesla.trigger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.noroomattheinn.utils.GeoUtils;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * GeofenceEngine: Detect when the car enters or leaves any number of circular
+ * areas. Fences are registered in a uniform grid of cells keyed by latitude
+ * and longitude. Each fence is registered in every cell its bounding box
+ * overlaps, so a location update only needs to examine the fences registered
+ * in the cell containing the car. Departures are found by comparing the result
+ * with the set of fences the car was inside. The cost of an update does not
+ * grow with the number of fences.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class GeofenceEngine {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final double CellDegrees = 0.01;         // ~1.1km of latitude
+    private static final double MetersPerDegree = 111320.0;
+    private static final int    MaxCellsPerFence = 256;     // Larger fences are
+                                                            // checked every time
+
+/*------------------------------------------------------------------------------
+ *
+ * Public types
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * A circular area with the transitions that are of interest and a
+     * debounce period. Transitions of a fence that occur within the debounce
+     * period of the previous one are not reported. A fence may also name the
+     * address its notifications should go to.
+     */
+    public static class Geofence {
+        public final String id;
+        public final GeoUtils.CircularArea area;
+        public final boolean notifyEnter, notifyLeave;
+        public final long debounce;
+        public final String address;    // null means the default address
+
+        public Geofence(String id, GeoUtils.CircularArea area,
+                        boolean notifyEnter, boolean notifyLeave, long debounce) {
+            this(id, area, notifyEnter, notifyLeave, debounce, null);
+        }
+
+        public Geofence(String id, GeoUtils.CircularArea area,
+                        boolean notifyEnter, boolean notifyLeave, long debounce,
+                        String address) {
+            this.id = id;
+            this.area = area;
+            this.notifyEnter = notifyEnter;
+            this.notifyLeave = notifyLeave;
+            this.debounce = debounce;
+            this.address = address;
+        }
+    }
+
+    /**
+     * A reported change in whether the car is inside a Geofence
+     */
+    public static class Transition {
+        public final Geofence fence;
+        public final boolean entered;
+
+        Transition(Geofence fence, boolean entered) {
+            this.fence = fence;
+            this.entered = entered;
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final Map<String,Geofence> fences = new HashMap<>();
+    private final Map<Long,List<Geofence>> grid = new HashMap<>();
+    private final List<Geofence> largeFences = new ArrayList<>();
+    private final Set<String> inside = new HashSet<>();
+    private final Set<String> added = new HashSet<>();
+    private final Map<String,Long> lastReported = new HashMap<>();
+    private boolean haveLocation = false;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    public GeofenceEngine() { }
+
+    /**
+     * Add a Geofence, replacing any existing fence with the same id. Fences
+     * with a radius of zero are treated as undefined and are not added. The
+     * next location update establishes whether the car is inside a new fence
+     * without reporting a transition.
+     * @param f The fence to add
+     */
+    public synchronized void put(Geofence f) {
+        remove(f.id);
+        if (f.area.radius <= 0) return;
+        fences.put(f.id, f);
+        added.add(f.id);
+        List<Long> cells = cellsFor(f.area);
+        if (cells == null) { largeFences.add(f); return; }
+        for (Long cell : cells) {
+            List<Geofence> inCell = grid.get(cell);
+            if (inCell == null) { inCell = new ArrayList<>(2); grid.put(cell, inCell); }
+            inCell.add(f);
+        }
+    }
+
+    /**
+     * Remove the Geofence with the given id if it exists.
+     * @param id    The id of the fence to remove
+     */
+    public synchronized void remove(String id) {
+        Geofence f = fences.remove(id);
+        if (f == null) return;
+        inside.remove(id);
+        added.remove(id);
+        lastReported.remove(id);
+        List<Long> cells = cellsFor(f.area);
+        if (cells == null) { largeFences.remove(f); return; }
+        for (Long cell : cells) {
+            List<Geofence> inCell = grid.get(cell);
+            if (inCell == null) continue;
+            inCell.remove(f);
+            if (inCell.isEmpty()) grid.remove(cell);
+        }
+    }
+
+    public synchronized int size() { return fences.size(); }
+
+    /**
+     * Process a new location for the car.
+     * @param lat   The latitude of the car
+     * @param lng   The longitude of the car
+     * @param time  The time of the location update
+     * @return      The transitions to report. The first location after the
+     *              engine is created only establishes which fences the car is
+     *              inside, so it never produces transitions.
+     */
+    public synchronized List<Transition> update(double lat, double lng, long time) {
+        Set<String> nowInside = new HashSet<>();
+        List<Geofence> candidates = grid.get(cellKey(latIndex(lat), lngIndex(lng, lat)));
+        if (candidates != null) { addContaining(candidates, lat, lng, nowInside); }
+        addContaining(largeFences, lat, lng, nowInside);
+
+        if (!haveLocation) {
+            haveLocation = true;
+            added.clear();
+            inside.addAll(nowInside);
+            return Collections.emptyList();
+        }
+
+        List<Transition> transitions = new ArrayList<>();
+        for (String id : nowInside) {
+            if (!inside.contains(id) && !added.contains(id)) {
+                Geofence f = fences.get(id);
+                if (f.notifyEnter && notBouncing(f, time)) {
+                    transitions.add(new Transition(f, true));
+                }
+            }
+        }
+        for (String id : inside) {
+            if (!nowInside.contains(id)) {
+                Geofence f = fences.get(id);
+                if (f != null && f.notifyLeave && notBouncing(f, time)) {
+                    transitions.add(new Transition(f, false));
+                }
+            }
+        }
+        added.clear();
+        inside.clear();
+        inside.addAll(nowInside);
+        return transitions;
+    }
+
+    /**
+     * Read Geofences from a text file. Each line has the form:
+     *     name^lat^lng^radius^transitions^debounce[^address]
+     * where radius is in meters, transitions is one of "enter", "leave", or
+     * "both", and debounce is in seconds. The optional address is where
+     * notifications for the fence are sent instead of the default address.
+     * Names must be unique. Blank lines and lines that begin with '#' are
+     * ignored.
+     * @param f     The file to read
+     * @return      The fences in the file. If the file does not exist, the
+     *              list is empty.
+     */
+    public static List<Geofence> load(File f) {
+        List<Geofence> loaded = new ArrayList<>();
+        if (!f.exists()) return loaded;
+        try (BufferedReader r = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                Geofence fence = parse(line);
+                if (fence == null) {
+                    logger.warning("Malformed Geofence: " + line);
+                } else {
+                    loaded.add(fence);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to read Geofences from " + f + ": " + e);
+        }
+        return loaded;
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void addContaining(
+            List<Geofence> candidates, double lat, double lng, Set<String> nowInside) {
+        for (Geofence f : candidates) {
+            if (GeoUtils.distance(lat, lng, f.area.lat, f.area.lng) <= f.area.radius) {
+                nowInside.add(f.id);
+            }
+        }
+    }
+
+    private boolean notBouncing(Geofence f, long time) {
+        Long last = lastReported.get(f.id);
+        if (last != null && time - last < f.debounce) return false;
+        lastReported.put(f.id, time);
+        return true;
+    }
+
+    /**
+     * Return the keys of every cell overlapped by the bounding box of the
+     * area, or null if there are too many to register individually.
+     */
+    private static List<Long> cellsFor(GeoUtils.CircularArea area) {
+        double dLat = area.radius / MetersPerDegree;
+        double cosLat = Math.max(0.01, Math.cos(Math.toRadians(area.lat)));
+        double dLng = dLat / cosLat;
+        int latLo = latIndex(area.lat - dLat), latHi = latIndex(area.lat + dLat);
+        List<Long> cells = new ArrayList<>();
+        for (int i = latLo; i <= latHi; i++) {
+            // Longitude cells are scaled by the latitude of their row so compute
+            // the range for each row from the row's own latitude.
+            double rowLat = Math.max(-89.99, Math.min(89.99, (i + 0.5) * CellDegrees));
+            int lngLo = lngIndex(area.lng - dLng, rowLat);
+            int lngHi = lngIndex(area.lng + dLng, rowLat);
+            if (cells.size() + (lngHi - lngLo + 1) > MaxCellsPerFence) return null;
+            for (int j = lngLo; j <= lngHi; j++) { cells.add(cellKey(i, j)); }
+        }
+        return cells;
+    }
+
+    private static int latIndex(double lat) {
+        return (int)Math.floor(lat / CellDegrees);
+    }
+
+    private static int lngIndex(double lng, double lat) {
+        // Keep cells roughly square by widening them away from the equator
+        double rowLat = (latIndex(lat) + 0.5) * CellDegrees;
+        double cosLat = Math.max(0.01, Math.cos(Math.toRadians(rowLat)));
+        return (int)Math.floor(lng * cosLat / CellDegrees);
+    }
+
+    private static long cellKey(int latIndex, int lngIndex) {
+        return ((long)latIndex << 32) | (lngIndex & 0xffffffffL);
+    }
+
+    private static Geofence parse(String line) {
+        String[] elements = line.split("\\^");
+        if (elements.length != 6 && elements.length != 7) return null;
+        try {
+            String name = elements[0].trim();
+            double lat = Double.valueOf(elements[1].trim());
+            double lng = Double.valueOf(elements[2].trim());
+            double radius = Double.valueOf(elements[3].trim());
+            String which = elements[4].trim().toLowerCase();
+            long debounce = Long.valueOf(elements[5].trim()) * 1000;
+            boolean enter = which.equals("enter") || which.equals("both");
+            boolean leave = which.equals("leave") || which.equals("both");
+            if (!enter && !leave) return null;
+            String address = elements.length == 7 ? elements[6].trim() : "";
+            return new Geofence(
+                    "file:" + name, new GeoUtils.CircularArea(lat, lng, radius, name),
+                    enter, leave, debounce, address.isEmpty() ? null : address);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -8,6 +8,7 @@ package org.noroomattheinn.visibletesla.trigger;
 import java.math.BigDecimal;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
+import org.noroomattheinn.metrics.Counter;
 
 /**
  * StationaryTrigger: Determines whether the car has remained stationary and
@@ -20,6 +21,8 @@ public class StationaryTrigger {
     private final BooleanProperty isEnabled;
     private final ObjectProperty<BigDecimal> threshold;
     private boolean alreadyTriggered = false;
+    private final Counter evaluations = GenericTrigger.evaluationCounter("Stationary");
+    private final Counter fired = GenericTrigger.firedCounter("Stationary");
     
     /**
      * An object that monitors whether the doors have been forgotten unlocked
@@ -35,6 +38,7 @@ public class StationaryTrigger {
     }
 
     public boolean evalPredicate(double speed, String shiftState) {
+        evaluations.inc();
         if (!isEnabled.get()) return false;
         if (speed > 0.0 || !shiftState.equals("P")) {
             alreadyTriggered = false;
@@ -48,6 +52,7 @@ public class StationaryTrigger {
         long now = System.currentTimeMillis();
         if ((periodBegan > 0) && (now - periodBegan > thresholdInMillis())) {
             alreadyTriggered = true;
+            fired.inc();
             return true;
         } else {
             if (periodBegan < 0) periodBegan = now;
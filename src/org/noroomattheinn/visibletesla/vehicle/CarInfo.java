@@ -99,6 +99,24 @@ class CarInfo {
                 ooc(cs.chargePortOpen), cs.chargingState == ChargeState.Status.Charging,
                 vs.locked);
     }
+
+    /**
+     * The objects that carStateAsJSON reads. State objects are replaced, not
+     * modified, when new state arrives, so if every element is identical to
+     * one from an earlier call the JSON is unchanged.
+     */
+    public static Object[] carStateVersion(VTVehicle v) {
+        return new Object[] {v.vehicleState.get(), v.chargeState.get()};
+    }
+
+    /**
+     * The objects that carDetailsAsJSON reads. See carStateVersion.
+     */
+    public static Object[] carDetailsVersion(VTVehicle v) {
+        return new Object[] {
+            v.getVehicle(), v.vehicleState.get(),
+            v.paintColor(), v.wheelType(), v.roofType()};
+    }
     
 
 /*------------------------------------------------------------------------------
@@ -0,0 +1,191 @@
+/*
+ * StateStore.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 10, 2015
+ */
+package org.noroomattheinn.visibletesla.vehicle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.prefs.Preferences;
+import org.noroomattheinn.tesla.BaseState;
+import org.noroomattheinn.utils.ThreadManager;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * StateStore: A write-behind store for the most recent snapshot of each type
+ * of vehicle state. Callers hand over a state and return immediately. The
+ * latest state of each type is kept in memory and a background thread
+ * serializes and persists whatever has changed, at most once per
+ * MinWriteInterval. Writes go to a temporary file which then atomically
+ * replaces the store so a crash never leaves a partially written file.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+class StateStore implements Runnable, ThreadManager.Stoppable {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final long   MinWriteInterval = 10 * 1000;  // 10 Seconds
+    private static final String StoreName = "vehicle.state";
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final File storeFile, tempFile;
+    private final Preferences legacyStore;
+    private final Map<String,BaseState> latest;     // Most recent, maybe not persisted
+    private final Map<String,BaseState> dirty;      // Awaiting persistence
+    private final Properties persisted;             // Serialized form as on disk
+    private       int nCoalesced = 0;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create a StateStore whose contents live in the given folder. Any values
+     * already persisted are loaded immediately. Values that were stored in the
+     * Preferences by older versions of the app are used as a fallback.
+     *
+     * @param container     The folder in which to keep the store
+     * @param legacyStore   Where older versions kept state snapshots
+     */
+    StateStore(File container, Preferences legacyStore) {
+        this.storeFile = new File(container, StoreName);
+        this.tempFile = new File(container, StoreName + ".tmp");
+        this.legacyStore = legacyStore;
+        this.latest = new ConcurrentHashMap<>();
+        this.dirty = new ConcurrentHashMap<>();
+        this.persisted = new Properties();
+
+        load();
+        ThreadManager.get().addStoppable((ThreadManager.Stoppable)this);
+        ThreadManager.get().launch((Runnable)this, "StateStore");
+    }
+
+    /**
+     * Remember a state snapshot. This is cheap and may be called on any thread,
+     * including the FX Application Thread. Persistence happens later on the
+     * StateStore's own thread.
+     *
+     * @param key   The key under which to store the snapshot
+     * @param state The state snapshot
+     */
+    void put(String key, BaseState state) {
+        latest.put(key, state);
+        if (dirty.put(key, state) != null) nCoalesced++;
+        synchronized (this) { notifyAll(); }
+    }
+
+    /**
+     * Return the state object most recently stored under the key during this
+     * run of the app. This is the fast path - no parsing is required.
+     *
+     * @param key   The key of interest
+     * @return      The state object or null if none has been stored this run
+     */
+    BaseState getState(String key) { return latest.get(key); }
+
+    /**
+     * Return the last persisted JSON representation of the state stored under
+     * the given key. Used to recover state from a previous run of the app.
+     *
+     * @param key   The key of interest
+     * @return      The JSON string or null if nothing is known about the key
+     */
+    String getJSON(String key) {
+        String json = persisted.getProperty(key);
+        if (json == null && legacyStore != null) {
+            json = legacyStore.get(key, null);
+        }
+        return json;
+    }
+
+    @Override public void stop() {
+        synchronized (this) { notifyAll(); }
+        persist();
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - The body of the write-behind thread
+ *
+ *----------------------------------------------------------------------------*/
+
+    @Override public void run() {
+        while (!ThreadManager.get().shuttingDown()) {
+            synchronized (this) {
+                while (dirty.isEmpty() && !ThreadManager.get().shuttingDown()) {
+                    try { wait(MinWriteInterval); }
+                    catch (InterruptedException e) { return; }
+                }
+            }
+            persist();
+            // Bound the write rate: anything arriving now is coalesced
+            ThreadManager.get().sleep(MinWriteInterval);
+        }
+    }
+
+    private synchronized void persist() {
+        if (dirty.isEmpty()) return;
+        for (String key : dirty.keySet()) {
+            BaseState state = dirty.remove(key);
+            if (state != null) persisted.setProperty(key, state.rawState.toString());
+        }
+
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile);
+            persisted.store(os, "VisibleTesla vehicle state snapshots");
+            os.close();
+            os = null;
+            Files.move(tempFile.toPath(), storeFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            logger.finest("Persisted vehicle state, coalesced: " + nCoalesced);
+        } catch (IOException e) {
+            logger.warning("Unable to persist vehicle state: " + e);
+        } finally {
+            if (os != null) {
+                try { os.close(); }
+                catch (IOException e) { logger.warning("Failed closing state store: " + e); }
+            }
+        }
+    }
+
+    private void load() {
+        if (!storeFile.exists()) return;
+        InputStream is = null;
+        try {
+            is = new FileInputStream(storeFile);
+            persisted.load(is);
+        } catch (IOException e) {
+            logger.warning("Unable to load vehicle state: " + e);
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (IOException e) { logger.warning("Failed closing state store: " + e); }
+            }
+        }
+    }
+}
@@ -5,7 +5,11 @@
  */
 package org.noroomattheinn.visibletesla.vehicle;
 
+import java.io.File;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
@@ -91,6 +95,18 @@ public class VTVehicle {
  *----------------------------------------------------------------------------*/
    
     private final Overrides overrides;
+    private final StateStore stateStore;
+    private final Queue<BaseState> pendingStates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Runnable drainPendingStates = new Runnable() {
+        @Override public void run() {
+            drainScheduled.set(false);
+            BaseState state;
+            while ((state = pendingStates.poll()) != null) {
+                noteUpdatedStateInternal(state);
+            }
+        }
+    };
     
 /*==============================================================================
  * -------                                                               -------
@@ -106,8 +122,10 @@ public class VTVehicle {
     public final TrackedObject<StreamState> streamState;
     public final TrackedObject<Vehicle> vehicle;
     
-    public VTVehicle(Overrides overrides) {
+    public VTVehicle(Overrides overrides, File container) {
         this.overrides = overrides;
+        this.stateStore = new StateStore(
+                container, Preferences.userNodeForPackage(this.getClass()));
         this.chargeState = new TrackedObject<>(new ChargeState());
         this.driveState = new TrackedObject<>(null);
         this.guiState = new TrackedObject<>(null);
@@ -259,12 +277,14 @@ public class VTVehicle {
         if (Platform.isFxApplicationThread()) {
             noteUpdatedStateInternal(state);
         } else {
-            Platform.runLater(new Runnable() {
-                @Override
-                public void run() {
-                    noteUpdatedStateInternal(state);
-                }
-            });
+            // Every state must reach the model: StatsCollector, TripMonitor,
+            // and the triggers all depend on seeing each one. States that
+            // arrive together are applied, in order, by a single runLater.
+            // Only the UI trackers registered through App.addTracker coalesce.
+            pendingStates.add(state);
+            if (drainScheduled.compareAndSet(false, true)) {
+                Platform.runLater(drainPendingStates);
+            }
         }
     }
     
@@ -275,24 +295,38 @@ public class VTVehicle {
     public String carStateAsJSON() {
         return CarInfo.carStateAsJSON(this);
     }
+
+    public Object[] carDetailsVersion() {
+        return CarInfo.carDetailsVersion(this);
+    }
+
+    public Object[] carStateVersion() {
+        return CarInfo.carStateVersion(this);
+    }
     
     public ChargeState lastSavedCS() {
-        Preferences persistentStore = Preferences.userNodeForPackage(this.getClass());
-        String json = persistentStore.get(this.vehicle.get().getVIN() + "_ChargeState", null);
+        String key = stateKey(ChargeState.class);
+        BaseState state = stateStore.getState(key);
+        if (state != null) return (ChargeState)state;
+        String json = stateStore.getJSON(key);
         if (json == null) return null;
         return new ChargeState(RestHelper.newJSONObject(json));
     }
 
     public GUIState lastSavedGS() {
-        Preferences persistentStore = Preferences.userNodeForPackage(this.getClass());
-        String json = persistentStore.get(this.vehicle.get().getVIN() + "_GUIState", null);
+        String key = stateKey(GUIState.class);
+        BaseState state = stateStore.getState(key);
+        if (state != null) return (GUIState)state;
+        String json = stateStore.getJSON(key);
         if (json == null) return null;
         return new GUIState(RestHelper.newJSONObject(json));
     }
 
     public VehicleState lastSavedVS() {
-        Preferences persistentStore = Preferences.userNodeForPackage(this.getClass());
-        String json = persistentStore.get(this.vehicle.get().getVIN() + "_VehicleState", null);
+        String key = stateKey(VehicleState.class);
+        BaseState state = stateStore.getState(key);
+        if (state != null) return (VehicleState)state;
+        String json = stateStore.getJSON(key);
         if (json == null) return null;
         return new VehicleState(RestHelper.newJSONObject(json));
     }
@@ -305,8 +339,6 @@ public class VTVehicle {
  *----------------------------------------------------------------------------*/
     
     private void noteUpdatedStateInternal(BaseState state) {
-        Preferences persistentStore = Preferences.userNodeForPackage(this.getClass());
-        String type = state.getClass().getSimpleName();
         if (state instanceof ChargeState) {
             chargeState.set((ChargeState) state);
         } else if (state instanceof DriveState) {
@@ -320,7 +352,12 @@ public class VTVehicle {
         } else if (state instanceof StreamState) {
             streamState.set((StreamState) state);
         }
-        persistentStore.put(this.vehicle.get().getVIN() + "_" + type, state.rawState.toString());
+        // Persisted off the FX thread by the StateStore
+        stateStore.put(stateKey(state.getClass()), state);
+    }
+    
+    private String stateKey(Class<? extends BaseState> type) {
+        return this.vehicle.get().getVIN() + "_" + type.getSimpleName();
     }
 
 }
@@ -0,0 +1,227 @@
+/*
+ * AssetCacheHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 28, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.noroomattheinn.visibletesla.rest.CachedResponse;
+import org.noroomattheinn.visibletesla.rest.HTTPSupport;
+
+/**
+ * AssetCacheHarness: Measure what a dashboard costs to load repeatedly. A
+ * load fetches the stylesheet and scripts that the served pages use plus
+ * two images. Each client loads the dashboard over and over, remembering
+ * the ETags it has been given as a browser does.
+ *
+ * The assets are served two ways: as raw bytes compressed on every request
+ * with no validators (the old behavior), and as CachedResponses that are
+ * compressed once and answered with 304 when the client already has them.
+ *
+ * Usage: AssetCacheHarness [restDir] [clients] [loadsPerClient]
+ *        restDir defaults to src/org/noroomattheinn/visibletesla/rest
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class AssetCacheHarness {
+    private static final String[] Assets = {
+        "css/ServedPages.css", "scripts/CanvasUtils.js", "scripts/BatteryGauge.js",
+        "scripts/SpeedGauge.js", "scripts/CarView.js"};
+
+    private final int nClients;
+    private final int nLoads;
+    private final Map<String,byte[]> content = new LinkedHashMap<>();
+
+    public AssetCacheHarness(File restDir, int nClients, int nLoads) throws IOException {
+        this.nClients = nClients;
+        this.nLoads = nLoads;
+        for (String asset : Assets) {
+            content.put(asset, Files.readAllBytes(new File(restDir, asset).toPath()));
+        }
+        // Images don't compress, so random bytes stand in for them
+        Random random = new Random(42);
+        byte[] image = new byte[24 * 1024];
+        random.nextBytes(image);
+        content.put("TeslaResources/body.png", image);
+        image = new byte[8 * 1024];
+        random.nextBytes(image);
+        content.put("TeslaResources/wheels.png", image);
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "src/org/noroomattheinn/visibletesla/rest");
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int loads   = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        new AssetCacheHarness(dir, clients, loads).run(System.out);
+    }
+
+    public void run(PrintStream out) throws Exception {
+        long total = 0;
+        for (byte[] c : content.values()) { total += c.length; }
+        out.format(Locale.US, "Asset cache: %d clients x %d loads of %d assets (%d bytes)%n",
+                nClients, nLoads, content.size(), total);
+        out.println("  served as             loads/s   first load B   later loads B   304s/load");
+
+        final Map<String,byte[]> raw = content;
+        report(out, "gzip per request", load(new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath().substring(1);
+                exchange.getResponseHeaders().add("Content-Type", type(path));
+                HTTPSupport.send(exchange, 200, raw.get(path));
+            }
+        }));
+
+        final Map<String,CachedResponse> cached = new HashMap<>();
+        for (Map.Entry<String,byte[]> e : content.entrySet()) {
+            cached.put(e.getKey(), new CachedResponse(type(e.getKey()), e.getValue()).precompress());
+        }
+        report(out, "CachedResponse", load(new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath().substring(1);
+                HTTPSupport.send(exchange, 200, cached.get(path));
+            }
+        }));
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Running the load
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static class Results {
+        final AtomicLong firstBytes = new AtomicLong();
+        final AtomicLong laterBytes = new AtomicLong();
+        final AtomicLong notModified = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        long elapsed;
+    }
+
+    private Results load(HttpHandler handler) throws Exception {
+        final Results results = new Results();
+        ExecutorService executor = HTTPSupport.newExecutor(8, false);
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", handler);
+        server.setExecutor(executor);
+        server.start();
+        final String base = "http://localhost:" + server.getAddress().getPort() + "/";
+        final List<String> paths = new ArrayList<>(content.keySet());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(nClients);
+        try {
+            for (int c = 0; c < nClients; c++) {
+                Thread t = new Thread(new Runnable() {
+                    @Override public void run() {
+                        Map<String,String> etags = new HashMap<>();
+                        try {
+                            start.await();
+                            for (int i = 0; i < nLoads; i++) {
+                                for (String path : paths) {
+                                    long n = fetch(base + path, etags, results);
+                                    (i == 0 ? results.firstBytes : results.laterBytes).addAndGet(n);
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            // Stop early
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+            long t0 = System.nanoTime();
+            start.countDown();
+            done.await(10, TimeUnit.MINUTES);
+            results.elapsed = System.nanoTime() - t0;
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Fetch a URL the way a browser would, sending the ETag it was last
+     * given for the URL
+     * @return  The number of body bytes received
+     */
+    private static long fetch(String url, Map<String,String> etags, Results results) {
+        HttpURLConnection c = null;
+        try {
+            c = (HttpURLConnection)new URL(url).openConnection();
+            c.setRequestProperty("Accept-Encoding", "gzip");
+            String etag = etags.get(url);
+            if (etag != null) c.setRequestProperty("If-None-Match", etag);
+            int code = c.getResponseCode();
+            if (code == 304) {
+                results.notModified.incrementAndGet();
+                return 0;
+            }
+            if (code != 200) {
+                results.errors.incrementAndGet();
+                return 0;
+            }
+            etag = c.getHeaderField("ETag");
+            if (etag != null) etags.put(url, etag);
+            try (InputStream is = c.getInputStream()) { return readAll(is).length; }
+        } catch (IOException e) {
+            if (c != null) c.disconnect();
+            results.errors.incrementAndGet();
+            return 0;
+        }
+    }
+
+    private void report(PrintStream out, String name, Results r) {
+        int later = Math.max(1, nClients * (nLoads - 1));
+        out.format(Locale.US, "  %-20s %8.0f %14d %15d %11.1f%s%n",
+                name, nClients * nLoads / (r.elapsed / 1e9),
+                r.firstBytes.get() / nClients, r.laterBytes.get() / later,
+                r.notModified.get() / (double)later,
+                r.errors.get() == 0 ? "" : "  (" + r.errors.get() + " errors)");
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static String type(String path) {
+        if (path.endsWith(".css")) return "text/css";
+        if (path.endsWith(".js")) return "application/javascript";
+        return "image/png";
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) > 0) { bytes.write(buf, 0, n); }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * AuthHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 27, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import org.noroomattheinn.visibletesla.rest.HTTPSupport;
+import org.noroomattheinn.visibletesla.rest.SessionAuthenticator;
+
+/**
+ * AuthHarness: Measure request throughput with the authenticator used by the
+ * RESTServer. Passwords are checked with a salted PBKDF2 hash of the kind
+ * PWUtils uses. The same load is run three ways:
+ *   - Basic authentication checked the expensive way on every request (the
+ *     old behavior)
+ *   - Basic authentication with the SessionAuthenticator's cache of
+ *     recently verified credentials
+ *   - The session cookie issued on the first request
+ * Finally it changes the password and checks that the old password and the
+ * old cookie are both refused.
+ *
+ * Usage: AuthHarness [clients] [requestsPerClient] [iterations]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class AuthHarness {
+    private static final String User = "VT";
+
+    private final int nClients;
+    private final int nRequests;
+    private final int iterations;
+    private final byte[] salt = new byte[8];
+    private volatile byte[] encPW;
+
+    public AuthHarness(int nClients, int nRequests, int iterations) {
+        this.nClients = nClients;
+        this.nRequests = nRequests;
+        this.iterations = iterations;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients    = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int requests   = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        new AuthHarness(clients, requests, iterations).run(System.out);
+    }
+
+    public void run(PrintStream out) throws Exception {
+        encPW = hash("secret");
+        long t0 = System.nanoTime();
+        hash("secret");
+        out.format(Locale.US, "Auth: %d clients x %d requests, PBKDF2 with %d iterations (%.1f ms each)%n",
+                nClients, nRequests, iterations, (System.nanoTime() - t0) / 1e6);
+        out.println("  authentication           req/s    p50 ms    p99 ms");
+
+        BasicAuthenticator plain = new BasicAuthenticator("VisibleTesla") {
+            @Override public boolean checkCredentials(String user, String pwd) {
+                return verify(user, pwd);
+            }
+        };
+        SessionAuthenticator session = new SessionAuthenticator("VisibleTesla") {
+            @Override protected boolean verify(String user, String pwd) {
+                return AuthHarness.this.verify(user, pwd);
+            }
+        };
+        String basic = basic("secret");
+        report(out, "basic, verify each", load(plain, basic, false));
+        report(out, "basic, cached", load(session, basic, false));
+        report(out, "session cookie", load(session, basic, true));
+        checkInvalidation(out, session);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Running the load
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static class Results {
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicLong errors = new AtomicLong();
+        long elapsed;
+    }
+
+    private Results load(Authenticator auth, final String basic, final boolean useCookie)
+            throws Exception {
+        final Results results = new Results();
+        ExecutorService executor = HTTPSupport.newExecutor(8, false);
+        HttpServer server = startServer(auth, executor);
+        final String url = "http://localhost:" + server.getAddress().getPort() + "/";
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(nClients);
+        try {
+            for (int c = 0; c < nClients; c++) {
+                Thread t = new Thread(new Runnable() {
+                    @Override public void run() {
+                        String cookie = null;
+                        try {
+                            start.await();
+                            for (int i = 0; i < nRequests; i++) {
+                                long t0 = System.nanoTime();
+                                String[] setCookie = new String[1];
+                                int code = fetch(url, cookie != null ? null : basic, cookie, setCookie);
+                                results.latencies.add((System.nanoTime() - t0) / 1000);
+                                if (code != 200) results.errors.incrementAndGet();
+                                if (useCookie && setCookie[0] != null) cookie = setCookie[0];
+                            }
+                        } catch (InterruptedException e) {
+                            // Stop early
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "AuthClient-" + c);
+                t.setDaemon(true);
+                t.start();
+            }
+            long t0 = System.nanoTime();
+            start.countDown();
+            done.await(10, TimeUnit.MINUTES);
+            results.elapsed = System.nanoTime() - t0;
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private void checkInvalidation(PrintStream out, SessionAuthenticator session) throws Exception {
+        ExecutorService executor = HTTPSupport.newExecutor(2, false);
+        HttpServer server = startServer(session, executor);
+        String url = "http://localhost:" + server.getAddress().getPort() + "/";
+        try {
+            String[] cookie = new String[1];
+            int before = fetch(url, basic("secret"), null, cookie);
+            int withCookie = fetch(url, null, cookie[0], new String[1]);
+            encPW = hash("changed");        // What App.setPW does
+            session.invalidate();
+            int oldPassword = fetch(url, basic("secret"), null, new String[1]);
+            int oldCookie = fetch(url, null, cookie[0], new String[1]);
+            int newPassword = fetch(url, basic("changed"), null, new String[1]);
+            out.format(Locale.US, "  password change: before %d, cookie %d; after: old password %d, " +
+                    "old cookie %d, new password %d%n",
+                    before, withCookie, oldPassword, oldCookie, newPassword);
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private static int fetch(String url, String basic, String cookie, String[] setCookie) {
+        HttpURLConnection c = null;
+        try {
+            c = (HttpURLConnection)new URL(url).openConnection();
+            if (basic != null) c.setRequestProperty("Authorization", basic);
+            if (cookie != null) c.setRequestProperty("Cookie", cookie);
+            int code = c.getResponseCode();
+            String sc = c.getHeaderField("Set-Cookie");
+            if (sc != null) setCookie[0] = sc.substring(0, sc.indexOf(';'));
+            InputStream is = code == 200 ? c.getInputStream() : c.getErrorStream();
+            if (is != null) { readAll(is); is.close(); }
+            return code;
+        } catch (IOException e) {
+            if (c != null) c.disconnect();
+            return -1;
+        }
+    }
+
+    private void report(PrintStream out, String name, Results r) {
+        long[] l = sorted(r.latencies);
+        out.format(Locale.US, "  %-20s %9.0f %9.2f %9.2f%s%n",
+                name, l.length / (r.elapsed / 1e9), pct(l, 0.50), pct(l, 0.99),
+                r.errors.get() == 0 ? "" : "  (" + r.errors.get() + " errors)");
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private boolean verify(String user, String pwd) {
+        return user.equals(User) && MessageDigest.isEqual(hash(pwd), encPW);
+    }
+
+    private byte[] hash(String pwd) {
+        try {
+            SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            return f.generateSecret(new PBEKeySpec(pwd.toCharArray(), salt, iterations, 160)).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String basic(String pwd) {
+        return "Basic " + DatatypeConverter.printBase64Binary(
+                (User + ":" + pwd).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static HttpServer startServer(Authenticator auth, ExecutorService executor)
+            throws IOException {
+        final byte[] page = "<html><body>OK</body></html>\n".getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        HttpContext cc = server.createContext("/", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+                HTTPSupport.send(exchange, 200, page);
+            }
+        });
+        cc.setAuthenticator(auth);
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) > 0) { bytes.write(buf, 0, n); }
+        return bytes.toByteArray();
+    }
+
+    private static long[] sorted(List<Long> values) {
+        long[] a;
+        synchronized (values) {
+            a = new long[values.size()];
+            for (int i = 0; i < a.length; i++) { a[i] = values.get(i); }
+        }
+        Arrays.sort(a);
+        return a;
+    }
+
+    private static double pct(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1000.0;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * ChartLayoutHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 30, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import java.util.Locale;
+import java.util.Random;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.chart.NumberAxis;
+import javafx.stage.Stage;
+import org.noroomattheinn.fxextensions.VTLineChart;
+import org.noroomattheinn.fxextensions.VTSeries;
+
+/**
+ * ChartLayoutHarness: Measure how long a VTLineChart takes to lay out its
+ * series as the number of points grows. For each size a chart is shown with
+ * one series of points 5 seconds apart and three kinds of layout are timed:
+ *   - pan:    the x axis moves, so the whole visible path is rebuilt
+ *   - append: a point is added past the end of the axis, as happens when
+ *             a new reading arrives while the user is looking at the past
+ *   - still:  nothing has changed
+ * Each is run over a view of the last day and a view of all of the data.
+ *
+ * Needs a JavaFX runtime and a display.
+ *
+ * Usage: ChartLayoutHarness [maxPoints] [layoutsPerCase]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class ChartLayoutHarness extends Application {
+    private static final int Interval = 5;
+
+    private int maxPoints = 1000000;
+    private int nLayouts = 50;
+
+    public static void main(String[] args) { launch(args); }
+
+    @Override public void start(Stage stage) {
+        if (getParameters().getUnnamed().size() > 0)
+            maxPoints = Integer.parseInt(getParameters().getUnnamed().get(0));
+        if (getParameters().getUnnamed().size() > 1)
+            nLayouts = Integer.parseInt(getParameters().getUnnamed().get(1));
+
+        System.out.println("      points  view          pan ms   append ms   still ms");
+        for (int n = 1000; n <= maxPoints; n *= 10) {
+            measure(stage, n, 86400);
+            measure(stage, n, (double)n * Interval);
+        }
+        Platform.exit();
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - The measurements
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * Give the chart time to compute the downsampled levels it asks for so
+     * the measurements are of the steady state
+     */
+    private static void settle(VTLineChart chart) {
+        for (int i = 0; i < 10; i++) {
+            chart.refreshChart();
+            try { Thread.sleep(100); } catch (InterruptedException e) { return; }
+        }
+    }
+
+    private void measure(Stage stage, int n, double span) {
+        NumberAxis xAxis = new NumberAxis();
+        NumberAxis yAxis = new NumberAxis();
+        VTLineChart chart = new VTLineChart(xAxis, yAxis);
+        chart.setAnimated(false);
+        chart.setCreateSymbols(false);
+        chart.setIgnoreGap(true, 15);
+        VTSeries series = chart.register(
+                new VTSeries("Harness", VTSeries.idTransform, VTSeries.idTransform));
+
+        Random random = new Random(3);
+        VTSeries.Points data = new VTSeries.Points(n);
+        double v = 50;
+        for (int i = 0; i < n; i++) {
+            v += random.nextGaussian();
+            data.add((long)i * Interval, v);
+        }
+        series.setData(data);
+        chart.applySeriesToChart();
+
+        double end = (double)(n - 1) * Interval;
+        xAxis.setAutoRanging(false);
+        xAxis.setUpperBound(end);
+        xAxis.setLowerBound(end - span);
+        stage.setScene(new Scene(chart, 1200, 600));
+        stage.show();
+        chart.layout();
+        settle(chart);
+
+        double pan = 0, append = 0, still = 0;
+        double shift = span / 100;
+        for (int i = 0; i < nLayouts; i++) {
+            xAxis.setLowerBound(end - span - shift * (i % 2));
+            xAxis.setUpperBound(end - shift * (i % 2));
+            long t0 = System.nanoTime();
+            chart.refreshChart();
+            pan += System.nanoTime() - t0;
+        }
+        xAxis.setLowerBound(end - span);
+        xAxis.setUpperBound(end);
+        chart.refreshChart();
+        for (int i = 0; i < nLayouts; i++) {
+            series.addToSeries((long)end + (i + 1) * Interval, v);
+            long t0 = System.nanoTime();
+            chart.refreshChart();
+            append += System.nanoTime() - t0;
+        }
+        for (int i = 0; i < nLayouts; i++) {
+            long t0 = System.nanoTime();
+            chart.refreshChart();
+            still += System.nanoTime() - t0;
+        }
+        System.out.format(Locale.US, "  %10d  %-10s %9.2f %11.2f %10.2f%n",
+                n, span <= 86400 ? "last day" : "all",
+                pan / nLayouts / 1e6, append / nLayouts / 1e6, still / nLayouts / 1e6);
+    }
+}
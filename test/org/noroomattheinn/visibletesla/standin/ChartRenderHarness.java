@@ -0,0 +1,148 @@
+/*
+ * ChartRenderHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 31, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import java.util.Locale;
+import java.util.Random;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.chart.NumberAxis;
+import javafx.scene.chart.XYChart;
+import javafx.scene.image.WritableImage;
+import javafx.scene.shape.Path;
+import javafx.stage.Stage;
+import org.noroomattheinn.fxextensions.VTLineChart;
+import org.noroomattheinn.fxextensions.VTSeries;
+
+/**
+ * ChartRenderHarness: Compare the frame times of the Path and Canvas
+ * renderers of VTLineChart. A chart with three series is built in a Scene
+ * that is never shown, and each frame pans the x axis, lays the chart out,
+ * and renders the Scene to an image. The image is the only output, so the
+ * harness runs without a display, for example with the Monocle headless
+ * platform:
+ *   -Dglass.platform=Monocle -Dmonocle.platform=Headless -Dprism.order=sw
+ *
+ * For each number of points and display mode, it reports the mean and
+ * worst frame for each renderer, and the number of path elements in the
+ * scene graph.
+ *
+ * Usage: ChartRenderHarness [maxPoints] [frames]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class ChartRenderHarness extends Application {
+    private static final int Interval = 5;
+    private static final int Width = 1200, Height = 600;
+
+    private int maxPoints = 1000000;
+    private int nFrames = 30;
+
+    public static void main(String[] args) { launch(args); }
+
+    @Override public void start(Stage stage) {
+        if (getParameters().getUnnamed().size() > 0)
+            maxPoints = Integer.parseInt(getParameters().getUnnamed().get(0));
+        if (getParameters().getUnnamed().size() > 1)
+            nFrames = Integer.parseInt(getParameters().getUnnamed().get(1));
+
+        System.out.println(
+            "      points  mode         renderer  mean ms  worst ms  elements");
+        for (int n = 1000; n <= maxPoints; n *= 10) {
+            for (VTLineChart.DisplayMode mode : VTLineChart.DisplayMode.values()) {
+                for (VTLineChart.Renderer renderer : VTLineChart.Renderer.values()) {
+                    measure(n, mode, renderer);
+                }
+            }
+        }
+        Platform.exit();
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - The measurements
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void measure(int n, VTLineChart.DisplayMode mode, VTLineChart.Renderer renderer) {
+        NumberAxis xAxis = new NumberAxis();
+        NumberAxis yAxis = new NumberAxis();
+        VTLineChart chart = new VTLineChart(xAxis, yAxis);
+        chart.setAnimated(false);
+        chart.setCreateSymbols(false);
+        chart.setIgnoreGap(true, 15);
+
+        Random random = new Random(5);
+        for (String name : new String[] {"Speed", "Power", "Range"}) {
+            VTSeries series = chart.register(
+                    new VTSeries(name, VTSeries.idTransform, VTSeries.idTransform));
+            VTSeries.Points data = new VTSeries.Points(n);
+            long t = 0;
+            double v = 50;
+            for (int i = 0; i < n; i++) {
+                if (random.nextInt(5000) == 0) t += 3600;     // The car slept
+                t += Interval;
+                v += random.nextGaussian();
+                data.add(t, v);
+            }
+            series.setData(data);
+        }
+        chart.applySeriesToChart();
+
+        double span = (double)n * Interval;
+        xAxis.setAutoRanging(false);
+        xAxis.setLowerBound(0);
+        xAxis.setUpperBound(span);
+        Scene scene = new Scene(chart, Width, Height);
+        WritableImage image = new WritableImage(Width, Height);
+        chart.setDisplayMode(mode);
+        chart.setRenderer(renderer);
+        frame(chart, scene, image);
+        settle(chart, scene, image);
+
+        double total = 0, worst = 0;
+        double shift = span / 200;
+        for (int i = 0; i < nFrames; i++) {
+            xAxis.setLowerBound(shift * (i % 2));
+            xAxis.setUpperBound(span + shift * (i % 2));
+            long t0 = System.nanoTime();
+            frame(chart, scene, image);
+            double ms = (System.nanoTime() - t0) / 1e6;
+            total += ms;
+            worst = Math.max(worst, ms);
+        }
+        System.out.format(Locale.US, "  %10d  %-11s  %-8s %8.2f %9.2f %9d%n",
+                n, mode, renderer, total / nFrames, worst, elements(chart));
+    }
+
+    private static void frame(VTLineChart chart, Scene scene, WritableImage image) {
+        chart.requestLayout();
+        chart.layout();
+        chart.refreshChart();
+        scene.snapshot(image);
+    }
+
+    /**
+     * Give the chart time to compute the downsampled levels it asks for so
+     * the measurements are of the steady state
+     */
+    private static void settle(VTLineChart chart, Scene scene, WritableImage image) {
+        for (int i = 0; i < 10; i++) {
+            frame(chart, scene, image);
+            try { Thread.sleep(100); } catch (InterruptedException e) { return; }
+        }
+    }
+
+    private static int elements(VTLineChart chart) {
+        int count = 0;
+        for (XYChart.Series<Number,Number> s : chart.getData()) {
+            if (s.getNode() instanceof Path)
+                count += ((Path)s.getNode()).getElements().size();
+        }
+        return count;
+    }
+}
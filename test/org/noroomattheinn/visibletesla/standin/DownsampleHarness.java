@@ -0,0 +1,123 @@
+/*
+ * DownsampleHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 30, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Random;
+import org.noroomattheinn.fxextensions.Downsampler;
+
+/**
+ * DownsampleHarness: Check what it costs to downsample a long series for the
+ * graphs and how many points are left to draw at each zoom.
+ *   - A series with a point every few seconds, gaps where the car was
+ *     asleep, and a noisy daily cycle is generated.
+ *   - Each level from one pixel per minute to one pixel per week is
+ *     computed and timed, and the points it keeps are counted.
+ *   - For a 1200 pixel wide view at several zooms, the number of points the
+ *     chart would be given is compared with the number in the visible range.
+ *   - Every gap in the source must still be a gap at every level.
+ *
+ * Usage: DownsampleHarness [days] [secondsBetweenPoints]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class DownsampleHarness {
+    private static final double Pixels = 1200;
+    private static final double GapTime = 15 * 60;
+
+    private final long[] x;
+    private final double[] y;
+    private final int n;
+
+    public DownsampleHarness(int days, int interval) {
+        Random random = new Random(11);
+        int capacity = days * 86400 / interval;
+        x = new long[capacity];
+        y = new double[capacity];
+        int count = 0;
+        long t = 0;
+        double v = 50;
+        while (count < capacity) {
+            if (random.nextInt(2000) == 0) t += 3600 * (1 + random.nextInt(8));
+            t += interval;
+            v += random.nextGaussian() + 0.2 * Math.sin(2 * Math.PI * t / 86400);
+            x[count] = t;
+            y[count] = v;
+            count++;
+        }
+        n = count;
+    }
+
+    public static void main(String[] args) {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 365;
+        int interval = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        new DownsampleHarness(days, interval).run(System.out);
+    }
+
+    public void run(PrintStream out) {
+        out.format(Locale.US, "Series: %d points over %.0f days%n", n, (x[n-1] - x[0]) / 86400.0);
+        out.println("  level  bucket s      points   compute ms   gaps ok");
+        for (int level = 6; level <= 19; level++) {
+            Downsampler.downsample(level, x, y, n);        // Warm up
+            long t0 = System.nanoTime();
+            Downsampler.Level l = Downsampler.downsample(level, x, y, n);
+            double ms = (System.nanoTime() - t0) / 1e6;
+            out.format(Locale.US, "  %5d %9.0f %11d %12.1f %9s%n",
+                    level, Math.scalb(1.0, level), l.size, ms, gapsKept(l));
+        }
+        out.println("  view span     in range   drawn   level");
+        for (double days : new double[] {1, 7, 30, 90, 365}) {
+            double xMax = x[n-1], xMin = xMax - days * 86400;
+            int inRange = firstAbove(x, n, xMax) - firstAtOrAbove(x, n, xMin);
+            int level = Downsampler.levelFor((xMax - xMin) / Pixels);
+            int drawn = inRange;
+            if (inRange > 2 * Pixels) {
+                Downsampler.Level l = Downsampler.downsample(level, x, y, n);
+                drawn = firstAbove(l.x, l.size, xMax) - firstAtOrAbove(l.x, l.size, xMin);
+            }
+            out.format(Locale.US, "  %5.0f days %12d %7d %7d%n", days, inRange, drawn, level);
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * Every gap in the source must be reported by the step of the first
+     * point kept after it
+     */
+    private boolean gapsKept(Downsampler.Level l) {
+        int j = 0;
+        for (int i = 1; i < n; i++) {
+            if (x[i] - x[i-1] <= GapTime) continue;
+            while (j < l.size && l.x[j] < x[i]) j++;
+            if (j == l.size || l.step[j] < x[i] - x[i-1]) return false;
+        }
+        return true;
+    }
+
+    private static int firstAtOrAbove(long[] a, int n, double v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < v) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static int firstAbove(long[] a, int n, double v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] <= v) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * ElevationHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 23, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import org.noroomattheinn.visibletesla.data.ElevationCache;
+import org.noroomattheinn.visibletesla.data.Trip;
+import org.noroomattheinn.visibletesla.data.FixedWayPoint;
+
+/**
+ * ElevationHarness: Measure the remote traffic and time needed to add
+ * elevation data to trips using an ElevationCache backed by a
+ * StandInElevationService. It maps a commute, maps the same commute again
+ * (as if the user re-opened the map), maps it after a restart of the app,
+ * and maps a commute on another day that follows the same roads with
+ * different GPS samples.
+ *
+ * Usage: ElevationHarness [waypoints] [latencyMs] [maxLocationsPerRequest]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class ElevationHarness {
+    private static final double MetersPerDegree = 111320.0;
+
+    private final int nWayPoints;
+    private final long latency;
+    private final int maxLocations;
+
+    public ElevationHarness(int nWayPoints, long latency, int maxLocations) {
+        this.nWayPoints = nWayPoints;
+        this.latency = latency;
+        this.maxLocations = maxLocations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int  waypoints    = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long latency      = args.length > 1 ? Long.parseLong(args[1]) : 200;
+        int  maxLocations = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        new ElevationHarness(waypoints, latency, maxLocations).run(System.out);
+    }
+
+    public void run(PrintStream out) throws Exception {
+        File dir = Files.createTempDirectory("vt-elevation").toFile();
+        File store = new File(dir, "elevation.cache");
+        StandInElevationService service = new StandInElevationService(latency, 0.5, maxLocations);
+        out.format(Locale.US,
+                "Elevation cache harness: %d waypoints, %d ms/request, %d locations/request max%n",
+                nWayPoints, latency, maxLocations);
+        out.println("  phase         requests  locations  peak-parallel   ms");
+        try {
+            ElevationCache cache = newCache(store, service);
+            phase(out, "first map", cache, service, commute(1));
+            phase(out, "re-map", cache, service, commute(1));
+            cache = newCache(store, service);
+            phase(out, "after restart", cache, service, commute(1));
+            phase(out, "next day", cache, service, commute(2));
+            out.format(Locale.US, "  cache file: %d bytes for %d locations%n",
+                    store.length(), cache.size());
+        } finally {
+            for (File f : dir.listFiles()) { f.delete(); }
+            dir.delete();
+        }
+    }
+
+    private ElevationCache newCache(File store, StandInElevationService service) {
+        return new ElevationCache(store, service, ElevationCache.DefaultQuantum,
+                Math.min(maxLocations, ElevationCache.DefaultChunkSize),
+                ElevationCache.DefaultParallelism);
+    }
+
+    private void phase(PrintStream out, String name, ElevationCache cache,
+                       StandInElevationService service, Trip trip) {
+        long requests = service.requests(), locations = service.locations();
+        long start = System.nanoTime();
+        trip.addElevationData(cache);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        out.format(Locale.US, "  %-13s %8d  %9d  %13d  %5d%n", name,
+                service.requests() - requests, service.locations() - locations,
+                service.maxInFlight(), elapsed);
+    }
+
+    /**
+     * A drive along a fixed winding route. Different days sample the route
+     * at different points and with different GPS noise.
+     */
+    private Trip commute(int day) {
+        Random r = new Random(day);
+        Trip trip = new Trip();
+        double stepMeters = 15;
+        double offset = r.nextDouble() * stepMeters;
+        for (int i = 0; i < nWayPoints; i++) {
+            double along = (offset + i * stepMeters) / MetersPerDegree;
+            double lat = 37.40 + along * 0.7 + 0.002 * Math.sin(along * 300);
+            double lng = -122.10 + along * 0.7 + r.nextGaussian() * 3 / MetersPerDegree;
+            trip.addWayPoint(new FixedWayPoint(
+                    day * 86400000L + i * 2000L, 1000 + i * 0.01, 40, 45,
+                    lat, lng, Double.NaN, 20, 80));
+        }
+        return trip;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * GeocodeHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 22, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.noroomattheinn.visibletesla.data.GeocodeCache;
+import org.noroomattheinn.visibletesla.data.RestCycle;
+
+/**
+ * GeocodeHarness: Measure the hit rate and lookup latency of a GeocodeCache
+ * backed by a StandInGeocoder. The workload resembles message generation:
+ * most lookups are near a handful of parking spots (with GPS jitter), chosen
+ * with a skewed distribution, and the rest are one-off locations on the road.
+ *
+ * For each geohash precision the harness runs three phases against the same
+ * cache file: a cold start, a restart (empty memory, populated disk), and a
+ * cold start in which the rest locations were prefetched first.
+ *
+ * Usage: GeocodeHarness [lookups] [latencyMs] [errorRate] [nSpots]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class GeocodeHarness {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static final double JitterMeters = 8.0;
+    private static final double OnTheRoad = 0.1;        // Fraction of one-off lookups
+    private static final double MetersPerDegree = 111320.0;
+    private static final int[]  Precisions = {7, 8, 9};
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final int nLookups;
+    private final long latency;
+    private final double errorRate;
+    private final double[][] spots;
+    private final double[] cumulativeWeight;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    public GeocodeHarness(int nLookups, long latency, double errorRate, int nSpots) {
+        this.nLookups = nLookups;
+        this.latency = latency;
+        this.errorRate = errorRate;
+
+        // Spots scattered around a city, visited with Zipf-like frequency
+        Random r = new Random(42);
+        spots = new double[nSpots][];
+        cumulativeWeight = new double[nSpots];
+        double total = 0;
+        for (int i = 0; i < nSpots; i++) {
+            spots[i] = new double[] {37.3 + r.nextDouble() * 0.3, -122.1 + r.nextDouble() * 0.3};
+            total += 1.0 / (i + 1);
+            cumulativeWeight[i] = total;
+        }
+        for (int i = 0; i < nSpots; i++) { cumulativeWeight[i] /= total; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int    lookups   = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long   latency   = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        double errorRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.02;
+        int    nSpots    = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        GeocodeHarness harness = new GeocodeHarness(lookups, latency, errorRate, nSpots);
+        System.out.format(Locale.US,
+                "Geocode cache harness: %d lookups, %d ms/request, %.0f%% errors, %d spots%n",
+                lookups, latency, errorRate * 100, nSpots);
+        System.out.println("  prec phase       mem%   disk%  miss%  remote   p50ms   p99ms  maxms");
+        for (int precision : Precisions) {
+            harness.runPrecision(System.out, precision);
+        }
+    }
+
+    public void runPrecision(PrintStream out, int precision) throws Exception {
+        File dir = Files.createTempDirectory("vt-geocode").toFile();
+        File store = new File(dir, "geocode.cache");
+        try {
+            runPhase(out, precision, "cold", store, false);
+            runPhase(out, precision, "restart", store, false);
+            store.delete();
+            runPhase(out, precision, "prefetched", store, true);
+        } finally {
+            for (File f : dir.listFiles()) { f.delete(); }
+            dir.delete();
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Running a phase
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void runPhase(PrintStream out, int precision, String name,
+                          File store, boolean prefetch) throws Exception {
+        StandInGeocoder geocoder = new StandInGeocoder(latency, errorRate);
+        GeocodeCache cache = new GeocodeCache(
+                store, geocoder, precision, GeocodeCache.DefaultTTL,
+                GeocodeCache.DefaultMemoryEntries, GeocodeCache.DefaultStoredEntries);
+        Random r = new Random(7);   // Same workload in every phase
+
+        if (prefetch) {
+            cache.prefetchFrequent(restCycles(r), spots.length);
+            waitForPrefetch(cache, geocoder);
+        }
+        long prefetchRequests = geocoder.requests();
+        cache.memoryHits.set(0); cache.diskHits.set(0); cache.misses.set(0);
+
+        List<Long> times = new ArrayList<>(nLookups);
+        for (int i = 0; i < nLookups; i++) {
+            double[] loc = nextLocation(r);
+            long start = System.nanoTime();
+            cache.lookup(loc[0], loc[1]);
+            times.add(System.nanoTime() - start);
+        }
+        cache.close();
+
+        Collections.sort(times);
+        double n = nLookups;
+        out.format(Locale.US, "  %4d %-10s %6.1f  %6.1f %6.1f  %6d  %6.2f  %6.2f %6.1f%n",
+                precision, name,
+                100 * cache.memoryHits.get() / n, 100 * cache.diskHits.get() / n,
+                100 * cache.misses.get() / n, geocoder.requests() - prefetchRequests,
+                times.get(times.size() / 2) / 1e6,
+                times.get((int)(times.size() * 0.99)) / 1e6,
+                times.get(times.size() - 1) / 1e6);
+    }
+
+    private double[] nextLocation(Random r) {
+        if (r.nextDouble() < OnTheRoad) {
+            return new double[] {37.0 + r.nextDouble(), -122.5 + r.nextDouble()};
+        }
+        double pick = r.nextDouble();
+        int i = 0;
+        while (cumulativeWeight[i] < pick) i++;
+        double dLat = r.nextGaussian() * JitterMeters / MetersPerDegree;
+        double dLng = r.nextGaussian() * JitterMeters /
+                (MetersPerDegree * Math.cos(Math.toRadians(spots[i][0])));
+        return new double[] {spots[i][0] + dLat, spots[i][1] + dLng};
+    }
+
+    private List<RestCycle> restCycles(Random r) {
+        List<RestCycle> cycles = new ArrayList<>();
+        for (int i = 0; i < nLookups / 10; i++) {
+            double[] loc = nextLocation(r);
+            RestCycle rc = new RestCycle();
+            rc.lat = loc[0];
+            rc.lng = loc[1];
+            cycles.add(rc);
+        }
+        return cycles;
+    }
+
+    private void waitForPrefetch(GeocodeCache cache, StandInGeocoder geocoder)
+            throws InterruptedException {
+        // Prefetching is asynchronous. Wait until requests stop arriving
+        long last = -1;
+        while (geocoder.requests() != last) {
+            last = geocoder.requests();
+            Thread.sleep(latency * 3 + 50);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * IngestionHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 16, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import com.google.common.collect.Range;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.stage.Stage;
+import org.noroomattheinn.tesla.BaseState;
+import org.noroomattheinn.tesla.GUIState;
+import org.noroomattheinn.tesla.Tesla;
+import org.noroomattheinn.tesla.Vehicle;
+import org.noroomattheinn.timeseries.PersistentTS;
+import org.noroomattheinn.timeseries.Row;
+import org.noroomattheinn.timeseries.TimeSeries;
+import org.noroomattheinn.utils.Executor;
+import org.noroomattheinn.utils.RestHelper;
+import org.noroomattheinn.utils.ThreadManager;
+import org.noroomattheinn.visibletesla.data.VTData;
+import org.noroomattheinn.visibletesla.vehicle.VTVehicle;
+
+/**
+ * IngestionHarness: Run the app's data collection pipeline against a
+ * TeslaStandIn and report end-to-end latency, rows per second, and lost
+ * samples. Nothing in the pipeline is replaced: the TeslaClient talks to the
+ * stand-in through its proxy, StatsStreamer decides when to poll and
+ * stream, StreamProducer and StateProducer make the requests, VTVehicle
+ * applies the states, and StatsCollector stores rows in a PersistentTS in a
+ * temporary directory. The harness sets things up the way MainController
+ * does and then only watches.
+ *
+ * Each state is followed by its timestamp:
+ *   - applied:   the state was set on the VTVehicle model
+ *   - stored:    StatsCollector decided to keep it and stored a row for it
+ *   - persisted: a row with its timestamp is in the file at the end
+ * Samples that StreamProducer skips (closer than its threshold) or that
+ * StatsCollector decides aren't worth keeping are not losses. Neither are
+ * rows that the PersistentTS merges because they fall in the same tenth of
+ * a second: their timestamp is still there. A loss is a stored state whose
+ * timestamp is not in the file.
+ *
+ * Usage: IngestionHarness [seconds] [speedup] [latencyMs] [errorRate] [sleepAfterMin]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class IngestionHarness extends Application {
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+    private final Set<Long> stored = Collections.synchronizedSet(new HashSet<Long>());
+    private final AtomicLong nApplied = new AtomicLong();
+    private final AtomicLong nStored = new AtomicLong();
+
+    private long   seconds = 60;
+    private double speedup = 60.0;
+    private long   latency = 50;
+    private double errorRate = 0.02;
+    private long   sleepAfter = Long.MAX_VALUE;
+
+    public static void main(String[] args) { launch(args); }
+
+    @Override public void start(Stage stage) {
+        List<String> args = getParameters().getUnnamed();
+        if (args.size() > 0) seconds = Long.parseLong(args.get(0));
+        if (args.size() > 1) speedup = Double.parseDouble(args.get(1));
+        if (args.size() > 2) latency = Long.parseLong(args.get(2));
+        if (args.size() > 3) errorRate = Double.parseDouble(args.get(3));
+        if (args.size() > 4) sleepAfter = Long.parseLong(args.get(4)) * 60 * 1000;
+
+        // The pipeline applies states on this thread, so don't block it
+        Thread t = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    measure(System.out);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    Platform.exit();
+                }
+            }
+        }, "IngestionHarness");
+        t.start();
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - The run
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void measure(PrintStream out) throws Exception {
+        char[] password = "standin".toCharArray();
+        final TeslaStandIn standIn = new TeslaStandIn(0, new Scenario(speedup));
+        standIn.setLatency(latency, latency / 2);
+        standIn.setErrorRate(errorRate);
+        standIn.setSleepAfter(sleepAfter);
+        int proxyPort = standIn.enableProxy(TeslaStandIn.makeKeyStore(password), password);
+        standIn.start();
+        RestHelper.setDefaultProxy("127.0.0.1", proxyPort);
+        TeslaStandIn.trustEverything();
+
+        File container = Files.createTempDirectory("vt-harness").toFile();
+        try {
+            Tesla tesla = new Tesla();
+            if (!tesla.connect("harness@example.com", "standin")) {
+                out.println("Unable to log in to the stand-in");
+                return;
+            }
+            Vehicle v = tesla.getVehicles().get(0);
+            final VTVehicle vtVehicle = new VTVehicle(new VTVehicle.Overrides(), container);
+            final VTData vtData = new VTData(container, options(), vtVehicle, feedback);
+            watch(standIn.scenario(), vtVehicle, vtData);
+
+            vtVehicle.setVehicle(v);
+            vtData.setVehicle(v);
+            GUIState gs = v.queryGUI();
+            if (gs.valid) vtVehicle.noteUpdatedState(gs);
+            Map<Vehicle.StateType,BaseState> states = vtData.queryStates(
+                    EnumSet.of(Vehicle.StateType.Vehicle, Vehicle.StateType.Charge));
+            for (BaseState state : states.values()) {
+                if (state.valid) vtVehicle.noteUpdatedState(state);
+            }
+
+            Thread.sleep(seconds * 1000);
+            ThreadManager.get().shutDown();     // Stops the producers, closes the store
+            report(out, standIn, new PersistentTS(container, v.getVIN(), VTData.schema, true));
+        } finally {
+            standIn.stop();
+            delete(container);
+        }
+    }
+
+    private void watch(final Scenario scenario, final VTVehicle vtVehicle, final VTData vtData) {
+        Runnable applied = new Runnable() {
+            @Override public void run() { nApplied.incrementAndGet(); }
+        };
+        vtVehicle.streamState.addTracker(applied);
+        vtVehicle.chargeState.addTracker(applied);
+
+        vtData.lastStoredStreamState.addTracker(new Runnable() {
+            @Override public void run() {
+                noteStored(scenario, vtData.lastStoredStreamState.get().timestamp);
+            }
+        });
+        vtData.lastStoredChargeState.addTracker(new Runnable() {
+            @Override public void run() {
+                noteStored(scenario, vtData.lastStoredChargeState.get().timestamp);
+            }
+        });
+    }
+
+    private void noteStored(Scenario scenario, long timestamp) {
+        nStored.incrementAndGet();
+        stored.add(key(timestamp));
+        latencies.add(System.currentTimeMillis() - scenario.wallTimeOf(timestamp));
+    }
+
+    private void report(PrintStream out, TeslaStandIn standIn, PersistentTS ts) {
+        final Set<Long> persisted = new HashSet<>();
+        try {
+            ts.streamRows(Range.<Long>all(), new TimeSeries.RowCollector() {
+                @Override public boolean collect(Row r) { persisted.add(key(r.timestamp)); return true; }
+            });
+        } finally {
+            ts.close();
+        }
+        Set<Long> lost;
+        synchronized (stored) { lost = new HashSet<>(stored); }
+        lost.removeAll(persisted);
+
+        List<Long> sorted;
+        synchronized (latencies) { sorted = new ArrayList<>(latencies); }
+        Collections.sort(sorted);
+
+        out.println("Ingestion harness results");
+        out.format(Locale.US, "  Duration:        %d s (%.0fx simulated)%n", seconds, speedup);
+        out.format(Locale.US, "  Server:          %d requests, %d injected errors, %d stream samples%n",
+                standIn.requests(), standIn.errors(), standIn.samplesServed());
+        out.format(Locale.US, "  States applied:  %d%n", nApplied.get());
+        out.format(Locale.US, "  States stored:   %d%n", nStored.get());
+        out.format(Locale.US, "  Rows persisted:  %d (%.1f rows/s)%n",
+                persisted.size(), persisted.size() / (double)seconds);
+        out.format(Locale.US, "  Lost:            %d%n", lost.size());
+        out.format(Locale.US, "  Latency (ms):    p50 %d, p99 %d, max %d%n",
+                percentile(sorted, 0.50), percentile(sorted, 0.99),
+                sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1));
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    /** The options the app uses by default (see Prefs) */
+    private static VTData.Options options() {
+        VTData.Options options = new VTData.Options();
+        options.loadPeriod.set(Range.<Long>all());
+        options.locMinTime.set(5);
+        options.locMinDist.set(5);
+        options.minPollInterval.set(30);
+        options.maxPollInterval.set(10 * 60);
+        options.streamWhenPossible.set(true);
+        options.ditherLocAmt.set(1.5);
+        return options;
+    }
+
+    private static final Executor.FeedbackListener feedback = new Executor.FeedbackListener() {
+        @Override public void requestStarted(Executor.Request r) { }
+        @Override public void requestCompleted(Executor.Request r) { }
+        @Override public void completionHistogram(String type, Map<Integer,Integer> h) { }
+    };
+
+    /** The resolution at which a PersistentTS keeps time, a tenth of a second */
+    private static long key(long timestamp) { return timestamp / 100; }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        int index = (int)Math.min(sorted.size() - 1, Math.round(p * (sorted.size() - 1)));
+        return sorted.get(index);
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) { for (File f : files) { f.delete(); } }
+        dir.delete();
+    }
+}
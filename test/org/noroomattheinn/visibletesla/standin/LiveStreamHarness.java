@@ -0,0 +1,330 @@
+/*
+ * LiveStreamHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 26, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.noroomattheinn.visibletesla.rest.HTTPSupport;
+import org.noroomattheinn.visibletesla.rest.LiveStream;
+
+/**
+ * LiveStreamHarness: Measure the /v1/live endpoints with many clients. A
+ * local server is given a LiveStream which is updated at a fixed rate, the
+ * way the RESTServer updates it as vehicle state arrives. Each update
+ * carries the time it was made so clients can measure how long it took to
+ * reach them.
+ *
+ * The first run has hundreds of Server-Sent Events subscribers and reports
+ * how many events each received (showing the coalescing of updates), the
+ * delivery latency, and the number of server threads. The second run does
+ * the same with long-polling clients. The third has a few clients that
+ * stop reading while large updates are sent and reports whether they are
+ * dropped and whether the other clients are held up.
+ *
+ * Usage: LiveStreamHarness [subscribers] [pollers] [seconds] [updatesPerSecond]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class LiveStreamHarness {
+    private static final Pattern TimeField = Pattern.compile("\"t\":(\\d+)");
+    private static final Pattern Version = Pattern.compile("\"v\":\"([^\"]+)\"");
+
+    private final int seconds;
+    private final int rate;
+
+    public LiveStreamHarness(int seconds, int rate) {
+        this.seconds = seconds;
+        this.rate = rate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int pollers     = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds     = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int rate        = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        LiveStreamHarness h = new LiveStreamHarness(seconds, rate);
+        PrintStream out = System.out;
+        out.format(Locale.US, "Live stream: %d updates/s for %d s, default interval %d ms%n",
+                rate, seconds, LiveStream.DefaultInterval);
+        out.println("  clients                 events/client  latency p50  latency p99" +
+                    "  server threads  dropped");
+        h.streamRun(out, subscribers, 0, 0);
+        h.pollRun(out, pollers);
+        h.streamRun(out, 20, 3, 256 * 1024);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Running the clients
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static class Results {
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicLong events = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        int serverThreads;
+        int dropped;
+    }
+
+    /**
+     * Run SSE subscribers
+     * @param nClients  The number of subscribers that read normally
+     * @param nStalled  The number of subscribers that never read
+     * @param padding   The size of an extra field sent with every update,
+     *                  used to fill the stalled clients' socket buffers
+     */
+    private void streamRun(PrintStream out, int nClients, int nStalled, int padding)
+            throws Exception {
+        final Results results = new Results();
+        final LiveStream live = new LiveStream(2);
+        ExecutorService executor = HTTPSupport.newExecutor(8, false);
+        HttpServer server = startServer(live, executor);
+        final int port = server.getAddress().getPort();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < nClients; i++) {
+                final Socket s = openStream(port, padding > 0 ? LiveStream.MinInterval : 0);
+                sockets.add(s);
+                startDaemon(new Runnable() {
+                    @Override public void run() { readEvents(s, results); }
+                }, "StreamClient-" + i);
+            }
+            for (int i = 0; i < nStalled; i++) {
+                sockets.add(openStream(port, LiveStream.MinInterval));
+            }
+            waitFor(live, nClients + nStalled);
+            results.serverThreads = update(live, padding);
+            Thread.sleep(LiveStream.DefaultInterval + 500);
+            // A stalled write is given a while before the client is dropped
+            long end = System.currentTimeMillis() + 15 * 1000;
+            while (live.stalled() < nStalled && System.currentTimeMillis() < end) {
+                Thread.sleep(100);
+            }
+            results.dropped = live.stalled();
+        } finally {
+            for (Socket s : sockets) { s.close(); }
+            live.stop();
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        String name = nStalled == 0 ? nClients + " SSE" :
+                nClients + " SSE + " + nStalled + " stalled";
+        report(out, name, nClients, results);
+    }
+
+    private void pollRun(PrintStream out, int nClients) throws Exception {
+        final Results results = new Results();
+        final LiveStream live = new LiveStream(2);
+        ExecutorService executor = HTTPSupport.newExecutor(8, false);
+        HttpServer server = startServer(live, executor);
+        final String url = "http://localhost:" + server.getAddress().getPort() + "/v1/live/poll";
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        try {
+            for (int i = 0; i < nClients; i++) {
+                startDaemon(new Runnable() {
+                    @Override public void run() { poll(url, end, results); }
+                }, "PollClient-" + i);
+            }
+            results.serverThreads = update(live, 0);
+        } finally {
+            live.stop();
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        report(out, nClients + " long poll", nClients, results);
+    }
+
+    /**
+     * Update the stream at the configured rate
+     * @return  The largest number of server threads seen
+     */
+    private int update(LiveStream live, int padding) throws InterruptedException {
+        String pad = padding > 0 ? "\"" + new String(new char[padding]).replace('\0', 'x') + "\"" : null;
+        int maxThreads = 0;
+        long period = 1000 / rate;
+        for (int i = 0; i < seconds * rate; i++) {
+            Map<String,String> fields = new LinkedHashMap<>();
+            fields.put("t", Long.toString(System.currentTimeMillis()));
+            fields.put("speed", Integer.toString(i % 80));
+            if (pad != null) fields.put("pad", pad.replace("\"x", "\"" + (i % 2)));
+            live.update(fields);
+            maxThreads = Math.max(maxThreads, serverThreads());
+            Thread.sleep(period);
+        }
+        return maxThreads;
+    }
+
+    /**
+     * Read a chunked event stream, noting the latency of each event
+     */
+    private static void readEvents(Socket s, Results results) {
+        try {
+            InputStream is = new BufferedInputStream(s.getInputStream());
+            while (!readLine(is).isEmpty()) { }     // Response headers
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (;;) {
+                int size = Integer.parseInt(readLine(is).trim(), 16);
+                if (size == 0) return;
+                for (int i = 0; i < size; i++) {
+                    int c = is.read();
+                    if (c < 0) return;
+                    if (c != '\n') { if (line.size() < 256) line.write(c); continue; }
+                    String l = line.toString("UTF-8");
+                    line.reset();
+                    if (!l.startsWith("data: ")) continue;
+                    Matcher m = TimeField.matcher(l);
+                    if (m.find()) {
+                        results.latencies.add(System.currentTimeMillis() - Long.parseLong(m.group(1)));
+                    }
+                    results.events.incrementAndGet();
+                }
+                readLine(is);                       // The chunk's CRLF
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Closed at the end of the run
+        }
+    }
+
+    private static void poll(String url, long end, Results results) {
+        String since = "0";
+        while (System.currentTimeMillis() < end) {
+            try {
+                HttpURLConnection c = (HttpURLConnection)new URL(
+                        url + "?since=" + since + "&timeout=5").openConnection();
+                String body;
+                try (InputStream is = c.getInputStream()) {
+                    body = new String(readAll(is), StandardCharsets.UTF_8);
+                }
+                Matcher m = TimeField.matcher(body);
+                if (m.find()) {
+                    results.latencies.add(System.currentTimeMillis() - Long.parseLong(m.group(1)));
+                    results.events.incrementAndGet();
+                }
+                m = Version.matcher(body);
+                if (m.find()) since = m.group(1);
+            } catch (IOException e) {
+                results.errors.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void report(PrintStream out, String name, int nClients, Results r) {
+        long[] l = sorted(r.latencies);
+        out.format(Locale.US, "  %-24s %13.1f %10dms %10dms %15d %8d%s%n",
+                name, r.events.get() / (double)nClients, pct(l, 0.50), pct(l, 0.99),
+                r.serverThreads, r.dropped,
+                r.errors.get() == 0 ? "" : "  (" + r.errors.get() + " errors)");
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static HttpServer startServer(LiveStream live, ExecutorService executor)
+            throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/v1/live", live);
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    private static Socket openStream(int port, long interval) throws IOException {
+        Socket s = new Socket();
+        s.setReceiveBufferSize(4096);
+        s.connect(new InetSocketAddress("localhost", port));
+        String query = interval > 0 ? "?interval=" + interval : "";
+        OutputStream os = s.getOutputStream();
+        os.write(("GET /v1/live/stream" + query + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+        return s;
+    }
+
+    private static void waitFor(LiveStream live, int n) throws InterruptedException {
+        long end = System.currentTimeMillis() + 30 * 1000;
+        while (live.subscribers() < n && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * The threads the server uses: its dispatcher, its request pool, and the
+     * LiveStream's writers
+     */
+    private static int serverThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            String name = t.getName();
+            if (name.startsWith("RESTServer-") || name.startsWith("LiveStream-") ||
+                name.startsWith("HTTP-Dispatcher")) n++;
+        }
+        return n;
+    }
+
+    private static void startDaemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = is.read()) >= 0 && c != '\n') { if (c != '\r') sb.append((char)c); }
+        if (c < 0 && sb.length() == 0) throw new IOException("Closed");
+        return sb.toString();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) > 0) { bytes.write(buf, 0, n); }
+        return bytes.toByteArray();
+    }
+
+    private static long[] sorted(List<Long> values) {
+        long[] a;
+        synchronized (values) {
+            a = new long[values.size()];
+            for (int i = 0; i < a.length; i++) { a[i] = values.get(i); }
+        }
+        Arrays.sort(a);
+        return a;
+    }
+
+    private static long pct(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+}
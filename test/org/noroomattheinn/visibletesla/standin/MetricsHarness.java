@@ -0,0 +1,190 @@
+/*
+ * MetricsHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 29, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import org.noroomattheinn.metrics.Counter;
+import org.noroomattheinn.metrics.Histogram;
+import org.noroomattheinn.metrics.Metrics;
+import org.noroomattheinn.visibletesla.rest.HTTPSupport;
+
+/**
+ * MetricsHarness: Check what the metrics registry costs and how accurate its
+ * histograms are.
+ *   - Counters and histograms are updated from several threads at once and
+ *     the cost of each update is reported.
+ *   - Durations drawn from a long tailed distribution are recorded and the
+ *     estimated quantiles are compared with the exact ones.
+ *   - A local server with a timed context is loaded and its metrics are
+ *     fetched in both formats, the way /v1/metrics serves them.
+ *
+ * Usage: MetricsHarness [threads] [updatesPerThread]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class MetricsHarness {
+    private final int nThreads;
+    private final int nUpdates;
+
+    public MetricsHarness(int nThreads, int nUpdates) {
+        this.nThreads = nThreads;
+        this.nUpdates = nUpdates;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        new MetricsHarness(threads, updates).run(System.out);
+    }
+
+    public void run(PrintStream out) throws Exception {
+        out.format(Locale.US, "Metrics: %d threads x %d updates%n", nThreads, nUpdates);
+        final Counter counter = Metrics.get().counter("harness_updates_total", "Harness updates");
+        final Histogram histogram = Metrics.get().histogram("harness_update_seconds", "Harness durations");
+        out.format(Locale.US, "  counter.inc()          %6.1f ns/update%n", contend(new Runnable() {
+            @Override public void run() { counter.inc(); }
+        }));
+        final long[] values = new long[1024];
+        Random random = new Random(42);
+        for (int i = 0; i < values.length; i++) { values[i] = (long)(random.nextDouble() * 1e6); }
+        out.format(Locale.US, "  histogram.record()     %6.1f ns/update%n", contend(new Runnable() {
+            int i = 0;
+            @Override public void run() { histogram.record(values[i++ & 1023]); }
+        }));
+        checkAccuracy(out);
+        serve(out);
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - The measurements
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * Run an update from every thread at once
+     * @return  The average wall clock time per update in nanoseconds
+     */
+    private double contend(final Runnable update) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(nThreads);
+        for (int t = 0; t < nThreads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < nUpdates; i++) { update.run(); }
+                    } catch (InterruptedException e) {
+                        // Stop early
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (System.nanoTime() - t0) / (double)((long)nThreads * nUpdates);
+    }
+
+    /**
+     * Record log-normal durations, roughly 1 ms typical with a tail into
+     * seconds, and compare the estimated quantiles with the exact ones
+     */
+    private void checkAccuracy(PrintStream out) {
+        Histogram h = Metrics.get().histogram("harness_accuracy_seconds", "Harness accuracy");
+        Random random = new Random(7);
+        long[] exact = new long[200000];
+        for (int i = 0; i < exact.length; i++) {
+            exact[i] = (long)(1e6 * Math.exp(1.5 * random.nextGaussian()));
+            h.record(exact[i]);
+        }
+        Arrays.sort(exact);
+        out.println("  quantile      exact ms   estimate ms    error");
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            long e = exact[(int)Math.ceil(q * exact.length) - 1];
+            long est = h.quantile(q);
+            out.format(Locale.US, "  %-10s %11.3f %13.3f %7.2f%%%n",
+                    q, e / 1e6, est / 1e6, 100.0 * (est - e) / e);
+        }
+    }
+
+    private void serve(PrintStream out) throws Exception {
+        ExecutorService executor = HTTPSupport.newExecutor(4, false);
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        final byte[] page = "<html><body>OK</body></html>\n".getBytes(StandardCharsets.UTF_8);
+        HttpContext cc = server.createContext("/page", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Content-Type", "text/html");
+                HTTPSupport.send(exchange, 200, page);
+            }
+        });
+        cc.getFilters().add(HTTPSupport.timed("/page"));
+        server.createContext("/metrics", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                boolean json = "format=json".equals(exchange.getRequestURI().getQuery());
+                StringBuilder sb = new StringBuilder();
+                if (json) Metrics.get().writeJSON(sb);
+                else Metrics.get().writePrometheus(sb);
+                exchange.getResponseHeaders().add(
+                        "Content-Type", json ? Metrics.JSONType : Metrics.PrometheusType);
+                HTTPSupport.send(exchange, 200, sb.toString());
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        String base = "http://localhost:" + server.getAddress().getPort();
+        try {
+            for (int i = 0; i < 500; i++) { fetch(base + "/page"); }
+            fetch(base + "/nowhere");
+            String text = fetch(base + "/metrics");
+            String json = fetch(base + "/metrics?format=json");
+            out.format(Locale.US, "  /metrics: %d bytes of text, %d bytes of JSON%n",
+                    text.length(), json.length());
+            for (String line : text.split("\n")) {
+                if (line.contains("rest_")) out.println("    " + line);
+            }
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private static String fetch(String url) throws IOException {
+        HttpURLConnection c = (HttpURLConnection)new URL(url).openConnection();
+        int code = c.getResponseCode();
+        InputStream is = code == 200 ? c.getInputStream() : c.getErrorStream();
+        if (is == null) return "";
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) { bytes.write(buf, 0, n); }
+            return bytes.toString("UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * RESTLoadHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 24, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.bind.DatatypeConverter;
+import org.noroomattheinn.visibletesla.rest.HTTPSupport;
+
+/**
+ * RESTLoadHarness: Measure request latency with N concurrent clients, each
+ * making requests over a kept-alive connection.
+ *
+ * With no URL it runs a local server whose page handler is set up the way
+ * the RESTServer's is: most requests return a rendered text page and a
+ * fraction fetch a page from a deliberately slow custom page source. The
+ * same load is run with the requests handled on the server's dispatcher
+ * thread (the old behavior), on a bounded pool, and on virtual threads if
+ * the runtime has them. Latencies are reported separately for the fast
+ * pages since those are what a slow custom page used to hold up.
+ *
+ * With a URL it runs the load against that URL, for example a running
+ * instance of the app.
+ *
+ * Usage: RESTLoadHarness [clients] [requestsPerClient] [slowMs] [slowEvery]
+ *        RESTLoadHarness url [clients] [requestsPerClient] [user] [password]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class RESTLoadHarness {
+    private static final int PageSize = 24 * 1024;
+
+    private final int nClients;
+    private final int nRequests;
+
+    public RESTLoadHarness(int nClients, int nRequests) {
+        this.nClients = nClients;
+        this.nRequests = nRequests;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].startsWith("http")) {
+            int clients   = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+            int requests  = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+            String auth = null;
+            if (args.length > 4) {
+                auth = "Basic " + DatatypeConverter.printBase64Binary(
+                        (args[3] + ":" + args[4]).getBytes(StandardCharsets.UTF_8));
+            }
+            RESTLoadHarness h = new RESTLoadHarness(clients, requests);
+            System.out.format(Locale.US, "REST load: %s, %d clients x %d requests%n",
+                    args[0], clients, requests);
+            h.report(System.out, "remote", h.run(args[0], auth, 0, null));
+            return;
+        }
+        int  clients   = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int  requests  = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long slowMs    = args.length > 2 ? Long.parseLong(args[2]) : 500;
+        int  slowEvery = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        new RESTLoadHarness(clients, requests).runLocal(System.out, slowMs, slowEvery);
+    }
+
+    /**
+     * Compare the ways of handling requests using a local server
+     * @param out       Where to report the results
+     * @param slowMs    Millis the custom page source takes per request
+     * @param slowEvery Every slowEvery'th request of a client is for a
+     *                  custom page
+     */
+    public void runLocal(PrintStream out, long slowMs, int slowEvery) throws Exception {
+        out.format(Locale.US,
+                "REST load: %d clients x %d requests, 1 in %d from a custom source taking %d ms%n",
+                nClients, nRequests, slowEvery, slowMs);
+        out.println("  handled on         fast p50   fast p99   fast max    all p99" +
+                    "      req/s  connections  bytes/page");
+        HttpServer source = slowSource(slowMs);
+        try {
+            String sourceURL = "http://localhost:" + source.getAddress().getPort() + "/";
+            report(out, "dispatcher thread", runLocal(null, sourceURL, slowEvery));
+            report(out, "pool of 8", runLocal(HTTPSupport.newExecutor(8, false), sourceURL, slowEvery));
+            ExecutorService virtual = HTTPSupport.newExecutor(8, true);
+            if (virtual.getClass().getName().contains("ThreadPoolExecutor")) {
+                virtual.shutdown();
+                out.println("  virtual threads    (not supported by this runtime)");
+            } else {
+                report(out, "virtual threads", runLocal(virtual, sourceURL, slowEvery));
+            }
+        } finally {
+            source.stop(0);
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Running the load
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static class Results {
+        final List<Long> fast = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> all = Collections.synchronizedList(new ArrayList<Long>());
+        final Set<String> connections = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        long elapsed;
+    }
+
+    private Results runLocal(ExecutorService executor, final String sourceURL,
+                             int slowEvery) throws Exception {
+        final Results results = new Results();
+        final byte[] page = page();
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                results.connections.add(exchange.getRemoteAddress().toString());
+                String path = exchange.getRequestURI().getPath();
+                byte[] content = page;
+                if (path.startsWith("/custom/")) {
+                    try (InputStream is = new URL(sourceURL + path.substring(8)).openStream()) {
+                        content = readAll(is);
+                    }
+                }
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+                HTTPSupport.send(exchange, 200, content);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort() + "/";
+            return run(base, null, slowEvery, results);
+        } finally {
+            server.stop(0);
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+
+    private Results run(final String url, final String auth, final int slowEvery,
+                        Results existing) throws Exception {
+        final Results results = existing != null ? existing : new Results();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(nClients);
+        for (int c = 0; c < nClients; c++) {
+            final int client = c;
+            Thread t = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < nRequests; i++) {
+                            // Stagger the slow requests across clients
+                            boolean slow = slowEvery > 0 && (i + client) % slowEvery == 0;
+                            String target = slow ? url + "custom/page.html" : url;
+                            long t0 = System.nanoTime();
+                            int n = fetch(target, auth);
+                            long micros = (System.nanoTime() - t0) / 1000;
+                            if (n < 0) { results.errors.incrementAndGet(); continue; }
+                            if (!slow) { results.fast.add(micros); results.bytes.addAndGet(n); }
+                            results.all.add(micros);
+                        }
+                    } catch (InterruptedException e) {
+                        // Stop early
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "LoadClient-" + c);
+            t.setDaemon(true);
+            t.start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await(10, TimeUnit.MINUTES);
+        results.elapsed = System.nanoTime() - t0;
+        return results;
+    }
+
+    /**
+     * Make one request, reading the entire response so that the connection
+     * is returned to the keep-alive cache.
+     * @return  The number of bytes in the response body as sent, or -1 on error
+     */
+    private static int fetch(String target, String auth) {
+        HttpURLConnection c = null;
+        try {
+            c = (HttpURLConnection)new URL(target).openConnection();
+            c.setRequestProperty("Accept-Encoding", "gzip");
+            if (auth != null) c.setRequestProperty("Authorization", auth);
+            if (c.getResponseCode() != 200) {
+                InputStream es = c.getErrorStream();
+                if (es != null) { readAll(es); es.close(); }
+                return -1;
+            }
+            try (InputStream is = c.getInputStream()) { return readAll(is).length; }
+        } catch (IOException e) {
+            if (c != null) c.disconnect();
+            return -1;
+        }
+    }
+
+    private void report(PrintStream out, String name, Results r) {
+        long[] fast = sorted(r.fast), all = sorted(r.all);
+        double secs = r.elapsed / 1e9;
+        out.format(Locale.US, "  %-17s %8.1fms %8.1fms %8.1fms %8.1fms %10.0f %12s %11d%s%n",
+                name, pct(fast, 0.50), pct(fast, 0.99), pct(fast, 1.0), pct(all, 0.99),
+                all.length / secs,
+                r.connections.isEmpty() ? "-" : Integer.toString(r.connections.size()),
+                fast.length == 0 ? 0 : r.bytes.get() / fast.length,
+                r.errors.get() == 0 ? "" : "  (" + r.errors.get() + " errors)");
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private static HttpServer slowSource(final long latency) throws IOException {
+        HttpServer source = HttpServer.create(new InetSocketAddress(0), 0);
+        final byte[] page = page();
+        source.createContext("/", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                try { Thread.sleep(latency); }
+                catch (InterruptedException e) { /* Answer early */ }
+                exchange.sendResponseHeaders(200, page.length);
+                try (OutputStream os = exchange.getResponseBody()) { os.write(page); }
+            }
+        });
+        // The source itself is not the bottleneck being measured
+        source.setExecutor(HTTPSupport.newExecutor(64, false));
+        source.start();
+        return source;
+    }
+
+    private static byte[] page() {
+        // Roughly the size and redundancy of a rendered template
+        StringBuilder sb = new StringBuilder(PageSize);
+        sb.append("<html><body><table>\n");
+        for (int i = 0; sb.length() < PageSize; i++) {
+            sb.append("<tr><td class=\"label\">Value ").append(i)
+              .append("</td><td class=\"value\">").append((i * 7919) % 1000)
+              .append(".").append(i % 10).append(" mi</td></tr>\n");
+        }
+        sb.append("</table></body></html>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) > 0) { bytes.write(buf, 0, n); }
+        return bytes.toByteArray();
+    }
+
+    private static long[] sorted(List<Long> values) {
+        long[] a;
+        synchronized (values) {
+            a = new long[values.size()];
+            for (int i = 0; i < a.length; i++) { a[i] = values.get(i); }
+        }
+        Arrays.sort(a);
+        return a;
+    }
+
+    private static double pct(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1000.0;
+    }
+}
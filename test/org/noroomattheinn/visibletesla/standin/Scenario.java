@@ -0,0 +1,181 @@
+/*
+ * Scenario.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 16, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import java.util.Locale;
+
+/**
+ * Scenario: A synthetic vehicle whose state is a pure function of simulated
+ * time. The vehicle repeats a fixed day: it parks, drives, parks again, and
+ * then charges. Simulated time runs faster than wall-clock time by a
+ * configurable factor so hours of driving and charging can be replayed in
+ * minutes.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class Scenario {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    public enum Phase {Parked, Driving, Charging};
+
+    private static final long Minute = 60 * 1000L;
+    private static final long ParkTime   = 20 * Minute;
+    private static final long DriveTime  = 40 * Minute;
+    private static final long ChargeTime = 120 * Minute;
+    private static final long CycleTime  = 2 * ParkTime + DriveTime + ChargeTime;
+    private static final double MilesPerDrive = 25.0;
+    private static final double SOCPerDrive = 10.0;
+    private static final double BaseLat = 37.3947, BaseLng = -122.1503;
+    private static final double RatedMilesPerSOC = 2.65;
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final long   wallStart, simStart;
+    private final double speedup;
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create a Scenario that starts now.
+     * @param speedup   How many simulated milliseconds elapse per wall-clock
+     *                  millisecond. 1.0 is real time.
+     */
+    public Scenario(double speedup) {
+        this.wallStart = System.currentTimeMillis();
+        this.simStart = wallStart;
+        this.speedup = speedup;
+    }
+
+    /** @return The current simulated time */
+    public long now() {
+        return simStart + (long)((System.currentTimeMillis() - wallStart) * speedup);
+    }
+
+    /** @return The wall-clock time at which simulated time t occurs */
+    public long wallTimeOf(long t) {
+        return wallStart + (long)((t - simStart) / speedup);
+    }
+
+    /** @return The number of wall-clock millis it takes for simMillis to elapse */
+    public long wallMillisFor(long simMillis) { return (long)(simMillis / speedup); }
+
+    public Phase phaseAt(long t) {
+        long offset = offsetInCycle(t);
+        if (offset < ParkTime) return Phase.Parked;
+        if (offset < ParkTime + DriveTime) return Phase.Driving;
+        if (offset < 2 * ParkTime + DriveTime) return Phase.Parked;
+        return Phase.Charging;
+    }
+
+    public double speedAt(long t) {
+        if (phaseAt(t) != Phase.Driving) return 0;
+        double f = driveFraction(t);
+        // Accelerate, cruise with some variation, decelerate
+        return Math.max(0, 65 * Math.sin(Math.PI * f) + 5 * Math.sin(40 * f));
+    }
+
+    public double odometerAt(long t) {
+        long cycles = (t - simStart) / CycleTime;
+        double miles = 12000 + cycles * MilesPerDrive;
+        long offset = offsetInCycle(t);
+        if (offset >= ParkTime + DriveTime) return miles + MilesPerDrive;
+        if (offset >= ParkTime) return miles + MilesPerDrive * driveFraction(t);
+        return miles;
+    }
+
+    public double socAt(long t) {
+        long offset = offsetInCycle(t);
+        double full = 80.0;
+        if (offset < ParkTime) return full;
+        if (offset < ParkTime + DriveTime) return full - SOCPerDrive * driveFraction(t);
+        if (offset < 2 * ParkTime + DriveTime) return full - SOCPerDrive;
+        double f = (double)(offset - 2 * ParkTime - DriveTime) / ChargeTime;
+        // Taper toward the end of the charge
+        return full - SOCPerDrive + SOCPerDrive * Math.sqrt(f);
+    }
+
+    public double headingAt(long t) {
+        return (phaseAt(t) == Phase.Driving) ? (360 * driveFraction(t)) % 360 : 90;
+    }
+
+    public double latAt(long t) {
+        double f = driveProgress(t);
+        return BaseLat + 0.05 * Math.sin(Math.PI * f);
+    }
+
+    public double lngAt(long t) {
+        double f = driveProgress(t);
+        return BaseLng + 0.08 * f * (1 - f) * 4;
+    }
+
+    public double powerAt(long t) {
+        switch (phaseAt(t)) {
+            case Driving: return 0.3 * speedAt(t) + 4 * Math.sin(t / 7000.0);
+            case Charging: return -chargerVoltageAt(t) * chargerCurrentAt(t) / 1000;
+            default: return 0;
+        }
+    }
+
+    public double chargerVoltageAt(long t) { return phaseAt(t) == Phase.Charging ? 240 : 0; }
+
+    public double chargerCurrentAt(long t) {
+        if (phaseAt(t) != Phase.Charging) return 0;
+        double f = (double)(offsetInCycle(t) - 2 * ParkTime - DriveTime) / ChargeTime;
+        return (f < 0.8) ? 40 : 40 * (1 - f) * 5;
+    }
+
+    public double rangeAt(long t) { return socAt(t) * RatedMilesPerSOC; }
+
+    public String shiftStateAt(long t) { return phaseAt(t) == Phase.Driving ? "D" : "P"; }
+
+    /**
+     * Return a line in the format produced by the streaming endpoint:
+     * timestamp,speed,odometer,soc,elevation,est_heading,est_lat,est_lng,
+     * power,shift_state,range,est_range,heading
+     * @param t The simulated time of the sample
+     * @return  The CSV-formatted sample
+     */
+    public String streamSample(long t) {
+        return String.format(Locale.US,
+                "%d,%.0f,%.1f,%.0f,%d,%.0f,%.6f,%.6f,%.0f,%s,%.0f,%.0f,%.0f",
+                t, speedAt(t), odometerAt(t), socAt(t), 30, headingAt(t),
+                latAt(t), lngAt(t), powerAt(t), shiftStateAt(t),
+                rangeAt(t), rangeAt(t) * 0.9, headingAt(t));
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private long offsetInCycle(long t) { return Math.max(0, t - simStart) % CycleTime; }
+
+    private double driveFraction(long t) {
+        return Math.min(1.0, (double)(offsetInCycle(t) - ParkTime) / DriveTime);
+    }
+
+    // 0 at home, 1 at the destination
+    private double driveProgress(long t) {
+        long offset = offsetInCycle(t);
+        if (offset < ParkTime) return 0;
+        if (offset < ParkTime + DriveTime) return driveFraction(t);
+        return 1;
+    }
+}
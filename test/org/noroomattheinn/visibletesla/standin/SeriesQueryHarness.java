@@ -0,0 +1,236 @@
+/*
+ * SeriesQueryHarness.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 25, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import com.google.common.collect.Range;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import org.noroomattheinn.timeseries.InMemoryTS;
+import org.noroomattheinn.timeseries.PersistentTS;
+import org.noroomattheinn.timeseries.Row;
+import org.noroomattheinn.timeseries.RowDescriptor;
+import org.noroomattheinn.timeseries.TimeSeries;
+import org.noroomattheinn.visibletesla.rest.DataQuery;
+
+/**
+ * SeriesQueryHarness: Measure year-long queries of the kind served by the
+ * /v1/data/series endpoint. It writes a year of synthetic rows to a
+ * PersistentTS and then pages through the whole year with DataQuery, both
+ * raw and aggregated. For comparison it also loads the year into memory and
+ * serializes it in one piece, which is what answering the query from an
+ * in-memory index would take. Run it with a small heap (eg -Xmx64m) to see
+ * that the memory used by a streamed query does not depend on its length.
+ *
+ * Usage: SeriesQueryHarness [rows] [limit]
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class SeriesQueryHarness {
+    private static final long Minute = 60 * 1000L;
+    private static final long Year = 365 * 24 * 60 * Minute;
+    private static final String[] Columns = {
+        "C_VLT", "C_AMP", "C_EST", "C_SOC", "C_ROC", "C_BAM",
+        "L_LAT", "L_LNG", "L_HDG", "L_SPD", "L_ODO", "L_PWR"};
+    private static final RowDescriptor schema = new RowDescriptor(Columns);
+
+    private final int nRows;
+    private final int limit;
+
+    public SeriesQueryHarness(int nRows, int limit) {
+        this.nRows = nRows;
+        this.limit = limit;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows  = args.length > 0 ? Integer.parseInt(args[0]) : 365 * 24 * 60;
+        int limit = args.length > 1 ? Integer.parseInt(args[1]) : DataQuery.MaxRows;
+        new SeriesQueryHarness(rows, limit).run(System.out);
+    }
+
+    public void run(PrintStream out) throws Exception {
+        File dir = Files.createTempDirectory("vt-series").toFile();
+        try {
+            final PersistentTS ts = new PersistentTS(dir, "harness", schema, true);
+            long start = System.currentTimeMillis() - Year;
+            fill(ts, start);
+            DataQuery.RowSource source = new DataQuery.RowSource() {
+                @Override public void streamRows(Range<Long> period, TimeSeries.RowCollector c) {
+                    ts.streamRows(period, c);
+                }
+            };
+            long end = start + Year;
+            out.format(Locale.US, "Series query harness: %d rows over a year, %d rows per page, %d MB max heap%n",
+                    nRows, limit, Runtime.getRuntime().maxMemory() >> 20);
+            out.println("  query                 requests   total ms   p50 ms   max ms       bytes   MB alloc/req");
+            query(out, "raw, all columns", source, params(start, end, null, null, null));
+            query(out, "raw, C_SOC,C_EST", source, params(start, end, "C_SOC,C_EST", null, null));
+            query(out, "raw, csv", source, params(start, end, null, null, "csv"));
+            query(out, "1h avg, all", source, params(start, end, null, "1h", null));
+            query(out, "1d max, C_SOC", source, params(start, end, "C_SOC", "1d", null));
+            inMemory(out, ts, start, end);
+            ts.close();
+        } finally {
+            for (File f : dir.listFiles()) { f.delete(); }
+            dir.delete();
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Running the queries
+ *
+ *----------------------------------------------------------------------------*/
+
+    private Map<String,String> params(long from, long to, String columns, String bucket, String format) {
+        Map<String,String> p = new HashMap<>();
+        p.put("from", Long.toString(from));
+        p.put("to", Long.toString(to));
+        p.put("limit", Integer.toString(limit));
+        if (columns != null) p.put("columns", columns);
+        if (bucket != null) p.put("bucket", bucket);
+        if (format != null) p.put("format", format);
+        return p;
+    }
+
+    private void query(PrintStream out, String name, DataQuery.RowSource source,
+                       Map<String,String> params) throws IOException {
+        List<Long> latencies = new ArrayList<>();
+        long bytes = 0, alloc = 0;
+        long t0 = System.nanoTime();
+        String token = null;
+        do {
+            if (token != null) params.put("page", token);
+            CountingWriter w = new CountingWriter();
+            long a0 = allocated();
+            long r0 = System.nanoTime();
+            new DataQuery(params).writeSeries(source, schema, w);
+            latencies.add((System.nanoTime() - r0) / 1000000);
+            alloc += allocated() - a0;
+            bytes += w.count;
+            token = w.nextToken();
+        } while (token != null);
+        long total = (System.nanoTime() - t0) / 1000000;
+        Collections.sort(latencies);
+        out.format(Locale.US, "  %-20s %9d %10d %8d %8d %11d %14.1f%n",
+                name, latencies.size(), total, latencies.get(latencies.size() / 2),
+                latencies.get(latencies.size() - 1), bytes,
+                alloc / (double)latencies.size() / (1 << 20));
+    }
+
+    private void inMemory(PrintStream out, TimeSeries ts, long from, long to) throws IOException {
+        System.gc();
+        long before = usedHeap();
+        long t0 = System.nanoTime();
+        try {
+            InMemoryTS mem = new InMemoryTS(schema, false);
+            ts.loadInto(mem, Range.closed(from, to));
+            CountingWriter w = new CountingWriter();
+            w.write("{\"rows\":[");
+            for (Row r : mem.getIndex().values()) {
+                w.write("\n[" + r.timestamp);
+                for (double v : r.values) { w.write("," + v); }
+                w.write("],");
+            }
+            w.write("]}");
+            long total = (System.nanoTime() - t0) / 1000000;
+            System.gc();
+            long retained = usedHeap() - before;
+            out.format(Locale.US, "  %-20s %9d %10d %8s %8s %11d   %.1f MB retained%n",
+                    "in-memory, all", 1, total, "-", "-", w.count, retained / (double)(1 << 20));
+            if (mem.getIndex().isEmpty()) out.print("");    // Keep mem reachable
+        } catch (OutOfMemoryError e) {
+            out.format(Locale.US, "  %-20s out of memory after %d ms%n",
+                    "in-memory, all", (System.nanoTime() - t0) / 1000000);
+        }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    /**
+     * Write a row per minute. When the car is parked only the charge columns
+     * are recorded. When it is driving, everything is.
+     */
+    private void fill(TimeSeries ts, long start) {
+        Random random = new Random(42);
+        double soc = 80, odo = 10000, lat = 37.4, lng = -122.1;
+        long parkedBits = 0x3f, drivingBits = 0xfff;
+        for (int i = 0; i < nRows; i++) {
+            long time = start + i * (Year / nRows);
+            int minuteOfDay = (int)((time / Minute) % (24 * 60));
+            boolean driving = (minuteOfDay > 480 && minuteOfDay < 520) ||
+                              (minuteOfDay > 1050 && minuteOfDay < 1100);
+            if (driving) {
+                soc -= 0.05; odo += 0.5;
+                lat += (random.nextDouble() - 0.5) * 1e-3;
+                lng += (random.nextDouble() - 0.5) * 1e-3;
+            } else if (minuteOfDay < 300) {
+                soc = Math.min(90, soc + 0.1);
+            }
+            double[] values = {
+                minuteOfDay < 300 ? 240 : 0, minuteOfDay < 300 ? 32 : 0,
+                soc * 2.65, soc, minuteOfDay < 300 ? 22 : 0, driving ? -50 : 0,
+                lat, lng, random.nextInt(360), driving ? 30 + random.nextInt(40) : 0,
+                odo, driving ? random.nextInt(80) : 0};
+            ts.storeRow(new Row(time, driving ? drivingBits : parkedBits, values));
+        }
+        ts.flush();
+    }
+
+    private static long allocated() {
+        java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+        if (b instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)b).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Counts the characters written and remembers the end of the output so
+     * the continuation token can be found.
+     */
+    private static class CountingWriter extends Writer {
+        long count = 0;
+        final StringBuilder tail = new StringBuilder();
+
+        @Override public void write(char[] cbuf, int off, int len) {
+            count += len;
+            tail.append(cbuf, off, len);
+            if (tail.length() > 256) tail.delete(0, tail.length() - 64);
+        }
+        @Override public void flush() { }
+        @Override public void close() { }
+
+        String nextToken() {
+            String t = tail.toString();
+            int i = t.lastIndexOf("\"next\":\"");
+            if (i >= 0) return t.substring(i + 8, t.indexOf('"', i + 8));
+            i = t.lastIndexOf("# next=");
+            if (i >= 0) return t.substring(i + 7).trim();
+            return null;
+        }
+    }
+}
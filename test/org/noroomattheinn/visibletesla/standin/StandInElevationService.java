@@ -0,0 +1,68 @@
+/*
+ * StandInElevationService.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 23, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.noroomattheinn.utils.GeoUtils;
+import org.noroomattheinn.visibletesla.data.ElevationCache;
+
+/**
+ * StandInElevationService: A local replacement for the remote elevation
+ * service. Each request takes a fixed latency plus a small amount per
+ * location and is rejected if it has more locations than the service limit.
+ * Elevations are a smooth synthetic function of the location.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class StandInElevationService implements ElevationCache.ElevationService {
+    private final long latency;
+    private final double perLocation;
+    private final int maxLocations;
+    private final AtomicLong nRequests = new AtomicLong();
+    private final AtomicLong nLocations = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * @param latency       Millis that each request takes
+     * @param perLocation   Additional millis per location in the request
+     * @param maxLocations  Requests with more locations than this fail
+     */
+    public StandInElevationService(long latency, double perLocation, int maxLocations) {
+        this.latency = latency;
+        this.perLocation = perLocation;
+        this.maxLocations = maxLocations;
+    }
+
+    @Override public double[] getElevations(List<? extends GeoUtils.LocationSource> locations) {
+        nRequests.incrementAndGet();
+        int active = inFlight.incrementAndGet();
+        try {
+            int current;
+            while (active > (current = maxInFlight.get()) &&
+                   !maxInFlight.compareAndSet(current, active)) { }
+            if (locations.size() > maxLocations) return null;
+            nLocations.addAndGet(locations.size());
+            try { Thread.sleep(latency + (long)(perLocation * locations.size())); }
+            catch (InterruptedException e) { return null; }
+
+            double[] elevations = new double[locations.size()];
+            for (int i = 0; i < elevations.length; i++) {
+                GeoUtils.LocationSource l = locations.get(i);
+                elevations[i] = 100 + 50 * Math.sin(l.getLat() * 500) * Math.cos(l.getLng() * 500);
+            }
+            return elevations;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public long requests() { return nRequests.get(); }
+    public long locations() { return nLocations.get(); }
+    public int maxInFlight() { return maxInFlight.get(); }
+}
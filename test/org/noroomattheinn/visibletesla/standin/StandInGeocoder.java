@@ -0,0 +1,47 @@
+/*
+ * StandInGeocoder.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 22, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.noroomattheinn.visibletesla.data.GeocodeCache;
+
+/**
+ * StandInGeocoder: A local replacement for the remote reverse geocoding
+ * service. It takes a configurable amount of time per request, fails a
+ * configurable fraction of requests, and returns a synthetic address that
+ * is the same for all locations within roughly 30 meters of each other.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class StandInGeocoder implements GeocodeCache.Geocoder {
+    private final long latency;
+    private final double errorRate;
+    private final Random random = new Random(17);
+    private final AtomicLong nRequests = new AtomicLong();
+
+    /**
+     * @param latency   Millis that each request takes
+     * @param errorRate The fraction of requests that fail (0.0 - 1.0)
+     */
+    public StandInGeocoder(long latency, double errorRate) {
+        this.latency = latency;
+        this.errorRate = errorRate;
+    }
+
+    @Override public String lookup(double lat, double lng) {
+        nRequests.incrementAndGet();
+        try { Thread.sleep(latency); }
+        catch (InterruptedException e) { return null; }
+        synchronized (random) { if (random.nextDouble() < errorRate) return null; }
+        long block = Math.round(lat * 3600);    // ~30m blocks
+        long street = Math.round(lng * 3600);
+        return String.format(Locale.US, "%d Street %d, Stand In City", Math.abs(block % 10000), street);
+    }
+
+    public long requests() { return nRequests.get(); }
+}
@@ -0,0 +1,536 @@
+/*
+ * TeslaStandIn.java - Copyright(c) 2014 Joe Pasqua
+ * Provided under the MIT License. See the LICENSE file for details.
+ * Created: Jan 16, 2015
+ */
+package org.noroomattheinn.visibletesla.standin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import static org.noroomattheinn.tesla.Tesla.logger;
+
+/**
+ * TeslaStandIn: A local server that speaks enough of the owner API and the
+ * streaming API to exercise the data collection pipeline without a car or
+ * a network. Vehicle data comes from a synthetic Scenario. Latency, errors,
+ * and sleep behavior can be injected.
+ *
+ * Supported endpoints:<ul>
+ * <li>POST /oauth/token</li>
+ * <li>GET  /api/1/vehicles</li>
+ * <li>POST /api/1/vehicles/{id}/wake_up</li>
+ * <li>GET  /api/1/vehicles/{id}/data_request/{charge_state|drive_state|
+ *      gui_settings|climate_state|vehicle_state}</li>
+ * <li>GET  /stream/{vehicle_id}/?values=...</li>
+ * </ul>
+ *
+ * The endpoints are served over plain HTTP and, after enableProxy, over TLS
+ * behind a proxy so that the real TeslaClient can be used against them.
+ *
+ * @author Joe Pasqua <joe at NoRoomAtTheInn dot org>
+ */
+public class TeslaStandIn {
+
+/*------------------------------------------------------------------------------
+ *
+ * Constants and Enums
+ *
+ *----------------------------------------------------------------------------*/
+
+    public static final String VIN = "5YJSA1H10EFP00001";
+    public static final long   VehicleID = 1234567890L;
+    private static final long  StreamSampleInterval = 250;       // Simulated millis
+    private static final long  MaxStreamDuration = 30 * 1000;   // Wall-clock millis
+
+/*------------------------------------------------------------------------------
+ *
+ * Internal State
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final Scenario scenario;
+    private final HttpServer server;
+    private HttpsServer  tlsServer;     // Non-null once enableProxy is called
+    private ServerSocket proxy;
+    private final ExecutorService pumps = Executors.newCachedThreadPool();
+    private final Random random = new Random(42);
+    private volatile long    latency = 0, jitter = 0;     // Millis
+    private volatile double  errorRate = 0.0;
+    private volatile long    sleepAfter = Long.MAX_VALUE;  // Simulated idle millis
+    private volatile long    lastActivity;                 // Simulated time
+    private volatile boolean asleep = false;
+
+    private final AtomicLong nRequests = new AtomicLong();
+    private final AtomicLong nErrors = new AtomicLong();
+    private final AtomicLong nSamplesServed = new AtomicLong();
+
+/*==============================================================================
+ * -------                                                               -------
+ * -------              Public Interface To This Class                   -------
+ * -------                                                               -------
+ *============================================================================*/
+
+    /**
+     * Create a stand-in server. It is not started until start() is called.
+     * @param port      The port to listen on. 0 picks a free port.
+     * @param scenario  The source of synthetic vehicle data
+     * @throws IOException If the server can't be created
+     */
+    public TeslaStandIn(int port, Scenario scenario) throws IOException {
+        this.scenario = scenario;
+        this.lastActivity = scenario.now();
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        addContexts(server);
+        this.tlsServer = null;
+        this.proxy = null;
+    }
+
+    /**
+     * Also serve the endpoints over TLS, behind an HTTP proxy that accepts
+     * CONNECT to any host. The TeslaClient's base URLs are fixed, so this is
+     * how the real client is pointed at the stand-in: give the app the
+     * returned port as its proxy (RestHelper.setDefaultProxy) and call
+     * trustEverything so the stand-in's certificate is accepted. Must be
+     * called before start().
+     * @param keyStore  A JKS keystore holding the server's key, for example
+     *                  one made by makeKeyStore
+     * @param password  The password of the keystore and of the key
+     * @return The port of the proxy
+     */
+    public int enableProxy(File keyStore, char[] password)
+            throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try (InputStream is = new FileInputStream(keyStore)) { ks.load(is, password); }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        SSLContext ssl = SSLContext.getInstance("TLS");
+        ssl.init(kmf.getKeyManagers(), null, null);
+
+        HttpsServer https = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        https.setHttpsConfigurator(new HttpsConfigurator(ssl));
+        addContexts(https);
+        tlsServer = https;
+        proxy = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        return proxy.getLocalPort();
+    }
+
+    public void start() {
+        server.start();
+        if (tlsServer != null) {
+            tlsServer.start();
+            Thread t = new Thread(acceptProxyConnections, "StandIn-Proxy");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+        if (tlsServer != null) {
+            tlsServer.stop(0);
+            try { proxy.close(); } catch (IOException e) { }
+        }
+    }
+
+    public int port() { return server.getAddress().getPort(); }
+    public String baseURL() { return "http://127.0.0.1:" + port(); }
+    public Scenario scenario() { return scenario; }
+
+    /** Add latency + uniform random jitter (both in millis) to every response */
+    public void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /** Fail the given fraction of requests [0..1] with an HTTP 500 */
+    public void setErrorRate(double errorRate) { this.errorRate = errorRate; }
+
+    /**
+     * Put the car to sleep after it has been parked and untouched for the
+     * given amount of simulated time. Long.MAX_VALUE means never.
+     */
+    public void setSleepAfter(long simMillis) { this.sleepAfter = simMillis; }
+
+    public long requests() { return nRequests.get(); }
+    public long errors() { return nErrors.get(); }
+    public long samplesServed() { return nSamplesServed.get(); }
+
+    /**
+     * Make a keystore with a new self-signed key pair for enableProxy. It
+     * uses the keytool that comes with the running JDK.
+     * @param password  The password to give the keystore and the key
+     * @return The keystore, in a new temporary file
+     */
+    public static File makeKeyStore(char[] password) throws IOException {
+        File ks = File.createTempFile("standin", ".jks");
+        ks.delete();    // keytool won't write into an empty file
+        ks.deleteOnExit();
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"),
+                                  "keytool").getPath();
+        String pw = new String(password);
+        Process p = new ProcessBuilder(
+                keytool, "-genkeypair", "-alias", "standin", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "2", "-dname", "CN=standin",
+                "-storetype", "JKS", "-keystore", ks.getPath(),
+                "-storepass", pw, "-keypass", pw).redirectErrorStream(true).start();
+        IOUtils.toString(p.getInputStream(), "UTF-8");
+        try {
+            if (p.waitFor() != 0) throw new IOException("keytool failed");
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while running keytool");
+        }
+        return ks;
+    }
+
+    /**
+     * Accept any certificate for any host on this JVM's HTTPS connections.
+     * Only for a process whose traffic all goes to a stand-in.
+     */
+    public static void trustEverything() throws GeneralSecurityException {
+        TrustManager[] trustAll = new TrustManager[] { new X509TrustManager() {
+            @Override public void checkClientTrusted(X509Certificate[] c, String a) { }
+            @Override public void checkServerTrusted(X509Certificate[] c, String a) { }
+            @Override public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }};
+        SSLContext ssl = SSLContext.getInstance("TLS");
+        ssl.init(null, trustAll, null);
+        SSLContext.setDefault(ssl);
+        HttpsURLConnection.setDefaultSSLSocketFactory(ssl.getSocketFactory());
+        HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
+            @Override public boolean verify(String host, SSLSession session) { return true; }
+        });
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Request Handlers
+ *
+ *----------------------------------------------------------------------------*/
+
+    private HttpHandler tokenRequest = new HttpHandler() {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+            if (!preamble(exchange)) return;
+            sendResponse(exchange, 200,
+                    "{\"access_token\": \"standin\", \"token_type\": \"bearer\", " +
+                    "\"expires_in\": 7776000, \"created_at\": " +
+                    System.currentTimeMillis()/1000 + "}");
+        }
+    };
+
+    private HttpHandler vehicleRequest = new HttpHandler() {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+            if (!preamble(exchange)) return;
+            String path = StringUtils.stripEnd(exchange.getRequestURI().getPath(), "/");
+            String[] parts = StringUtils.split(path, "/");    // api, 1, vehicles, ...
+            updateSleepState();
+
+            if (parts.length == 3) {
+                sendResponse(exchange, 200,
+                        "{\"response\": [" + vehicleJSON() + "], \"count\": 1}");
+            } else if (parts.length == 5 && parts[4].equals("wake_up")) {
+                asleep = false;
+                lastActivity = scenario.now();
+                sendResponse(exchange, 200, "{\"response\": " + vehicleJSON() + "}");
+            } else if (parts.length == 6 && parts[4].equals("data_request")) {
+                if (asleep) {
+                    sendResponse(exchange, 408,
+                            "{\"response\": null, \"error\": \"vehicle unavailable\"}");
+                    return;
+                }
+                String state = stateJSON(parts[5], scenario.now());
+                if (state == null) { sendResponse(exchange, 404, "{\"response\": null}"); }
+                else { sendResponse(exchange, 200, "{\"response\": " + state + "}"); }
+            } else {
+                sendResponse(exchange, 404, "{\"response\": null}");
+            }
+        }
+    };
+
+    private HttpHandler streamRequest = new HttpHandler() {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+            if (!preamble(exchange)) return;
+            updateSleepState();
+            if (asleep) {
+                sendResponse(exchange, 401, "Can't validate password.\n");
+                return;
+            }
+            // Stream samples as they become "available" in simulated time.
+            // Like the real service, stop after a while or once the car is parked.
+            exchange.sendResponseHeaders(200, 0);   // Chunked
+            OutputStream os = exchange.getResponseBody();
+            try {
+                long wallStart = System.currentTimeMillis();
+                long t = scenario.now();
+                while (System.currentTimeMillis() - wallStart < MaxStreamDuration) {
+                    long now = scenario.now();
+                    if (now < t) {
+                        Thread.sleep(Math.max(1, scenario.wallMillisFor(t - now)));
+                        continue;
+                    }
+                    os.write((scenario.streamSample(t) + "\r\n").getBytes("UTF-8"));
+                    os.flush();
+                    nSamplesServed.incrementAndGet();
+                    if (scenario.phaseAt(t) != Scenario.Phase.Driving) break;
+                    t += StreamSampleInterval;
+                }
+            } catch (InterruptedException e) {
+                logger.finest("Stream interrupted");
+            } finally {
+                os.close();
+            }
+        }
+    };
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - The proxy
+ *
+ *----------------------------------------------------------------------------*/
+
+    private final Runnable acceptProxyConnections = new Runnable() {
+        @Override public void run() {
+            while (!proxy.isClosed()) {
+                try {
+                    final Socket client = proxy.accept();
+                    pumps.execute(new Runnable() {
+                        @Override public void run() { proxyConnection(client); }
+                    });
+                } catch (IOException e) {
+                    if (!proxy.isClosed()) logger.warning("Proxy accept failed: " + e);
+                }
+            }
+        }
+    };
+
+    /**
+     * A CONNECT, whatever the host, is tunneled to the TLS server. Any other
+     * request is sent on to the plain server with its absolute URI made
+     * relative.
+     */
+    private void proxyConnection(Socket client) {
+        Socket upstream = null;
+        try {
+            InputStream in = client.getInputStream();
+            String requestLine = readLine(in);
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3) { client.close(); return; }
+            StringBuilder headers = new StringBuilder();
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (!line.toLowerCase(Locale.US).startsWith("proxy-")) {
+                    headers.append(line).append("\r\n");
+                }
+            }
+
+            if (parts[0].equals("CONNECT")) {
+                upstream = new Socket("127.0.0.1", tlsServer.getAddress().getPort());
+                client.getOutputStream().write(
+                        "HTTP/1.1 200 Connection established\r\n\r\n".getBytes("UTF-8"));
+            } else {
+                upstream = new Socket("127.0.0.1", port());
+                String target = parts[1];
+                if (target.startsWith("http://")) {
+                    int slash = target.indexOf('/', "http://".length());
+                    target = slash < 0 ? "/" : target.substring(slash);
+                }
+                upstream.getOutputStream().write(
+                        (parts[0] + " " + target + " " + parts[2] + "\r\n" +
+                         headers + "\r\n").getBytes("UTF-8"));
+            }
+            final Socket from = upstream;
+            final Socket to = client;
+            pumps.execute(new Runnable() {
+                @Override public void run() { pump(from, to); }
+            });
+            pump(client, upstream);
+        } catch (IOException e) {
+            logger.finest("Proxy connection ended: " + e);
+            closeQuietly(client);
+            closeQuietly(upstream);
+        }
+    }
+
+    private static void pump(Socket from, Socket to) {
+        byte[] buf = new byte[8192];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The other side closed
+        } finally {
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    /** Read a CRLF terminated line without reading past it */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') sb.append((char)c);
+        }
+        if (c < 0 && sb.length() == 0) throw new IOException("Connection closed");
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Socket s) {
+        if (s == null) return;
+        try { s.close(); } catch (IOException e) { }
+    }
+
+/*------------------------------------------------------------------------------
+ *
+ * PRIVATE - Utility Methods
+ *
+ *----------------------------------------------------------------------------*/
+
+    private void addContexts(HttpServer s) {
+        s.createContext("/oauth/token", tokenRequest);
+        s.createContext("/api/1/vehicles", vehicleRequest);
+        s.createContext("/stream/", streamRequest);
+        s.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Handle the injected latency and errors common to all requests.
+     * @return true if the request should be processed, false if it has
+     *         already been answered with an error
+     */
+    private boolean preamble(HttpExchange exchange) throws IOException {
+        nRequests.incrementAndGet();
+        long delay = latency + (jitter > 0 ? (long)(random.nextDouble() * jitter) : 0);
+        if (delay > 0) {
+            try { Thread.sleep(delay); }
+            catch (InterruptedException e) { return false; }
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            nErrors.incrementAndGet();
+            sendResponse(exchange, 500, "{\"response\": null, \"error\": \"injected\"}");
+            return false;
+        }
+        return true;
+    }
+
+    private void updateSleepState() {
+        long now = scenario.now();
+        if (scenario.phaseAt(now) != Scenario.Phase.Parked) {
+            asleep = false;
+            lastActivity = now;
+        } else if (now - lastActivity > sleepAfter) {
+            asleep = true;
+        }
+    }
+
+    private String vehicleJSON() {
+        return String.format(Locale.US,
+                "{\"id\": %d, \"vehicle_id\": %d, \"vin\": \"%s\", " +
+                "\"display_name\": \"Stand-In\", \"option_codes\": " +
+                "\"MS01,RENA,TM00,DRLH,PF00,BT85,PBCW,RFPO,WT19,IBMB,IDPB," +
+                "TR00,SU01,SC01,TP01,AU01,CH00,HP00,PA00,PS00,AD02,X020,X025," +
+                "X001,X003,X007,X011,X013\", \"color\": null, \"tokens\": " +
+                "[\"t1\", \"t2\"], \"state\": \"%s\"}",
+                VehicleID, VehicleID, VIN, asleep ? "asleep" : "online");
+    }
+
+    private String stateJSON(String which, long t) {
+        switch (which) {
+            case "charge_state":
+                boolean charging = scenario.phaseAt(t) == Scenario.Phase.Charging;
+                return String.format(Locale.US,
+                        "{\"charging_state\": \"%s\", \"charge_limit_soc\": 90, " +
+                        "\"battery_range\": %.2f, \"est_battery_range\": %.2f, " +
+                        "\"ideal_battery_range\": %.2f, \"battery_level\": %.0f, " +
+                        "\"battery_current\": %.1f, \"charger_voltage\": %.0f, " +
+                        "\"charger_actual_current\": %.0f, \"charger_phases\": %d, " +
+                        "\"charge_rate\": %.1f, \"charge_port_door_open\": %b, " +
+                        "\"fast_charger_present\": false, \"timestamp\": %d}",
+                        charging ? "Charging" : "Disconnected",
+                        scenario.rangeAt(t), scenario.rangeAt(t) * 0.9,
+                        scenario.rangeAt(t) * 1.1, scenario.socAt(t),
+                        -scenario.powerAt(t) * 2.5, scenario.chargerVoltageAt(t),
+                        scenario.chargerCurrentAt(t), charging ? 1 : 0,
+                        charging ? 30.0 : 0.0, charging, t);
+            case "drive_state":
+                return String.format(Locale.US,
+                        "{\"shift_state\": \"%s\", \"speed\": %.0f, " +
+                        "\"latitude\": %.6f, \"longitude\": %.6f, " +
+                        "\"heading\": %.0f, \"gps_as_of\": %d, \"timestamp\": %d}",
+                        scenario.shiftStateAt(t), scenario.speedAt(t),
+                        scenario.latAt(t), scenario.lngAt(t),
+                        scenario.headingAt(t), t / 1000, t);
+            case "gui_settings":
+                return "{\"gui_distance_units\": \"mi/hr\", " +
+                       "\"gui_temperature_units\": \"F\", " +
+                       "\"gui_charge_rate_units\": \"mi/hr\", " +
+                       "\"gui_24_hour_time\": false, " +
+                       "\"gui_range_display\": \"Rated\", \"timestamp\": " + t + "}";
+            case "climate_state":
+                return "{\"inside_temp\": 21.0, \"outside_temp\": 15.0, " +
+                       "\"driver_temp_setting\": 21.0, " +
+                       "\"passenger_temp_setting\": 21.0, " +
+                       "\"is_auto_conditioning_on\": false, " +
+                       "\"is_front_defroster_on\": false, " +
+                       "\"is_rear_defroster_on\": false, " +
+                       "\"fan_status\": 0, \"timestamp\": " + t + "}";
+            case "vehicle_state":
+                return String.format(Locale.US,
+                        "{\"df\": 0, \"dr\": 0, \"pf\": 0, \"pr\": 0, \"ft\": 0, " +
+                        "\"rt\": 0, \"car_version\": \"2.2.100\", " +
+                        "\"locked\": true, \"sun_roof_installed\": false, " +
+                        "\"odometer\": %.1f, \"vehicle_name\": \"Stand-In\", " +
+                        "\"timestamp\": %d}",
+                        scenario.odometerAt(t), t);
+            default:
+                return null;
+        }
+    }
+
+    private void sendResponse(HttpExchange exchange, int code, String response)
+            throws IOException {
+        byte[] bytes = response.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+}